@@ -1,11 +1,17 @@
 package uk.ac.cam.seh208.middleware.api;
 
 import android.os.RemoteException;
+import android.util.Log;
 
+import java.util.List;
+
+import uk.ac.cam.seh208.middleware.common.BinderVersion;
+import uk.ac.cam.seh208.middleware.common.DeliveryPolicy;
 import uk.ac.cam.seh208.middleware.common.EndpointDetails;
 import uk.ac.cam.seh208.middleware.common.IMessageListener;
 import uk.ac.cam.seh208.middleware.common.Persistence;
 import uk.ac.cam.seh208.middleware.common.Query;
+import uk.ac.cam.seh208.middleware.common.ValidationPolicy;
 
 import static uk.ac.cam.seh208.middleware.api.RemoteUtils.callSafe;
 
@@ -47,6 +53,22 @@ public class Endpoint {
         callSafe(() -> connection.waitForBinder().ep_send(name, message));
     }
 
+    /**
+     * Send a batch of messages in a single call to the middleware. The batch is validated
+     * as a whole, so if any message does not conform to the endpoint schema, none are sent.
+     */
+    public void sendBatch(List<String> messages) throws MiddlewareDisconnectedException {
+        if (connection.getServiceVersion() < BinderVersion.BATCH) {
+            // Older services do not accept batches; send the messages individually.
+            for (String message : messages) {
+                send(message);
+            }
+            return;
+        }
+
+        callSafe(() -> connection.waitForBinder().ep_sendBatch(name, messages));
+    }
+
     public MessageListenerToken registerListener(MessageListener method)
             throws MiddlewareDisconnectedException {
         IMessageListener listener = new IMessageListener.Stub() {
@@ -54,9 +76,20 @@ public class Endpoint {
             public void onMessage(String message) throws RemoteException {
                 method.onMessage(message);
             }
+
+            @Override
+            public void onMessages(List<String> messages) throws RemoteException {
+                method.onMessages(messages);
+            }
         };
 
-        callSafe(() -> connection.waitForBinder().ep_registerListener(name, listener));
+        if (connection.getServiceVersion() >= BinderVersion.BATCH) {
+            // Register for batched delivery, which the listener supports.
+            callSafe(() -> connection.waitForBinder().ep_registerBatchListener(name, listener));
+        } else {
+            // Older services silently ignore batch registrations.
+            callSafe(() -> connection.waitForBinder().ep_registerListener(name, listener));
+        }
 
         return new MessageListenerToken(listener);
     }
@@ -104,6 +137,26 @@ public class Endpoint {
         callSafe(() -> connection.waitForBinder().ep_setForceable(name, forceable));
     }
 
+    public void setValidationPolicy(ValidationPolicy policy)
+            throws MiddlewareDisconnectedException {
+        callSafe(() -> connection.waitForBinder().ep_setValidationPolicy(name, policy));
+    }
+
+    /**
+     * Set the policy determining how received messages are queued for the listeners
+     * of the endpoint. The policy applies to listeners registered from now on.
+     */
+    public void setDeliveryPolicy(DeliveryPolicy policy)
+            throws MiddlewareDisconnectedException {
+        if (connection.getServiceVersion() < BinderVersion.DELIVERY) {
+            // Older services silently ignore the call, and always deliver losslessly.
+            Log.w(getTag(), "Middleware service does not support delivery policies.");
+            return;
+        }
+
+        callSafe(() -> connection.waitForBinder().ep_setDeliveryPolicy(name, policy));
+    }
+
     private static String getTag() {
         return "MW";
     }
@@ -1,6 +1,18 @@
 package uk.ac.cam.seh208.middleware.api;
 
+import java.util.List;
+
 
 public interface MessageListener {
     void onMessage(String message);
+
+    /**
+     * Receive a batch of messages, delivered by the middleware in a single call.
+     * By default, each message is passed to onMessage in turn.
+     */
+    default void onMessages(List<String> messages) {
+        for (String message : messages) {
+            onMessage(message);
+        }
+    }
 }
@@ -8,6 +8,8 @@ import android.util.Log;
 
 import uk.ac.cam.seh208.middleware.binder.ICombined;
 
+import static uk.ac.cam.seh208.middleware.api.RemoteUtils.callSafe;
+
 
 class MiddlewareServiceConnection implements ServiceConnection {
 
@@ -19,6 +21,12 @@ class MiddlewareServiceConnection implements ServiceConnection {
      */
     private ICombined binder;
 
+    /**
+     * Binder interface version reported by the connected service, or null if
+     * it has not yet been requested since the service connected.
+     */
+    private Integer serviceVersion;
+
     /**
      * One-shot callback to be run when the service connects the first time.
      */
@@ -42,10 +50,28 @@ class MiddlewareServiceConnection implements ServiceConnection {
         return binder;
     }
 
+    /**
+     * Get the binder interface version of the connected service, requesting it
+     * the first time it is needed after the service connects.
+     *
+     * @return the version, as defined in BinderVersion.
+     */
+    synchronized int getServiceVersion() throws MiddlewareDisconnectedException {
+        if (serviceVersion == null) {
+            ICombined current = waitForBinder();
+            serviceVersion = callSafe(current::mw_getVersion);
+        }
+
+        // NOTE: Unboxing of null cannot occur as null is returned only in an unreachable case.
+        //noinspection ConstantConditions
+        return serviceVersion;
+    }
+
     @Override
     public synchronized void onServiceConnected(ComponentName name, IBinder service) {
         Log.i(getTag(), "Middleware service connected to client.");
         binder = ICombined.Stub.asInterface(service);
+        serviceVersion = null;
 
         // Notify that the middleware has connected.
         notifyAll();
@@ -61,6 +87,7 @@ class MiddlewareServiceConnection implements ServiceConnection {
     public synchronized void onServiceDisconnected(ComponentName name) {
         Log.e(getTag(), "Middleware service unexpectedly disconnected from client.");
         binder = null;
+        serviceVersion = null;
     }
 
     void setCallback(Runnable callback) {
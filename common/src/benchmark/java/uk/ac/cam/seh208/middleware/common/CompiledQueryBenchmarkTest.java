@@ -0,0 +1,61 @@
+package uk.ac.cam.seh208.middleware.common;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import java.util.List;
+
+
+/**
+ * Local benchmark comparing the cost of compiled queries with the string-based tests
+ * they replace.
+ */
+public class CompiledQueryBenchmarkTest {
+
+    /**
+     * Number of endpoints filtered when measuring filter cost.
+     */
+    private static final int ENDPOINTS = 100000;
+
+
+    @Test
+    public void testFilterCost() {
+        List<EndpointDetails> endpoints = CompiledQueryTest.randomEndpoints(ENDPOINTS);
+
+        for (Query query : CompiledQueryTest.queries()) {
+            // Measure both approaches twice, discarding the first pass as a warm-up.
+            long referenceNanos = 0;
+            long compiledNanos = 0;
+            int referenceCount = 0;
+            int compiledCount = 0;
+            for (int pass = 0; pass < 2; pass++) {
+                referenceCount = 0;
+                long start = System.nanoTime();
+                for (EndpointDetails details : endpoints) {
+                    if (CompiledQueryTest.reference(query, details)) {
+                        referenceCount++;
+                    }
+                }
+                referenceNanos = System.nanoTime() - start;
+
+                compiledCount = 0;
+                start = System.nanoTime();
+                CompiledQuery compiled = CompiledQuery.of(query);
+                for (EndpointDetails details : endpoints) {
+                    if (compiled.matches(details)) {
+                        compiledCount++;
+                    }
+                }
+                compiledNanos = System.nanoTime() - start;
+            }
+
+            System.out.println("Query " + query + ": " +
+                    "reference " + (referenceNanos / ENDPOINTS) + " ns/endpoint, " +
+                    "compiled " + (compiledNanos / ENDPOINTS) + " ns/endpoint, " +
+                    compiledCount + " matches");
+
+            Assert.assertEquals(referenceCount, compiledCount);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package uk.ac.cam.seh208.middleware.common;
+
+
+/**
+ * Versions of the binder interface of the middleware service. Clients check the
+ * version reported by the service before making calls which older services do not
+ * implement, as such calls are silently ignored rather than raising an error.
+ */
+public class BinderVersion {
+
+    /**
+     * Version of services predating the version call. An unimplemented call
+     * returns an empty reply, which is read as zero.
+     */
+    public static final int LEGACY = 0;
+
+    /**
+     * Version introducing batch listeners and batched sends.
+     */
+    public static final int BATCH = 1;
+
+    /**
+     * Version introducing per-endpoint delivery policies.
+     */
+    public static final int DELIVERY = 2;
+
+    /**
+     * Version of the binder interface implemented by this build.
+     */
+    public static final int CURRENT = DELIVERY;
+}
@@ -0,0 +1,266 @@
+package uk.ac.cam.seh208.middleware.common;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import java8.util.function.Predicate;
+
+
+/**
+ * Form of a query prepared for repeated testing against endpoints.
+ *
+ * The name and description regular expressions are compiled once, rather than on every
+ * test. Tags are interned to small integer identifiers, so that the tags required to be
+ * included and excluded are held as bitsets, and tested against the bitset precomputed
+ * for each endpoint without any string comparison. The number of interned tags is
+ * bounded, as tags are supplied by remote peers; once the bound is reached, further
+ * tags are matched by string comparison instead.
+ *
+ * Compiled queries are immutable, and are shared through a bounded cache keyed by the
+ * query they were compiled from.
+ */
+public final class CompiledQuery {
+
+    /**
+     * Maximum number of compiled queries held in the cache.
+     */
+    private static final int CACHE_SIZE = 64;
+
+    /**
+     * Maximum number of tags assigned identifiers.
+     */
+    static final int MAX_TAG_IDS = 4096;
+
+    /**
+     * Identifiers assigned to each tag seen by any query or endpoint, until the
+     * maximum is reached. Identifiers are never reassigned, so a tag without an
+     * identifier never gains one.
+     */
+    private static final ConcurrentMap<String, Integer> tagIds = new ConcurrentHashMap<>();
+
+    /**
+     * Cache of compiled queries, in least-recently-used order.
+     */
+    private static final Map<Query, CompiledQuery> cache =
+            new LinkedHashMap<Query, CompiledQuery>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Query, CompiledQuery> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+
+
+    /**
+     * The query this was compiled from.
+     */
+    private final Query query;
+
+    /**
+     * Compiled regular expression to test against the endpoint name, or null.
+     */
+    private final Pattern namePattern;
+
+    /**
+     * Compiled regular expression to test against the endpoint description, or null.
+     */
+    private final Pattern descPattern;
+
+    /**
+     * Identifiers of the tags required present in the endpoint.
+     */
+    private final BitSet includes;
+
+    /**
+     * Identifiers of the tags required not present in the endpoint.
+     */
+    private final BitSet excludes;
+
+    /**
+     * Tags required present in the endpoint which have no identifier.
+     */
+    private final List<String> unindexedIncludes;
+
+    /**
+     * Tags required not present in the endpoint which have no identifier.
+     */
+    private final List<String> unindexedExcludes;
+
+
+    private CompiledQuery(Query query) {
+        this.query = query;
+        namePattern = (query.nameRegex == null) ? null : Pattern.compile(query.nameRegex);
+        descPattern = (query.descRegex == null) ? null : Pattern.compile(query.descRegex);
+        includes = tagBits(query.tagsToInclude);
+        excludes = tagBits(query.tagsToExclude);
+        unindexedIncludes = unindexed(query.tagsToInclude);
+        unindexedExcludes = unindexed(query.tagsToExclude);
+    }
+
+    /**
+     * Return the compiled form of the given query, compiling it only if no equal
+     * query is held in the cache.
+     */
+    public static CompiledQuery of(Query query) {
+        synchronized (cache) {
+            CompiledQuery compiled = cache.get(query);
+            if (compiled == null) {
+                compiled = new CompiledQuery(query);
+                cache.put(query, compiled);
+            }
+            return compiled;
+        }
+    }
+
+    /**
+     * @return the identifier of the given tag, assigning a new one if necessary,
+     *         or -1 if the maximum number of identifiers has been assigned.
+     */
+    private static int tagId(String tag) {
+        Integer id = tagIds.get(tag);
+        if (id == null) {
+            synchronized (tagIds) {
+                // Assign identifiers densely, so that bitsets remain small.
+                id = tagIds.get(tag);
+                if (id == null) {
+                    if (tagIds.size() >= MAX_TAG_IDS) {
+                        return -1;
+                    }
+                    id = tagIds.size();
+                    tagIds.put(tag, id);
+                }
+            }
+        }
+        return id;
+    }
+
+    /**
+     * @return a newly constructed bitset of the identifiers of the given tags,
+     *         omitting any tags without an identifier.
+     */
+    static BitSet tagBits(Collection<String> tags) {
+        BitSet bits = new BitSet();
+        for (String tag : tags) {
+            int id = tagId(tag);
+            if (id >= 0) {
+                bits.set(id);
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * @return a list of the given tags which have no identifier.
+     */
+    private static List<String> unindexed(Collection<String> tags) {
+        List<String> unindexed = new ArrayList<>();
+        for (String tag : tags) {
+            if (!tagIds.containsKey(tag)) {
+                unindexed.add(tag);
+            }
+        }
+        return unindexed;
+    }
+
+    /**
+     * @return the query this was compiled from.
+     */
+    public Query getQuery() {
+        return query;
+    }
+
+    /**
+     * Test a single endpoint against the query, disregarding the number of matches.
+     *
+     * @return whether the endpoint satisfies every criterion of the query.
+     */
+    public boolean matches(EndpointDetails details) {
+        // Test the endpoint name and description against the filter regex (if applicable).
+        if (namePattern != null && !namePattern.matcher(details.getName()).matches()) {
+            return false;
+        }
+
+        if (descPattern != null) {
+            if (details.getDesc() == null || !descPattern.matcher(details.getDesc()).matches()) {
+                return false;
+            }
+        }
+
+        // Test the schemata and polarity match.
+        if (query.schema != null && !query.schema.equals(details.getSchema())) {
+            return false;
+        }
+
+        if (query.polarity != null && details.getPolarity() != query.polarity) {
+            return false;
+        }
+
+        // Test the endpoint tags match with our filter.
+        BitSet tags = details.getTagBits();
+        for (int i = includes.nextSetBit(0); i >= 0; i = includes.nextSetBit(i + 1)) {
+            if (!tags.get(i)) {
+                // The endpoint does not have all the tags that must be included.
+                return false;
+            }
+        }
+
+        if (excludes.intersects(tags)) {
+            // The endpoint has a tag that must be excluded.
+            return false;
+        }
+
+        // Fall back to comparing the tags without identifiers by string.
+        for (String tag : unindexedIncludes) {
+            if (!details.getTags().contains(tag)) {
+                return false;
+            }
+        }
+
+        // Accept the endpoint if it has none of the tags that must be excluded.
+        for (String tag : unindexedExcludes) {
+            if (details.getTags().contains(tag)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return a closure which accepts or rejects endpoints based on the query,
+     * accepting no more than the number of matches given in the query.
+     *
+     * @return an (EndpointDetails -> boolean) filter predicate.
+     */
+    public Predicate<EndpointDetails> getFilter() {
+        final int quota = query.matches;
+        if (quota == Query.MATCH_INDEFINITELY) {
+            // No count need be kept.
+            return this::matches;
+        }
+
+        // Use a closure variable to keep track of the number of accepted endpoints.
+        final int[] matched = { 0 };
+
+        return details -> {
+            if (matched[0] >= quota) {
+                // If we have already met our quota of matches, reject
+                // all future endpoints.
+                return false;
+            }
+
+            if (!matches(details)) {
+                return false;
+            }
+
+            // Accept the endpoint (after increasing the accept count).
+            matched[0]++;
+            return true;
+        };
+    }
+}
@@ -0,0 +1,159 @@
+package uk.ac.cam.seh208.middleware.common;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.Objects;
+
+
+/**
+ * Immutable description of how messages received by an endpoint are queued for
+ * delivery to its application listeners. Each listener has a bounded queue, so that
+ * a slow listener only delays its own messages; the policy determines its capacity,
+ * and what happens when it is full.
+ */
+public class DeliveryPolicy implements Parcelable, JSONSerializable {
+
+    /**
+     * Enumeration of behaviours for when a message arrives for a listener whose
+     * queue is full.
+     */
+    public enum Overflow {
+        /**
+         * Block the receiving thread until space is available. No message is lost,
+         * but every other endpoint receiving over the same stream is delayed.
+         */
+        BLOCK,
+
+        /**
+         * Discard the oldest queued message to make space for the new one.
+         */
+        DROP_OLDEST,
+
+        /**
+         * Discard the new message.
+         */
+        DROP_NEWEST,
+
+        /**
+         * Reject the new message, counting it as rejected rather than dropped.
+         */
+        FAIL_FAST
+    }
+
+
+    /**
+     * This object is part of the Parcelable interface. It is used to instantiate
+     * new instances of policies from serialized parcels.
+     */
+    public static final Creator<DeliveryPolicy> CREATOR = new Creator<DeliveryPolicy>() {
+        @Override
+        public DeliveryPolicy createFromParcel(Parcel in) {
+            return new DeliveryPolicy(in);
+        }
+
+        @Override
+        public DeliveryPolicy[] newArray(int size) {
+            return new DeliveryPolicy[size];
+        }
+    };
+
+    /**
+     * Default capacity of the queue of each listener.
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * Lossless policy blocking when a queue is full; this is the default for new
+     * endpoints.
+     */
+    public static final DeliveryPolicy DEFAULT =
+            new DeliveryPolicy(DEFAULT_CAPACITY, Overflow.BLOCK);
+
+
+    /**
+     * Capacity of the queue of each listener.
+     */
+    private final int capacity;
+
+    /**
+     * Behaviour when the queue of a listener is full.
+     */
+    private final Overflow overflow;
+
+
+    /**
+     * Construct and return a new policy with the given queue capacity and overflow
+     * behaviour.
+     *
+     * @param capacity Capacity of the queue of each listener; must be positive.
+     * @param overflow Behaviour when the queue of a listener is full.
+     *
+     * @throws IllegalArgumentException if the capacity is not positive.
+     */
+    public static DeliveryPolicy of(int capacity, Overflow overflow) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Queue capacity must be positive.");
+        }
+
+        return new DeliveryPolicy(capacity, overflow);
+    }
+
+    @JsonCreator
+    private DeliveryPolicy(
+            @JsonProperty("capacity") int capacity,
+            @JsonProperty("overflow") Overflow overflow) {
+        this.capacity = Math.max(capacity, 1);
+        this.overflow = (overflow != null) ? overflow : Overflow.BLOCK;
+    }
+
+    private DeliveryPolicy(Parcel in) {
+        this(in.readInt(), (Overflow) in.readSerializable());
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(capacity);
+        dest.writeSerializable(overflow);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public Overflow getOverflow() {
+        return overflow;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        DeliveryPolicy other = (DeliveryPolicy) obj;
+
+        return (capacity == other.capacity &&
+                overflow == other.overflow);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(capacity, overflow);
+    }
+
+    @Override
+    public String toString() {
+        return overflow + "(" + capacity + ")";
+    }
+}
@@ -8,9 +8,11 @@ import android.os.Parcel;
 import android.os.Parcelable;
 import android.support.annotation.NonNull;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
@@ -62,6 +64,12 @@ public class EndpointDetails implements Parcelable, JSONSerializable {
      */
     private ArrayList<String> tags;
 
+    /**
+     * Bitset of the interned identifiers of the tags, used by compiled queries.
+     */
+    @JsonIgnore
+    private transient BitSet tagBits;
+
     /**
      * This object is part of the Parcelable interface. It is used to instantiate
      * new instances of endpoint details from serialised parcels.
@@ -99,6 +107,7 @@ public class EndpointDetails implements Parcelable, JSONSerializable {
         } else {
             this.tags = new ArrayList<>();
         }
+        tagBits = CompiledQuery.tagBits(this.tags);
     }
 
     public EndpointDetails(@NonNull String name, String desc, Polarity polarity,
@@ -122,6 +131,7 @@ public class EndpointDetails implements Parcelable, JSONSerializable {
         if (tags == null) {
             tags = new ArrayList<>();
         }
+        tagBits = CompiledQuery.tagBits(tags);
     }
 
     public long getEndpointId() {
@@ -149,6 +159,13 @@ public class EndpointDetails implements Parcelable, JSONSerializable {
         return Collections.unmodifiableList(tags);
     }
 
+    /**
+     * @return the bitset of the interned tag identifiers. This must not be modified.
+     */
+    BitSet getTagBits() {
+        return tagBits;
+    }
+
     @Override
     public int describeContents() {
         return 0;
@@ -0,0 +1,100 @@
+package uk.ac.cam.seh208.middleware.common;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+/**
+ * Process-wide registry of JSON readers and writers.
+ *
+ * Constructing an ObjectMapper is expensive, as is the introspection it performs the
+ * first time each type is (de)serialised. This class holds a shared mapper for each
+ * direction, and caches an ObjectReader and ObjectWriter specialised to each type as it
+ * is first used.
+ * Readers and writers are immutable and thread-safe, so they may be shared freely.
+ *
+ * Polymorphic hierarchies (e.g. control messages and addresses) should be read through
+ * the reader for their abstract base type, so the type identifier is resolved by the
+ * cached base deserializer. Types may be registered in advance to move introspection
+ * off the hot path.
+ */
+public final class JSONCodec {
+
+    /**
+     * The shared mapper from which all readers are derived. Unknown properties are
+     * ignored, so that messages from newer peers carrying additional optional
+     * properties can still be read.
+     */
+    private static final ObjectMapper readMapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    /**
+     * The shared mapper from which all writers are derived. Field visibility is
+     * widened so that immutable data objects need no getters. This is not applied to
+     * reading, so that private fields without getters cannot be set from JSON; such
+     * objects are read through their annotated constructors.
+     */
+    private static final ObjectMapper writeMapper = new ObjectMapper()
+            .setVisibility(PropertyAccessor.FIELD, JsonAutoDetect.Visibility.ANY);
+
+    /**
+     * Cache of readers specialised to each type.
+     */
+    private static final ConcurrentMap<Class<?>, ObjectReader> readers =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Cache of writers specialised to each type.
+     */
+    private static final ConcurrentMap<Class<?>, ObjectWriter> writers =
+            new ConcurrentHashMap<>();
+
+
+    private JSONCodec() { }
+
+    /**
+     * Eagerly construct the readers and writers for the given types, resolving their
+     * (de)serialisers ahead of first use.
+     *
+     * @param types The types to register.
+     */
+    public static void register(Class<?>... types) {
+        for (Class<?> type : types) {
+            readerFor(type);
+            writerFor(type);
+        }
+    }
+
+    /**
+     * @return the cached reader for the given type, constructing it if necessary.
+     */
+    public static ObjectReader readerFor(Class<?> type) {
+        ObjectReader reader = readers.get(type);
+        if (reader == null) {
+            // Races are benign here; both readers are equivalent.
+            reader = readMapper.reader(type);
+            readers.putIfAbsent(type, reader);
+        }
+        return reader;
+    }
+
+    /**
+     * @return the cached writer for the given type, constructing it if necessary.
+     */
+    public static ObjectWriter writerFor(Class<?> type) {
+        ObjectWriter writer = writers.get(type);
+        if (writer == null) {
+            // Races are benign here; both writers are equivalent.
+            writer = writeMapper.writerWithType(type);
+            writers.putIfAbsent(type, writer);
+        }
+        return writer;
+    }
+}
@@ -1,9 +1,6 @@
 package uk.ac.cam.seh208.middleware.common;
 
-import com.fasterxml.jackson.annotation.JsonAutoDetect;
-import com.fasterxml.jackson.annotation.PropertyAccessor;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 
 import java.io.IOException;
 
@@ -19,7 +16,7 @@ public interface JSONSerializable {
      */
     static <T extends JSONSerializable> T fromJSON(String string, Class<T> type)
             throws IOException {
-        return new ObjectMapper().readValue(string, type);
+        return JSONCodec.readerFor(type).readValue(string);
     }
 
     /**
@@ -27,9 +24,7 @@ public interface JSONSerializable {
      */
     default String toJSON() {
         try {
-            ObjectMapper mapper = new ObjectMapper();
-            mapper.setVisibility(PropertyAccessor.FIELD, JsonAutoDetect.Visibility.ANY);
-            return mapper.writeValueAsString(this);
+            return JSONCodec.writerFor(getClass()).writeValueAsString(this);
         } catch (JsonProcessingException e) {
             return null;
         }
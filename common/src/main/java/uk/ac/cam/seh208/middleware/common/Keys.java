@@ -25,6 +25,7 @@ public class Keys {
         public static final String SCHEMA = "SCHEMA";
         public static final String TAGS = "TAGS";
         public static final String MIDDLEWARE = "MIDDLEWARE";
+        public static final String SENDER_VALIDATED = "SENDER_VALIDATED";
     }
 
     @SuppressWarnings("WeakerAccess")
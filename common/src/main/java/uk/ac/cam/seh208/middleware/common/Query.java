@@ -307,65 +307,9 @@ public class Query implements Parcelable, JSONSerializable {
      */
     @JsonIgnore
     public Predicate<EndpointDetails> getFilter() {
-        // Define closure variables for the current query state.
-        final ArrayList<String> tagsToInclude = new ArrayList<>(this.tagsToInclude);
-        final ArrayList<String> tagsToExclude = new ArrayList<>(this.tagsToExclude);
-        final String nameRegex = this.nameRegex;
-        final String descRegex = this.descRegex;
-        final String schema = this.schema;
-        final Polarity polarity = this.polarity;
-        final int matches = this.matches;
-
-        // Use a closure variable to keep track of the number of accepted endpoints.
-        final int[] matched = { 0 };
-
-        // Return a closure for filtering endpoints.
-        return details -> {
-            if (matches != MATCH_INDEFINITELY && matched[0] >= matches) {
-                // If we have already met our quota of matches, reject
-                // all future endpoints.
-                return false;
-            }
-
-            // Test the endpoint name and description against the filter regex (if applicable).
-            if (nameRegex != null && !details.getName().matches(nameRegex)) {
-                return false;
-            }
-
-            if (descRegex != null) {
-                if (details.getDesc() == null || !details.getDesc().matches(descRegex)) {
-                    return false;
-                }
-            }
-
-            // Test the schemata and polarity match.
-            if (schema != null && !schema.equals(details.getSchema())) {
-                return false;
-            }
-
-            if (polarity != null && details.getPolarity() != polarity) {
-                return false;
-            }
-
-            // Test the endpoint tags match with our filter.
-            List<String> tags = details.getTags();
-
-            if (!details.getTags().containsAll(tagsToInclude)) {
-                // The endpoint does not have all the tags that must be included.
-                return false;
-            }
-
-            for (String tag : tagsToExclude) {
-                if (tags.contains(tag)) {
-                    // The endpoint has a tag that must be excluded.
-                    return false;
-                }
-            }
-
-            // Accept the endpoint (after increasing the accept count).
-            matched[0]++;
-            return true;
-        };
+        // Use the cached compiled form of the query, so that regular expressions are
+        // not recompiled and tags are not compared as strings for each endpoint.
+        return CompiledQuery.of(this).getFilter();
     }
 
     @Override
@@ -390,6 +334,12 @@ public class Query implements Parcelable, JSONSerializable {
              && matches == other.matches);
     }
 
+    @Override
+    public int hashCode() {
+        return Objects.hash(nameRegex, descRegex, schema, polarity,
+                            tagsToInclude, tagsToExclude, matches);
+    }
+
     @Override
     public int describeContents() {
         return 0;
@@ -0,0 +1,172 @@
+package uk.ac.cam.seh208.middleware.common;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.Objects;
+
+
+/**
+ * Immutable description of when an endpoint should validate messages against
+ * its schema. Validation is relatively expensive, so endpoints exchanging
+ * trusted, well-formed data may relax it to reduce per-message cost.
+ */
+public class ValidationPolicy implements Parcelable, JSONSerializable {
+
+    /**
+     * Enumeration of supported validation modes.
+     */
+    public enum Mode {
+        /**
+         * Validate every outgoing and every incoming message.
+         */
+        ALWAYS,
+
+        /**
+         * Validate every outgoing message, but trust incoming messages to have
+         * been validated by their sender. Messages from senders which do not
+         * validate every outgoing message (such as those using the SAMPLED mode)
+         * are still validated.
+         */
+        SENDER_ONLY,
+
+        /**
+         * Validate one in every n outgoing and incoming messages, where n is
+         * the sample interval of the policy.
+         */
+        SAMPLED,
+
+        /**
+         * Validate every outgoing message, and incoming messages only on links
+         * whose remote endpoint was shown during link establishment to share
+         * the schema of the local endpoint, and to validate every outgoing message.
+         */
+        TRUSTED_PEER
+    }
+
+
+    /**
+     * This object is part of the Parcelable interface. It is used to instantiate
+     * new instances of policies from serialized parcels.
+     */
+    public static final Creator<ValidationPolicy> CREATOR = new Creator<ValidationPolicy>() {
+        @Override
+        public ValidationPolicy createFromParcel(Parcel in) {
+            return new ValidationPolicy(in);
+        }
+
+        @Override
+        public ValidationPolicy[] newArray(int size) {
+            return new ValidationPolicy[size];
+        }
+    };
+
+    /**
+     * Policy validating all messages; this is the default for new endpoints.
+     */
+    public static final ValidationPolicy ALWAYS = new ValidationPolicy(Mode.ALWAYS, 1);
+
+    /**
+     * Policy validating only outgoing messages.
+     */
+    public static final ValidationPolicy SENDER_ONLY = new ValidationPolicy(Mode.SENDER_ONLY, 1);
+
+    /**
+     * Policy skipping validation of incoming messages from peers sharing the schema.
+     */
+    public static final ValidationPolicy TRUSTED_PEER =
+            new ValidationPolicy(Mode.TRUSTED_PEER, 1);
+
+
+    /**
+     * Mode determining which messages are validated.
+     */
+    private final Mode mode;
+
+    /**
+     * Interval between validated messages in the SAMPLED mode; 1 in all other modes.
+     */
+    private final int interval;
+
+
+    /**
+     * Construct and return a new policy validating one in every n messages.
+     *
+     * @param interval Sample interval n; must be positive.
+     *
+     * @throws IllegalArgumentException if the interval is not positive.
+     */
+    public static ValidationPolicy sampled(int interval) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("Sample interval must be positive.");
+        }
+
+        return new ValidationPolicy(Mode.SAMPLED, interval);
+    }
+
+    @JsonCreator
+    private ValidationPolicy(
+            @JsonProperty("mode") Mode mode,
+            @JsonProperty("interval") int interval) {
+        this.mode = mode;
+        this.interval = (mode == Mode.SAMPLED) ? Math.max(interval, 1) : 1;
+    }
+
+    private ValidationPolicy(Parcel in) {
+        this((Mode) in.readSerializable(), in.readInt());
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeSerializable(mode);
+        dest.writeInt(interval);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getInterval() {
+        return interval;
+    }
+
+    /**
+     * @return whether an endpoint under this policy validates every message it sends,
+     *         so that receivers may trust its messages.
+     */
+    public boolean validatesAllOutgoing() {
+        return mode != Mode.SAMPLED;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        ValidationPolicy other = (ValidationPolicy) obj;
+
+        return (mode == other.mode &&
+                interval == other.interval);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(mode, interval);
+    }
+
+    @Override
+    public String toString() {
+        return (mode == Mode.SAMPLED) ? mode + "(" + interval + ")" : mode.toString();
+    }
+}
@@ -0,0 +1,192 @@
+package uk.ac.cam.seh208.middleware.common;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import java8.util.function.Predicate;
+
+
+/**
+ * Local test for compiled queries, checking their agreement with the string-based tests
+ * they replace, and their caching.
+ */
+public class CompiledQueryTest {
+
+    private static final Random random = new Random(System.nanoTime());
+
+
+    /**
+     * Reference implementation of a query test, as performed before compilation.
+     */
+    static boolean reference(Query query, EndpointDetails details) {
+        if (query.nameRegex != null && !details.getName().matches(query.nameRegex)) {
+            return false;
+        }
+        if (query.descRegex != null) {
+            if (details.getDesc() == null || !details.getDesc().matches(query.descRegex)) {
+                return false;
+            }
+        }
+        if (query.schema != null && !query.schema.equals(details.getSchema())) {
+            return false;
+        }
+        if (query.polarity != null && details.getPolarity() != query.polarity) {
+            return false;
+        }
+        if (!details.getTags().containsAll(query.tagsToInclude)) {
+            return false;
+        }
+        for (String tag : query.tagsToExclude) {
+            if (details.getTags().contains(tag)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static List<EndpointDetails> randomEndpoints(int count) {
+        List<EndpointDetails> endpoints = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            List<String> tags = new ArrayList<>();
+            for (int t = 0; t < 3; t++) {
+                tags.add("tag" + random.nextInt(20));
+            }
+
+            endpoints.add(new EndpointDetails(
+                    i,
+                    "ep" + i,
+                    (i % 3 == 0) ? null : "Endpoint number " + i,
+                    random.nextBoolean() ? Polarity.SOURCE : Polarity.SINK,
+                    "schema" + random.nextInt(4),
+                    tags));
+        }
+        return endpoints;
+    }
+
+    static List<Query> queries() {
+        return Arrays.asList(
+                new Query.Builder().build(),
+                new Query.Builder().setNameRegex("ep1[0-9]*").build(),
+                new Query.Builder().setDescRegex(".*number 2.*").build(),
+                new Query.Builder()
+                        .setSchema("schema1")
+                        .setPolarity(Polarity.SINK)
+                        .build(),
+                new Query.Builder()
+                        .includeTag("tag1")
+                        .includeTag("tag2")
+                        .build(),
+                new Query.Builder()
+                        .includeTag("tag3")
+                        .excludeTag("tag4")
+                        .excludeTag("tag5")
+                        .build(),
+                // Tags never seen by any endpoint.
+                new Query.Builder().includeTag("unseen-include").build(),
+                new Query.Builder().excludeTag("unseen-exclude").build());
+    }
+
+    @Test
+    public void testAgreesWithReference() {
+        List<EndpointDetails> endpoints = randomEndpoints(1000);
+
+        for (Query query : queries()) {
+            CompiledQuery compiled = CompiledQuery.of(query);
+            for (EndpointDetails details : endpoints) {
+                Assert.assertEquals(reference(query, details), compiled.matches(details));
+            }
+        }
+    }
+
+    @Test
+    public void testTagsSeenAfterCompilation() {
+        // Compile a query before any endpoint has the tags it refers to.
+        Query query = new Query.Builder()
+                .includeTag("late-include")
+                .excludeTag("late-exclude")
+                .build();
+        CompiledQuery compiled = CompiledQuery.of(query);
+
+        EndpointDetails included = new EndpointDetails(
+                "included", null, null, null, Collections.singletonList("late-include"));
+        EndpointDetails excluded = new EndpointDetails(
+                "excluded", null, null, null,
+                Arrays.asList("late-include", "late-exclude"));
+
+        Assert.assertTrue(compiled.matches(included));
+        Assert.assertFalse(compiled.matches(excluded));
+    }
+
+    @Test
+    public void testTagTableBound() {
+        // Exhaust the tag identifiers.
+        List<String> filler = new ArrayList<>();
+        for (int i = 0; i < CompiledQuery.MAX_TAG_IDS; i++) {
+            filler.add("filler-" + i);
+        }
+        CompiledQuery.tagBits(filler);
+
+        // Tags seen from now on must be matched without identifiers.
+        Query query = new Query.Builder()
+                .includeTag("unindexed-include")
+                .excludeTag("unindexed-exclude")
+                .build();
+        CompiledQuery compiled = CompiledQuery.of(query);
+
+        EndpointDetails included = new EndpointDetails(
+                "included", null, null, null, Collections.singletonList("unindexed-include"));
+        EndpointDetails excluded = new EndpointDetails(
+                "excluded", null, null, null,
+                Arrays.asList("unindexed-include", "unindexed-exclude"));
+        EndpointDetails untagged = new EndpointDetails(
+                "untagged", null, null, null, Collections.emptyList());
+
+        Assert.assertTrue(compiled.matches(included));
+        Assert.assertFalse(compiled.matches(excluded));
+        Assert.assertFalse(compiled.matches(untagged));
+        Assert.assertTrue(CompiledQuery.tagBits(included.getTags()).isEmpty());
+    }
+
+    @Test
+    public void testCache() {
+        Query q1 = new Query.Builder().setNameRegex("cached").includeTag("a").build();
+        Query q2 = new Query.Builder().includeTag("a").setNameRegex("cached").build();
+
+        // Equal queries should share a single compiled form.
+        Assert.assertEquals(q1, q2);
+        Assert.assertEquals(q1.hashCode(), q2.hashCode());
+        Assert.assertTrue(CompiledQuery.of(q1) == CompiledQuery.of(q2));
+
+        // The compiled form should be evicted after many other queries are used.
+        CompiledQuery compiled = CompiledQuery.of(q1);
+        for (int i = 0; i < 1000; i++) {
+            CompiledQuery.of(new Query.Builder().setNameRegex("other" + i).build());
+        }
+        Assert.assertFalse(compiled == CompiledQuery.of(q1));
+    }
+
+    @Test
+    public void testQuota() {
+        List<EndpointDetails> endpoints = randomEndpoints(10);
+        Query query = new Query.Builder().setMatches(3).build();
+
+        // Each filter should keep its own count of matches.
+        for (int f = 0; f < 2; f++) {
+            Predicate<EndpointDetails> filter = CompiledQuery.of(query).getFilter();
+            int accepted = 0;
+            for (EndpointDetails details : endpoints) {
+                if (filter.test(details)) {
+                    accepted++;
+                }
+            }
+            Assert.assertEquals(3, accepted);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package uk.ac.cam.seh208.middleware.common;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+
+/**
+ * Local test for the visibility rules of the shared readers and writers.
+ */
+public class JSONCodecTest {
+
+    /**
+     * Immutable object holding a private field without a getter, which is not a
+     * property of its constructor.
+     */
+    private static class Sample implements JSONSerializable {
+
+        private String name;
+
+        private int internal;
+
+
+        @JsonCreator
+        private Sample(@JsonProperty("name") String name) {
+            this.name = name;
+        }
+    }
+
+
+    @Test
+    public void testWritePrivateFields() {
+        Sample sample = new Sample("test");
+        sample.internal = 5;
+
+        // Private fields should be written, though they have no getters.
+        String json = sample.toJSON();
+        Assert.assertTrue(json.contains("\"name\":\"test\""));
+        Assert.assertTrue(json.contains("\"internal\":5"));
+    }
+
+    @Test
+    public void testReadPrivateFields() throws IOException {
+        // Private fields should be set only through the constructor; others
+        // are ignored along with any unknown properties.
+        Sample sample = JSONSerializable.fromJSON(
+                "{\"name\":\"test\",\"internal\":5,\"unknown\":true}", Sample.class);
+        Assert.assertEquals("test", sample.name);
+        Assert.assertEquals(0, sample.internal);
+    }
+}
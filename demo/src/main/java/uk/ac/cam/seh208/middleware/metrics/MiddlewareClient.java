@@ -2,6 +2,9 @@ package uk.ac.cam.seh208.middleware.metrics;
 
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import java8.util.Lists;
 import uk.ac.cam.seh208.middleware.api.Endpoint;
 import uk.ac.cam.seh208.middleware.api.MessageListener;
@@ -25,9 +28,20 @@ public class MiddlewareClient implements MetricsClient {
 
     private Endpoint sink;
 
+    /**
+     * Number of messages sent in each call to the middleware. If greater than one,
+     * messages are sent in batches, allowing comparison against single sends.
+     */
+    private int batchSize;
+
 
     public MiddlewareClient(Middleware middleware) {
+        this(middleware, 1);
+    }
+
+    public MiddlewareClient(Middleware middleware, int batchSize) {
         this.middleware = middleware;
+        this.batchSize = Math.max(1, batchSize);
         source = middleware.getEndpoint(ENDPOINT_SOURCE);
         sink = middleware.getEndpoint(ENDPOINT_SINK);
     }
@@ -123,7 +137,8 @@ public class MiddlewareClient implements MetricsClient {
         // Create a string builder to use as a prototype for efficient message building.
         StringBuilder msgBuilderPrototype = new StringBuilder(format);
 
-        // Send all messages in turn.
+        // Send all messages in turn, accumulating them into batches if configured.
+        List<String> batch = new ArrayList<>(batchSize);
         for (int seq = 0; seq < messages; seq++) {
             // Create a new string builder for the message, and insert the sequence number.
             StringBuilder msgBuilder = new StringBuilder(msgBuilderPrototype);
@@ -135,8 +150,22 @@ public class MiddlewareClient implements MetricsClient {
                 msgBuilder.insert(1, " ");
             }
 
-            timeSend[seq] = System.nanoTime();
-            source.send(msgBuilder.toString());
+            if (batchSize == 1) {
+                timeSend[seq] = System.nanoTime();
+                source.send(msgBuilder.toString());
+                continue;
+            }
+
+            batch.add(msgBuilder.toString());
+            if (batch.size() == batchSize || seq == messages - 1) {
+                // Stamp every message in the batch with the time it is sent.
+                long time = System.nanoTime();
+                for (int i = seq - batch.size() + 1; i <= seq; i++) {
+                    timeSend[i] = time;
+                }
+                source.sendBatch(batch);
+                batch.clear();
+            }
         }
     }
 
@@ -181,7 +210,7 @@ public class MiddlewareClient implements MetricsClient {
 
     @Override
     public String getName() {
-        return "mw";
+        return (batchSize == 1) ? "mw" : "mw-batch" + batchSize;
     }
 
     private static String getTag() {
@@ -0,0 +1,459 @@
+/*
+ * Copyright (c) 2014, Francis Galiegue (fgaliegue@gmail.com)
+ *
+ * This software is dual-licensed under:
+ *
+ * - the Lesser General Public License (LGPL) version 3.0 or, at your option, any
+ *   later version;
+ * - the Apache Software License (ASL) version 2.0.
+ *
+ * The text of this file and of both licenses is available at the root of this
+ * project or, if you have the jar distribution, in directory META-INF/, under
+ * the names LGPL-3.0.txt and ASL-2.0.txt respectively.
+ *
+ * Direct link to the sources:
+ *
+ * - LGPL 3.0: https://www.gnu.org/licenses/lgpl-3.0.txt
+ * - ASL 2.0: http://www.apache.org/licenses/LICENSE-2.0.txt
+ */
+
+package com.github.fge.jsonschema.core.util;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * <p>ECMA 262 regex matching helper, backed by {@link java.util.regex}.</p>
+ *
+ * <p>{@link RhinoHelper} enters a JavaScript context and builds a new {@code
+ * RegExp} for every match, which is very slow (particularly on Android, where
+ * Rhino runs in interpreted mode). This class instead translates ECMA 262
+ * regexes into equivalent {@link Pattern}s, which are compiled once and cached.
+ * The translation accounts for the differences listed in {@link RhinoHelper}:
+ * </p>
+ *
+ * <ul>
+ *     <li>{@code .} and {@code \s} use the ECMA 262 definitions of line
+ *     terminators and whitespace;</li>
+ *     <li>{@code $} only matches at the end of input;</li>
+ *     <li>{@code \b} and {@code \B} use the ASCII definition of word
+ *     characters;</li>
+ *     <li>escapes which are identity escapes in ECMA 262 (e.g. {@code \p},
+ *     {@code \Q}, {@code \z}) match the escaped character literally;</li>
+ *     <li>{@code [} and {@code &} are literal within character classes, and
+ *     {@code []} and {@code [^]} are accepted;</li>
+ *     <li>a brace which does not start a quantifier is literal.</li>
+ * </ul>
+ *
+ * <p>Regexes using syntax which cannot be reliably translated (backreferences,
+ * octal escapes, unsupported group types, surrogate pairs), and inputs
+ * containing surrogate pairs (which ECMA 262 matches by UTF-16 code unit), are
+ * delegated to {@link RhinoHelper}.</p>
+ *
+ * <p>As with {@link RhinoHelper}, regexes MUST have been validated before
+ * matching.</p>
+ */
+@ThreadSafe
+public final class RegexHelper
+{
+    /**
+     * Maximum number of translated patterns to cache
+     */
+    private static final int MAX_CACHE_SIZE = 256;
+
+    /**
+     * Sentinel cached for regexes which cannot be translated
+     */
+    private static final Pattern UNTRANSLATABLE = Pattern.compile("(?!)");
+
+    /**
+     * Characters matched by ECMA 262 {@code \s}, as a character class body
+     */
+    private static final String SPACE = "\\s\\u00a0\\u1680\\u2000-\\u200a"
+        + "\\u2028\\u2029\\u202f\\u205f\\u3000\\ufeff";
+
+    /**
+     * Translation of ECMA 262 {@code .}
+     */
+    private static final String DOT = "[^\\n\\r\\u2028\\u2029]";
+
+    /**
+     * Translation of ECMA 262 {@code \b}
+     */
+    private static final String WORD_BOUNDARY
+        = "(?:(?<=[a-zA-Z0-9_])(?![a-zA-Z0-9_])|(?<![a-zA-Z0-9_])(?=[a-zA-Z0-9_]))";
+
+    /**
+     * Translation of ECMA 262 {@code \B}
+     */
+    private static final String NON_WORD_BOUNDARY
+        = "(?:(?<=[a-zA-Z0-9_])(?=[a-zA-Z0-9_])|(?<![a-zA-Z0-9_])(?![a-zA-Z0-9_]))";
+
+    /**
+     * Quantifier in braces, at the start of the input
+     */
+    private static final Pattern BRACE_QUANTIFIER
+        = Pattern.compile("\\{[0-9]+(?:,[0-9]*)?\\}");
+
+    /**
+     * Cache of translated patterns, indexed by ECMA 262 regex
+     */
+    private static final ConcurrentMap<String, Pattern> CACHE
+        = new ConcurrentHashMap<String, Pattern>();
+
+    private RegexHelper()
+    {
+    }
+
+    /**
+     * <p>Matches an input against a given regex, in the <b>real</b> sense
+     * of matching, that is, the regex can match anywhere in the input.</p>
+     *
+     * @param regex the regex to use
+     * @param input the input to match against
+     * @return true if the regex matches the input
+     * @see RhinoHelper#regMatch(String, String)
+     */
+    public static boolean regMatch(final String regex, final String input)
+    {
+        final Pattern pattern = getPattern(regex);
+        if (pattern == null || hasSurrogates(input))
+            return RhinoHelper.regMatch(regex, input);
+        return pattern.matcher(input).find();
+    }
+
+    /**
+     * Get the cached translation of an ECMA 262 regex, translating and
+     * compiling it if necessary
+     *
+     * <p>The cache is bounded; it is cleared when full, as schemas use few
+     * distinct regexes in practice.</p>
+     *
+     * @param regex the regex
+     * @return the equivalent pattern, or null if it cannot be translated
+     */
+    public static Pattern getPattern(final String regex)
+    {
+        Pattern pattern = CACHE.get(regex);
+        if (pattern == null) {
+            pattern = compile(regex);
+            if (CACHE.size() >= MAX_CACHE_SIZE)
+                CACHE.clear();
+            CACHE.putIfAbsent(regex, pattern);
+        }
+        return pattern == UNTRANSLATABLE ? null : pattern;
+    }
+
+    /**
+     * Translate an ECMA 262 regex into an equivalent {@link java.util.regex}
+     * regex
+     *
+     * @param regex the regex to translate
+     * @return the translated regex, or null if it cannot be translated
+     */
+    public static String translate(final String regex)
+    {
+        if (hasSurrogates(regex))
+            return null;
+
+        final int length = regex.length();
+        final StringBuilder sb = new StringBuilder(length + 16);
+
+        boolean inClass = false;
+        boolean afterClassEscape = false;
+        int i = 0;
+
+        while (i < length) {
+            final char c = regex.charAt(i);
+
+            if (inClass) {
+                boolean classEscape = false;
+                switch (c) {
+                    case ']':
+                        sb.append(']');
+                        inClass = false;
+                        break;
+                    case '[':
+                    case '&':
+                        sb.append('\\').append(c);
+                        break;
+                    case '^':
+                        sb.append("\\^");
+                        break;
+                    case '-':
+                        /*
+                         * A dash next to a class escape (e.g. [\d-z]) is
+                         * literal in ECMA 262, but an error in Java
+                         */
+                        if (afterClassEscape || isClassEscapeAt(regex, i + 1))
+                            sb.append("\\-");
+                        else
+                            sb.append('-');
+                        break;
+                    case '\\':
+                        if (i + 1 >= length)
+                            return null;
+                        final char e = regex.charAt(i + 1);
+                        switch (e) {
+                            case 'd': case 'D': case 'w': case 'W':
+                                sb.append('\\').append(e);
+                                classEscape = true;
+                                break;
+                            case 's':
+                                sb.append(SPACE);
+                                classEscape = true;
+                                break;
+                            case 'b':
+                                sb.append("\\x08");
+                                break;
+                            case 'S': case 'B':
+                                return null;
+                            default:
+                                i = translateEscape(regex, i, sb);
+                                if (i < 0)
+                                    return null;
+                                afterClassEscape = false;
+                                continue;
+                        }
+                        i++;
+                        break;
+                    default:
+                        sb.append(c);
+                }
+                afterClassEscape = classEscape;
+                i++;
+                continue;
+            }
+
+            switch (c) {
+                case '\\':
+                    if (i + 1 >= length)
+                        return null;
+                    final char e = regex.charAt(i + 1);
+                    switch (e) {
+                        case 'd': case 'D': case 'w': case 'W':
+                            sb.append('\\').append(e);
+                            break;
+                        case 's':
+                            sb.append('[').append(SPACE).append(']');
+                            break;
+                        case 'S':
+                            sb.append("[^").append(SPACE).append(']');
+                            break;
+                        case 'b':
+                            sb.append(WORD_BOUNDARY);
+                            break;
+                        case 'B':
+                            sb.append(NON_WORD_BOUNDARY);
+                            break;
+                        default:
+                            i = translateEscape(regex, i, sb);
+                            if (i < 0)
+                                return null;
+                            continue;
+                    }
+                    i += 2;
+                    break;
+                case '.':
+                    sb.append(DOT);
+                    i++;
+                    break;
+                case '$':
+                    sb.append("\\z");
+                    i++;
+                    break;
+                case '[':
+                    if (regex.startsWith("[]", i)) {
+                        // Matches nothing
+                        sb.append("(?!)");
+                        i += 2;
+                    } else if (regex.startsWith("[^]", i)) {
+                        // Matches anything
+                        sb.append("[\\s\\S]");
+                        i += 3;
+                    } else {
+                        sb.append('[');
+                        inClass = true;
+                        afterClassEscape = false;
+                        i++;
+                        if (i < length && regex.charAt(i) == '^') {
+                            sb.append('^');
+                            i++;
+                        }
+                    }
+                    break;
+                case '(':
+                    if (i + 1 < length && regex.charAt(i + 1) == '?') {
+                        if (i + 2 >= length)
+                            return null;
+                        final char g = regex.charAt(i + 2);
+                        if (g != ':' && g != '=' && g != '!')
+                            return null;
+                        sb.append("(?").append(g);
+                        i += 3;
+                    } else {
+                        sb.append('(');
+                        i++;
+                    }
+                    break;
+                case '{':
+                    final Matcher matcher
+                        = BRACE_QUANTIFIER.matcher(regex).region(i, length);
+                    if (matcher.lookingAt()) {
+                        sb.append(regex, i, matcher.end());
+                        i = matcher.end();
+                        if (isPossessive(regex, i))
+                            return null;
+                    } else {
+                        sb.append("\\{");
+                        i++;
+                    }
+                    break;
+                case '}':
+                case ']':
+                    sb.append('\\').append(c);
+                    i++;
+                    break;
+                case '*':
+                case '+':
+                case '?':
+                    sb.append(c);
+                    i++;
+                    // A possessive quantifier is an error in ECMA 262
+                    if (isPossessive(regex, i))
+                        return null;
+                    break;
+                default:
+                    sb.append(c);
+                    i++;
+            }
+        }
+
+        return inClass ? null : sb.toString();
+    }
+
+    /**
+     * Translate an escape sequence which has the same meaning inside and
+     * outside character classes
+     *
+     * @param regex the regex
+     * @param i the index of the backslash
+     * @param sb the builder to append the translation to
+     * @return the index following the escape, or -1 if it cannot be translated
+     */
+    private static int translateEscape(final String regex, final int i,
+        final StringBuilder sb)
+    {
+        final char e = regex.charAt(i + 1);
+        switch (e) {
+            case 'n': case 'r': case 't': case 'f':
+                sb.append('\\').append(e);
+                return i + 2;
+            case 'v':
+                sb.append("\\x0B");
+                return i + 2;
+            case '0':
+                // \0 followed by a digit is a legacy octal escape
+                if (i + 2 < regex.length() && isDigit(regex.charAt(i + 2)))
+                    return -1;
+                sb.append("\\x00");
+                return i + 2;
+            case 'c':
+                if (i + 2 < regex.length() && isAsciiLetter(regex.charAt(i + 2))) {
+                    appendHex(sb, "\\x", regex.charAt(i + 2) % 32, 2);
+                    return i + 3;
+                }
+                return -1;
+            case 'x':
+                if (isHexAt(regex, i + 2, 2)) {
+                    sb.append("\\x").append(regex, i + 2, i + 4);
+                    return i + 4;
+                }
+                sb.append('x');
+                return i + 2;
+            case 'u':
+                if (isHexAt(regex, i + 2, 4)) {
+                    sb.append("\\u").append(regex, i + 2, i + 6);
+                    return i + 6;
+                }
+                sb.append('u');
+                return i + 2;
+            default:
+                // Backreferences and octal escapes
+                if (isDigit(e))
+                    return -1;
+                // Identity escapes; letters are never special without a backslash
+                if (isAsciiLetter(e))
+                    sb.append(e);
+                else
+                    sb.append('\\').append(e);
+                return i + 2;
+        }
+    }
+
+    private static boolean isClassEscapeAt(final String regex, final int i)
+    {
+        return i + 1 < regex.length() && regex.charAt(i) == '\\'
+            && "dDwWsS".indexOf(regex.charAt(i + 1)) >= 0;
+    }
+
+    private static boolean isPossessive(final String regex, final int i)
+    {
+        return i < regex.length() && regex.charAt(i) == '+';
+    }
+
+    private static boolean isHexAt(final String regex, final int i,
+        final int count)
+    {
+        if (i + count > regex.length())
+            return false;
+        for (int j = i; j < i + count; j++)
+            if (Character.digit(regex.charAt(j), 16) < 0)
+                return false;
+        return true;
+    }
+
+    private static boolean isDigit(final char c)
+    {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isAsciiLetter(final char c)
+    {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z';
+    }
+
+    private static void appendHex(final StringBuilder sb, final String prefix,
+        final int value, final int digits)
+    {
+        sb.append(prefix);
+        final String hex = Integer.toHexString(value);
+        for (int j = hex.length(); j < digits; j++)
+            sb.append('0');
+        sb.append(hex);
+    }
+
+    private static boolean hasSurrogates(final String s)
+    {
+        for (int i = 0; i < s.length(); i++)
+            if (Character.isSurrogate(s.charAt(i)))
+                return true;
+        return false;
+    }
+
+    private static Pattern compile(final String regex)
+    {
+        final String translated = translate(regex);
+        if (translated == null)
+            return UNTRANSLATABLE;
+        try {
+            return Pattern.compile(translated);
+        } catch (PatternSyntaxException ignored) {
+            return UNTRANSLATABLE;
+        }
+    }
+}
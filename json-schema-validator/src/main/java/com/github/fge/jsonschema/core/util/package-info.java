@@ -21,9 +21,14 @@
  * Various utility classes
  *
  * <p>{@link com.github.fge.jsonschema.core.util.RhinoHelper} is in charge of
- * all regex validation: as the standard dictates ECMA 262 regexes, using {@link
- * java.util.regex} is out of the question. See this class' description for more
- * details.</p>
+ * regex syntax validation: as the standard dictates ECMA 262 regexes, using
+ * {@link java.util.regex} directly is out of the question. See this class'
+ * description for more details.</p>
+ *
+ * <p>{@link com.github.fge.jsonschema.core.util.RegexHelper} is in charge of
+ * regex matching during instance validation; it translates ECMA 262 regexes to
+ * equivalent {@link java.util.regex} patterns, and falls back to {@code
+ * RhinoHelper} when it cannot.</p>
  *
  * <p>There are other, various utility interfaces used elsewhere in the code.
  * </p>
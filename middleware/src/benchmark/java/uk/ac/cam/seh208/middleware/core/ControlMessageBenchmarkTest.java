@@ -0,0 +1,142 @@
+package uk.ac.cam.seh208.middleware.core;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import java8.util.Lists;
+import uk.ac.cam.seh208.middleware.common.EndpointDetails;
+import uk.ac.cam.seh208.middleware.common.JSONSerializable;
+import uk.ac.cam.seh208.middleware.common.MapToCommand;
+import uk.ac.cam.seh208.middleware.common.Persistence;
+import uk.ac.cam.seh208.middleware.common.Polarity;
+import uk.ac.cam.seh208.middleware.common.Query;
+import uk.ac.cam.seh208.middleware.common.SetRDCAddressCommand;
+import uk.ac.cam.seh208.middleware.core.control.CloseLinkControlMessage;
+import uk.ac.cam.seh208.middleware.core.control.ControlMessage;
+import uk.ac.cam.seh208.middleware.core.control.DeltaControlMessage;
+import uk.ac.cam.seh208.middleware.core.control.InvalidateControlMessage;
+import uk.ac.cam.seh208.middleware.core.control.EndpointCommandControlMessage;
+import uk.ac.cam.seh208.middleware.core.control.Middleware;
+import uk.ac.cam.seh208.middleware.core.control.MiddlewareCommandControlMessage;
+import uk.ac.cam.seh208.middleware.core.control.OpenLinksControlMessage;
+import uk.ac.cam.seh208.middleware.core.control.QueryControlMessage;
+import uk.ac.cam.seh208.middleware.core.control.RemoteEndpointDetails;
+import uk.ac.cam.seh208.middleware.core.control.RemoveControlMessage;
+import uk.ac.cam.seh208.middleware.core.control.RenewControlMessage;
+import uk.ac.cam.seh208.middleware.core.control.UpdateControlMessage;
+import uk.ac.cam.seh208.middleware.core.comms.Location;
+
+
+/**
+ * Local microbenchmark tracking the throughput of JSON round trips (serialisation
+ * followed by deserialisation) for each type of control message.
+ */
+public class ControlMessageBenchmarkTest {
+
+    /**
+     * Number of round trips used to warm up each message type.
+     */
+    private static final int WARMUP_ITERATIONS = 2000;
+
+    /**
+     * Number of round trips measured for each message type.
+     */
+    private static final int ITERATIONS = 10000;
+
+    private static final Random random = new Random(System.nanoTime());
+
+    private static final Middleware middleware = new Middleware(
+            random.nextLong(),
+            new Location(),
+            new Location());
+
+    private static final Query query = new Query.Builder()
+            .includeTag("test_tag")
+            .setDescRegex("^test_regex.*$")
+            .setMatches(5)
+            .build();
+
+    private static final RemoteEndpointDetails endpoint = new RemoteEndpointDetails(
+            0,
+            "test",
+            "desc",
+            Polarity.SOURCE,
+            "{}",
+            Collections.emptyList(),
+            middleware
+    );
+
+    private static final List<EndpointDetails> endpoints = Arrays.asList(
+            new EndpointDetails("test1", "desc a", Polarity.SOURCE, "{}",
+                                Collections.emptyList()),
+            new EndpointDetails("test2", "desc b", Polarity.SINK, "{}",
+                                Arrays.asList("tag1", "tag2"))
+    );
+
+
+    /**
+     * Measure and print the round trip throughput for a given serialisable object,
+     * asserting that the round trip preserves the object.
+     */
+    private static void benchmark(JSONSerializable serializable,
+                                  Class<? extends JSONSerializable> clazz) throws IOException {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            JSONSerializable.fromJSON(serializable.toJSON(), clazz);
+        }
+
+        JSONSerializable result = null;
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            result = JSONSerializable.fromJSON(serializable.toJSON(), clazz);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        System.out.println(serializable.getClass().getName() + ": " +
+                (ITERATIONS * 1000000000L / Math.max(elapsed, 1)) + " ops/sec");
+        Assert.assertEquals(serializable, result);
+    }
+
+    @Test
+    public void benchmarkControlMessages() throws IOException {
+        benchmark(new OpenLinksControlMessage(endpoint, query), ControlMessage.class);
+        benchmark(new CloseLinkControlMessage(random.nextLong()), ControlMessage.class);
+        benchmark(new QueryControlMessage(query), ControlMessage.class);
+        benchmark(new UpdateControlMessage(middleware, 1, endpoints), ControlMessage.class);
+        benchmark(new DeltaControlMessage(middleware, 1, 2, endpoints.subList(0, 1),
+                                          Collections.singletonList(random.nextLong())),
+                  ControlMessage.class);
+        benchmark(new RemoveControlMessage(middleware), ControlMessage.class);
+        benchmark(new RenewControlMessage(random.nextLong()), ControlMessage.class);
+        benchmark(new InvalidateControlMessage(random.nextLong()), ControlMessage.class);
+        benchmark(new MiddlewareCommandControlMessage(
+                new SetRDCAddressCommand("zmq://127.0.0.1:4854")), ControlMessage.class);
+        benchmark(new EndpointCommandControlMessage("test", new MapToCommand(
+                "zmq://127.0.0.1:4852", query, Persistence.NONE)), ControlMessage.class);
+    }
+
+    @Test
+    public void benchmarkResponses() throws IOException {
+        benchmark(new OpenLinksControlMessage.Response(Lists.of(endpoint)),
+                  ControlMessage.Response.class);
+        benchmark(new CloseLinkControlMessage.Response(true), ControlMessage.Response.class);
+        benchmark(new QueryControlMessage.Response(Lists.of(middleware), 3),
+                  ControlMessage.Response.class);
+        benchmark(new UpdateControlMessage.Response(30000), ControlMessage.Response.class);
+        benchmark(RemoveControlMessage.Response.getInstance(), ControlMessage.Response.class);
+        benchmark(new RenewControlMessage.Response(30000, 3), ControlMessage.Response.class);
+        benchmark(InvalidateControlMessage.Response.getInstance(),
+                  ControlMessage.Response.class);
+        benchmark(new DeltaControlMessage.Response(30000), ControlMessage.Response.class);
+        benchmark(new MiddlewareCommandControlMessage.Response(true),
+                  ControlMessage.Response.class);
+        benchmark(new EndpointCommandControlMessage.Response(true),
+                  ControlMessage.Response.class);
+    }
+}
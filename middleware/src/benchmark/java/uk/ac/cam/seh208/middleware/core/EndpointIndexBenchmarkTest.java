@@ -0,0 +1,75 @@
+package uk.ac.cam.seh208.middleware.core;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.Set;
+
+import uk.ac.cam.seh208.middleware.common.EndpointDetails;
+import uk.ac.cam.seh208.middleware.common.Query;
+import uk.ac.cam.seh208.middleware.core.control.EndpointIndex;
+import uk.ac.cam.seh208.middleware.core.control.Middleware;
+
+
+/**
+ * Local benchmark comparing the cost of discovery over the RDC endpoint index with a
+ * full scan, with a large number of registrations.
+ */
+public class EndpointIndexBenchmarkTest {
+
+    private static final int MIDDLEWARES = 5000;
+
+    private static final int ENDPOINTS_PER_MIDDLEWARE = 20;
+
+    /**
+     * Number of times each query is run when measuring discovery cost.
+     */
+    private static final int ITERATIONS = 10;
+
+
+    @Test
+    public void testDiscoveryCost() {
+        Map<EndpointDetails, Middleware> registrations =
+                EndpointIndexTest.populate(MIDDLEWARES, ENDPOINTS_PER_MIDDLEWARE);
+
+        long start = System.nanoTime();
+        EndpointIndex index = new EndpointIndex();
+        for (EndpointDetails details : registrations.keySet()) {
+            index.add(details);
+        }
+        long buildNanos = System.nanoTime() - start;
+
+        System.out.println("Indexed " + registrations.size() + " endpoints across " +
+                MIDDLEWARES + " middlewares in " + (buildNanos / 1000000) + " ms");
+
+        for (Query query : EndpointIndexTest.queries()) {
+            // Measure both approaches twice, discarding the first pass as a warm-up.
+            long scanNanos = 0;
+            long lookupNanos = 0;
+            Set<Middleware> scanned = null;
+            Set<Middleware> looked = null;
+            for (int pass = 0; pass < 2; pass++) {
+                start = System.nanoTime();
+                for (int i = 0; i < ITERATIONS; i++) {
+                    scanned = EndpointIndexTest.scan(registrations, query);
+                }
+                scanNanos = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (int i = 0; i < ITERATIONS; i++) {
+                    looked = EndpointIndexTest.lookup(registrations, index, query);
+                }
+                lookupNanos = System.nanoTime() - start;
+            }
+
+            System.out.println("Query " + query + ": " +
+                    "scan " + (scanNanos / ITERATIONS / 1000) + " us, " +
+                    "index " + (lookupNanos / ITERATIONS / 1000) + " us, " +
+                    scanned.size() + " middlewares");
+
+            Assert.assertEquals(scanned, looked);
+        }
+    }
+}
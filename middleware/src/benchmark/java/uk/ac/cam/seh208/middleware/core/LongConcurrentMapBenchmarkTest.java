@@ -0,0 +1,100 @@
+package uk.ac.cam.seh208.middleware.core;
+
+import android.util.LongSparseArray;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Local benchmark comparing the lookup cost of the primitive long-keyed concurrent
+ * map against the other maps available to the middleware.
+ */
+public class LongConcurrentMapBenchmarkTest {
+
+    private static final Random random = new Random(System.nanoTime());
+
+    /**
+     * Number of lookups measured for each map and size.
+     */
+    private static final int LOOKUPS = 1000000;
+
+
+    @Test
+    public void testLookupCost() {
+        for (int size : new int[] { 10, 1000, 100000 }) {
+            long[] keys = LongConcurrentMapTest.randomKeys(size);
+
+            // Insert into the sparse array in key order, so that its construction
+            // does not dominate the test.
+            long[] sorted = keys.clone();
+            Arrays.sort(sorted);
+
+            LongConcurrentMap<Long> primitive = new LongConcurrentMap<>();
+            LongSparseArray<Long> sparse = new LongSparseArray<>();
+            Map<Long, Long> hash = new HashMap<>();
+            Map<Long, Long> concurrent = new ConcurrentHashMap<>();
+            for (int i = 0; i < size; i++) {
+                primitive.put(keys[i], keys[i]);
+                sparse.put(sorted[i], sorted[i]);
+                hash.put(keys[i], keys[i]);
+                concurrent.put(keys[i], keys[i]);
+            }
+
+            // Look up keys in a fixed random order, identical for each map.
+            int[] order = new int[LOOKUPS];
+            for (int i = 0; i < LOOKUPS; i++) {
+                order[i] = random.nextInt(size);
+            }
+
+            // Measure every map twice, discarding the first pass as a warm-up.
+            long[] nanos = new long[4];
+            long checksum = 0;
+            for (int pass = 0; pass < 2; pass++) {
+                long start = System.nanoTime();
+                for (int i : order) {
+                    checksum += primitive.get(keys[i]);
+                }
+                nanos[0] = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (int i : order) {
+                    checksum -= sparse.get(keys[i]);
+                }
+                nanos[1] = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (int i : order) {
+                    checksum += hash.get(keys[i]);
+                }
+                nanos[2] = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (int i : order) {
+                    checksum -= concurrent.get(keys[i]);
+                }
+                nanos[3] = System.nanoTime() - start;
+            }
+
+            System.out.println(size + " entries: " +
+                    "LongConcurrentMap " + (nanos[0] / LOOKUPS) + " ns/op, " +
+                    "LongSparseArray " + (nanos[1] / LOOKUPS) + " ns/op, " +
+                    "HashMap " + (nanos[2] / LOOKUPS) + " ns/op, " +
+                    "ConcurrentHashMap " + (nanos[3] / LOOKUPS) + " ns/op");
+
+            // Every map must have returned the same values.
+            Assert.assertEquals(0, checksum);
+
+            List<Long> values = primitive.values();
+            Assert.assertEquals(size, values.size());
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package uk.ac.cam.seh208.middleware.core;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import uk.ac.cam.seh208.middleware.core.control.MultiplexerHeader;
+
+
+/**
+ * Local benchmark comparing the cost of de-multiplexing a message under each wire
+ * format.
+ */
+public class MultiplexerHeaderBenchmarkTest {
+
+    /**
+     * Number of iterations used when measuring de-multiplexing cost.
+     */
+    private static final int ITERATIONS = 200000;
+
+
+    @Test
+    public void testDemultiplexCost() {
+        long[] linkIds = MultiplexerHeaderTest.randomLinkIds(8);
+        MultiplexerHeader header =
+                new MultiplexerHeader(linkIds, MultiplexerHeader.FLAG_NONE);
+        String payload = MultiplexerHeaderTest.payload;
+        String legacyMessage = header.toLegacyPrefix() + payload;
+        byte[] headerFrame = header.toBytes();
+        byte[] payloadFrame = payload.getBytes(StandardCharsets.UTF_8);
+
+        // Measure both formats twice, discarding the first pass as a warm-up.
+        long legacyNanos = 0;
+        long framedNanos = 0;
+        long checksum = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                MultiplexerHeader decoded = MultiplexerHeader.fromLegacyMessage(legacyMessage);
+                String data = MultiplexerHeader.legacyPayload(legacyMessage);
+                checksum += decoded.getLinkIds()[0] + data.length();
+            }
+            legacyNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                MultiplexerHeader decoded = MultiplexerHeader.fromBytes(headerFrame);
+                String data = new String(payloadFrame, StandardCharsets.UTF_8);
+                checksum -= decoded.getLinkIds()[0] + data.length();
+            }
+            framedNanos = System.nanoTime() - start;
+        }
+
+        System.out.println("Legacy demultiplex: " + (legacyNanos / ITERATIONS) + " ns/op");
+        System.out.println("Framed demultiplex: " + (framedNanos / ITERATIONS) + " ns/op");
+
+        // Both formats must have decoded identical headers and payloads.
+        Assert.assertEquals(0, checksum);
+    }
+}
@@ -0,0 +1,56 @@
+package uk.ac.cam.seh208.middleware.core;
+
+import com.github.fge.jsonschema.core.util.RegexHelper;
+import com.github.fge.jsonschema.core.util.RhinoHelper;
+
+import org.junit.Test;
+
+
+/**
+ * Local benchmark comparing the throughput of translated ECMA 262 regexes with the
+ * Rhino-backed implementation.
+ */
+public class RegexHelperBenchmarkTest {
+
+    /**
+     * Number of matches used to warm up each implementation.
+     */
+    private static final int WARMUP_ITERATIONS = 2000;
+
+    /**
+     * Number of matches measured for each implementation.
+     */
+    private static final int ITERATIONS = 20000;
+
+
+    /**
+     * Measure and print the throughput of matching with both implementations.
+     */
+    @Test
+    public void benchmarkMatching() {
+        String regex = "^[a-z0-9._%+-]+@[a-z0-9.-]+\\.[a-z]{2,}$";
+        String input = "someone.else@example.co.uk";
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            RhinoHelper.regMatch(regex, input);
+            RegexHelper.regMatch(regex, input);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            RhinoHelper.regMatch(regex, input);
+        }
+        long rhino = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            RegexHelper.regMatch(regex, input);
+        }
+        long translated = System.nanoTime() - start;
+
+        System.out.println("Rhino: " +
+                (ITERATIONS * 1000000000L / Math.max(rhino, 1)) + " matches/sec");
+        System.out.println("Translated: " +
+                (ITERATIONS * 1000000000L / Math.max(translated, 1)) + " matches/sec");
+    }
+}
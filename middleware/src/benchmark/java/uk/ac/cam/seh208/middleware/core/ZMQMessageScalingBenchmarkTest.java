@@ -0,0 +1,160 @@
+package uk.ac.cam.seh208.middleware.core;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.zeromq.ZMQ;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+
+import uk.ac.cam.seh208.middleware.core.exception.ConnectionFailedException;
+import uk.ac.cam.seh208.middleware.core.exception.MalformedAddressException;
+import uk.ac.cam.seh208.middleware.core.comms.Address;
+import uk.ac.cam.seh208.middleware.core.comms.Environment;
+import uk.ac.cam.seh208.middleware.core.comms.Location;
+import uk.ac.cam.seh208.middleware.core.comms.MessageContext;
+import uk.ac.cam.seh208.middleware.core.comms.MessageStream;
+import uk.ac.cam.seh208.middleware.core.comms.impl.ZMQAddress;
+import uk.ac.cam.seh208.middleware.core.comms.impl.ZMQMessageContext;
+import uk.ac.cam.seh208.middleware.core.comms.impl.ZMQSchemeConfiguration;
+
+
+/**
+ * Local benchmark measuring how the ZeroMQ message context scales with the number
+ * of open peer streams, in terms of thread count, idle CPU time and latency.
+ */
+public class ZMQMessageScalingBenchmarkTest {
+
+    private static final int CONTEXT_PORT = 22000;
+
+    private static final int SINK_BASE_PORT = 23000;
+
+    /**
+     * Maximum number of threads that may be started by opening streams.
+     */
+    private static final int MAX_THREAD_GROWTH = 2;
+
+    private static final int IDLE_MILLIS = 500;
+
+    private static final int RECEIVE_TIMEOUT_MILLIS = 10000;
+
+
+    private static Environment environmentWithPort(int port) {
+        return () -> {
+            Location location = new Location();
+            try {
+                location.addAddress(Address.make("zmq://127.0.0.1:" + port));
+            } catch (MalformedAddressException e) {
+                Assert.fail("Couldn't create environment.");
+            }
+            return location;
+        };
+    }
+
+    /**
+     * @return the total CPU time used by all live threads, in nanoseconds.
+     */
+    private static long totalCpuTime(ThreadMXBean threads) {
+        long total = 0;
+        for (long id : threads.getAllThreadIds()) {
+            long time = threads.getThreadCpuTime(id);
+            if (time > 0) {
+                total += time;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Open the given number of streams from a single context to a sink bound on
+     * as many ports, and report the resources used.
+     */
+    private static void runWithStreams(int count) throws ConnectionFailedException {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        // Bind a single ROUTER socket on one port per peer, standing in for
+        // the Harmony servers of the remote middleware instances.
+        ZMQ.Context sinkContext = ZMQ.context(1);
+        ZMQ.Socket sink = sinkContext.socket(ZMQ.ROUTER);
+        sink.setReceiveTimeOut(RECEIVE_TIMEOUT_MILLIS);
+        for (int i = 0; i < count; i++) {
+            sink.bind("tcp://127.0.0.1:" + (SINK_BASE_PORT + i));
+        }
+
+        MessageContext context = new ZMQMessageContext(
+                environmentWithPort(CONTEXT_PORT), new ZMQSchemeConfiguration(CONTEXT_PORT));
+        int threadsBefore = threads.getThreadCount();
+
+        // Open a stream to each peer.
+        ZMQAddress.Builder addressBuilder = new ZMQAddress.Builder();
+        addressBuilder.setHost("127.0.0.1");
+        MessageStream[] streams = new MessageStream[count];
+        for (int i = 0; i < count; i++) {
+            streams[i] = context.getMessageStream(
+                    addressBuilder.setPort(SINK_BASE_PORT + i).build());
+        }
+        int threadGrowth = threads.getThreadCount() - threadsBefore;
+
+        // Measure the CPU time used while all streams are idle.
+        long cpuBefore = totalCpuTime(threads);
+        try {
+            Thread.sleep(IDLE_MILLIS);
+        } catch (InterruptedException ignored) {
+            // Do nothing.
+        }
+        long idleCpu = totalCpuTime(threads) - cpuBefore;
+
+        // Send a timestamped message over each stream.
+        for (MessageStream stream : streams) {
+            stream.send(Long.toString(System.nanoTime()));
+        }
+
+        // Receive the messages at the sink, skipping the initial messages.
+        long totalLatency = 0;
+        long maxLatency = 0;
+        int received = 0;
+        while (received < count) {
+            byte[] identity = sink.recv();
+            Assert.assertNotNull(identity);
+            String data = sink.recvStr();
+            if (sink.hasReceiveMore()) {
+                // This is an initial message; discard the version frame.
+                sink.recv();
+                continue;
+            }
+
+            long latency = System.nanoTime() - Long.parseLong(data);
+            totalLatency += latency;
+            maxLatency = Math.max(maxLatency, latency);
+            received++;
+        }
+
+        // Terminate the context, closing all streams.
+        long termStart = System.nanoTime();
+        context.term();
+        long termNanos = System.nanoTime() - termStart;
+
+        sink.close();
+        sinkContext.term();
+
+        System.out.println(count + " streams: " +
+                "threads +" + threadGrowth + ", " +
+                "idle CPU " + TimeUnit.NANOSECONDS.toMillis(idleCpu) + "ms/" +
+                IDLE_MILLIS + "ms, " +
+                "mean latency " + TimeUnit.NANOSECONDS.toMicros(totalLatency / count) + "us, " +
+                "max latency " + TimeUnit.NANOSECONDS.toMicros(maxLatency) + "us, " +
+                "term " + TimeUnit.NANOSECONDS.toMillis(termNanos) + "ms");
+
+        // Streams must not start threads of their own.
+        Assert.assertTrue(threadGrowth <= MAX_THREAD_GROWTH);
+    }
+
+    @Test
+    public void testStreamScaling() throws ConnectionFailedException {
+        runWithStreams(10);
+        runWithStreams(100);
+        runWithStreams(1000);
+    }
+}
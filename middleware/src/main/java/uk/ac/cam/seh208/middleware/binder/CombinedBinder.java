@@ -6,12 +6,15 @@ import android.util.ArrayMap;
 import java.util.List;
 import java.util.Map;
 
+import uk.ac.cam.seh208.middleware.common.BinderVersion;
+import uk.ac.cam.seh208.middleware.common.DeliveryPolicy;
 import uk.ac.cam.seh208.middleware.common.EndpointCommand;
 import uk.ac.cam.seh208.middleware.common.EndpointDetails;
 import uk.ac.cam.seh208.middleware.common.IMessageListener;
 import uk.ac.cam.seh208.middleware.common.MiddlewareCommand;
 import uk.ac.cam.seh208.middleware.common.Persistence;
 import uk.ac.cam.seh208.middleware.common.Query;
+import uk.ac.cam.seh208.middleware.common.ValidationPolicy;
 import uk.ac.cam.seh208.middleware.core.MiddlewareService;
 import uk.ac.cam.seh208.middleware.core.control.Endpoint;
 
@@ -116,17 +119,33 @@ public class CombinedBinder extends ICombined.Stub {
         middlewareBinder.setDiscoverable(discoverable);
     }
 
+    @Override
+    public int mw_getVersion() {
+        return BinderVersion.CURRENT;
+    }
+
     @Override
     public void ep_send(String name, String message) throws RemoteException {
         getEndpointBinder(name).send(message);
     }
 
+    @Override
+    public void ep_sendBatch(String name, List<String> messages) throws RemoteException {
+        getEndpointBinder(name).sendBatch(messages);
+    }
+
     @Override
     public void ep_registerListener(String name, IMessageListener listener)
             throws RemoteException {
         getEndpointBinder(name).registerListener(listener);
     }
 
+    @Override
+    public void ep_registerBatchListener(String name, IMessageListener listener)
+            throws RemoteException {
+        getEndpointBinder(name).registerBatchListener(listener);
+    }
+
     @Override
     public void ep_unregisterListener(String name, IMessageListener listener)
             throws RemoteException {
@@ -173,4 +192,16 @@ public class CombinedBinder extends ICombined.Stub {
     public void ep_setForceable(String name, boolean forceable) throws RemoteException {
         getEndpointBinder(name).setForceable(forceable);
     }
+
+    @Override
+    public void ep_setValidationPolicy(String name, ValidationPolicy policy)
+            throws RemoteException {
+        getEndpointBinder(name).setValidationPolicy(policy);
+    }
+
+    @Override
+    public void ep_setDeliveryPolicy(String name, DeliveryPolicy policy)
+            throws RemoteException {
+        getEndpointBinder(name).setDeliveryPolicy(policy);
+    }
 }
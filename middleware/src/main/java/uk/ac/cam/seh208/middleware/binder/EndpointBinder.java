@@ -2,6 +2,9 @@ package uk.ac.cam.seh208.middleware.binder;
 
 import android.os.RemoteException;
 
+import java.util.List;
+
+import uk.ac.cam.seh208.middleware.common.DeliveryPolicy;
 import uk.ac.cam.seh208.middleware.common.Persistence;
 import uk.ac.cam.seh208.middleware.common.exception.BadHostException;
 import uk.ac.cam.seh208.middleware.common.exception.BadQueryException;
@@ -11,6 +14,7 @@ import uk.ac.cam.seh208.middleware.common.exception.ProtocolException;
 import uk.ac.cam.seh208.middleware.common.Query;
 import uk.ac.cam.seh208.middleware.common.exception.SchemaMismatchException;
 import uk.ac.cam.seh208.middleware.common.exception.WrongPolarityException;
+import uk.ac.cam.seh208.middleware.common.ValidationPolicy;
 import uk.ac.cam.seh208.middleware.core.control.Endpoint;
 
 
@@ -69,6 +73,25 @@ public class EndpointBinder extends IEndpoint.Stub {
         endpoint.send(message);
     }
 
+    /**
+     * Send a batch of JSON messages over the bound endpoint (provided the endpoint polarity
+     * permits this). Every message must conform to the endpoint message schema; if any does
+     * not, an exception will be thrown and none of the batch will be sent.
+     *
+     * The batch is sent in a single procedure call, and carried to each remote instance
+     * of the middleware in a single frame, where its messages are delivered in order.
+     *
+     * @param messages JSON string representations of the messages to send.
+     *
+     * @throws WrongPolarityException when the bound endpoint polarity does not permit sending.
+     * @throws SchemaMismatchException when a message string does not match the endpoint schema.
+     */
+    @Override
+    public void sendBatch(List<String> messages)
+            throws WrongPolarityException, SchemaMismatchException {
+        endpoint.sendBatch(messages);
+    }
+
     /**
      * Register a new message listener with the bound endpoint (provided the endpoint
      * polarity permits this). The listener must implement the IMessageListener interface
@@ -222,4 +245,48 @@ public class EndpointBinder extends IEndpoint.Stub {
     public void setForceable(boolean forceable) {
         endpoint.setForceable(forceable);
     }
+
+    /**
+     * Set the policy determining which messages sent and received by the bound
+     * endpoint are validated against its schema. Relaxed policies reduce the cost
+     * of each message, at the expense of admitting some malformed messages.
+     *
+     * The policy is persisted, and restored along with the endpoint.
+     *
+     * @param policy Validation policy for the bound endpoint.
+     */
+    @Override
+    public void setValidationPolicy(ValidationPolicy policy) {
+        endpoint.setValidationPolicy(policy);
+    }
+
+    /**
+     * Set the policy determining how messages received by the bound endpoint are
+     * queued for its listeners: the capacity of the queue of each listener, and
+     * whether a full queue blocks the receiving thread or loses messages. The
+     * policy applies to listeners registered from now on.
+     *
+     * The policy is persisted, and restored along with the endpoint.
+     *
+     * @param policy Delivery policy for the bound endpoint.
+     */
+    @Override
+    public void setDeliveryPolicy(DeliveryPolicy policy) {
+        endpoint.setDeliveryPolicy(policy);
+    }
+
+    /**
+     * Register a new message listener which accepts batches of messages with the
+     * bound endpoint. Messages arriving close together are coalesced, and delivered
+     * via a single remote call to the onMessages method of the listener.
+     *
+     * @param listener Object implementing the IMessageListener interface, including
+     *                 its onMessages method.
+     *
+     * @throws RemoteException when the linkToDeath procedure fails for the listener.
+     */
+    @Override
+    public void registerBatchListener(IMessageListener listener) throws RemoteException {
+        endpoint.registerBatchListener(listener);
+    }
 }
@@ -0,0 +1,266 @@
+package uk.ac.cam.seh208.middleware.core;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Thread pool which grows and shrinks between configurable bounds according to the
+ * depth of its queue and the time taken by its tasks.
+ *
+ * A plain ThreadPoolExecutor with an unbounded queue never runs more than its core
+ * number of threads, so the core size is adjusted instead. Whenever a task is queued
+ * or completes, the expected wait of a newly queued task (the queue depth multiplied
+ * by the mean task time, shared between the threads) is compared with a target; while
+ * it is exceeded, a thread is added, up to the maximum. Once the queue has remained
+ * empty for a while, threads are removed one at a time, down to the minimum. As an
+ * idle pool neither queues nor completes tasks, the pool is also adjusted periodically
+ * until it is shut down.
+ *
+ * The queue may be bounded, in which case tasks are rejected once it is full and the
+ * pool has reached its maximum.
+ */
+public class ElasticExecutor implements Executor {
+
+    /**
+     * The expected queueing delay (in milliseconds) above which a thread is added.
+     */
+    public static final long TARGET_WAIT_MILLIS = 50;
+
+    /**
+     * The time (in milliseconds) without a queue after which a thread is removed.
+     */
+    public static final long SHRINK_DELAY_MILLIS = 10000;
+
+    /**
+     * The number of times the pool is adjusted periodically within the shrink delay.
+     */
+    private static final int ADJUSTS_PER_SHRINK_DELAY = 10;
+
+    /**
+     * Weight given to each new task time in the moving average.
+     */
+    private static final double TASK_TIME_WEIGHT = 0.2;
+
+    /**
+     * Timer shared between all pools, periodically adjusting each.
+     */
+    private static final ScheduledExecutorService timer =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "ElasticExecutor");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+
+    /**
+     * The underlying pool, whose core size is adjusted.
+     */
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * The minimum number of threads.
+     */
+    private final int minThreads;
+
+    /**
+     * The maximum number of threads.
+     */
+    private final int maxThreads;
+
+    /**
+     * The time (in nanoseconds) without a queue after which a thread is removed.
+     */
+    private final long shrinkDelayNanos;
+
+    /**
+     * The periodic adjustment of the pool, cancelled when it is shut down.
+     */
+    private final ScheduledFuture<?> periodicAdjust;
+
+    /**
+     * Exponentially weighted moving average of the task time, in nanoseconds. This
+     * initially assumes the target wait, so that a backlog grows the pool before any
+     * task has completed.
+     */
+    private volatile double meanTaskNanos;
+
+    /**
+     * The time (in nanoseconds) at which the queue was last non-empty, or the
+     * pool last resized.
+     */
+    private final AtomicLong lastBusy;
+
+
+    /**
+     * Create a new pool with an unbounded queue, initially running the minimum number
+     * of threads.
+     *
+     * @param minThreads The minimum number of threads.
+     * @param maxThreads The maximum number of threads.
+     */
+    public ElasticExecutor(int minThreads, int maxThreads) {
+        this(minThreads, maxThreads, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Create a new pool, initially running the minimum number of threads.
+     *
+     * @param minThreads The minimum number of threads.
+     * @param maxThreads The maximum number of threads.
+     * @param queueCapacity The maximum number of tasks waiting for a thread.
+     */
+    public ElasticExecutor(int minThreads, int maxThreads, int queueCapacity) {
+        this(minThreads, maxThreads, queueCapacity, SHRINK_DELAY_MILLIS);
+    }
+
+    /**
+     * Create a new pool with the given delay before shrinking.
+     *
+     * @param minThreads The minimum number of threads.
+     * @param maxThreads The maximum number of threads.
+     * @param queueCapacity The maximum number of tasks waiting for a thread.
+     * @param shrinkDelayMillis The time (in milliseconds) without a queue after
+     *                          which a thread is removed.
+     */
+    ElasticExecutor(int minThreads, int maxThreads, int queueCapacity,
+                    long shrinkDelayMillis) {
+        if (minThreads < 1 || maxThreads < minThreads) {
+            throw new IllegalArgumentException("Invalid thread bounds.");
+        }
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("Invalid queue capacity.");
+        }
+
+        this.minThreads = minThreads;
+        this.maxThreads = maxThreads;
+        shrinkDelayNanos = TimeUnit.MILLISECONDS.toNanos(shrinkDelayMillis);
+        executor = new ThreadPoolExecutor(minThreads, maxThreads,
+                                          shrinkDelayMillis, TimeUnit.MILLISECONDS,
+                                          new LinkedBlockingQueue<>(queueCapacity));
+        meanTaskNanos = TimeUnit.MILLISECONDS.toNanos(TARGET_WAIT_MILLIS);
+        lastBusy = new AtomicLong(System.nanoTime());
+
+        long interval = Math.max(1, shrinkDelayMillis / ADJUSTS_PER_SHRINK_DELAY);
+        periodicAdjust = timer.scheduleWithFixedDelay(this::adjust, interval, interval,
+                                                      TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queue a task for execution.
+     *
+     * @throws java.util.concurrent.RejectedExecutionException if the pool has been shut
+     *         down, or its queue is full.
+     */
+    @Override
+    public void execute(Runnable task) {
+        executor.execute(() -> {
+            long start = System.nanoTime();
+            try {
+                task.run();
+            } finally {
+                // Update the mean task time. Races between threads lose the odd
+                // sample, which is acceptable for an estimate.
+                long elapsed = System.nanoTime() - start;
+                meanTaskNanos += TASK_TIME_WEIGHT * (elapsed - meanTaskNanos);
+                adjust();
+            }
+        });
+        adjust();
+    }
+
+    /**
+     * Grow or shrink the pool according to the current queue depth.
+     */
+    private synchronized void adjust() {
+        long now = System.nanoTime();
+        int depth = executor.getQueue().size();
+        int threads = executor.getCorePoolSize();
+
+        if (depth > 0) {
+            lastBusy.set(now);
+
+            // Estimate how long a newly queued task would wait.
+            double waitNanos = depth * meanTaskNanos / threads;
+            if (threads < maxThreads &&
+                    waitNanos > TimeUnit.MILLISECONDS.toNanos(TARGET_WAIT_MILLIS)) {
+                // Raising the core size starts a thread for the queued tasks.
+                executor.setCorePoolSize(threads + 1);
+            }
+            return;
+        }
+
+        if (threads > minThreads &&
+                now - lastBusy.get() >= shrinkDelayNanos) {
+            // Lowering the core size stops an excess thread once it is idle.
+            executor.setCorePoolSize(threads - 1);
+            lastBusy.set(now);
+        }
+    }
+
+    /**
+     * @return the current target number of threads.
+     */
+    public int getThreadCount() {
+        return executor.getCorePoolSize();
+    }
+
+    /**
+     * @return the number of threads currently running tasks.
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * @return the number of tasks waiting for a thread.
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return the moving average of the task time, in milliseconds.
+     */
+    public double getMeanTaskMillis() {
+        return meanTaskNanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * @return whether the pool has been stopped.
+     */
+    public boolean isShutdown() {
+        return executor.isShutdown();
+    }
+
+    /**
+     * Stop the pool, interrupting running tasks and discarding queued tasks.
+     */
+    public void shutdownNow() {
+        periodicAdjust.cancel(false);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Wait for the running tasks to finish after the pool is stopped.
+     *
+     * @return whether all tasks finished within the timeout.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    @Override
+    public String toString() {
+        return "threads=" + getThreadCount() +
+                " active=" + getActiveCount() +
+                " queued=" + getQueueDepth() +
+                " mean=" + Math.round(getMeanTaskMillis()) + "ms";
+    }
+}
@@ -0,0 +1,188 @@
+package uk.ac.cam.seh208.middleware.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Thread-safe histogram of latencies in milliseconds, with exponentially sized buckets.
+ *
+ * Bucket i counts latencies in the range (2^(i-1), 2^i] milliseconds, with bucket 0
+ * counting latencies of at most one millisecond, and the final bucket counting all
+ * latencies beyond the range of the others. Percentiles are therefore reported as the
+ * upper bound of the bucket in which they fall, which is within a factor of two.
+ */
+public class LatencyHistogram {
+
+    /**
+     * Number of buckets, the last of which is unbounded. The bounded buckets
+     * cover latencies of up to 2^(BUCKETS - 2) milliseconds (about 65 seconds).
+     */
+    private static final int BUCKETS = 18;
+
+
+    /**
+     * Number of latencies recorded in each bucket.
+     */
+    private final AtomicLongArray counts;
+
+    /**
+     * Total number of latencies recorded.
+     */
+    private final AtomicLong count;
+
+    /**
+     * Sum of all latencies recorded, in milliseconds.
+     */
+    private final AtomicLong total;
+
+    /**
+     * Greatest latency recorded, in milliseconds.
+     */
+    private final AtomicLong max;
+
+
+    public LatencyHistogram() {
+        counts = new AtomicLongArray(BUCKETS);
+        count = new AtomicLong();
+        total = new AtomicLong();
+        max = new AtomicLong();
+    }
+
+    /**
+     * Compute the index of the bucket counting the given latency.
+     */
+    private static int bucketOf(long millis) {
+        if (millis <= 1) {
+            return 0;
+        }
+
+        // Round up to the next power of two.
+        int bucket = 64 - Long.numberOfLeadingZeros(millis - 1);
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    /**
+     * Compute the upper bound of the given bucket in milliseconds, or
+     * Long.MAX_VALUE for the final, unbounded bucket.
+     */
+    private static long boundOf(int bucket) {
+        return (bucket == BUCKETS - 1) ? Long.MAX_VALUE : (1L << bucket);
+    }
+
+    /**
+     * Record a single latency.
+     *
+     * @param millis The latency in milliseconds.
+     */
+    public void record(long millis) {
+        millis = Math.max(millis, 0);
+
+        counts.incrementAndGet(bucketOf(millis));
+        count.incrementAndGet();
+        total.addAndGet(millis);
+
+        // Raise the maximum, if exceeded.
+        long current;
+        while (millis > (current = max.get())) {
+            if (max.compareAndSet(current, millis)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return the number of latencies recorded.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return the mean latency recorded in milliseconds, or zero if none have been recorded.
+     */
+    public long getMean() {
+        long n = count.get();
+        return (n == 0) ? 0 : total.get() / n;
+    }
+
+    /**
+     * @return the greatest latency recorded in milliseconds.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Estimate a percentile of the recorded latencies.
+     *
+     * @param percentile The percentile to estimate, between 0 and 100.
+     *
+     * @return the upper bound in milliseconds of the bucket containing the
+     *         percentile, capped at the greatest latency recorded, or zero if
+     *         none have been recorded.
+     */
+    public long getPercentile(double percentile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+
+        // Find the bucket in which the rank of the percentile falls.
+        long rank = Math.max((long) Math.ceil(n * percentile / 100), 1);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(boundOf(i), max.get());
+            }
+        }
+
+        return max.get();
+    }
+
+    /**
+     * @return a copy of the count in each bucket, in order of increasing latency.
+     */
+    public long[] getBucketCounts() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+        return copy;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("n=").append(getCount())
+                .append(" mean=").append(getMean()).append("ms")
+                .append(" p50=").append(getPercentile(50)).append("ms")
+                .append(" p90=").append(getPercentile(90)).append("ms")
+                .append(" p99=").append(getPercentile(99)).append("ms")
+                .append(" max=").append(getMax()).append("ms [");
+
+        // List the counts in each non-empty bucket.
+        boolean first = true;
+        for (int i = 0; i < BUCKETS; i++) {
+            long bucketCount = counts.get(i);
+            if (bucketCount == 0) {
+                continue;
+            }
+
+            if (!first) {
+                builder.append(", ");
+            }
+            first = false;
+
+            if (i == BUCKETS - 1) {
+                builder.append(">").append(boundOf(i - 1));
+            } else {
+                builder.append("<=").append(boundOf(i));
+            }
+            builder.append("ms: ").append(bucketCount);
+        }
+
+        return builder.append("]").toString();
+    }
+}
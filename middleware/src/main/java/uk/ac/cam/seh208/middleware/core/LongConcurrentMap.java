@@ -0,0 +1,395 @@
+package uk.ac.cam.seh208.middleware.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * Concurrent map from primitive long keys to object values, using open addressing
+ * with linear probing, so that keys are never boxed.
+ *
+ * The map is divided into a fixed number of stripes by key hash, each holding its own
+ * table. Reads never lock; writes lock only the stripe of their key. Within a table,
+ * each slot is claimed by at most one key for the lifetime of the table, and removal
+ * leaves a tombstone, so a reader that observes a value in a slot always observes the
+ * key it was stored under. Tables are rebuilt without tombstones when they fill, and
+ * the rebuilt table is published atomically to readers.
+ *
+ * Iteration is weakly consistent: values returns a snapshot which reflects each stripe
+ * at some point during the call. Null values are not permitted.
+ */
+public class LongConcurrentMap<V> {
+
+    /**
+     * Open-addressed table of a single stripe.
+     */
+    private static final class Table {
+
+        /**
+         * Key of each slot, valid only once the slot value is non-null.
+         */
+        private final AtomicLongArray keys;
+
+        /**
+         * Value of each slot; null if the slot was never claimed, or TOMBSTONE if
+         * the key was removed.
+         */
+        private final AtomicReferenceArray<Object> values;
+
+        /**
+         * Bit mask reducing a hash to a slot index.
+         */
+        private final int mask;
+
+
+        private Table(int capacity) {
+            keys = new AtomicLongArray(capacity);
+            values = new AtomicReferenceArray<>(capacity);
+            mask = capacity - 1;
+        }
+    }
+
+    /**
+     * A single stripe of the map, locked by writers.
+     */
+    private static final class Stripe {
+
+        /**
+         * Current table of the stripe, replaced on rebuild.
+         */
+        private volatile Table table;
+
+        /**
+         * Number of live entries in the stripe.
+         */
+        private volatile int size;
+
+        /**
+         * Number of claimed slots (live or tombstoned) in the current table.
+         */
+        private int used;
+
+
+        private Stripe() {
+            table = new Table(INITIAL_CAPACITY);
+        }
+    }
+
+
+    /**
+     * Marker value of a slot whose key has been removed.
+     */
+    private static final Object TOMBSTONE = new Object();
+
+    /**
+     * Default number of stripes.
+     */
+    private static final int DEFAULT_STRIPES = 8;
+
+    /**
+     * Initial capacity of the table of each stripe. This must be a power of two.
+     */
+    private static final int INITIAL_CAPACITY = 4;
+
+
+    /**
+     * Stripes of the map, indexed by the high bits of the key hash.
+     */
+    private final Stripe[] stripes;
+
+    /**
+     * Shift reducing a key hash to a stripe index.
+     */
+    private final int stripeShift;
+
+
+    /**
+     * Construct a new, empty map with the default number of stripes.
+     */
+    public LongConcurrentMap() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * Construct a new, empty map.
+     *
+     * @param concurrency Expected number of concurrent writers. This is rounded up to a
+     *                    power of two to give the number of stripes.
+     */
+    public LongConcurrentMap(int concurrency) {
+        int count = 1;
+        while (count < concurrency) {
+            count <<= 1;
+        }
+
+        stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe();
+        }
+        stripeShift = 64 - Integer.numberOfTrailingZeros(count);
+    }
+
+    /**
+     * Finalisation mix of MurmurHash3, spreading the key bits over the whole hash.
+     */
+    private static long hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private Stripe stripeFor(long hash) {
+        // A shift of 64 is a no-op in Java, so a single stripe is special-cased.
+        return (stripes.length == 1) ? stripes[0] : stripes[(int) (hash >>> stripeShift)];
+    }
+
+    /**
+     * @return the value mapped to the given key, or null if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        long hash = hash(key);
+        Table table = stripeFor(hash).table;
+
+        // Probe from the home slot until the key, or an unclaimed slot, is found.
+        for (int i = (int) hash & table.mask, probes = 0;
+             probes <= table.mask;
+             i = (i + 1) & table.mask, probes++) {
+            Object value = table.values.get(i);
+            if (value == null) {
+                return null;
+            }
+
+            if (table.keys.get(i) == key) {
+                return (value == TOMBSTONE) ? null : (V) value;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return whether a value is mapped to the given key.
+     */
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Map the given key to the given value, replacing any existing mapping.
+     *
+     * @return the value previously mapped to the key, or null if there was none.
+     */
+    public V put(long key, V value) {
+        return put(key, value, false);
+    }
+
+    /**
+     * Map the given key to the given value, unless it is already mapped.
+     *
+     * @return the value currently mapped to the key, or null if the new value was mapped.
+     */
+    public V putIfAbsent(long key, V value) {
+        return put(key, value, true);
+    }
+
+    @SuppressWarnings("unchecked")
+    private V put(long key, V value, boolean onlyIfAbsent) {
+        if (value == null) {
+            throw new NullPointerException("Null values are not permitted.");
+        }
+
+        long hash = hash(key);
+        Stripe stripe = stripeFor(hash);
+        synchronized (stripe) {
+            Table table = stripe.table;
+            int slot = find(table, key, hash);
+            if (slot >= 0) {
+                // The key has claimed a slot in this table; revive or replace its value.
+                Object previous = table.values.get(slot);
+                if (previous != TOMBSTONE) {
+                    if (!onlyIfAbsent) {
+                        table.values.set(slot, value);
+                    }
+                    return (V) previous;
+                }
+
+                table.values.set(slot, value);
+                stripe.size++;
+                return null;
+            }
+
+            // Rebuild the table before claiming a new slot if this would exceed
+            // a load factor of one half.
+            if ((stripe.used + 1) * 2 > table.mask + 1) {
+                table = rebuild(stripe);
+            }
+
+            claim(table, key, hash, value);
+            stripe.used++;
+            stripe.size++;
+            return null;
+        }
+    }
+
+    /**
+     * Remove the mapping of the given key, if there is one.
+     *
+     * @return the value previously mapped to the key, or null if there was none.
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        long hash = hash(key);
+        Stripe stripe = stripeFor(hash);
+        synchronized (stripe) {
+            Table table = stripe.table;
+            int slot = find(table, key, hash);
+            if (slot < 0) {
+                return null;
+            }
+
+            Object previous = table.values.get(slot);
+            if (previous == TOMBSTONE) {
+                return null;
+            }
+
+            table.values.set(slot, TOMBSTONE);
+            stripe.size--;
+            return (V) previous;
+        }
+    }
+
+    /**
+     * Remove all mappings.
+     */
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.table = new Table(INITIAL_CAPACITY);
+                stripe.used = 0;
+                stripe.size = 0;
+            }
+        }
+    }
+
+    /**
+     * @return the number of mappings.
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.size;
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return a snapshot list of the mapped values, in no particular order.
+     */
+    @SuppressWarnings("unchecked")
+    public List<V> values() {
+        List<V> values = new ArrayList<>();
+        for (Stripe stripe : stripes) {
+            Table table = stripe.table;
+            for (int i = 0; i <= table.mask; i++) {
+                Object value = table.values.get(i);
+                if (value != null && value != TOMBSTONE) {
+                    values.add((V) value);
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @return a new map containing a snapshot of the mappings of this map.
+     */
+    @SuppressWarnings("unchecked")
+    public LongConcurrentMap<V> copy() {
+        LongConcurrentMap<V> copy = new LongConcurrentMap<>(stripes.length);
+        for (Stripe stripe : stripes) {
+            Table table = stripe.table;
+            for (int i = 0; i <= table.mask; i++) {
+                Object value = table.values.get(i);
+                if (value != null && value != TOMBSTONE) {
+                    copy.put(table.keys.get(i), (V) value);
+                }
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Find the slot claimed by the given key in a table.
+     *
+     * @return the index of the slot, or -1 if the key has not claimed a slot.
+     */
+    private static int find(Table table, long key, long hash) {
+        for (int i = (int) hash & table.mask, probes = 0;
+             probes <= table.mask;
+             i = (i + 1) & table.mask, probes++) {
+            Object value = table.values.get(i);
+            if (value == null) {
+                return -1;
+            }
+
+            if (table.keys.get(i) == key) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Claim the first unclaimed slot from the home slot of the key. The key is
+     * written before the value, so that it is visible to any reader of the value.
+     */
+    private static void claim(Table table, long key, long hash, Object value) {
+        int i = (int) hash & table.mask;
+        while (table.values.get(i) != null) {
+            i = (i + 1) & table.mask;
+        }
+
+        table.keys.set(i, key);
+        table.values.set(i, value);
+    }
+
+    /**
+     * Replace the table of a stripe with one sized for its live entries, dropping
+     * tombstones. This must be called with the stripe locked.
+     *
+     * @return the new table.
+     */
+    private static Table rebuild(Stripe stripe) {
+        Table old = stripe.table;
+
+        // Size the new table to be at most one quarter full after the next insertion.
+        int capacity = INITIAL_CAPACITY;
+        while (capacity < (stripe.size + 1) * 4) {
+            capacity <<= 1;
+        }
+
+        Table table = new Table(capacity);
+        for (int i = 0; i <= old.mask; i++) {
+            Object value = old.values.get(i);
+            if (value != null && value != TOMBSTONE) {
+                long key = old.keys.get(i);
+                claim(table, key, hash(key), value);
+            }
+        }
+
+        stripe.table = table;
+        stripe.used = stripe.size;
+        return table;
+    }
+}
@@ -4,13 +4,16 @@ import android.app.Service;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.util.Log;
 import android.widget.Toast;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.TreeMap;
 import java.util.concurrent.ExecutionException;
@@ -24,10 +27,13 @@ import java.util.concurrent.TimeoutException;
 import java8.util.stream.StreamSupport;
 
 import uk.ac.cam.seh208.middleware.binder.CombinedBinder;
+import uk.ac.cam.seh208.middleware.common.CompiledQuery;
 import uk.ac.cam.seh208.middleware.common.EndpointCommand;
 import uk.ac.cam.seh208.middleware.common.MiddlewareCommand;
 import uk.ac.cam.seh208.middleware.common.Query;
 import uk.ac.cam.seh208.middleware.common.SetRDCAddressCommand;
+import uk.ac.cam.seh208.middleware.core.control.DeltaControlMessage;
+import uk.ac.cam.seh208.middleware.core.control.DiscoveryCache;
 import uk.ac.cam.seh208.middleware.core.control.EndpointCommandControlMessage;
 import uk.ac.cam.seh208.middleware.core.control.Link;
 import uk.ac.cam.seh208.middleware.core.control.Middleware;
@@ -46,6 +52,7 @@ import uk.ac.cam.seh208.middleware.core.control.EndpointSet;
 import uk.ac.cam.seh208.middleware.core.control.Multiplexer;
 import uk.ac.cam.seh208.middleware.core.control.MultiplexerPool;
 import uk.ac.cam.seh208.middleware.core.control.RemoveControlMessage;
+import uk.ac.cam.seh208.middleware.core.control.RenewControlMessage;
 import uk.ac.cam.seh208.middleware.core.control.UpdateControlMessage;
 import uk.ac.cam.seh208.middleware.core.exception.MalformedAddressException;
 import uk.ac.cam.seh208.middleware.core.exception.NoValidAddressException;
@@ -72,6 +79,25 @@ public class MiddlewareService extends Service {
      */
     public static final int RDC_TIMEOUT_MILLIS = 5000;
 
+    /**
+     * Divisor of the RDC lease duration giving the interval after which the lease is
+     * renewed. Renewing well before expiry allows for some renewals to be lost.
+     */
+    private static final int RDC_RENEW_DIVISOR = 3;
+
+    /**
+     * The maximum number of OPEN-LINKS control messages in flight at once, across
+     * all mappings being established.
+     */
+    public static final int OPEN_LINKS_FANOUT = 8;
+
+    /**
+     * The amount of time waited for the result of a command forced on a remote
+     * instance. Commands may themselves force commands on further instances, so
+     * this is well beyond the default reply timeout.
+     */
+    public static final int FORCE_TIMEOUT_MILLIS = 60000;
+
 
     /**
      * Key used to store the preference for the UUID to disk.
@@ -148,11 +174,58 @@ public class MiddlewareService extends Service {
      */
     private boolean shouldUpdateRDC;
 
+    /**
+     * Duration in milliseconds of the lease held on this middleware's RDC entry, or
+     * zero if no lease is held or the entry does not expire.
+     */
+    private long rdcLease;
+
+    /**
+     * Time at which the RDC lease was last granted or renewed, as given by
+     * SystemClock.elapsedRealtime.
+     */
+    private long rdcLeaseRenewed;
+
+    /**
+     * Endpoint details held in this middleware's RDC entry, by endpoint identifier, as
+     * last acknowledged by the RDC. This is null if the content of the entry is unknown,
+     * in which case the next update must be sent in full.
+     */
+    private Map<Long, EndpointDetails> rdcDetails;
+
+    /**
+     * Version of this middleware's RDC entry corresponding to rdcDetails.
+     */
+    private long rdcVersion;
+
+    /**
+     * Indicates that the RDC predates generations, versioning and leases, having
+     * rejected a QUERY or UPDATE in the current form but answered one in the original
+     * form. Only messages in the original form are sent to it until the RDC location
+     * changes.
+     */
+    private volatile boolean rdcLegacy;
+
     /**
      * Executor for running update tasks with timeout.
      */
     private ExecutorService updateExecutor;
 
+    /**
+     * Cache of the results of discovery queries sent to the RDC.
+     */
+    private DiscoveryCache discoveryCache;
+
+    /**
+     * Executor for sending OPEN-LINKS control messages to peers in parallel.
+     */
+    private ExecutorService linkExecutor;
+
+    /**
+     * Histogram of the time taken to establish the links of each mapping.
+     */
+    private LatencyHistogram mappingLatency;
+
 
     /**
      * Initialise the service fields and set up the communications switch.
@@ -172,6 +245,9 @@ public class MiddlewareService extends Service {
         endpointSet = new EndpointSet();
         linksByLinkId = new TreeMap<>();
         multiplexerPool = new MultiplexerPool(this);
+        discoveryCache = new DiscoveryCache();
+        linkExecutor = Executors.newFixedThreadPool(OPEN_LINKS_FANOUT);
+        mappingLatency = new LatencyHistogram();
 
         messageSwitch = new MessageSwitch(
                 Arrays.asList(
@@ -229,23 +305,57 @@ public class MiddlewareService extends Service {
         shouldUpdateRDC = true;
     }
 
+    /**
+     * Record the lease granted on this middleware's RDC entry.
+     */
+    private synchronized void recordLeaseRDC(long lease) {
+        rdcLease = lease;
+        rdcLeaseRenewed = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Record the content and version of this middleware's RDC entry, as acknowledged
+     * by the RDC. A null details map indicates that the content is unknown.
+     */
+    private synchronized void recordEntryRDC(Map<Long, EndpointDetails> details, long version) {
+        rdcDetails = details;
+        rdcVersion = version;
+    }
+
+    /**
+     * Forget the content of this middleware's RDC entry, so that the next update is
+     * sent in full.
+     */
+    private synchronized void forgetEntryRDC() {
+        rdcDetails = null;
+    }
+
     /**
      * If some previous event marked that we should update our entry in the RDC
      * by calling scheduleUpdateRDC, send an UPDATE control message using the
-     * updateRDC routine.
+     * updateRDC routine. Otherwise, renew the lease on the entry if it is due.
      */
     private void maybeUpdateRDC() {
         // Determine, in a thread-safe manner, whether we should update the RDC.
-        boolean update, remove;
+        boolean update, remove, renew;
         synchronized (this) {
             update = shouldUpdateRDC;
             remove = !discoverable;
+            renew = discoverable && rdcLease > 0 &&
+                    SystemClock.elapsedRealtime() - rdcLeaseRenewed >=
+                            rdcLease / RDC_RENEW_DIVISOR;
         }
 
-        if (update) {
+        if (update || renew) {
             // Determine whether we should update our entry with the RDC, or
-            // remove it, depending on whether we are discoverable.
-            Runnable task = (remove) ? this::removeRDC : this::updateRDC;
+            // remove it, depending on whether we are discoverable. If only the
+            // lease is due, send a compact renewal instead.
+            Runnable task;
+            if (update) {
+                task = (remove) ? this::removeRDC : this::updateRDC;
+            } else {
+                task = this::renewRDC;
+            }
 
             // Run the task in the background, allowing a timeout if the
             // RDC fails to respond.
@@ -258,8 +368,10 @@ public class MiddlewareService extends Service {
 
                 // If we were successful, don't update on the next tick (unless
                 // another event invalidates our RDC entry).
-                synchronized (this) {
-                    shouldUpdateRDC = false;
+                if (update) {
+                    synchronized (this) {
+                        shouldUpdateRDC = false;
+                    }
                 }
             } catch (InterruptedException | TimeoutException e) {
                 Log.w(getTag(), "Timeout during RDC update tick.");
@@ -274,7 +386,11 @@ public class MiddlewareService extends Service {
     }
 
     /**
-     * Send an UPDATE control message to the RDC listing all currently exposed endpoints.
+     * Update the RDC with all currently exposed endpoints. If the content of the RDC
+     * entry is known, a DELTA control message is sent listing only the endpoints that
+     * have changed; otherwise, or if the RDC rejects the delta, a full UPDATE control
+     * message is sent. If the RDC rejects that too, the UPDATE is resent in the original
+     * form, without a version or lease.
      */
     private void updateRDC() {
         if (rdcLocation == null) {
@@ -282,25 +398,147 @@ public class MiddlewareService extends Service {
             return;
         }
 
+        // Collect the details of all exposed endpoints.
+        Map<Long, EndpointDetails> details = new LinkedHashMap<>();
+        for (Endpoint endpoint : getEndpointSet()) {
+            if (endpoint.isExposed()) {
+                EndpointDetails endpointDetails = endpoint.getDetails();
+                details.put(endpointDetails.getEndpointId(), endpointDetails);
+            }
+        }
+
+        // Determine, in a thread-safe manner, the acknowledged content of the entry.
+        Map<Long, EndpointDetails> base;
+        long baseVersion;
+        synchronized (this) {
+            base = rdcDetails;
+            baseVersion = rdcVersion;
+        }
+        long version = baseVersion + 1;
+
         try {
-            Log.i(getTag(), "Sending update to the RDC.");
+            // Get a request stream to the RDC location.
+            RequestStream stream = getRequestStream(rdcLocation);
 
-            // Construct an UPDATE control message with all endpoint details.
-            ArrayList<EndpointDetails> details = new ArrayList<>();
-            for (Endpoint endpoint : getEndpointSet()) {
-                if (endpoint.isExposed()) {
-                    details.add(endpoint.getDetails());
+            if (base != null) {
+                // Compute the delta from the acknowledged content.
+                List<EndpointDetails> upserts = new ArrayList<>();
+                for (EndpointDetails endpointDetails : details.values()) {
+                    if (!endpointDetails.equals(base.get(endpointDetails.getEndpointId()))) {
+                        upserts.add(endpointDetails);
+                    }
+                }
+                List<Long> removals = new ArrayList<>();
+                for (Long endpointId : base.keySet()) {
+                    if (!details.containsKey(endpointId)) {
+                        removals.add(endpointId);
+                    }
                 }
+
+                if (upserts.isEmpty() && removals.isEmpty()) {
+                    Log.d(getTag(), "RDC entry already up to date.");
+                    return;
+                }
+
+                Log.i(getTag(), "Sending delta to the RDC.");
+                DeltaControlMessage message = new DeltaControlMessage(
+                        middleware, baseVersion, version, upserts, removals);
+
+                // Send the control message over the stream, and record the lease granted.
+                DeltaControlMessage.Response response = message.getResponse(stream);
+                if (response != null && response.getLease() > 0) {
+                    recordEntryRDC(details, version);
+                    recordLeaseRDC(response.getLease());
+                    return;
+                }
+
+                // The RDC rejected the delta, or does not support deltas; fall back
+                // to resynchronising the entry in full.
+                Log.i(getTag(), "RDC entry diverged; resynchronising in full.");
+            }
+
+            // Construct an UPDATE control message with all endpoint details, and send
+            // it over the stream.
+            List<EndpointDetails> allDetails = new ArrayList<>(details.values());
+            UpdateControlMessage.Response response = null;
+            if (!rdcLegacy) {
+                Log.i(getTag(), "Sending update to the RDC.");
+                response = new UpdateControlMessage(middleware, version, allDetails)
+                        .getResponse(stream);
+            }
+
+            if (response != null) {
+                // Record the content of the entry and the lease granted.
+                recordEntryRDC(details, version);
+                recordLeaseRDC(response.getLease());
+                return;
+            }
+
+            // The content of the entry is no longer known.
+            forgetEntryRDC();
+
+            // The RDC may predate versioning and leases, and so reject the version
+            // and renewal flag given; retry with the update in its original form.
+            Log.i(getTag(), "Sending original update to the RDC.");
+            response = new UpdateControlMessage(middleware, 0, allDetails, false)
+                    .getResponse(stream);
+            if (response == null) {
+                Log.w(getTag(), "No response to update from the RDC.");
+                return;
+            }
+
+            // The entry holds no version against which deltas could be computed, so
+            // the content is left unknown, and every update is sent in full.
+            recordLeaseRDC(response.getLease());
+            if (!rdcLegacy) {
+                Log.i(getTag(), "RDC predates versioning; sending original updates.");
+                rdcLegacy = true;
             }
-            UpdateControlMessage message = new UpdateControlMessage(middleware, details);
+        } catch (BadHostException e) {
+            Log.w(getTag(), "Error sending update to RDC.", e);
+        }
+    }
+
+    /**
+     * Send a RENEW control message to the RDC, renewing the lease on this middleware's
+     * entry without resending the endpoint details.
+     */
+    private void renewRDC() {
+        if (rdcLocation == null) {
+            Log.w(getTag(), "No RDC location set on renewal.");
+            return;
+        }
+
+        try {
+            Log.d(getTag(), "Renewing lease with the RDC.");
+
+            // Construct a RENEW control message with our identifier, and the
+            // generation from which we need to know the changes.
+            long since = discoveryCache.getGeneration();
+            RenewControlMessage message = new RenewControlMessage(middleware.getUUID(), since);
 
             // Get a request stream to the RDC location.
             RequestStream stream = getRequestStream(rdcLocation);
 
             // Send the control message over the stream.
-            message.getResponse(stream);
+            RenewControlMessage.Response response = message.getResponse(stream);
+            if (response == null) {
+                Log.w(getTag(), "No response to lease renewal from the RDC.");
+                return;
+            }
+
+            recordLeaseRDC(response.getLease());
+            discoveryCache.observeChanges(since, response.getGeneration(),
+                                          response.getChangedTags());
+            if (response.getLease() == 0) {
+                // The RDC holds no entry for us (it may have expired, or the RDC
+                // may have restarted), so resend our details in full at the next tick.
+                Log.i(getTag(), "RDC entry lost; scheduling full update.");
+                forgetEntryRDC();
+                scheduleUpdateRDC();
+            }
         } catch (BadHostException e) {
-            Log.w(getTag(), "Error sending update to RDC.", e);
+            Log.w(getTag(), "Error sending lease renewal to RDC.", e);
         }
     }
 
@@ -323,8 +561,11 @@ public class MiddlewareService extends Service {
             // Get a request stream to the RDC location.
             RequestStream stream = getRequestStream(rdcLocation);
 
-            // Send the control message over the stream.
-            message.getResponse(stream);
+            // Send the control message over the stream. No lease is held after removal.
+            if (message.getResponse(stream) != null) {
+                recordLeaseRDC(0);
+                forgetEntryRDC();
+            }
         } catch (BadHostException e) {
             Log.e(getTag(), "Error sending removal request to RDC.", e);
         }
@@ -493,27 +734,57 @@ public class MiddlewareService extends Service {
      * list of middleware instances. If no instances match the query, an empty list is
      * returned.
      *
+     * Results are served from the discovery cache while they remain fresh.
+     *
      * @return a list of locations exposing endpoints which match the query.
      *
      * @throws BadHostException if the middleware fails to connect to the RDC location.
      */
     public List<Middleware> discover(Query query) throws BadHostException {
-        Log.i(getTag(), "Querying RDC for peers matching " + query);
+        List<Middleware> cached = discoveryCache.get(query, SystemClock.elapsedRealtime());
+        if (cached != null) {
+            Log.d(getTag(), "Discovery cache hit for " + query + " (" + discoveryCache + ")");
+            return cached;
+        }
 
-        // Construct a QUERY control message with the given query.
-        QueryControlMessage message = new QueryControlMessage(query);
+        Log.i(getTag(), "Querying RDC for peers matching " + query);
 
         // Get a request stream to the RDC location.
         RequestStream stream = getRequestStream(rdcLocation);
 
-        // Send the control message over the stream, and return the response from the RDC.
-        QueryControlMessage.Response response = message.getResponse(stream);
-        return response.getMiddlewares();
+        // Send a QUERY control message with the given query, and the generation
+        // from which we need to know the changes.
+        long since = discoveryCache.getGeneration();
+        QueryControlMessage.Response response = null;
+        if (!rdcLegacy) {
+            response = new QueryControlMessage(query, since).getResponse(stream);
+        }
+
+        if (response == null) {
+            // The RDC may predate generations, and so reject the generation given;
+            // retry with the query in its original form.
+            response = new QueryControlMessage(query).getResponse(stream);
+            if (response == null) {
+                throw new BadHostException(rdcLocation.toString());
+            }
+
+            if (!rdcLegacy) {
+                Log.i(getTag(), "RDC predates generations; sending original queries.");
+                rdcLegacy = true;
+            }
+        }
+        List<Middleware> middlewares = response.getMiddlewares();
+
+        // Cache the result for subsequent queries.
+        discoveryCache.put(query, middlewares, since, response.getGeneration(),
+                           response.getChangedTags(), SystemClock.elapsedRealtime());
+        return middlewares;
     }
 
     /**
      * Filter existing endpoints by a query, and open links from all matching
-     * to a single given remote endpoint.
+     * (up to the number of matches given in the query) to a single given
+     * remote endpoint.
      *
      * @param query Query with which to filter local endpoints.
      * @param remote Remote endpoint to which to open links.
@@ -527,18 +798,29 @@ public class MiddlewareService extends Service {
         // Keep track of endpoints returned.
         List<RemoteEndpointDetails> endpoints = new ArrayList<>();
 
+        // Compile the query once, rather than for each endpoint.
+        CompiledQuery compiled = CompiledQuery.of(query);
+
         //noinspection SynchronizeOnNonFinalField
         synchronized (endpointSet) {
             // Filter the endpoint set according to the query.
             StreamSupport.stream(endpointSet)
-                    .filter(e -> query.getFilter().test(e.getRemoteDetails()))
+                    .filter(e -> compiled.matches(e.getRemoteDetails()))
                     .forEach(e -> {
+                        if (query.matches != Query.MATCH_INDEFINITELY
+                                && endpoints.size() >= query.matches) {
+                            // The quota of links has been met.
+                            return;
+                        }
+
                         try {
                             Link link = e.openLink(remote);
                             linksByLinkId.put(link.getLinkId(), link);
                             link.subscribe(l -> linksByLinkId.remove(l.getLinkId()));
 
-                            endpoints.add(e.getRemoteDetails());
+                            // A remote not reporting sender validation may predate
+                            // it, so may not be able to read the flag.
+                            endpoints.add(e.getRemoteDetails(!remote.isSenderValidated()));
                         } catch (BadHostException | UnexpectedClosureException ex) {
                             Log.w(getTag(), "Error opening link on endpoint " + e, ex);
                         }
@@ -581,7 +863,8 @@ public class MiddlewareService extends Service {
         RequestStream stream = getRequestStream(address);
 
         // Send the control message over the request stream, and return the result.
-        MiddlewareCommandControlMessage.Response response = message.getResponse(stream);
+        MiddlewareCommandControlMessage.Response response =
+                message.getResponse(stream, FORCE_TIMEOUT_MILLIS);
         return response.getSuccess();
     }
 
@@ -603,7 +886,8 @@ public class MiddlewareService extends Service {
         RequestStream stream = getRequestStream(address);
 
         // Send the control message over the request stream, and return the result.
-        EndpointCommandControlMessage.Response response = message.getResponse(stream);
+        EndpointCommandControlMessage.Response response =
+                message.getResponse(stream, FORCE_TIMEOUT_MILLIS);
         return response.getSuccess();
     }
 
@@ -664,6 +948,12 @@ public class MiddlewareService extends Service {
     public synchronized void setRDCLocation(Location location) {
         Log.i(getTag(), "RDC location set to " + location);
         this.rdcLocation = location;
+
+        // Nothing is known of our entry in the new RDC, and results
+        // discovered from the old RDC no longer apply.
+        forgetEntryRDC();
+        discoveryCache.reset();
+        rdcLegacy = false;
     }
 
     public synchronized void setDiscoverable(boolean discoverable) {
@@ -681,6 +971,18 @@ public class MiddlewareService extends Service {
         return database;
     }
 
+    public DiscoveryCache getDiscoveryCache() {
+        return discoveryCache;
+    }
+
+    public ExecutorService getLinkExecutor() {
+        return linkExecutor;
+    }
+
+    public LatencyHistogram getMappingLatency() {
+        return mappingLatency;
+    }
+
     private static String getTag() {
         return "MW";
     }
@@ -3,30 +3,109 @@ package uk.ac.cam.seh208.middleware.core;
 import android.app.Service;
 import android.content.Intent;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.util.Log;
 import android.widget.Toast;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-import java8.util.Objects;
+import java8.util.concurrent.CompletableFuture;
 import java8.util.stream.Collectors;
 import java8.util.stream.StreamSupport;
+import uk.ac.cam.seh208.middleware.common.CompiledQuery;
 import uk.ac.cam.seh208.middleware.common.EndpointDetails;
 import uk.ac.cam.seh208.middleware.common.Query;
 import uk.ac.cam.seh208.middleware.core.control.ControlMessageHandler;
+import uk.ac.cam.seh208.middleware.core.control.EndpointIndex;
+import uk.ac.cam.seh208.middleware.core.control.InvalidateControlMessage;
 import uk.ac.cam.seh208.middleware.core.control.Middleware;
+import uk.ac.cam.seh208.middleware.core.comms.RequestStream;
 import uk.ac.cam.seh208.middleware.core.comms.RequestSwitch;
 import uk.ac.cam.seh208.middleware.core.comms.impl.ZMQSchemeConfiguration;
+import uk.ac.cam.seh208.middleware.core.exception.NoValidAddressException;
 
 
 public class RDCService extends Service {
 
+    /**
+     * Record of a single change to the database.
+     */
+    private static final class Change {
+
+        /**
+         * The generation of the database after the change.
+         */
+        private final long generation;
+
+        /**
+         * The tags of the endpoints added, changed or removed.
+         */
+        private final Set<String> tags;
+
+
+        private Change(long generation, Set<String> tags) {
+            this.generation = generation;
+            this.tags = tags;
+        }
+    }
+
+
+    /**
+     * The duration in milliseconds of the lease granted on each entry, after which
+     * the entry expires unless renewed.
+     */
+    public static final long LEASE_MILLIS = 30000;
+
+    /**
+     * The length in milliseconds of a tick of the lease expiry wheel.
+     */
+    private static final long LEASE_TICK_MILLIS = 1000;
+
+    /**
+     * The number of slots in the lease expiry wheel, chosen to cover a whole lease.
+     */
+    private static final int LEASE_WHEEL_SIZE = 64;
+
+    /**
+     * The time in milliseconds to wait for each middleware to acknowledge an
+     * invalidation push.
+     */
+    private static final long INVALIDATE_TIMEOUT_MILLIS = 5000;
+
+    /**
+     * The number of recent changes for which the changed tags are retained. Changes
+     * since an older generation are reported as unknown.
+     */
+    private static final int CHANGE_LOG_SIZE = 256;
+
+    /**
+     * The number of bits by which the start time is shifted to seed the generation,
+     * leaving room for that many changes per millisecond of uptime before the
+     * generations of successive runs could overlap.
+     */
+    private static final int GENERATION_EPOCH_SHIFT = 20;
+
+
     /**
      * Boolean tracking whether the service has previously been started.
      */
@@ -49,10 +128,69 @@ public class RDCService extends Service {
     private Map<EndpointDetails, Middleware> middlewaresByEndpoint;
 
     /**
-     * Map of endpoints by the middleware instances at which they are present. Used
-     * for efficient updating and removal of entries.
+     * Map of endpoints by the middleware instances at which they are present, each
+     * indexed by endpoint identifier. Used for efficient updating and removal of entries.
+     */
+    private Map<Middleware, Map<Long, EndpointDetails>> endpointsByMiddleware;
+
+    /**
+     * Map of the version of the entry of each middleware instance. Used to determine
+     * whether a delta update may be applied to an entry.
+     */
+    private Map<Middleware, Long> versionsByMiddleware;
+
+    /**
+     * Inverted index of the endpoints known present at any middleware instance, by tag,
+     * polarity and schema. Used to narrow the endpoints a discovery query is run over.
+     */
+    private EndpointIndex index;
+
+    /**
+     * Map of middleware instances by their universally unique identifiers. Used for
+     * renewing the leases of entries without resending their details.
+     */
+    private Map<Long, Middleware> middlewaresByUuid;
+
+    /**
+     * Timing wheel tracking the lease expiry of each entry, by middleware identifier.
+     */
+    private TimingWheel<Long> leases;
+
+    /**
+     * Generation of the database, incremented on every change to its content. This is
+     * reported to middlewares so that they may invalidate cached discovery results. It
+     * is seeded from the wall clock at start, so that a restarted RDC never reports a
+     * generation observed from an earlier run.
      */
-    private Map<Middleware, List<EndpointDetails>> endpointsByMiddleware;
+    private volatile long generation;
+
+    /**
+     * The most recent changes to the database, oldest first.
+     */
+    private Deque<Change> changes;
+
+    /**
+     * The generation last pushed to the registered middleware instances. This is only
+     * accessed from the push executor.
+     */
+    private long pushedGeneration;
+
+    /**
+     * Indicates whether changes to the database should be pushed to all registered
+     * middleware instances, rather than only reported in responses.
+     */
+    private volatile boolean pushInvalidations;
+
+    /**
+     * Indicates that a push of the current generation is waiting to be sent. Used to
+     * coalesce bursts of changes into a single push.
+     */
+    private AtomicBoolean pushPending;
+
+    /**
+     * Executor for pushing invalidations in the background.
+     */
+    private ExecutorService pushExecutor;
 
 
     /**
@@ -79,6 +217,26 @@ public class RDCService extends Service {
         lock = new ReentrantReadWriteLock();
         middlewaresByEndpoint = new HashMap<>();
         endpointsByMiddleware = new HashMap<>();
+        versionsByMiddleware = new HashMap<>();
+        index = new EndpointIndex();
+        middlewaresByUuid = new HashMap<>();
+        leases = new TimingWheel<>(LEASE_TICK_MILLIS, LEASE_WHEEL_SIZE,
+                                   SystemClock.elapsedRealtime());
+
+        generation = System.currentTimeMillis() << GENERATION_EPOCH_SHIFT;
+        changes = new ArrayDeque<>();
+        pushedGeneration = generation;
+
+        pushPending = new AtomicBoolean();
+        pushExecutor = Executors.newSingleThreadExecutor();
+
+        // Set up the lease expiry ticker.
+        ScheduledExecutorService expiryScheduler = Executors.newSingleThreadScheduledExecutor();
+        expiryScheduler.scheduleWithFixedDelay(
+                this::expire,
+                LEASE_TICK_MILLIS,
+                LEASE_TICK_MILLIS,
+                TimeUnit.MILLISECONDS);
 
         Log.i(getTag(), "RDC started successfully.");
         started = true;
@@ -127,9 +285,11 @@ public class RDCService extends Service {
                 .setMatches(Query.MATCH_INDEFINITELY)
                 .build();
 
-        // Find all matching locations using a stream.
-        List<Middleware> middlewares = StreamSupport.stream(middlewaresByEndpoint.keySet())
-                .filter(modifiedQuery.getFilter())
+        // Find all matching locations using a stream, running the compiled query only
+        // over the candidates having the tags, polarity and schema it requires.
+        CompiledQuery compiled = CompiledQuery.of(modifiedQuery);
+        List<Middleware> middlewares = StreamSupport.stream(index.candidates(modifiedQuery))
+                .filter(compiled::matches)
                 .map(middlewaresByEndpoint::get)
                 .distinct()
                 .collect(Collectors.toList());
@@ -144,9 +304,16 @@ public class RDCService extends Service {
      * Update the middleware instance record for the given location in the RDC state.
      *
      * @param middleware Middleware instance indexing the record to update.
+     * @param version Version of the record described by the details.
      * @param details New list of endpoints exposed by that middleware instance.
+     * @param renews Whether the middleware instance renews the lease on its record.
+     *               Records of instances which do not are never expired.
+     *
+     * @return the duration in milliseconds of the lease granted on the record, or zero
+     *         if no lease was granted.
      */
-    public void update(Middleware middleware, List<EndpointDetails> details) {
+    public long update(Middleware middleware, long version, List<EndpointDetails> details,
+                       boolean renews) {
         Log.i(getTag(), "Updating location " + middleware + " " +
                 "with " + details.size() + " exposed endpoint(s).");
 
@@ -157,16 +324,303 @@ public class RDCService extends Service {
         removeQuiet(middleware);
 
         // Repopulate the database with the new details.
-        List<EndpointDetails> nonNullDetails = StreamSupport.stream(details)
-                .filter(Objects::nonNull)
-                .collect(Collectors.toList());
-        endpointsByMiddleware.put(middleware, nonNullDetails);
-        for (EndpointDetails endpoint : nonNullDetails) {
+        Map<Long, EndpointDetails> endpoints = new LinkedHashMap<>();
+        for (EndpointDetails endpoint : details) {
+            if (endpoint != null) {
+                endpoints.put(endpoint.getEndpointId(), endpoint);
+            }
+        }
+        endpointsByMiddleware.put(middleware, endpoints);
+        versionsByMiddleware.put(middleware, version);
+        for (EndpointDetails endpoint : endpoints.values()) {
             middlewaresByEndpoint.put(endpoint, middleware);
+            index.add(endpoint);
+        }
+
+        changed(endpoints.values());
+
+        middlewaresByUuid.put(middleware.getUUID(), middleware);
+        if (!renews) {
+            // The middleware predates leases; keep its record until it is removed
+            // or replaced, as before.
+            lock.writeLock().unlock();
+            return 0;
         }
 
+        // Grant a lease on the new record.
+        leases.schedule(middleware.getUUID(), LEASE_MILLIS, SystemClock.elapsedRealtime());
+
         // Release the database write lock.
         lock.writeLock().unlock();
+
+        return LEASE_MILLIS;
+    }
+
+    /**
+     * Apply a delta to the middleware instance record for the given location in the
+     * RDC state. Only the endpoints named in the delta are touched.
+     *
+     * @param middleware Middleware instance indexing the record to update.
+     * @param baseVersion Version of the record against which the delta was computed.
+     * @param version Version of the record after the delta is applied.
+     * @param upserts Details of the endpoints added or changed since the base version.
+     * @param removals Identifiers of the endpoints removed since the base version.
+     *
+     * @return the duration in milliseconds of the lease granted on the record, or zero
+     *         if the version of the record held does not match the base version, in
+     *         which case the delta was not applied.
+     */
+    public long applyDelta(Middleware middleware, long baseVersion, long version,
+                           List<EndpointDetails> upserts, List<Long> removals) {
+        // Acquire the database write lock.
+        lock.writeLock().lock();
+
+        try {
+            Map<Long, EndpointDetails> endpoints = endpointsByMiddleware.get(middleware);
+            Long heldVersion = versionsByMiddleware.get(middleware);
+            if (endpoints == null || heldVersion == null || heldVersion != baseVersion) {
+                // The versions have diverged; the middleware must resynchronise
+                // with a full update.
+                Log.i(getTag(), "Rejecting delta for location " + middleware + " " +
+                        "against version " + baseVersion + " (held " + heldVersion + ")");
+                return 0;
+            }
+
+            Log.i(getTag(), "Applying delta to location " + middleware + " " +
+                    "with " + upserts.size() + " upsert(s) and " +
+                    removals.size() + " removal(s).");
+
+            List<EndpointDetails> touched = new ArrayList<>();
+            for (Long endpointId : removals) {
+                EndpointDetails removed = endpoints.remove(endpointId);
+                unindex(removed);
+                if (removed != null) {
+                    touched.add(removed);
+                }
+            }
+
+            for (EndpointDetails endpoint : upserts) {
+                if (endpoint == null) {
+                    continue;
+                }
+
+                // Replace any prior details of the endpoint.
+                EndpointDetails replaced = endpoints.put(endpoint.getEndpointId(), endpoint);
+                unindex(replaced);
+                if (replaced != null) {
+                    touched.add(replaced);
+                }
+                middlewaresByEndpoint.put(endpoint, middleware);
+                index.add(endpoint);
+                touched.add(endpoint);
+            }
+            versionsByMiddleware.put(middleware, version);
+            changed(touched);
+
+            // Renew the lease on the record.
+            leases.schedule(middleware.getUUID(), LEASE_MILLIS, SystemClock.elapsedRealtime());
+            return LEASE_MILLIS;
+        } finally {
+            // Release the database write lock.
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the current generation of the database.
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Get the tags of the endpoints changed between two generations of the database.
+     * A query whose result may have changed between the generations includes at
+     * least one of these tags, or no tags at all.
+     *
+     * @param since The earlier generation.
+     * @param until The later generation, no newer than the current generation.
+     *
+     * @return a list of the changed tags, or null if the changes are not known, as
+     *         the earlier generation is too old or from an earlier run of the RDC.
+     */
+    public List<String> getChangedTags(long since, long until) {
+        // Acquire the database read lock.
+        lock.readLock().lock();
+
+        try {
+            if (since > until) {
+                return null;
+            }
+
+            Set<String> tags = new HashSet<>();
+            long covered = until;
+            Iterator<Change> iterator = changes.descendingIterator();
+            while (covered > since && iterator.hasNext()) {
+                Change change = iterator.next();
+                if (change.generation > until) {
+                    continue;
+                }
+                tags.addAll(change.tags);
+                covered = change.generation - 1;
+            }
+
+            // Every change after the earlier generation must have been retained.
+            return (covered == since) ? new ArrayList<>(tags) : null;
+        } finally {
+            // Release the database read lock.
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Set whether changes to the database should be pushed to all registered
+     * middleware instances, so that they invalidate cached discovery results
+     * immediately rather than at their next lease renewal.
+     */
+    public void setPushInvalidations(boolean pushInvalidations) {
+        Log.i(getTag(), "RDC invalidation push set " + pushInvalidations);
+        this.pushInvalidations = pushInvalidations;
+    }
+
+    /**
+     * Advance the generation of the database after a change to its content, and push
+     * the change if enabled. This must be called with the database write lock held.
+     *
+     * @param endpoints The endpoints added, changed or removed.
+     */
+    private void changed(Collection<EndpointDetails> endpoints) {
+        generation++;
+
+        // Record the tags of the changed endpoints.
+        Set<String> tags = new HashSet<>();
+        for (EndpointDetails endpoint : endpoints) {
+            tags.addAll(endpoint.getTags());
+        }
+        changes.addLast(new Change(generation, tags));
+        if (changes.size() > CHANGE_LOG_SIZE) {
+            changes.removeFirst();
+        }
+
+        if (pushInvalidations && pushPending.compareAndSet(false, true)) {
+            pushExecutor.execute(this::pushInvalidation);
+        }
+    }
+
+    /**
+     * Send an INVALIDATE control message with the current generation to every
+     * registered middleware instance.
+     */
+    private void pushInvalidation() {
+        // Allow later changes to schedule another push.
+        pushPending.set(false);
+
+        // Take a snapshot of the registered middleware instances.
+        List<Middleware> middlewares;
+        long current;
+        lock.readLock().lock();
+        try {
+            middlewares = new ArrayList<>(middlewaresByUuid.values());
+            current = generation;
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        // Report the tags changed since the last push, so that middlewares which
+        // observed it need only invalidate the results depending on them.
+        long since = pushedGeneration;
+        pushedGeneration = current;
+
+        // Send the message to every middleware at once, rather than waiting for
+        // each to respond in turn.
+        InvalidateControlMessage message = new InvalidateControlMessage(
+                since, current, getChangedTags(since, current));
+        Map<Middleware, CompletableFuture<?>> responses = new HashMap<>();
+        for (Middleware middleware : middlewares) {
+            try {
+                RequestStream stream = requestSwitch.getStream(
+                        middleware.getRequestLocation().priorityAddress());
+                responses.put(middleware,
+                              message.getResponseAsync(stream, INVALIDATE_TIMEOUT_MILLIS));
+            } catch (NoValidAddressException e) {
+                Log.w(getTag(), "No valid address to push invalidation to " + middleware);
+            }
+        }
+
+        // Wait for the acknowledgements, so that pushes are not sent faster than
+        // they are delivered.
+        for (Map.Entry<Middleware, CompletableFuture<?>> entry : responses.entrySet()) {
+            try {
+                entry.getValue().get();
+            } catch (ExecutionException e) {
+                Log.w(getTag(), "Failed to push invalidation to " + entry.getKey() +
+                        ": " + e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Remove the given endpoint from the discovery maps, if not null. This must be
+     * called with the database write lock held.
+     */
+    private void unindex(EndpointDetails endpoint) {
+        if (endpoint != null) {
+            middlewaresByEndpoint.remove(endpoint);
+            index.remove(endpoint);
+        }
+    }
+
+    /**
+     * Renew the lease on the middleware instance record with the given identifier.
+     *
+     * @param uuid Universally unique identifier of the middleware instance.
+     *
+     * @return the duration in milliseconds of the renewed lease, or zero if there is
+     *         no record for the middleware instance.
+     */
+    public long renew(long uuid) {
+        // Acquire the database write lock.
+        lock.writeLock().lock();
+
+        try {
+            if (!middlewaresByUuid.containsKey(uuid)) {
+                // The record has expired, or was never made; the middleware
+                // must send its full details in an update.
+                Log.d(getTag(), "Lease renewal for unknown middleware [" + uuid + "]");
+                return 0;
+            }
+
+            leases.schedule(uuid, LEASE_MILLIS, SystemClock.elapsedRealtime());
+            return LEASE_MILLIS;
+        } finally {
+            // Release the database write lock.
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove the records of all middleware instances whose leases have expired.
+     * Called on each tick of the lease expiry wheel.
+     */
+    private void expire() {
+        // Acquire the database write lock.
+        lock.writeLock().lock();
+
+        try {
+            for (long uuid : leases.advance(SystemClock.elapsedRealtime())) {
+                Middleware middleware = middlewaresByUuid.get(uuid);
+                if (middleware != null) {
+                    Log.i(getTag(), "Lease expired for location " + middleware);
+                    removeQuiet(middleware);
+                }
+            }
+        } finally {
+            // Release the database write lock.
+            lock.writeLock().unlock();
+        }
     }
 
     /**
@@ -186,8 +640,11 @@ public class RDCService extends Service {
         // Acquire the database write lock.
         lock.writeLock().lock();
 
-        // Remove the endpoints list from the database.
-        List<EndpointDetails> details = endpointsByMiddleware.remove(middleware);
+        // Remove the endpoints, version and lease from the database.
+        Map<Long, EndpointDetails> details = endpointsByMiddleware.remove(middleware);
+        versionsByMiddleware.remove(middleware);
+        middlewaresByUuid.remove(middleware.getUUID());
+        leases.cancel(middleware.getUUID());
 
         if (details == null) {
             // The location was not present in the map. Release the database
@@ -196,11 +653,13 @@ public class RDCService extends Service {
             return;
         }
 
-        for (EndpointDetails endpoint : details) {
-            // We never put null values into endpointsByMiddleware lists in update
+        for (EndpointDetails endpoint : details.values()) {
+            // We never put null values into endpointsByMiddleware maps in update
             // so we can skip a null check here.
             middlewaresByEndpoint.remove(endpoint);
+            index.remove(endpoint);
         }
+        changed(details.values());
 
         // Release the database write lock.
         lock.writeLock().unlock();
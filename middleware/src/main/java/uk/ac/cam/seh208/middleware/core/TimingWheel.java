@@ -0,0 +1,204 @@
+package uk.ac.cam.seh208.middleware.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Hashed timing wheel tracking a deadline for each of a set of keys.
+ *
+ * Time is divided into ticks of a fixed length, and each key is held in the slot of the
+ * wheel given by its deadline tick modulo the wheel size. Advancing the wheel visits only
+ * the slots of the elapsed ticks, so the cost of expiry is proportional to the number of
+ * keys in those slots rather than the number of keys tracked. Deadlines beyond one
+ * revolution of the wheel are simply revisited each time their slot comes round.
+ *
+ * Extending a deadline is O(1): the key is left in its current slot, and moved to the
+ * slot of its new deadline only when its current slot is visited.
+ *
+ * Time is supplied by the caller in milliseconds from an arbitrary monotonic origin. The
+ * wheel is not thread-safe; its owner must serialise access.
+ */
+public class TimingWheel<K> {
+
+    /**
+     * A tracked key, and its deadline.
+     */
+    private static final class Node<K> {
+
+        private final K key;
+
+        /**
+         * The tick at or after which the key expires.
+         */
+        private long deadline;
+
+        /**
+         * The tick of the slot currently holding this node.
+         */
+        private long slotted;
+
+
+        private Node(K key) {
+            this.key = key;
+        }
+    }
+
+
+    /**
+     * Length of a single tick in milliseconds.
+     */
+    private final long tickMillis;
+
+    /**
+     * Slots of the wheel, each listing the nodes held there. A node may remain in
+     * a slot after its key is cancelled or rescheduled; such stale nodes are
+     * discarded when the slot is next visited.
+     */
+    private final List<List<Node<K>>> slots;
+
+    /**
+     * Bit mask reducing a tick to a slot index.
+     */
+    private final int mask;
+
+    /**
+     * Current node of each tracked key.
+     */
+    private final Map<K, Node<K>> nodes;
+
+    /**
+     * The most recent tick to which the wheel has been advanced.
+     */
+    private long tick;
+
+
+    /**
+     * Construct a new, empty timing wheel.
+     *
+     * @param tickMillis Length of a single tick in milliseconds.
+     * @param size Number of slots in the wheel. This is rounded up to a power of two.
+     * @param now The current time in milliseconds.
+     */
+    public TimingWheel(long tickMillis, int size, long now) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("Tick length must be positive.");
+        }
+
+        int count = 1;
+        while (count < size) {
+            count <<= 1;
+        }
+
+        this.tickMillis = tickMillis;
+        slots = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            slots.add(new ArrayList<>());
+        }
+        mask = count - 1;
+        nodes = new HashMap<>();
+        tick = now / tickMillis;
+    }
+
+    /**
+     * Set the deadline of a key, tracking it if not already tracked.
+     *
+     * @param key The key to schedule.
+     * @param timeoutMillis Time in milliseconds from now after which the key expires.
+     * @param now The current time in milliseconds.
+     */
+    public void schedule(K key, long timeoutMillis, long now) {
+        // Round the deadline up to a whole tick, so that keys never expire early.
+        long deadline = Math.max((now + timeoutMillis + tickMillis - 1) / tickMillis, tick + 1);
+
+        Node<K> node = nodes.get(key);
+        if (node != null && node.slotted <= deadline) {
+            // The existing node will be visited no later than its new deadline, at
+            // which point it will be moved if necessary.
+            node.deadline = deadline;
+            return;
+        }
+
+        // The key is either new, or its deadline has been brought forward. In the
+        // latter case, the old node is left as stale in its slot.
+        node = new Node<>(key);
+        node.deadline = deadline;
+        nodes.put(key, node);
+        insert(node, deadline);
+    }
+
+    /**
+     * Stop tracking a key.
+     *
+     * @return whether the key was being tracked.
+     */
+    public boolean cancel(K key) {
+        return nodes.remove(key) != null;
+    }
+
+    /**
+     * @return whether the key is being tracked.
+     */
+    public boolean contains(K key) {
+        return nodes.containsKey(key);
+    }
+
+    /**
+     * @return the number of keys being tracked.
+     */
+    public int size() {
+        return nodes.size();
+    }
+
+    /**
+     * Advance the wheel to the given time, removing every key whose deadline has passed.
+     *
+     * @param now The current time in milliseconds.
+     *
+     * @return a newly constructed list of the expired keys.
+     */
+    public List<K> advance(long now) {
+        List<K> expired = new ArrayList<>();
+        long target = now / tickMillis;
+
+        // Visit each slot for the elapsed ticks, but no slot more than once if
+        // more than a full revolution has elapsed.
+        long steps = Math.min(target - tick, slots.size());
+        for (long i = 1; i <= steps; i++) {
+            int index = (int) ((tick + i) & mask);
+            List<Node<K>> slot = slots.get(index);
+            if (slot.isEmpty()) {
+                continue;
+            }
+
+            // Replace the slot before visiting its nodes, as unexpired nodes may be
+            // inserted back into it.
+            slots.set(index, new ArrayList<>());
+            for (Node<K> node : slot) {
+                if (nodes.get(node.key) != node) {
+                    // The key was cancelled or rescheduled; drop the stale node.
+                    continue;
+                }
+
+                if (node.deadline <= target) {
+                    nodes.remove(node.key);
+                    expired.add(node.key);
+                } else {
+                    insert(node, node.deadline);
+                }
+            }
+        }
+
+        if (target > tick) {
+            tick = target;
+        }
+        return expired;
+    }
+
+    private void insert(Node<K> node, long deadline) {
+        node.slotted = deadline;
+        slots.get((int) (deadline & mask)).add(node);
+    }
+}
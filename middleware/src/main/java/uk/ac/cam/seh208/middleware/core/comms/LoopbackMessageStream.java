@@ -0,0 +1,107 @@
+package uk.ac.cam.seh208.middleware.core.comms;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+
+/**
+ * In-process implementor of the message stream interface, for links between
+ * endpoints residing on the same instance of the middleware.
+ *
+ * Sent messages are handed directly to the listeners of the stream on the sending
+ * thread, without serialisation through a socket, so messages from each sender are
+ * received in the order they were sent. Frames are passed by reference, and must
+ * not be modified after sending. Once the stream is closed, messages are dropped.
+ */
+public class LoopbackMessageStream extends MessageStream {
+
+    /**
+     * Collection of listeners used to respond to messages. This is copy-on-write,
+     * so that delivery does not hold a lock while running the listeners.
+     */
+    private final List<MessageListener> listeners;
+
+
+    public LoopbackMessageStream() {
+        listeners = new CopyOnWriteArrayList<>();
+    }
+
+    @Override
+    public void send(String message) {
+        onMessage(message);
+    }
+
+    @Override
+    public void send(byte[] header, byte[] payload) {
+        onMessage(header, payload);
+    }
+
+    /**
+     * Loopback streams always support framed messages, as both ends run the
+     * same implementation.
+     */
+    @Override
+    public boolean isFramingSupported() {
+        return true;
+    }
+
+    @Override
+    public void registerListener(MessageListener listener) {
+        // Don't allow registering of listeners after the stream has closed.
+        if (isClosed()) {
+            return;
+        }
+
+        // Don't let the object listen to itself; this would create a feedback loop.
+        if (listener == this) {
+            return;
+        }
+
+        listeners.add(listener);
+    }
+
+    @Override
+    public void unregisterListener(MessageListener listener) {
+        listeners.remove(listener);
+    }
+
+    @Override
+    public void clearListeners() {
+        listeners.clear();
+    }
+
+    /**
+     * Dispatch a sent message to all currently registered listeners.
+     *
+     * @param message The newly sent string message.
+     */
+    @Override
+    public void onMessage(String message) {
+        // If we are closed, all messages should be dropped.
+        if (isClosed()) {
+            return;
+        }
+
+        for (MessageListener listener : listeners) {
+            listener.onMessage(message);
+        }
+    }
+
+    /**
+     * Dispatch a sent framed message to all currently registered listeners.
+     *
+     * @param header The raw header frame.
+     * @param payload The raw payload frame.
+     */
+    @Override
+    public void onMessage(byte[] header, byte[] payload) {
+        // If we are closed, all messages should be dropped.
+        if (isClosed()) {
+            return;
+        }
+
+        for (MessageListener listener : listeners) {
+            listener.onMessage(header, payload);
+        }
+    }
+}
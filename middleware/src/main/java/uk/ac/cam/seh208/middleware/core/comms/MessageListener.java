@@ -3,4 +3,14 @@ package uk.ac.cam.seh208.middleware.core.comms;
 
 public interface MessageListener {
     void onMessage(String message);
+
+    /**
+     * Handle a framed message, consisting of a header frame and a payload frame.
+     * Framed messages are only sent by peers that negotiated support for them,
+     * so listeners which are not used for framed traffic may ignore them.
+     *
+     * @param header The raw header frame.
+     * @param payload The raw payload frame.
+     */
+    default void onMessage(byte[] header, byte[] payload) { }
 }
@@ -24,6 +24,24 @@ public abstract class MessageStream extends CloseableSubject<MessageStream>
      */
     public abstract void send(String message) throws ConnectionFailedException;
 
+    /**
+     * Queue a framed message, consisting of a header frame and a payload frame, to be
+     * sent from the socket asynchronously. The frames are delivered atomically, and
+     * passed to the remote listeners separately.
+     *
+     * This must only be called when isFramingSupported returns true.
+     *
+     * @param header Complete header frame to send over the socket.
+     * @param payload Complete payload frame to send over the socket.
+     */
+    public abstract void send(byte[] header, byte[] payload) throws ConnectionFailedException;
+
+    /**
+     * @return whether the remote end of the stream has negotiated support for
+     *         framed messages.
+     */
+    public abstract boolean isFramingSupported();
+
     /**
      * Register a listener to be run on receipt of a new message.
      *
@@ -0,0 +1,291 @@
+package uk.ac.cam.seh208.middleware.core.comms;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Bounded queue of outbound messages, fed by any number of sending threads and
+ * drained by a single consumer thread responsible for the underlying socket.
+ *
+ * The queue is lock-free on the sending path. When the queue is full, producers
+ * behave according to the configured overflow policy; under the BLOCK policy, they
+ * wait until the consumer signals that it has made space, or the queue is closed.
+ *
+ * Queue depth and enqueue latency are recorded for monitoring.
+ *
+ * @param <E> Type of the queued messages.
+ */
+public class OutboundQueue<E> {
+
+    /**
+     * Underlying lock-free buffer of messages.
+     */
+    private final RingBuffer<E> buffer;
+
+    /**
+     * Behaviour of producers when the buffer is full.
+     */
+    private final OverflowPolicy policy;
+
+    /**
+     * Monitor on which producers blocked by a full queue wait for space.
+     */
+    private final Object spaceLock;
+
+    /**
+     * Number of producers waiting for space. Guarded by the space lock.
+     */
+    private int waitingProducers;
+
+    /**
+     * Indicates that producers are waiting for space, so that the consumer need
+     * only take the space lock when there is someone to signal.
+     */
+    private volatile boolean producersWaiting;
+
+    /**
+     * Indicates that the queue no longer accepts messages.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Greatest depth of the queue observed after an enqueue.
+     */
+    private final AtomicInteger maxDepth;
+
+    /**
+     * Number of messages accepted by the queue.
+     */
+    private final AtomicLong enqueued;
+
+    /**
+     * Number of messages discarded under the DROP_OLDEST or DROP_NEWEST policy.
+     */
+    private final AtomicLong dropped;
+
+    /**
+     * Number of messages rejected under the FAIL_FAST policy.
+     */
+    private final AtomicLong rejected;
+
+    /**
+     * Total time spent by producers enqueueing messages, in nanoseconds.
+     */
+    private final AtomicLong enqueueNanos;
+
+    /**
+     * Greatest time spent by a producer enqueueing a single message, in nanoseconds.
+     */
+    private final AtomicLong maxEnqueueNanos;
+
+
+    /**
+     * Construct a new empty queue.
+     *
+     * @param capacity Minimum number of messages the queue must hold.
+     * @param policy Behaviour of producers when the queue is full.
+     */
+    public OutboundQueue(int capacity, OverflowPolicy policy) {
+        buffer = new RingBuffer<>(capacity);
+        this.policy = policy;
+        spaceLock = new Object();
+        maxDepth = new AtomicInteger();
+        enqueued = new AtomicLong();
+        dropped = new AtomicLong();
+        rejected = new AtomicLong();
+        enqueueNanos = new AtomicLong();
+        maxEnqueueNanos = new AtomicLong();
+    }
+
+    /**
+     * Enqueue a message, following the overflow policy if the queue is full.
+     *
+     * @param message Message to enqueue; must not be null.
+     *
+     * @return whether the message was enqueued. This is false if the queue is
+     *         closed, if the message was rejected under the FAIL_FAST policy or
+     *         discarded under the DROP_NEWEST policy, or
+     *         if the producer was interrupted while blocked under the BLOCK policy.
+     */
+    public boolean offer(E message) {
+        if (closed) {
+            return false;
+        }
+
+        long start = System.nanoTime();
+
+        while (!buffer.offer(message)) {
+            if (policy == OverflowPolicy.FAIL_FAST) {
+                rejected.incrementAndGet();
+                return false;
+            }
+
+            if (policy == OverflowPolicy.DROP_NEWEST) {
+                dropped.incrementAndGet();
+                return false;
+            }
+
+            if (policy == OverflowPolicy.DROP_OLDEST) {
+                // Make space by discarding the message at the head.
+                if (buffer.poll() != null) {
+                    dropped.incrementAndGet();
+                }
+                continue;
+            }
+
+            // Block until the consumer makes space, or the queue is closed.
+            if (!awaitSpace(message)) {
+                return false;
+            }
+            break;
+        }
+
+        record(System.nanoTime() - start);
+        return true;
+    }
+
+    /**
+     * Wait for the consumer to make space, and then enqueue the message.
+     *
+     * @return whether the message was enqueued before the queue was closed.
+     */
+    private boolean awaitSpace(E message) {
+        synchronized (spaceLock) {
+            waitingProducers++;
+            producersWaiting = true;
+            try {
+                // Retry after announcing that we are waiting, so that space made
+                // before the announcement is not missed.
+                while (!closed) {
+                    if (buffer.offer(message)) {
+                        return true;
+                    }
+
+                    try {
+                        spaceLock.wait();
+                    } catch (InterruptedException e) {
+                        // Give up on the message, preserving the interrupt.
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+
+                return false;
+            } finally {
+                if (--waitingProducers == 0) {
+                    producersWaiting = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove and return the message at the head of the queue, without blocking.
+     *
+     * @return the removed message, or null if the queue is empty.
+     */
+    public E poll() {
+        return buffer.poll();
+    }
+
+    /**
+     * Wake any producers blocked by a full queue. This should be called by the
+     * consumer after polling, so that they can take the space made.
+     */
+    public void signalSpace() {
+        if (producersWaiting) {
+            synchronized (spaceLock) {
+                spaceLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Stop accepting messages, releasing any blocked producers. Messages already
+     * queued may still be polled.
+     */
+    public void close() {
+        closed = true;
+        synchronized (spaceLock) {
+            spaceLock.notifyAll();
+        }
+    }
+
+    /**
+     * Record the metrics for a successful enqueue.
+     */
+    private void record(long elapsed) {
+        enqueued.incrementAndGet();
+        enqueueNanos.addAndGet(elapsed);
+
+        long max;
+        do {
+            max = maxEnqueueNanos.get();
+        } while (elapsed > max && !maxEnqueueNanos.compareAndSet(max, elapsed));
+
+        int depth = buffer.size();
+        int maxDepth;
+        do {
+            maxDepth = this.maxDepth.get();
+        } while (depth > maxDepth && !this.maxDepth.compareAndSet(maxDepth, depth));
+    }
+
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return the current number of queued messages.
+     */
+    public int getDepth() {
+        return buffer.size();
+    }
+
+    /**
+     * @return the greatest number of queued messages observed.
+     */
+    public int getMaxDepth() {
+        return maxDepth.get();
+    }
+
+    public int getCapacity() {
+        return buffer.capacity();
+    }
+
+    /**
+     * @return the number of messages accepted by the queue.
+     */
+    public long getEnqueuedCount() {
+        return enqueued.get();
+    }
+
+    /**
+     * @return the number of queued messages discarded to make space.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of messages rejected as the queue was full.
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * @return the mean time taken to enqueue a message, in nanoseconds.
+     */
+    public long getMeanEnqueueNanos() {
+        long count = enqueued.get();
+        return (count == 0) ? 0 : enqueueNanos.get() / count;
+    }
+
+    /**
+     * @return the greatest time taken to enqueue a message, in nanoseconds.
+     */
+    public long getMaxEnqueueNanos() {
+        return maxEnqueueNanos.get();
+    }
+}
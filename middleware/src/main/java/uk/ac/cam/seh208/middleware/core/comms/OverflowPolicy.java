@@ -0,0 +1,28 @@
+package uk.ac.cam.seh208.middleware.core.comms;
+
+
+/**
+ * Enumeration of behaviours for when a message is sent to a stream whose
+ * outbound queue is full.
+ */
+public enum OverflowPolicy {
+    /**
+     * Block the sending thread until space is available, or the stream closes.
+     */
+    BLOCK,
+
+    /**
+     * Discard the oldest queued message to make space for the new one.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Discard the new message, without signalling the sender.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Reject the new message immediately, signalling the sender.
+     */
+    FAIL_FAST
+}
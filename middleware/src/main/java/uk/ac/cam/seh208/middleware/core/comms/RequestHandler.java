@@ -15,4 +15,26 @@ public interface RequestHandler {
      * @return the response to the request.
      */
     String respond(String request);
+
+    /**
+     * Classify a request without handling it, so that the invoker may schedule and
+     * account for requests of each type separately. This should be cheap, as it is
+     * invoked before the request is queued.
+     *
+     * @return the type of the request, or the empty string if it is not known.
+     */
+    default String getType(String request) {
+        return "";
+    }
+
+    /**
+     * Indicate whether requests of the given type may take a long time to handle
+     * (for example, by making further blocking requests), and so should be handled
+     * separately from the others.
+     *
+     * @return whether requests of the type are long-running.
+     */
+    default boolean isLongRunning(String type) {
+        return false;
+    }
 }
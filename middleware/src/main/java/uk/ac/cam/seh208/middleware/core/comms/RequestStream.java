@@ -1,5 +1,6 @@
 package uk.ac.cam.seh208.middleware.core.comms;
 
+import java8.util.concurrent.CompletableFuture;
 import uk.ac.cam.seh208.middleware.core.CloseableSubject;
 
 
@@ -19,4 +20,33 @@ public abstract class RequestStream extends CloseableSubject<RequestStream> {
      * @return the response string, or null in the case of an error.
      */
     public abstract String request(String request);
+
+    /**
+     * Send a request message to the remote host, blocking until a response is
+     * received or the given timeout elapses. Should the stream be closed, the
+     * remote host respond with an error, or the timeout elapse, null is returned.
+     *
+     * @param request String request to send to the remote middleware instance.
+     * @param timeoutMillis Time (in milliseconds) to wait for the response.
+     *
+     * @return the response string, or null in the case of an error.
+     */
+    public abstract String request(String request, long timeoutMillis);
+
+    /**
+     * Send a request message to the remote host without waiting for the response.
+     * Any number of requests may be outstanding at once, and their responses may
+     * arrive in any order.
+     *
+     * The returned future may be completed on an I/O thread, so dependent actions
+     * should not block.
+     *
+     * @param request String request to send to the remote middleware instance.
+     * @param timeoutMillis Time (in milliseconds) to wait for the response.
+     *
+     * @return a future completed with the response string, or exceptionally with a
+     *         RequestFailedException (or RequestTimeoutException, should the
+     *         timeout elapse) in the case of an error.
+     */
+    public abstract CompletableFuture<String> requestAsync(String request, long timeoutMillis);
 }
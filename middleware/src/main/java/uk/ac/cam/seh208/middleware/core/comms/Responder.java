@@ -71,4 +71,34 @@ public class Responder {
         // responder at once.
         return handler.respond(request);
     }
+
+    /**
+     * Classify a request using the current handler, without waiting for a handler
+     * to be set.
+     *
+     * @return the type of the request, or the empty string if it is not known.
+     */
+    public String getType(String request) {
+        RequestHandler handler;
+        synchronized (this) {
+            handler = this.handler;
+        }
+
+        return (handler != null) ? handler.getType(request) : "";
+    }
+
+    /**
+     * Indicate whether requests of the given type are long-running according to the
+     * current handler, without waiting for a handler to be set.
+     *
+     * @return whether requests of the type are long-running.
+     */
+    public boolean isLongRunning(String type) {
+        RequestHandler handler;
+        synchronized (this) {
+            handler = this.handler;
+        }
+
+        return handler != null && handler.isLongRunning(type);
+    }
 }
@@ -0,0 +1,163 @@
+package uk.ac.cam.seh208.middleware.core.comms;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * Bounded, lock-free, array-backed FIFO queue.
+ *
+ * Each slot carries a sequence number indicating whether it is ready to be written
+ * or read at a given position, so producers and consumers claim positions with a
+ * single compare-and-set, and never block one another. Any number of threads may
+ * offer and poll concurrently, although the queue is designed for many producers
+ * feeding a single consumer.
+ *
+ * @param <E> Type of the queued elements.
+ */
+public class RingBuffer<E> {
+
+    /**
+     * Mask mapping positions to slot indices; the capacity is a power of two.
+     */
+    private final int mask;
+
+    /**
+     * Slots holding the queued elements.
+     */
+    private final AtomicReferenceArray<E> elements;
+
+    /**
+     * Sequence number of each slot. A slot may be written at position p when its
+     * sequence is p, and read at position p when its sequence is p + 1.
+     */
+    private final AtomicLongArray sequences;
+
+    /**
+     * Position of the next element to be read.
+     */
+    private final AtomicLong head;
+
+    /**
+     * Position of the next element to be written.
+     */
+    private final AtomicLong tail;
+
+
+    /**
+     * Construct a new empty ring buffer.
+     *
+     * @param capacity Minimum number of elements the buffer must hold. This is
+     *                 rounded up to the next power of two, and at least two.
+     */
+    public RingBuffer(int capacity) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Invalid ring buffer capacity.");
+        }
+
+        // At least two slots are required, as a published slot and a free slot
+        // in the next lap would otherwise share a sequence number.
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        size = Math.max(size, 2);
+
+        mask = size - 1;
+        elements = new AtomicReferenceArray<>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        head = new AtomicLong();
+        tail = new AtomicLong();
+    }
+
+    /**
+     * Append an element to the tail of the buffer, if there is space.
+     *
+     * @param element Element to append; must not be null.
+     *
+     * @return whether the element was appended.
+     */
+    public boolean offer(E element) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+
+            if (difference == 0) {
+                // The slot is free; attempt to claim the position.
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements.lazySet(index, element);
+
+                    // Publish the element to consumers.
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                // The slot is still occupied from the previous lap; we are full.
+                return false;
+            } else {
+                // Another producer claimed the position first.
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Remove and return the element at the head of the buffer.
+     *
+     * @return the removed element, or null if the buffer is empty.
+     */
+    public E poll() {
+        long position = head.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - (position + 1);
+
+            if (difference == 0) {
+                // The slot is published; attempt to claim the position.
+                if (head.compareAndSet(position, position + 1)) {
+                    E element = elements.get(index);
+                    elements.lazySet(index, null);
+
+                    // Free the slot for the next lap of producers.
+                    sequences.set(index, position + mask + 1);
+                    return element;
+                }
+                position = head.get();
+            } else if (difference < 0) {
+                // The slot has not been published; we are empty.
+                return null;
+            } else {
+                // Another consumer claimed the position first.
+                position = head.get();
+            }
+        }
+    }
+
+    /**
+     * @return an estimate of the number of elements in the buffer.
+     */
+    public int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, capacity()));
+    }
+
+    /**
+     * @return whether the buffer is (approximately) empty.
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return the number of elements the buffer can hold.
+     */
+    public int capacity() {
+        return mask + 1;
+    }
+}
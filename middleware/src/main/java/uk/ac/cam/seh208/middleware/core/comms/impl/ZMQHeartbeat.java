@@ -0,0 +1,57 @@
+package uk.ac.cam.seh208.middleware.core.comms.impl;
+
+import org.zeromq.ZMQ;
+
+
+/**
+ * Wire format of the Harmony heartbeat messages.
+ *
+ * A heartbeat is sent as an empty frame followed by a single-byte frame giving its
+ * type. The empty first frame distinguishes it from a framed message, whose header
+ * frame is never empty, and the trailing frame distinguishes it from a FIN message.
+ * Heartbeats are only sent to peers advertising the heartbeat wire version, as older
+ * peers would take them for framed messages.
+ */
+final class ZMQHeartbeat {
+
+    /**
+     * Heartbeat requesting a PONG from the peer.
+     */
+    static final byte PING = 1;
+
+    /**
+     * Heartbeat sent in reply to a PING.
+     */
+    static final byte PONG = 2;
+
+
+    private ZMQHeartbeat() { }
+
+    /**
+     * Determine whether the frames of a received message form a heartbeat.
+     *
+     * @param data The first frame of the message.
+     * @param extra The trailing frame of the message, or null.
+     *
+     * @return whether the message is a heartbeat.
+     */
+    static boolean isHeartbeat(byte[] data, byte[] extra) {
+        return data.length == 0 && extra != null && extra.length == 1;
+    }
+
+    /**
+     * Send a heartbeat over the given socket as a multi-part message.
+     *
+     * @param socket Socket over which to send the heartbeat.
+     * @param type The type of the heartbeat; either PING or PONG.
+     *
+     * @return whether the heartbeat was sent without blocking.
+     */
+    static boolean send(ZMQ.Socket socket, byte type) {
+        if (!socket.send(new byte[0], ZMQ.DONTWAIT | ZMQ.SNDMORE)) {
+            return false;
+        }
+        socket.send(new byte[] { type });
+        return true;
+    }
+}
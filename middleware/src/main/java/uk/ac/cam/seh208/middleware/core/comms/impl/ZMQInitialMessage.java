@@ -1,27 +1,107 @@
 package uk.ac.cam.seh208.middleware.core.comms.impl;
 
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
+import org.zeromq.ZMQ;
+
+import java.io.IOException;
+
 import uk.ac.cam.seh208.middleware.common.JSONSerializable;
 import uk.ac.cam.seh208.middleware.core.comms.Location;
 
 
 /**
  * Data object storing a Harmony initial message.
+ *
+ * The initial message is sent as a JSON frame describing the location of the peer,
+ * followed by a single-byte frame containing the wire version supported by the peer.
+ * Peers predating wire version negotiation discard the trailing frame, and send only
+ * the JSON frame; these are treated as supporting the legacy wire version.
  */
 class ZMQInitialMessage implements JSONSerializable {
 
+    /**
+     * Wire version under which all messages are sent as single string frames.
+     */
+    static final int WIRE_VERSION_LEGACY = 0;
+
+    /**
+     * Wire version under which multiplexed messages may be sent as separate
+     * header and payload frames.
+     */
+    static final int WIRE_VERSION_FRAMED = 1;
+
+    /**
+     * Wire version under which heartbeats may additionally be exchanged.
+     */
+    static final int WIRE_VERSION_HEARTBEAT = 2;
+
+    /**
+     * Wire version supported by this implementation.
+     */
+    static final int WIRE_VERSION = WIRE_VERSION_HEARTBEAT;
+
+
     /**
      * Location on which the owning environment is accessible.
      */
     private Location location;
 
+    /**
+     * Wire version supported by the owning environment. This is carried in its own
+     * frame rather than in the JSON, so that older peers can still parse the message.
+     */
+    @JsonIgnore
+    private int wireVersion;
+
 
+    @JsonCreator
     ZMQInitialMessage(@JsonProperty("location") Location location) {
+        this(location, WIRE_VERSION_LEGACY);
+    }
+
+    ZMQInitialMessage(Location location, int wireVersion) {
         this.location = location;
+        this.wireVersion = wireVersion;
+    }
+
+    /**
+     * Parse an initial message from its received frames.
+     *
+     * @param data The JSON frame.
+     * @param version The wire version frame, or null if none was sent.
+     *
+     * @return a newly constructed initial message.
+     *
+     * @throws IOException if the JSON frame is malformed.
+     */
+    static ZMQInitialMessage fromFrames(String data, byte[] version) throws IOException {
+        ZMQInitialMessage message = JSONSerializable.fromJSON(data, ZMQInitialMessage.class);
+
+        if (version != null && version.length == 1) {
+            message.wireVersion = version[0];
+        }
+
+        return message;
+    }
+
+    /**
+     * Send the initial message over the given socket as a multi-part message.
+     *
+     * @param socket Socket over which to send the message.
+     */
+    void send(ZMQ.Socket socket) {
+        socket.sendMore(toJSON());
+        socket.send(new byte[] { (byte) wireVersion });
     }
 
     public Location getLocation() {
         return location;
     }
+
+    int getWireVersion() {
+        return wireVersion;
+    }
 }
@@ -46,11 +46,21 @@ public class ZMQMessageContext implements MessageContext {
      */
     private final ZMQ.Context context;
 
+    /**
+     * Configuration of the context and its streams.
+     */
+    private final ZMQSchemeConfiguration configuration;
+
     /**
      * Port on which the Harmony server is bound.
      */
     private final int port;
 
+    /**
+     * Reactor thread sending messages for all streams of the context.
+     */
+    private final ZMQMessageReactor reactor;
+
     /**
      * Listener thread for the Harmony message context.
      */
@@ -72,6 +82,7 @@ public class ZMQMessageContext implements MessageContext {
      */
     public ZMQMessageContext(Environment environment, ZMQSchemeConfiguration configuration) {
         this.environment = environment;
+        this.configuration = configuration;
         port = configuration.getPort();
 
         // Create a new ZMQ context.
@@ -80,7 +91,9 @@ public class ZMQMessageContext implements MessageContext {
 
         // Set-up the Harmony context.
         messageState = new ZMQMessageState();
-        harmonyServer = ZMQMessageServer.makeThread(environment, context, messageState, port);
+        reactor = new ZMQMessageReactor(environment, context, configuration);
+        harmonyServer = ZMQMessageServer.makeThread(
+                environment, context, reactor, messageState, configuration);
         harmonyServer.start();
     }
 
@@ -159,7 +172,7 @@ public class ZMQMessageContext implements MessageContext {
 
             if (stream == null) {
                 // Instantiate a new stream in Harmony state.
-                stream = new ZMQMessageStream(environment, context, zmqAddress);
+                stream = new ZMQMessageStream(environment, reactor, configuration, zmqAddress);
                 messageState.insertStreamByAddress(zmqAddress, stream);
             }
 
@@ -177,7 +190,10 @@ public class ZMQMessageContext implements MessageContext {
             return;
         }
 
+        // Close all streams, and wait for the reactor to send their FIN
+        // messages and close their sockets before terminating the context.
         messageState.closeAll();
+        reactor.term();
         context.term();
 
         terminated = true;
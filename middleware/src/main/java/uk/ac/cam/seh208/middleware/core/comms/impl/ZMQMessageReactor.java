@@ -0,0 +1,617 @@
+package uk.ac.cam.seh208.middleware.core.comms.impl;
+
+import android.util.Log;
+
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQException;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import uk.ac.cam.seh208.middleware.core.comms.Environment;
+import uk.ac.cam.seh208.middleware.core.comms.OutboundQueue;
+
+
+/**
+ * Single I/O thread responsible for the outbound DEALER sockets of every Harmony
+ * message stream in a context.
+ *
+ * Streams queue outgoing messages and then schedule themselves with the reactor,
+ * which wakes, drains their queues onto their sockets, and returns to waiting on
+ * a ZMQ poller. The poller watches an inproc wake-up socket, along with any DEALER
+ * sockets which could not accept a message without blocking. While any socket is
+ * open and heartbeats are enabled, the poll also times out once per heartbeat
+ * interval; otherwise, the thread is idle unless there is work to do.
+ *
+ * On each heartbeat, a PING is sent to every peer supporting heartbeats, and the
+ * stream of any such peer from which nothing (including a PONG) has been received
+ * within the heartbeat timeout is closed.
+ *
+ * All sockets owned by the reactor are only accessed from the reactor thread. Streams
+ * found dead by the reactor are closed on another thread, as closing a stream notifies
+ * its observers, which may make blocking requests (for example, to restore a mapping)
+ * that would otherwise delay the heartbeats of every other stream.
+ */
+class ZMQMessageReactor implements Runnable {
+
+    /**
+     * State of a single message stream, as tracked by the reactor.
+     */
+    static class Channel {
+
+        /**
+         * The stream whose messages are sent through this channel.
+         */
+        private final ZMQMessageStream stream;
+
+        /**
+         * Indicates that the channel is in the ready queue of the reactor.
+         */
+        private final AtomicBoolean scheduled;
+
+        /**
+         * DEALER socket that sends messages to the remote Harmony server.
+         */
+        private ZMQ.Socket socket;
+
+        /**
+         * Message taken from the stream queue which the socket could not yet accept.
+         */
+        private byte[][] pending;
+
+        /**
+         * Index of the socket in the poller, or -1 if it is not being watched.
+         */
+        private int pollIndex;
+
+        /**
+         * Indicates that the FIN message has been sent and the socket closed.
+         */
+        private boolean finished;
+
+        /**
+         * Indicates that a PING has been received from the peer, which should be
+         * answered with a PONG.
+         */
+        private final AtomicBoolean pongRequested;
+
+        /**
+         * Indicates that the reactor has handed the stream off to be closed.
+         */
+        private boolean closing;
+
+
+        private Channel(ZMQMessageStream stream) {
+            this.stream = stream;
+            scheduled = new AtomicBoolean();
+            pollIndex = -1;
+            pongRequested = new AtomicBoolean();
+        }
+    }
+
+
+    /**
+     * The amount of time (in milliseconds) that the DEALER sockets should remain
+     * open after a close call if they still have messages queueing. This is also
+     * the limit on blocking sends when flushing a closing stream.
+     */
+    private static final int SOCKET_LINGER = 200;
+
+    /**
+     * Maximum number of messages sent from a single stream before moving on to
+     * the next ready stream, so that busy streams cannot starve idle ones.
+     */
+    private static final int MAX_BATCH = 256;
+
+    /**
+     * Message sent to the wake-up socket.
+     */
+    private static final byte[] WAKE_MESSAGE = new byte[0];
+
+    /**
+     * Pool of threads closing the streams found dead by any reactor.
+     */
+    private static final ExecutorService closeExecutor = Executors.newCachedThreadPool(
+            runnable -> {
+                Thread thread = new Thread(runnable, "ReactorClose");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+
+    /**
+     * Counter used to give the wake-up socket of each reactor a unique endpoint.
+     */
+    private static int nextReactorId = 0;
+
+    private static synchronized int getNextReactorId() {
+        return nextReactorId++;
+    }
+
+
+    /**
+     * Reference to the environment owning the streams.
+     */
+    private final Environment environment;
+
+    /**
+     * ZeroMQ context in which to open the DEALER sockets.
+     */
+    private final ZMQ.Context context;
+
+    /**
+     * Port on which the Harmony server of the context is bound.
+     */
+    private final int port;
+
+    /**
+     * Socket written by other threads to wake the reactor.
+     */
+    private final ZMQ.Socket wakeSender;
+
+    /**
+     * Socket watched by the reactor for wake-up messages.
+     */
+    private final ZMQ.Socket wakeReceiver;
+
+    /**
+     * Indicates that a wake-up message is outstanding, so that further
+     * schedulers need not send another.
+     */
+    private final AtomicBoolean signalled;
+
+    /**
+     * Channels with work to be done by the reactor.
+     */
+    private final ConcurrentLinkedQueue<Channel> ready;
+
+    /**
+     * Channels with open sockets, accessed only by the reactor thread.
+     */
+    private final Map<Channel, Channel> open;
+
+    /**
+     * Channels whose sockets are watched by the poller for writability.
+     */
+    private final Map<Channel, Channel> blocked;
+
+    /**
+     * Interval (in nanoseconds) between heartbeats, or zero if heartbeats are disabled.
+     */
+    private final long heartbeatInterval;
+
+    /**
+     * Time (in nanoseconds) without hearing from a peer after which its stream is closed.
+     */
+    private final long heartbeatTimeout;
+
+    /**
+     * The time (in nanoseconds) of the last heartbeat, accessed only by the reactor thread.
+     */
+    private long lastHeartbeat;
+
+    /**
+     * The thread running the reactor.
+     */
+    private final Thread thread;
+
+    /**
+     * Indicates that the reactor should finish the remaining channels and stop.
+     */
+    private volatile boolean terminating;
+
+
+    /**
+     * Create a new reactor and start its thread.
+     *
+     * @param environment Reference to the environment owning the streams.
+     * @param context Context in which to open the sockets.
+     * @param configuration Configuration of the context.
+     */
+    ZMQMessageReactor(Environment environment, ZMQ.Context context,
+                      ZMQSchemeConfiguration configuration) {
+        this.environment = environment;
+        this.context = context;
+        port = configuration.getPort();
+        signalled = new AtomicBoolean();
+        ready = new ConcurrentLinkedQueue<>();
+        open = new IdentityHashMap<>();
+        blocked = new IdentityHashMap<>();
+        heartbeatInterval = TimeUnit.MILLISECONDS.toNanos(
+                Math.max(0, configuration.getHeartbeatIntervalMillis()));
+        heartbeatTimeout = TimeUnit.MILLISECONDS.toNanos(
+                configuration.getHeartbeatTimeoutMillis());
+        lastHeartbeat = System.nanoTime();
+
+        // Create the wake-up socket pair.
+        String wakeEndpoint = "inproc://harmony-reactor-" + getNextReactorId();
+        wakeReceiver = context.socket(ZMQ.PAIR);
+        wakeReceiver.bind(wakeEndpoint);
+        wakeSender = context.socket(ZMQ.PAIR);
+        wakeSender.connect(wakeEndpoint);
+
+        thread = new Thread(this);
+        thread.start();
+    }
+
+    /**
+     * Create the channel for a new stream and schedule it, so that its socket is
+     * opened and the initial message is sent. This should be the last action of
+     * the stream constructor.
+     *
+     * @param stream The newly created stream.
+     *
+     * @return the channel to be scheduled by the stream whenever it has work.
+     */
+    Channel register(ZMQMessageStream stream) {
+        Channel channel = new Channel(stream);
+        schedule(channel);
+        return channel;
+    }
+
+    /**
+     * Schedule a channel for servicing by the reactor, because its stream has
+     * queued messages or has closed. This may be called from any thread.
+     *
+     * @param channel The channel to service.
+     */
+    void schedule(Channel channel) {
+        if (channel.scheduled.compareAndSet(false, true)) {
+            ready.add(channel);
+            wake();
+        }
+    }
+
+    /**
+     * Have the reactor reply to a PING received from the peer of a channel. This
+     * may be called from any thread.
+     *
+     * @param channel The channel of the stream which received the PING.
+     */
+    void pong(Channel channel) {
+        channel.pongRequested.set(true);
+        schedule(channel);
+    }
+
+    /**
+     * Finish all remaining channels, sending any FIN messages, and stop the
+     * reactor thread. This must be called before the context is terminated.
+     */
+    void term() {
+        terminating = true;
+        wake();
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Log.e(getTag(), "Thread interrupted while joining with the reactor thread.");
+        }
+    }
+
+    /**
+     * Wake the reactor thread, if a wake-up is not already outstanding.
+     */
+    private void wake() {
+        if (signalled.compareAndSet(false, true)) {
+            // Sockets may not be used concurrently; serialise the senders.
+            synchronized (wakeSender) {
+                try {
+                    wakeSender.send(WAKE_MESSAGE, ZMQ.DONTWAIT);
+                } catch (ZMQException e) {
+                    // The context is terminating; the reactor is already stopping.
+                }
+            }
+        }
+    }
+
+    /**
+     * Implementation of the reactor loop.
+     */
+    @Override
+    public void run() {
+        ZMQ.Poller poller = context.poller(1);
+        int wakeIndex = poller.register(wakeReceiver, ZMQ.Poller.POLLIN);
+
+        try {
+            while (true) {
+                // Block until woken, until a blocked socket becomes writable,
+                // or until the next heartbeat is due.
+                poller.poll(getPollTimeout());
+
+                if (poller.pollin(wakeIndex)) {
+                    // Consume the wake-up messages, and allow the next scheduler
+                    // to wake us again.
+                    while (wakeReceiver.recv(ZMQ.DONTWAIT) != null) {
+                        // Do nothing.
+                    }
+                    signalled.set(false);
+                }
+
+                // Retry the blocked channels whose sockets are now writable.
+                for (Channel channel : blocked.values().toArray(new Channel[0])) {
+                    if (poller.pollout(channel.pollIndex)) {
+                        unwatch(poller, channel);
+                        schedule(channel);
+                    }
+                }
+
+                // Send heartbeats and close the streams of unresponsive peers.
+                if (heartbeatInterval > 0 &&
+                        System.nanoTime() - lastHeartbeat >= heartbeatInterval) {
+                    heartbeat();
+                }
+
+                // Service the ready channels. Those scheduled while servicing
+                // are left for the next iteration, after which the poll returns
+                // immediately due to the outstanding wake-up.
+                int count = ready.size();
+                for (int i = 0; i < count; i++) {
+                    service(poller, ready.poll());
+                }
+
+                if (terminating) {
+                    break;
+                }
+            }
+
+            // Close any remaining streams, sending their FIN messages.
+            for (Channel channel : open.values().toArray(new Channel[0])) {
+                channel.stream.close();
+                unwatch(poller, channel);
+                service(poller, channel);
+            }
+        } catch (ZMQException e) {
+            if (e.getErrorCode() != ZMQ.Error.ETERM.getCode()) {
+                // This was not thrown due to context termination.
+                Log.e(getTag(), "Fatal error in message reactor", e);
+            }
+        } finally {
+            // Close all sockets owned by the reactor.
+            for (Channel channel : open.values()) {
+                channel.socket.close();
+            }
+            poller.close();
+            wakeReceiver.close();
+            synchronized (wakeSender) {
+                wakeSender.close();
+            }
+        }
+
+        Log.i(getTag(), "Message reactor terminated.");
+    }
+
+    /**
+     * Open the socket of a channel if necessary, send as many queued messages
+     * as the socket will accept, and finish the channel if the stream is closed.
+     */
+    private void service(ZMQ.Poller poller, Channel channel) {
+        channel.scheduled.set(false);
+
+        if (channel.finished) {
+            return;
+        }
+
+        if (blocked.containsKey(channel)) {
+            // Blocked channels are rescheduled when writable, unless they are
+            // closing, in which case the flush may block for the linger period.
+            if (!channel.stream.isClosed()) {
+                return;
+            }
+            unwatch(poller, channel);
+        }
+
+        if (channel.socket == null && !open(channel)) {
+            return;
+        }
+
+        // Check for closure before draining, so that all messages queued before
+        // the close call are flushed before the FIN message.
+        boolean closing = channel.stream.isClosed();
+        OutboundQueue<byte[][]> queue = channel.stream.getQueue();
+
+        if (closing) {
+            finish(channel, queue);
+            return;
+        }
+
+        // Answer any PING from the peer ahead of the queued messages. If the socket
+        // cannot accept it, the peer will not be waiting on a reply in any case.
+        if (channel.pongRequested.getAndSet(false)) {
+            ZMQHeartbeat.send(channel.socket, ZMQHeartbeat.PONG);
+        }
+
+        try {
+            for (int i = 0; i < MAX_BATCH; i++) {
+                byte[][] frames = (channel.pending != null) ? channel.pending : queue.poll();
+                if (frames == null) {
+                    // The queue has been drained.
+                    return;
+                }
+
+                if (!sendFrames(channel.socket, frames, ZMQ.DONTWAIT)) {
+                    // The socket is at its high-water mark. Hold the message, and
+                    // watch the socket until it is writable again.
+                    channel.pending = frames;
+                    watch(poller, channel);
+                    return;
+                }
+                channel.pending = null;
+            }
+
+            // The batch limit was reached; continue after the other ready channels.
+            schedule(channel);
+        } finally {
+            // Release any senders blocked on the space just made.
+            queue.signalSpace();
+        }
+    }
+
+    /**
+     * Compute the time for which the poller may block before the next heartbeat
+     * is due.
+     *
+     * @return the poll timeout in milliseconds, or -1 to block indefinitely.
+     */
+    private long getPollTimeout() {
+        if (heartbeatInterval == 0 || open.isEmpty()) {
+            return -1;
+        }
+
+        long remaining = lastHeartbeat + heartbeatInterval - System.nanoTime();
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(remaining));
+    }
+
+    /**
+     * Send a PING to the peer of every open channel supporting heartbeats, closing
+     * the streams of those from which nothing has been received within the timeout.
+     */
+    private void heartbeat() {
+        long now = System.nanoTime();
+        lastHeartbeat = now;
+
+        for (Channel channel : open.values().toArray(new Channel[0])) {
+            ZMQMessageStream stream = channel.stream;
+            if (channel.closing || stream.isClosed() || !stream.isHeartbeatSupported()) {
+                continue;
+            }
+
+            if (now - stream.getLastReceived() >= heartbeatTimeout) {
+                // The peer is presumed dead; closing the stream closes everything
+                // carried over it. The channel is finished once the stream has
+                // closed and scheduled it.
+                Log.w(stream.getTag(), "Heartbeat timed out");
+                closeLater(channel);
+                continue;
+            }
+
+            // A PING which cannot be sent without blocking is skipped; if the peer
+            // remains unresponsive, the timeout will catch it.
+            ZMQHeartbeat.send(channel.socket, ZMQHeartbeat.PING);
+        }
+    }
+
+    /**
+     * Mark the channel as closing, and close its stream off the reactor thread.
+     */
+    private void closeLater(Channel channel) {
+        if (!channel.closing) {
+            channel.closing = true;
+            closeExecutor.execute(channel.stream::close);
+        }
+    }
+
+    /**
+     * Open the DEALER socket of a channel, and send the initial message.
+     *
+     * @return whether the socket was opened successfully.
+     */
+    private boolean open(Channel channel) {
+        ZMQ.Socket socket = null;
+        try {
+            // Open a new DEALER socket.
+            socket = context.socket(ZMQ.DEALER);
+            socket.setLinger(SOCKET_LINGER);
+            socket.setSendTimeOut(SOCKET_LINGER);
+
+            // Attempt to connect the socket to the peer.
+            socket.connect("tcp://" + channel.stream.getRemote().toAddressString());
+
+            // Attempt to send the initial message to the peer, advertising
+            // the wire version we support.
+            ZMQInitialMessage message = new ZMQInitialMessage(
+                    environment.getLocation(), ZMQInitialMessage.WIRE_VERSION);
+            message.send(socket);
+        } catch (ZMQException e) {
+            if (e.getErrorCode() == ZMQ.Error.ETERM.getCode()) {
+                throw e;
+            }
+
+            // The attempt failed. Close the new socket if open.
+            if (socket != null) {
+                socket.close();
+            }
+
+            // Close the message stream, and finish with the channel.
+            channel.finished = true;
+            closeLater(channel);
+            return false;
+        }
+
+        channel.socket = socket;
+        open.put(channel, channel);
+        return true;
+    }
+
+    /**
+     * Flush the queue of a closed stream, send the FIN message, and close the
+     * socket. Sends may block for up to the linger period, after which the
+     * remaining messages are dropped.
+     */
+    private void finish(Channel channel, OutboundQueue<byte[][]> queue) {
+        try {
+            byte[][] frames = (channel.pending != null) ? channel.pending : queue.poll();
+            while (frames != null && sendFrames(channel.socket, frames, 0)) {
+                frames = queue.poll();
+            }
+
+            // Send the FIN message.
+            channel.socket.send("");
+        } finally {
+            // Close the socket.
+            channel.pending = null;
+            channel.finished = true;
+            open.remove(channel);
+            channel.socket.close();
+        }
+    }
+
+    /**
+     * Send every frame of a multi-part message, so that it is delivered atomically.
+     * Only the first frame can fail due to the high-water mark; once it is accepted,
+     * the remaining frames are accepted with it.
+     *
+     * @return whether the message was sent.
+     */
+    private static boolean sendFrames(ZMQ.Socket socket, byte[][] frames, int flags) {
+        int last = frames.length - 1;
+        if (last == 0) {
+            return socket.send(frames[0], flags);
+        }
+
+        if (!socket.send(frames[0], flags | ZMQ.SNDMORE)) {
+            return false;
+        }
+        for (int i = 1; i < last; i++) {
+            socket.sendMore(frames[i]);
+        }
+        socket.send(frames[last]);
+        return true;
+    }
+
+    /**
+     * Start watching the socket of a channel for writability.
+     */
+    private void watch(ZMQ.Poller poller, Channel channel) {
+        channel.pollIndex = poller.register(channel.socket, ZMQ.Poller.POLLOUT);
+        blocked.put(channel, channel);
+    }
+
+    /**
+     * Stop watching the socket of a channel for writability.
+     */
+    private void unwatch(ZMQ.Poller poller, Channel channel) {
+        if (blocked.remove(channel) != null) {
+            poller.unregister(channel.socket);
+            channel.pollIndex = -1;
+        }
+    }
+
+    private String getTag() {
+        return "MSG_REACTOR[" + port + "]";
+    }
+}
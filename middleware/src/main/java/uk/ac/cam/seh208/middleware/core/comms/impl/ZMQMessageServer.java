@@ -3,19 +3,25 @@ package uk.ac.cam.seh208.middleware.core.comms.impl;
 import android.util.Log;
 
 import org.zeromq.ZMQ;
+import org.zeromq.ZFrame;
 import org.zeromq.ZMQException;
 import org.zeromq.ZMsg;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
 
 import java8.util.Sets;
-import uk.ac.cam.seh208.middleware.common.JSONSerializable;
 import uk.ac.cam.seh208.middleware.core.exception.NoValidAddressException;
 import uk.ac.cam.seh208.middleware.core.comms.Address;
 import uk.ac.cam.seh208.middleware.core.comms.Environment;
 import uk.ac.cam.seh208.middleware.core.comms.Location;
+import uk.ac.cam.seh208.middleware.core.comms.OverflowPolicy;
 
 import static uk.ac.cam.seh208.middleware.core.comms.Address.SCHEME_ZMQ;
 
@@ -25,20 +31,160 @@ import static uk.ac.cam.seh208.middleware.core.comms.Address.SCHEME_ZMQ;
  */
 class ZMQMessageServer implements Runnable {
 
+    /**
+     * Message queued on a shard for processing.
+     */
+    private static class Task {
+
+        /**
+         * Processing of the message.
+         */
+        private final Runnable runnable;
+
+        /**
+         * Indicates that the message counts towards the capacity of the shard.
+         */
+        private final boolean bounded;
+
+
+        private Task(Runnable runnable, boolean bounded) {
+            this.runnable = runnable;
+            this.bounded = bounded;
+        }
+    }
+
+    /**
+     * Worker thread processing, in order, the messages of the peers assigned to it.
+     */
+    private class Shard extends Thread {
+
+        /**
+         * Queue of messages awaiting processing, in order of arrival.
+         */
+        private final BlockingQueue<Task> tasks;
+
+        /**
+         * Permits for the bounded messages which may be queued; one is held by each
+         * bounded message in the queue.
+         */
+        private final Semaphore permits;
+
+
+        private Shard(int index) {
+            super("MessageShard-" + port + "-" + index);
+            tasks = new LinkedBlockingQueue<>();
+            permits = new Semaphore(SHARD_QUEUE_CAPACITY);
+        }
+
+        /**
+         * Queue a message for processing. Messages maintaining the stream of a peer
+         * (initial, heartbeat and FIN messages) are always queued, as losing them would
+         * leave the state inconsistent; other messages are bounded by the capacity of
+         * the shard, following the dispatch overflow policy when it is full.
+         *
+         * @param runnable Processing of the message.
+         * @param bounded Whether the message counts towards the capacity.
+         *
+         * @return whether the message was queued without discarding any message.
+         *
+         * @throws InterruptedException if interrupted while blocked under the
+         *                              BLOCK policy.
+         */
+        private boolean offer(Runnable runnable, boolean bounded) throws InterruptedException {
+            boolean discarded = false;
+
+            if (bounded) {
+                while (!permits.tryAcquire()) {
+                    if (overflowPolicy == OverflowPolicy.BLOCK) {
+                        // Apply back-pressure to the ROUTER socket, as configured.
+                        permits.acquire();
+                        break;
+                    }
+
+                    if (overflowPolicy != OverflowPolicy.DROP_OLDEST) {
+                        // Discard the new message.
+                        return false;
+                    }
+
+                    // Discard the oldest bounded message, taking over its permit.
+                    if (dropOldest()) {
+                        discarded = true;
+                        break;
+                    }
+                }
+            }
+
+            tasks.add(new Task(runnable, bounded));
+            return !discarded;
+        }
+
+        /**
+         * Remove the oldest bounded message from the queue, if the shard has not
+         * already taken it.
+         *
+         * @return whether a message was removed.
+         */
+        private boolean dropOldest() {
+            for (Task task : tasks) {
+                if (task.bounded) {
+                    return tasks.remove(task);
+                }
+            }
+
+            return false;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Task task;
+                try {
+                    task = tasks.take();
+                } catch (InterruptedException e) {
+                    // The server has terminated.
+                    return;
+                }
+
+                if (task.bounded) {
+                    permits.release();
+                }
+
+                try {
+                    task.runnable.run();
+                } catch (RuntimeException e) {
+                    // Don't let a failure in one message stop the shard.
+                    Log.e(getTag(), "Error dispatching message", e);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Maximum number of bounded messages queued on each shard, beyond which the
+     * dispatch overflow policy applies.
+     */
+    private static final int SHARD_QUEUE_CAPACITY = 1024;
+
+
     /**
      * Instantiate a new ZMQMessageServer object with the given parameters, and return
      * a new Thread using its behaviour.
      *
      * @param environment Reference to the environment owning this server.
      * @param context Context in which to open the ROUTER socket.
+     * @param reactor Reactor responsible for the sockets of new streams.
      * @param state Store of associated state.
-     * @param port Port number on which the ROUTER socket is bound.
+     * @param configuration Configuration of the context, including the port
+     *                      number on which the ROUTER socket is bound.
      *
      * @return a newly instantiated Thread object.
      */
     static Thread makeThread(Environment environment, ZMQ.Context context,
-                             ZMQMessageState state, int port) {
-        return new Thread(new ZMQMessageServer(environment, context, state, port));
+                             ZMQMessageReactor reactor, ZMQMessageState state,
+                             ZMQSchemeConfiguration configuration) {
+        return new Thread(new ZMQMessageServer(
+                environment, context, reactor, state, configuration));
     }
 
 
@@ -52,31 +198,75 @@ class ZMQMessageServer implements Runnable {
      */
     private ZMQ.Context context;
 
+    /**
+     * Reactor responsible for the DEALER sockets of new streams.
+     */
+    private ZMQMessageReactor reactor;
+
     /**
      * Store of state associated with the Harmony context.
      */
     private ZMQMessageState state;
 
+    /**
+     * Configuration of the context, used when opening new streams.
+     */
+    private ZMQSchemeConfiguration configuration;
+
     /**
      * Port number on which the ROUTER socket is bound.
      */
     private int port;
 
+    /**
+     * Worker threads across which incoming messages are distributed by peer.
+     */
+    private Shard[] shards;
+
+    /**
+     * Behaviour of the server when a message arrives for a full shard.
+     */
+    private OverflowPolicy overflowPolicy;
+
+    /**
+     * Index of the shard assigned to each ROUTER identity, added to only by the
+     * server thread. Entries are removed on FIN, and when the stream of the
+     * identity closes or cannot be resolved, as in the state.
+     */
+    private final Map<String, Integer> shardsByIdentity;
+
+    /**
+     * Indicates that the last bounded message received caused messages to be
+     * discarded, so that overflow is logged only when it begins.
+     */
+    private boolean overflowing;
+
 
     /**
      * Store the passed parameters in preparation for operation.
      *
      * @param environment Reference to the environment owning this server.
      * @param context Context in which to open the ROUTER socket.
+     * @param reactor Reactor responsible for the sockets of new streams.
      * @param state Store of associated state.
-     * @param port Port number on which the ROUTER socket is bound.
+     * @param configuration Configuration of the context.
      */
     private ZMQMessageServer(Environment environment, ZMQ.Context context,
-                             ZMQMessageState state, int port) {
+                             ZMQMessageReactor reactor, ZMQMessageState state,
+                             ZMQSchemeConfiguration configuration) {
         this.environment = environment;
         this.context = context;
+        this.reactor = reactor;
         this.state = state;
-        this.port = port;
+        this.configuration = configuration;
+        port = configuration.getPort();
+        overflowPolicy = configuration.getDispatchOverflowPolicy();
+
+        shardsByIdentity = new ConcurrentHashMap<>();
+        shards = new Shard[Math.max(1, configuration.getDispatchShards())];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard(i);
+        }
     }
 
     /**
@@ -84,6 +274,11 @@ class ZMQMessageServer implements Runnable {
      */
     @Override
     public void run() {
+        // Start the dispatch shards.
+        for (Shard shard : shards) {
+            shard.start();
+        }
+
         // Instantiate the ROUTER socket within the stored context,
         // and bind it on the stored port.
         try (ZMQ.Socket router = context.socket(ZMQ.ROUTER)) {
@@ -91,7 +286,8 @@ class ZMQMessageServer implements Runnable {
             router.bind("tcp://*:" + port);
 
             // NOTE: This loop is a hot spot of the middleware, as all incoming
-            //       messages (over TCP) pass through it on the same thread.
+            //       messages (over TCP) pass through it on the same thread. It
+            //       only receives messages, leaving their processing to the shards.
             while (!context.isClosed()) {
                 // Block to receive a message on the ROUTER socket.
                 ZMsg message = ZMsg.recvMsg(router);
@@ -101,58 +297,53 @@ class ZMQMessageServer implements Runnable {
                 }
 
                 // Extract the identity of the peer, and the message
-                // data from the peer.
+                // data from the peer. Framed messages and initial messages
+                // carry an additional trailing frame.
                 String identity = message.pop().toString();
-                String data = message.pop().toString();
+                ZFrame dataFrame = message.pop();
+                ZFrame extraFrame = message.pop();
                 message.destroy();
 
-                // Retrieve the stream associated with this peer identity from the state.
-                ZMQMessageStream stream = state.getStreamByIdentity(identity);
-
-                if (stream == null) {
-                    // If the peer identity is not tracked in the state, this
-                    // must be an initial message.
-                    try {
-                        Log.v(getTag(), "INIT: \"" + data + "\"");
-                        ZMQInitialMessage initialMessage =
-                                JSONSerializable.fromJSON(data, ZMQInitialMessage.class);
-
-                        stream = resolve(initialMessage);
-
-                        if (stream == null) {
-                            Log.w(getTag(), "Couldn't resolve stream for incoming message.");
-                            continue;
-                        }
-
-                        Log.d(getTag(), "Resolved stream " + stream.getRemote());
-
-                        // Now we have resolved the stream, associate it with the ROUTER identity.
-                        state.insertStreamByIdentity(identity, stream);
-                    } catch (IOException e) {
-                        Log.e(getTag(), "Failed to parse initial message: \"" + data + "\"");
-                    } catch (NoValidAddressException e) {
-                        Log.e(getTag(), "Failed to create new stream: no valid return address.");
+                // Hand the message to the shard responsible for the peer, so that
+                // messages from each peer are processed in order.
+                ZMQInitialMessage initial = null;
+                boolean bounded = false;
+                Integer index = shardsByIdentity.get(identity);
+                if (index == null) {
+                    // This is the first message of a new connection, which should be
+                    // its initial message. Assign the connection to the shard of the
+                    // peer address, so that it is handled in order with the messages
+                    // (such as FIN) of any earlier connection from the same peer.
+                    initial = parseInitialMessage(dataFrame, extraFrame);
+                    if (initial == null) {
+                        // A first message which is not an initial message follows the
+                        // closure of the stream of its connection (such as the FIN
+                        // acknowledging our own), so there is no stream to receive it.
+                        Log.v(getTag(), "Discarding message from unknown identity.");
+                        continue;
                     }
+                    index = shardIndex(initial, identity);
+                    shardsByIdentity.put(identity, index);
+                } else if (extraFrame == null && dataFrame.size() == 0) {
+                    // This is a FIN message, closing the connection.
+                    shardsByIdentity.remove(identity);
                 } else {
-                    // The stream has already been set up to receive from this peer.
-
-                    // Check if we have a FIN message.
-                    if (data.isEmpty()) {
-                        // If so, remove the stream from the state entirely.
-                        state.removeStreamByAddress(stream.getRemote());
-                        state.removeStreamByIdentity(identity);
-
-                        // Close the stream if not already closed, logging the FIN event.
-                        if (stream.isClosed()) {
-                            Log.v(stream.getTag(), "FIN (ACK)");
-                        } else {
-                            Log.v(stream.getTag(), "FIN");
-                            stream.close();
-                        }
-                    } else {
-                        // Otherwise, direct the message to the listeners of the stream.
-                        stream.onMessage(data);
+                    // Only messages other than heartbeats may be discarded.
+                    bounded = !ZMQHeartbeat.isHeartbeat(
+                            dataFrame.getData(),
+                            (extraFrame != null) ? extraFrame.getData() : null);
+                }
+
+                ZMQInitialMessage parsed = initial;
+                boolean queued = shards[index].offer(
+                        () -> dispatch(identity, dataFrame, extraFrame, parsed), bounded);
+
+                if (bounded) {
+                    if (!queued && !overflowing) {
+                        Log.w(getTag(), "Dispatch shard full; discarding messages (" +
+                                overflowPolicy + ").");
                     }
+                    overflowing = !queued;
                 }
             }
         } catch (ZMQException e) {
@@ -160,11 +351,146 @@ class ZMQMessageServer implements Runnable {
                 // This was not thrown due to context termination.
                 Log.e(getTag(), "Fatal error in message server", e);
             }
+        } catch (InterruptedException e) {
+            Log.e(getTag(), "Message server interrupted while dispatching.");
+        } finally {
+            // Stop the dispatch shards.
+            for (Shard shard : shards) {
+                shard.interrupt();
+            }
         }
 
         Log.i(getTag(), "Message server terminated.");
     }
 
+    /**
+     * Attempt to parse the initial message of a new connection.
+     *
+     * @return the initial message, or null if the frames do not form one.
+     */
+    private static ZMQInitialMessage parseInitialMessage(ZFrame dataFrame, ZFrame extraFrame) {
+        try {
+            return ZMQInitialMessage.fromFrames(
+                    dataFrame.toString(), (extraFrame != null) ? extraFrame.getData() : null);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Choose the shard for a new connection by the address under which the stream of
+     * the peer is registered, falling back on the ROUTER identity if it is unknown.
+     */
+    private int shardIndex(ZMQInitialMessage initial, String identity) {
+        String key = identity;
+        if (initial != null) {
+            try {
+                ZMQAddress address = (ZMQAddress) initial.getLocation()
+                        .priorityAddressForSchemes(Sets.of(SCHEME_ZMQ));
+                key = address.toCanonicalString();
+            } catch (NoValidAddressException ignored) {
+                // Fall back on the identity.
+            }
+        }
+
+        return (key.hashCode() & Integer.MAX_VALUE) % shards.length;
+    }
+
+    /**
+     * Process a message received from a peer, resolving its stream if this is the
+     * initial message, and otherwise passing it to the listeners of the stream.
+     * This is called on the shard responsible for the peer.
+     *
+     * @param identity ROUTER identity of the peer.
+     * @param dataFrame First frame of the message.
+     * @param extraFrame Trailing frame of framed and initial messages, or null.
+     * @param initial The initial message, if already parsed by the server thread.
+     */
+    private void dispatch(String identity, ZFrame dataFrame, ZFrame extraFrame,
+                          ZMQInitialMessage initial) {
+        // Retrieve the stream associated with this peer identity from the state.
+        ZMQMessageStream stream = state.getStreamByIdentity(identity);
+
+        if (stream == null) {
+            // If the peer identity is not tracked in the state, this
+            // must be an initial message.
+            String data = dataFrame.toString();
+            try {
+                Log.v(getTag(), "INIT: \"" + data + "\"");
+                ZMQInitialMessage initialMessage = (initial != null) ? initial :
+                        ZMQInitialMessage.fromFrames(
+                                data, (extraFrame != null) ? extraFrame.getData() : null);
+
+                // Prevent interleaving with other shards and with the context,
+                // which may also create streams in the state.
+                synchronized (state) {
+                    stream = resolve(initialMessage);
+                }
+
+                if (stream == null) {
+                    Log.w(getTag(), "Couldn't resolve stream for incoming message.");
+                } else {
+                    Log.d(getTag(), "Resolved stream " + stream.getRemote() +
+                            " (wire version " + initialMessage.getWireVersion() + ")");
+
+                    // Record the wire version the peer is able to receive.
+                    stream.setPeerWireVersion(initialMessage.getWireVersion());
+
+                    // Now we have resolved the stream, associate it with the ROUTER
+                    // identity until the stream closes, whether or not the peer sends FIN.
+                    if (!state.insertStreamByIdentity(identity, stream) ||
+                            !stream.subscribeIfOpen(s -> shardsByIdentity.remove(identity))) {
+                        stream = null;
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(getTag(), "Failed to parse initial message: \"" + data + "\"");
+            } catch (NoValidAddressException e) {
+                Log.e(getTag(), "Failed to create new stream: no valid return address.");
+            }
+
+            if (stream == null) {
+                // The identity is not associated with an open stream, so stop tracking it.
+                shardsByIdentity.remove(identity);
+            }
+        } else {
+            // The stream has already been set up to receive from this peer.
+
+            // Check if we have a heartbeat.
+            byte[] extra = (extraFrame != null) ? extraFrame.getData() : null;
+            if (ZMQHeartbeat.isHeartbeat(dataFrame.getData(), extra)) {
+                stream.onHeartbeat(extra[0]);
+                return;
+            }
+
+            // Check if we have a framed message.
+            if (extraFrame != null) {
+                // If so, direct the header and payload to the listeners of the stream.
+                stream.onMessage(dataFrame.getData(), extraFrame.getData());
+                return;
+            }
+
+            // Check if we have a FIN message.
+            String data = dataFrame.toString();
+            if (data.isEmpty()) {
+                // If so, remove the stream from the state entirely.
+                state.removeStreamByAddress(stream.getRemote());
+                state.removeStreamByIdentity(identity);
+
+                // Close the stream if not already closed, logging the FIN event.
+                if (stream.isClosed()) {
+                    Log.v(stream.getTag(), "FIN (ACK)");
+                } else {
+                    Log.v(stream.getTag(), "FIN");
+                    stream.close();
+                }
+            } else {
+                // Otherwise, direct the message to the listeners of the stream.
+                stream.onMessage(data);
+            }
+        }
+    }
+
     /**
      * Resolve the correct peer address for a new stream according to the contents of the
      * initial message. The initial message is sent from newly connected peers and contains
@@ -209,7 +535,8 @@ class ZMQMessageServer implements Runnable {
 
             ZMQAddress zmqAddress =
                     (ZMQAddress) location.priorityAddressForSchemes(Sets.of(SCHEME_ZMQ));
-            ZMQMessageStream stream = new ZMQMessageStream(environment, context, zmqAddress);
+            ZMQMessageStream stream =
+                    new ZMQMessageStream(environment, reactor, configuration, zmqAddress);
             state.insertStreamByAddress(zmqAddress, stream);
             return stream;
         }
@@ -1,5 +1,6 @@
 package uk.ac.cam.seh208.middleware.core.comms.impl;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 
 import uk.ac.cam.seh208.middleware.core.comms.MessageStream;
@@ -57,15 +58,30 @@ class ZMQMessageState {
      *
      * @param identity ROUTER identity of the stream.
      * @param stream Reference to the stream to insert.
+     *
+     * @return whether the identity is associated with a stream; this is false only
+     *         if the stream has already closed.
      */
-    synchronized void insertStreamByIdentity(String identity, ZMQMessageStream stream) {
-        if (streamsByIdentity.containsKey(identity)) {
-            // The stream is present in the identity map already.
-            return;
+    boolean insertStreamByIdentity(String identity, ZMQMessageStream stream) {
+        synchronized (this) {
+            if (streamsByIdentity.containsKey(identity)) {
+                // The stream is present in the identity map already.
+                return true;
+            }
+
+            // Put the stream in the identity map.
+            streamsByIdentity.put(identity, stream);
+        }
+
+        // Subscribe to stream closure, removing the stream by identity, so that the
+        // entry is removed even if the peer never sends FIN. This is done without
+        // holding the state, as closure notifies its observers holding the stream.
+        if (!stream.subscribeIfOpen(s -> removeStreamByIdentity(identity))) {
+            removeStreamByIdentity(identity);
+            return false;
         }
 
-        // Put the stream in the identity map.
-        streamsByIdentity.put(identity, stream);
+        return true;
     }
 
     /**
@@ -118,11 +134,12 @@ class ZMQMessageState {
      * Close all message streams in the state.
      */
     synchronized void closeAll() {
-        for (MessageStream stream : streamsByIdentity.values()) {
+        // Iterate over copies of the maps, as closing a stream removes it from them.
+        for (MessageStream stream : new ArrayList<>(streamsByIdentity.values())) {
             stream.close();
         }
 
-        for (MessageStream stream : streamsByAddress.values()) {
+        for (MessageStream stream : new ArrayList<>(streamsByAddress.values())) {
             stream.close();
         }
     }
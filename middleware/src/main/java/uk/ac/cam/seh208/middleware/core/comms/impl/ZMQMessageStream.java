@@ -1,20 +1,19 @@
 package uk.ac.cam.seh208.middleware.core.comms.impl;
 
 import android.util.Log;
-import android.util.LongSparseArray;
 
 import org.zeromq.ZMQ;
-import org.zeromq.ZMQException;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import uk.ac.cam.seh208.middleware.core.comms.OutboundQueue;
+import uk.ac.cam.seh208.middleware.core.comms.OverflowPolicy;
 import uk.ac.cam.seh208.middleware.core.exception.ConnectionFailedException;
 import uk.ac.cam.seh208.middleware.core.comms.Environment;
 import uk.ac.cam.seh208.middleware.core.comms.MessageListener;
 import uk.ac.cam.seh208.middleware.core.comms.MessageStream;
+import uk.ac.cam.seh208.middleware.core.exception.QueueFullException;
 import uk.ac.cam.seh208.middleware.core.exception.NoValidAddressException;
 
 
@@ -23,100 +22,15 @@ import uk.ac.cam.seh208.middleware.core.exception.NoValidAddressException;
  */
 public class ZMQMessageStream extends MessageStream {
 
-    private class DealerThread extends Thread {
-
-        /**
-         * The amount of time (in milliseconds) that the internal and external
-         * sockets should remain open after a close call if they still
-         * have messages queueing.
-         */
-        private static final int SOCKET_LINGER = 200;
-
-
-        /**
-         * DEALER socket that sends messages to the remote Harmony server.
-         */
-        private ZMQ.Socket dealerExternal;
-
-        /**
-         * DEALER socket that receives messages from other threads within
-         * the process to forward along the external DEALER socket.
-         */
-        private ZMQ.Socket dealerInternal;
-
-
-        @Override
-        public void run() {
-            try {
-                // Open a new DEALER socket.
-                dealerExternal = context.socket(ZMQ.DEALER);
-                dealerExternal.setLinger(SOCKET_LINGER);
-                dealerExternal.setSendTimeOut(SOCKET_LINGER);
-
-                // Attempt to connect the socket to the peer.
-                dealerExternal.connect("tcp://" + remote.toAddressString());
-
-                // Attempt to send the initial message to the peer.
-                ZMQInitialMessage message = new ZMQInitialMessage(environment.getLocation());
-                dealerExternal.send(message.toJSON());
-            } catch (ZMQException e) {
-                // The attempt failed. Close the new socket if open.
-                if (dealerExternal != null) {
-                    dealerExternal.close();
-                }
-
-                // Close the message stream and return.
-                close();
-                return;
-            }
-
-            // Create a new internal and control dealer socket.
-            dealerInternal = context.socket(ZMQ.DEALER);
-            dealerInternal.setLinger(SOCKET_LINGER);
-            dealerInternal.setReceiveTimeOut(SOCKET_LINGER);
-            dealerInternal.bind("inproc://dealer_" + streamId);
-
-            // Forward internal messages to the external dealer socket via a proxy.
-            try {
-                while (!isClosed()) {
-                    byte[] msg = dealerInternal.recv();
-                    if (msg == null) {
-                        // The recv call timed out. Check the loop condition and continue.
-                        continue;
-                    }
-                    dealerExternal.send(msg);
-                }
-
-                // Send the FIN message.
-                dealerExternal.send("");
-            } catch (ZMQException e) {
-                if (e.getErrorCode() != ZMQ.Error.ETERM.getCode()) {
-                    // This was not thrown due to context termination.
-                    Log.e(getTag(), "Fatal error in message server", e);
-                }
-            } finally {
-                // Close the sockets.
-                dealerInternal.close();
-                dealerExternal.close();
-            }
-        }
-    }
-
-
-    /**
-     * Process-local identifier for the stream used to link local queues to the dealer thread.
-     */
-    private final long streamId;
-
     /**
      * Reference to the environment owning this stream.
      */
     private final Environment environment;
 
     /**
-     * ZeroMQ context in which to open the DEALER socket.
+     * Reactor responsible for the DEALER socket of this stream.
      */
-    private final ZMQ.Context context;
+    private final ZMQMessageReactor reactor;
 
     /**
      * The ZeroMQ address with which this stream communicates.
@@ -124,39 +38,46 @@ public class ZMQMessageStream extends MessageStream {
     private final ZMQAddress remote;
 
     /**
-     * The single thread responsible for sending queued messages out via the
-     * external dealer socket.
+     * Queue of outbound messages, each consisting of one or more frames, fed
+     * by sending threads and drained by the reactor.
      */
-    private final DealerThread dealerThread;
+    private final OutboundQueue<byte[][]> queue;
 
     /**
-     * Thread-local message queue to the dealer thread.
+     * Collection of listeners used to respond to messages.
      */
-    private final LongSparseArray<ZMQ.Socket> queues;
+    private final List<MessageListener> listeners;
 
     /**
-     * Read-write lock protecting the queues map.
+     * Wire version negotiated by the peer in its initial message. Until this
+     * is received, the legacy wire version is assumed.
      */
-    private final ReadWriteLock queuesLock;
+    private volatile int peerWireVersion;
 
     /**
-     * Collection of listeners used to respond to messages.
+     * The time (in nanoseconds) at which anything was last received from the peer.
      */
-    private final List<MessageListener> listeners;
+    private volatile long lastReceived;
+
+    /**
+     * Handle used to schedule the stream with the reactor.
+     */
+    private final ZMQMessageReactor.Channel channel;
 
 
-    ZMQMessageStream(Environment environment, ZMQ.Context context, ZMQAddress remote) {
-        streamId = getNextStreamId();
+    ZMQMessageStream(Environment environment, ZMQMessageReactor reactor,
+                     ZMQSchemeConfiguration configuration, ZMQAddress remote) {
         this.environment = environment;
-        this.context = context;
+        this.reactor = reactor;
         this.remote = remote;
-        dealerThread = new DealerThread();
-        queues = new LongSparseArray<>();
-        queuesLock = new ReentrantReadWriteLock(true);
+        queue = new OutboundQueue<>(configuration.getQueueCapacity(),
+                                    configuration.getOverflowPolicy());
         listeners = new ArrayList<>();
+        peerWireVersion = ZMQInitialMessage.WIRE_VERSION_LEGACY;
+        lastReceived = System.nanoTime();
 
-        // Start the stream dealer thread.
-        dealerThread.start();
+        // Register with the reactor, which opens the DEALER socket.
+        channel = reactor.register(this);
     }
 
     @Override
@@ -167,63 +88,98 @@ public class ZMQMessageStream extends MessageStream {
                 return;
             }
 
-            // Acquire the queue write lock (method-level synchronisation
-            // ensures that there is no writer-writer contention).
-            queuesLock.writeLock().lock();
-
-            // Get and close all message queues to the dealer thread.
-            int size = queues.size();
-            for (int i = 0; i < size; i++) {
-                queues.valueAt(i).close();
-                queues.removeAt(i);
-            }
-
             // Signal the server to stop tracking this stream for the remote address.
             super.close();
 
-            // Release the queue state lock.
-            queuesLock.writeLock().unlock();
+            // Stop accepting messages.
+            queue.close();
         }
 
-        try {
-            dealerThread.join();
-        } catch (InterruptedException e) {
-            Log.e(getTag(), "Thread interrupted while joining with the dealer thread.");
-        }
+        // Have the reactor flush the queue and send the FIN message.
+        reactor.schedule(channel);
     }
 
     @Override
     public void send(String message) throws ConnectionFailedException {
-        // Acquire the queue read lock.
-        queuesLock.readLock().lock();
+        enqueue(new byte[][] { message.getBytes(ZMQ.CHARSET) });
+    }
 
+    @Override
+    public void send(byte[] header, byte[] payload) throws ConnectionFailedException {
+        // Both frames are queued together as a single multi-part message.
+        enqueue(new byte[][] { header, payload });
+    }
+
+    /**
+     * Queue a message for the reactor, following the configured overflow
+     * policy if the queue is full.
+     *
+     * @param frames The frames of the message.
+     *
+     * @throws QueueFullException if the message was rejected as the queue is full.
+     */
+    private void enqueue(byte[][] frames) throws QueueFullException {
         // We cannot send from a closed stream.
         if (isClosed()) {
             return;
         }
 
-        // Get the message queue to the dealer thread for the current thread.
-        ZMQ.Socket queue = getQueue();
+        if (queue.offer(frames)) {
+            reactor.schedule(channel);
+        } else if (!isClosed() && queue.getPolicy() == OverflowPolicy.FAIL_FAST) {
+            throw new QueueFullException(remote);
+        }
+    }
+
+    @Override
+    public boolean isFramingSupported() {
+        return peerWireVersion >= ZMQInitialMessage.WIRE_VERSION_FRAMED;
+    }
+
+    /**
+     * Record the wire version advertised by the peer in its initial message.
+     *
+     * @param wireVersion The wire version supported by the peer.
+     */
+    void setPeerWireVersion(int wireVersion) {
+        lastReceived = System.nanoTime();
+        peerWireVersion = Math.min(wireVersion, ZMQInitialMessage.WIRE_VERSION);
+    }
 
-        // Send the message to the dealer thread.
-        queue.send(message);
+    /**
+     * @return whether the peer has negotiated support for heartbeats. Until it has,
+     *         the stream is never closed for want of them.
+     */
+    boolean isHeartbeatSupported() {
+        return peerWireVersion >= ZMQInitialMessage.WIRE_VERSION_HEARTBEAT;
+    }
 
-        // Release the queue state lock.
-        queuesLock.readLock().unlock();
+    /**
+     * @return the time (in nanoseconds) at which anything was last received from the peer.
+     */
+    long getLastReceived() {
+        return lastReceived;
     }
 
     /**
-     * @return the calling thread's message queue to the dealer thread.
+     * Handle a heartbeat received from the peer, having the reactor reply to a PING
+     * with a PONG.
+     *
+     * @param type The type of the heartbeat.
      */
-    private ZMQ.Socket getQueue() {
-        long threadId = Thread.currentThread().getId();
-        if (queues.get(threadId) == null) {
-            ZMQ.Socket queue = context.socket(ZMQ.DEALER);
-            queue.connect("inproc://dealer_" + streamId);
-            queues.put(threadId, queue);
+    void onHeartbeat(byte type) {
+        lastReceived = System.nanoTime();
+
+        if (type == ZMQHeartbeat.PING && !isClosed()) {
+            reactor.pong(channel);
         }
+    }
 
-        return queues.get(threadId);
+    /**
+     * @return the outbound queue of the stream, exposing its metrics.
+     */
+    public OutboundQueue<byte[][]> getQueue() {
+        return queue;
     }
 
     /**
@@ -275,6 +231,8 @@ public class ZMQMessageStream extends MessageStream {
      * @param message The newly received string message.
      */
     public synchronized void onMessage(String message) {
+        lastReceived = System.nanoTime();
+
         // If we are closed, all messages should be ignored. Eventually
         // FIN will be received and we can release this object.
         if (isClosed()) {
@@ -288,10 +246,26 @@ public class ZMQMessageStream extends MessageStream {
         }
     }
 
-    private static long nextStreamId = 0;
+    /**
+     * Dispatch a received framed message to all currently registered listeners.
+     *
+     * @param header The raw header frame.
+     * @param payload The raw payload frame.
+     */
+    public synchronized void onMessage(byte[] header, byte[] payload) {
+        lastReceived = System.nanoTime();
+
+        // If we are closed, all messages should be ignored. Eventually
+        // FIN will be received and we can release this object.
+        if (isClosed()) {
+            Log.d(getTag(), "Dropped framed message (" + payload.length + " bytes)");
+            return;
+        }
 
-    private static synchronized long getNextStreamId() {
-        return nextStreamId++;
+        // Dispatch the message to all registered listeners.
+        for (MessageListener listener : listeners) {
+            listener.onMessage(header, payload);
+        }
     }
 
     ZMQAddress getRemote() {
@@ -34,11 +34,26 @@ public class ZMQRequestContext implements RequestContext {
      */
     private final ZMQ.Context context;
 
+    /**
+     * Pool of REQ sockets shared by the request streams of this context.
+     */
+    private final ZMQRequestPool pool;
+
+    /**
+     * Dispatcher of the asynchronous requests sent by the request streams of this context.
+     */
+    private final ZMQRequestDispatcher dispatcher;
+
     /**
      * Port on which the request server is bound.
      */
     private final int port;
 
+    /**
+     * Server responding to requests from remote hosts.
+     */
+    private final ZMQRequestServer server;
+
     /**
      * Listener thread for the request context.
      */
@@ -63,11 +78,14 @@ public class ZMQRequestContext implements RequestContext {
 
         // Create a new ZMQ context.
         context = ZMQ.context(IO_THREADS);
+        pool = new ZMQRequestPool(context, configuration.getReplyTimeoutMillis());
+        dispatcher = new ZMQRequestDispatcher(context);
         terminated = false;
 
         // Set-up the request/response context.
         responder = new Responder();
-        requestServer = ZMQRequestServer.makeThread(context, responder, port);
+        server = new ZMQRequestServer(context, responder, configuration);
+        requestServer = new Thread(server);
         requestServer.start();
     }
 
@@ -112,6 +130,9 @@ public class ZMQRequestContext implements RequestContext {
      * sockets, organised as in asynchronous server pattern described in
      * chapter 3 of the official ZeroMQ guide.
      *
+     * Streams are cheap to create, as they borrow sockets from the pool of
+     * the context as needed, so connections to each peer are reused.
+     *
      * @param address ZeroMQ address on which the remote middleware instance resides.
      *
      * @return a reference to a ZMQRequestStream for sending requests to the remote host.
@@ -128,7 +149,7 @@ public class ZMQRequestContext implements RequestContext {
         ZMQAddress zmqAddress = (ZMQAddress) address;
 
         // Open a new request stream to the given remote host.
-        return new ZMQRequestStream(context, zmqAddress);
+        return new ZMQRequestStream(pool, dispatcher, zmqAddress);
     }
 
     /**
@@ -142,6 +163,20 @@ public class ZMQRequestContext implements RequestContext {
         return responder;
     }
 
+    /**
+     * @return the pool of REQ sockets shared by the request streams of this context.
+     */
+    public ZMQRequestPool getRequestPool() {
+        return pool;
+    }
+
+    /**
+     * @return the server responding to requests from remote hosts.
+     */
+    public ZMQRequestServer getRequestServer() {
+        return server;
+    }
+
     /**
      * Terminate the context, closing all open streams and preventing new streams
      * from being opened in the future.
@@ -151,6 +186,10 @@ public class ZMQRequestContext implements RequestContext {
             return;
         }
 
+        // Close the pooled sockets and stop the dispatcher, so that they do not
+        // hold up termination.
+        pool.close();
+        dispatcher.term();
         context.term();
 
         terminated = true;
@@ -0,0 +1,512 @@
+package uk.ac.cam.seh208.middleware.core.comms.impl;
+
+import android.util.Log;
+
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQException;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import java8.util.concurrent.CompletableFuture;
+import uk.ac.cam.seh208.middleware.core.exception.RequestFailedException;
+import uk.ac.cam.seh208.middleware.core.exception.RequestTimeoutException;
+
+
+/**
+ * Single I/O thread sending pipelined requests over DEALER sockets, one per remote
+ * address, and matching the replies to their requests by correlation identifier.
+ *
+ * Each request is sent as the frames [correlation id, empty delimiter, body]. The
+ * correlation identifier forms part of the envelope of the request, so the request
+ * server returns it unchanged at the head of the reply, whichever order the replies
+ * are sent in. Any number of requests may be outstanding to a single peer.
+ *
+ * Callers submit requests from any thread, receiving a future for the reply; the
+ * requests are queued and the dispatcher woken through an inproc socket, as for the
+ * message reactor. A request whose reply does not arrive before its deadline is
+ * failed with a RequestTimeoutException, and any late reply is discarded.
+ *
+ * All sockets owned by the dispatcher are only accessed from the dispatcher thread.
+ */
+class ZMQRequestDispatcher implements Runnable {
+
+    /**
+     * A request submitted to the dispatcher, awaiting its reply.
+     */
+    private static final class Pending {
+
+        private final long id;
+
+        private final ZMQAddress address;
+
+        private final String request;
+
+        private final long timeoutMillis;
+
+        /**
+         * The time (in nanoseconds) after which the request fails.
+         */
+        private final long deadline;
+
+        private final CompletableFuture<String> future;
+
+        /**
+         * The peer over which the request was sent.
+         */
+        private Peer peer;
+
+
+        private Pending(long id, ZMQAddress address, String request,
+                        long timeoutMillis, long deadline) {
+            this.id = id;
+            this.address = address;
+            this.request = request;
+            this.timeoutMillis = timeoutMillis;
+            this.deadline = deadline;
+            future = new CompletableFuture<>();
+        }
+    }
+
+    /**
+     * The DEALER socket connected to a single remote address.
+     */
+    private static final class Peer {
+
+        private final ZMQ.Socket socket;
+
+        /**
+         * Index of the socket in the poller.
+         */
+        private final int pollIndex;
+
+        /**
+         * The number of requests sent over the socket which are awaiting a reply.
+         */
+        private int outstanding;
+
+        /**
+         * The time (in nanoseconds) at which a request was last sent or received.
+         */
+        private long lastUsed;
+
+
+        private Peer(ZMQ.Socket socket, int pollIndex) {
+            this.socket = socket;
+            this.pollIndex = pollIndex;
+        }
+    }
+
+
+    /**
+     * The amount of time (in milliseconds) that the DEALER sockets should remain
+     * open after a close call if they still have messages queueing.
+     */
+    private static final int SOCKET_LINGER = 0;
+
+    /**
+     * The time (in milliseconds) after which a DEALER socket with no outstanding
+     * requests is closed.
+     */
+    private static final long IDLE_TIMEOUT_MILLIS = ZMQRequestPool.IDLE_TIMEOUT_MILLIS;
+
+    /**
+     * Message sent over the inproc socket pair to wake the dispatcher.
+     */
+    private static final byte[] WAKE_MESSAGE = new byte[0];
+
+    /**
+     * Counter used to give each dispatcher a unique inproc wake-up endpoint.
+     */
+    private static final AtomicInteger nextDispatcherId = new AtomicInteger();
+
+
+    /**
+     * ZeroMQ context in which to open the sockets.
+     */
+    private final ZMQ.Context context;
+
+    /**
+     * Source of correlation identifiers.
+     */
+    private final AtomicLong nextId;
+
+    /**
+     * Requests submitted but not yet sent.
+     */
+    private final ConcurrentLinkedQueue<Pending> submitted;
+
+    /**
+     * Indicates that a wake-up message is outstanding.
+     */
+    private final AtomicBoolean signalled;
+
+    /**
+     * Socket on which the dispatcher receives wake-up messages.
+     */
+    private final ZMQ.Socket wakeReceiver;
+
+    /**
+     * Socket used to send wake-up messages. Access must be synchronised.
+     */
+    private final ZMQ.Socket wakeSender;
+
+    /**
+     * Requests sent and awaiting a reply, indexed by correlation identifier.
+     * Accessed only by the dispatcher thread.
+     */
+    private final Map<Long, Pending> outstanding;
+
+    /**
+     * Requests awaiting a reply, ordered by deadline. Requests which have already
+     * completed are discarded lazily. Accessed only by the dispatcher thread.
+     */
+    private final PriorityQueue<Pending> deadlines;
+
+    /**
+     * DEALER sockets, indexed by remote address. Accessed only by the dispatcher thread.
+     */
+    private final Map<String, Peer> peers;
+
+    /**
+     * The thread running the dispatcher.
+     */
+    private final Thread thread;
+
+    /**
+     * Indicates that the dispatcher should fail the remaining requests and stop.
+     */
+    private volatile boolean terminating;
+
+
+    /**
+     * Create a new dispatcher and start its thread.
+     *
+     * @param context Context in which to open the sockets.
+     */
+    ZMQRequestDispatcher(ZMQ.Context context) {
+        this.context = context;
+        nextId = new AtomicLong();
+        submitted = new ConcurrentLinkedQueue<>();
+        signalled = new AtomicBoolean();
+        outstanding = new HashMap<>();
+        deadlines = new PriorityQueue<>(16, (a, b) -> Long.compare(a.deadline, b.deadline));
+        peers = new HashMap<>();
+
+        // Create the wake-up socket pair.
+        String wakeEndpoint = "inproc://harmony-dispatcher-" + nextDispatcherId.getAndIncrement();
+        wakeReceiver = context.socket(ZMQ.PAIR);
+        wakeReceiver.bind(wakeEndpoint);
+        wakeSender = context.socket(ZMQ.PAIR);
+        wakeSender.connect(wakeEndpoint);
+
+        thread = new Thread(this);
+        thread.start();
+    }
+
+    /**
+     * Submit a request for sending to the given address. This may be called from
+     * any thread.
+     *
+     * @param address Address of the remote request server.
+     * @param request String request to send.
+     * @param timeoutMillis Time (in milliseconds) to wait for the reply.
+     *
+     * @return a future completed with the reply, or exceptionally with a
+     *         RequestFailedException if the request could not be completed.
+     */
+    CompletableFuture<String> submit(ZMQAddress address, String request, long timeoutMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        Pending pending = new Pending(nextId.incrementAndGet(), address, request,
+                                      timeoutMillis, deadline);
+
+        if (terminating) {
+            pending.future.completeExceptionally(
+                    new RequestFailedException("Request context terminated."));
+            return pending.future;
+        }
+
+        submitted.add(pending);
+
+        // The dispatcher may have drained the submitted requests for the last time
+        // since we checked; if so, and it did not take this request, fail it here.
+        if (terminating) {
+            if (submitted.remove(pending)) {
+                pending.future.completeExceptionally(
+                        new RequestFailedException("Request context terminated."));
+            }
+            return pending.future;
+        }
+
+        wake();
+        return pending.future;
+    }
+
+    /**
+     * Fail all outstanding requests, close the sockets, and stop the dispatcher
+     * thread. This must be called before the context is terminated.
+     */
+    void term() {
+        terminating = true;
+        wake();
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Log.e(getTag(), "Thread interrupted while joining with the dispatcher thread.");
+        }
+    }
+
+    /**
+     * Wake the dispatcher thread, if a wake-up is not already outstanding.
+     */
+    private void wake() {
+        if (signalled.compareAndSet(false, true)) {
+            // Sockets may not be used concurrently; serialise the senders.
+            synchronized (wakeSender) {
+                try {
+                    wakeSender.send(WAKE_MESSAGE, ZMQ.DONTWAIT);
+                } catch (ZMQException e) {
+                    // The context is terminating; the dispatcher is already stopping.
+                }
+            }
+        }
+    }
+
+    /**
+     * Implementation of the dispatcher loop.
+     */
+    @Override
+    public void run() {
+        ZMQ.Poller poller = context.poller(1);
+        int wakeIndex = poller.register(wakeReceiver, ZMQ.Poller.POLLIN);
+
+        try {
+            while (!terminating) {
+                // Block until woken, a reply arrives, or the earliest deadline passes.
+                poller.poll(pollTimeout());
+
+                if (poller.pollin(wakeIndex)) {
+                    // Consume the wake-up messages, and allow the next submitter
+                    // to wake us again.
+                    while (wakeReceiver.recv(ZMQ.DONTWAIT) != null) {
+                        // Do nothing.
+                    }
+                    signalled.set(false);
+                }
+
+                // Receive the replies waiting on each socket.
+                for (Peer peer : peers.values()) {
+                    if (poller.pollin(peer.pollIndex)) {
+                        receive(peer);
+                    }
+                }
+
+                // Send the newly submitted requests.
+                Pending pending;
+                while ((pending = submitted.poll()) != null) {
+                    send(poller, pending);
+                }
+
+                expire(poller);
+            }
+        } catch (ZMQException e) {
+            if (e.getErrorCode() != ZMQ.Error.ETERM.getCode()) {
+                // This was not thrown due to context termination.
+                Log.e(getTag(), "Fatal error in request dispatcher", e);
+            }
+        } finally {
+            // Stop accepting requests before draining them, so that any submitted
+            // after the drain are failed by their submitter.
+            terminating = true;
+
+            // Fail every request which will now never be answered.
+            RequestFailedException failure =
+                    new RequestFailedException("Request context terminated.");
+            for (Pending pending : outstanding.values()) {
+                pending.future.completeExceptionally(failure);
+            }
+            Pending pending;
+            while ((pending = submitted.poll()) != null) {
+                pending.future.completeExceptionally(failure);
+            }
+
+            // Close all sockets owned by the dispatcher.
+            for (Peer peer : peers.values()) {
+                peer.socket.close();
+            }
+            poller.close();
+            wakeReceiver.close();
+            synchronized (wakeSender) {
+                wakeSender.close();
+            }
+        }
+
+        Log.i(getTag(), "Request dispatcher terminated.");
+    }
+
+    /**
+     * Compute the time (in milliseconds) for which to poll, being the time until
+     * the earliest deadline, or -1 if no requests are outstanding.
+     */
+    private long pollTimeout() {
+        if (deadlines.isEmpty() && peers.isEmpty()) {
+            return -1;
+        }
+
+        // While sockets are open, wake periodically to close those left idle.
+        long timeout = TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT_MILLIS);
+        if (!deadlines.isEmpty()) {
+            timeout = Math.min(timeout, deadlines.peek().deadline - System.nanoTime());
+        }
+
+        // Round up, so that the deadline has passed when the poll returns.
+        return Math.max(TimeUnit.NANOSECONDS.toMillis(timeout) + 1, 0);
+    }
+
+    /**
+     * Send a request over the DEALER socket to its address, opening the socket if
+     * necessary.
+     */
+    private void send(ZMQ.Poller poller, Pending pending) {
+        if (pending.future.isDone()) {
+            // The request was cancelled before it could be sent.
+            return;
+        }
+
+        Peer peer = getPeer(poller, pending.address);
+        if (peer == null) {
+            pending.future.completeExceptionally(new RequestFailedException(
+                    "Could not connect to " + pending.address.toAddressString()));
+            return;
+        }
+
+        // Send the correlation identifier and delimiter, followed by the request body.
+        byte[] id = ByteBuffer.allocate(8).putLong(pending.id).array();
+        if (!peer.socket.send(id, ZMQ.SNDMORE | ZMQ.DONTWAIT)) {
+            // The peer is not accepting requests.
+            pending.future.completeExceptionally(new RequestFailedException(
+                    "Send queue to " + pending.address.toAddressString() + " is full."));
+            return;
+        }
+        peer.socket.sendMore(new byte[0]);
+        peer.socket.send(pending.request);
+        peer.lastUsed = System.nanoTime();
+
+        pending.peer = peer;
+        peer.outstanding++;
+        outstanding.put(pending.id, pending);
+        deadlines.add(pending);
+    }
+
+    /**
+     * Receive all waiting replies from a DEALER socket, completing their requests.
+     */
+    private void receive(Peer peer) {
+        byte[] id;
+        while ((id = peer.socket.recv(ZMQ.DONTWAIT)) != null) {
+            // Read the remaining frames of the reply.
+            String reply = null;
+            while (peer.socket.hasReceiveMore()) {
+                reply = peer.socket.recvStr();
+            }
+            peer.lastUsed = System.nanoTime();
+
+            if (id.length != 8 || reply == null) {
+                Log.w(getTag(), "Discarding malformed reply.");
+                continue;
+            }
+
+            Pending pending = outstanding.remove(ByteBuffer.wrap(id).getLong());
+            if (pending == null) {
+                // The request has already expired.
+                continue;
+            }
+
+            peer.outstanding--;
+            pending.future.complete(reply);
+        }
+    }
+
+    /**
+     * Fail the requests whose deadlines have passed, and close sockets left idle.
+     */
+    private void expire(ZMQ.Poller poller) {
+        long now = System.nanoTime();
+
+        while (!deadlines.isEmpty() && deadlines.peek().deadline - now <= 0) {
+            Pending pending = deadlines.poll();
+            if (outstanding.remove(pending.id) != null) {
+                pending.peer.outstanding--;
+                pending.future.completeExceptionally(
+                        new RequestTimeoutException(pending.timeoutMillis));
+            }
+        }
+
+        // Drop the completed requests from the head of the deadline queue.
+        while (!deadlines.isEmpty() && !outstanding.containsKey(deadlines.peek().id)) {
+            deadlines.poll();
+        }
+
+        long timeout = TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT_MILLIS);
+        Iterator<Peer> iterator = peers.values().iterator();
+        while (iterator.hasNext()) {
+            Peer peer = iterator.next();
+            if (peer.outstanding == 0 && now - peer.lastUsed >= timeout) {
+                poller.unregister(peer.socket);
+                peer.socket.close();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Get the DEALER socket connected to the given address, opening it if necessary.
+     *
+     * @return the peer, or null if the socket could not be opened.
+     */
+    private Peer getPeer(ZMQ.Poller poller, ZMQAddress address) {
+        String key = address.toAddressString();
+        Peer peer = peers.get(key);
+        if (peer != null) {
+            return peer;
+        }
+
+        ZMQ.Socket socket = null;
+        try {
+            // Open a new DEALER socket.
+            socket = context.socket(ZMQ.DEALER);
+            socket.setLinger(SOCKET_LINGER);
+
+            // Attempt to connect the socket to the peer.
+            socket.connect("tcp://" + key);
+        } catch (ZMQException e) {
+            if (e.getErrorCode() == ZMQ.Error.ETERM.getCode()) {
+                throw e;
+            }
+
+            // The attempt failed. Close the new socket if open.
+            if (socket != null) {
+                socket.close();
+            }
+            return null;
+        }
+
+        peer = new Peer(socket, poller.register(socket, ZMQ.Poller.POLLIN));
+        peer.lastUsed = System.nanoTime();
+        peers.put(key, peer);
+        return peer;
+    }
+
+    private String getTag() {
+        return "REQ_DISPATCHER";
+    }
+}
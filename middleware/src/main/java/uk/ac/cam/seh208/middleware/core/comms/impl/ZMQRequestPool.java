@@ -0,0 +1,326 @@
+package uk.ac.cam.seh208.middleware.core.comms.impl;
+
+import android.util.Log;
+
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQException;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Pool of connected REQ sockets, indexed by remote address, shared by all request
+ * streams of a context.
+ *
+ * A request stream borrows a socket for the duration of each request and returns it
+ * afterwards, so that consecutive requests to the same peer reuse a single connection
+ * rather than each paying for a new TCP handshake, while concurrent requests to the
+ * same peer each use a separate socket.
+ *
+ * A REQ socket which fails to receive the reply to a request cannot send another, so
+ * such sockets are discarded rather than returned. Sockets left idle for longer than
+ * a timeout are closed, as are sockets returned when the pool is full.
+ */
+public class ZMQRequestPool {
+
+    /**
+     * A connected socket held idle in the pool, and the time it was returned.
+     */
+    private static final class Idle {
+
+        private final ZMQ.Socket socket;
+
+        private final long since;
+
+
+        private Idle(ZMQ.Socket socket, long since) {
+            this.socket = socket;
+            this.since = since;
+        }
+    }
+
+
+    /**
+     * The maximum number of idle sockets held for a single address.
+     */
+    public static final int MAX_IDLE_PER_ADDRESS = 4;
+
+    /**
+     * The maximum number of idle sockets held across all addresses.
+     */
+    public static final int MAX_IDLE = 64;
+
+    /**
+     * The time (in milliseconds) after which an idle socket is closed.
+     */
+    public static final long IDLE_TIMEOUT_MILLIS = 60000;
+
+    /**
+     * The amount of time (in milliseconds) that sockets should remain open after a
+     * close call if they still have messages queueing.
+     */
+    private static final int SOCKET_LINGER = 0;
+
+
+    /**
+     * ZeroMQ context in which to open REQ sockets.
+     */
+    private final ZMQ.Context context;
+
+    /**
+     * The time (in milliseconds) to wait for the reply to a request before the socket
+     * is considered broken, unless the request gives its own timeout.
+     */
+    private final long replyTimeoutMillis;
+
+    /**
+     * Idle sockets for each address, most recently returned first.
+     */
+    private final Map<String, Deque<Idle>> idle;
+
+    /**
+     * The total number of idle sockets held.
+     */
+    private int idleCount;
+
+    /**
+     * The time (in nanoseconds) at which idle sockets were last checked for expiry.
+     */
+    private long lastSweep;
+
+    /**
+     * Track whether the pool has been closed.
+     */
+    private boolean closed;
+
+    /**
+     * Number of requests served by a pooled socket.
+     */
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * Number of sockets opened.
+     */
+    private final AtomicLong creations = new AtomicLong();
+
+    /**
+     * Number of sockets discarded after failing to complete a request.
+     */
+    private final AtomicLong broken = new AtomicLong();
+
+    /**
+     * Number of idle sockets closed after the idle timeout, or when the pool was full.
+     */
+    private final AtomicLong evictions = new AtomicLong();
+
+
+    ZMQRequestPool(ZMQ.Context context, long replyTimeoutMillis) {
+        this.context = context;
+        this.replyTimeoutMillis = replyTimeoutMillis;
+        idle = new HashMap<>();
+        lastSweep = System.nanoTime();
+    }
+
+    /**
+     * Take an idle socket connected to the given address from the pool, or open a new
+     * socket if none is idle.
+     *
+     * @return a connected REQ socket, or null if one could not be opened.
+     */
+    ZMQ.Socket acquire(ZMQAddress address) {
+        String key = address.toAddressString();
+
+        synchronized (this) {
+            if (closed) {
+                return null;
+            }
+            sweep();
+
+            Deque<Idle> sockets = idle.get(key);
+            if (sockets != null && !sockets.isEmpty()) {
+                Idle entry = sockets.pollFirst();
+                idleCount--;
+                if (sockets.isEmpty()) {
+                    idle.remove(key);
+                }
+
+                hits.incrementAndGet();
+                return entry.socket;
+            }
+        }
+
+        // No idle socket is available; open a new one.
+        ZMQ.Socket socket = null;
+        try {
+            socket = context.socket(ZMQ.REQ);
+            socket.setLinger(SOCKET_LINGER);
+            socket.setReceiveTimeOut((int) replyTimeoutMillis);
+            socket.setSendTimeOut((int) replyTimeoutMillis);
+
+            // Attempt to connect the socket to the peer.
+            socket.connect("tcp://" + key);
+        } catch (ZMQException e) {
+            // Close and release the new socket.
+            if (socket != null) {
+                socket.close();
+            }
+
+            return null;
+        }
+
+        creations.incrementAndGet();
+        return socket;
+    }
+
+    /**
+     * Return a socket to the pool after a completed request. If the pool is closed
+     * or full, the socket is closed instead.
+     */
+    void release(ZMQAddress address, ZMQ.Socket socket) {
+        String key = address.toAddressString();
+
+        synchronized (this) {
+            if (!closed) {
+                Deque<Idle> sockets = idle.get(key);
+                if (sockets == null) {
+                    sockets = new ArrayDeque<>();
+                    idle.put(key, sockets);
+                }
+
+                if (sockets.size() < MAX_IDLE_PER_ADDRESS && idleCount < MAX_IDLE) {
+                    sockets.addFirst(new Idle(socket, System.nanoTime()));
+                    idleCount++;
+                    return;
+                }
+
+                if (sockets.isEmpty()) {
+                    idle.remove(key);
+                }
+                evictions.incrementAndGet();
+            }
+        }
+
+        socket.close();
+    }
+
+    /**
+     * Close a socket which failed to complete a request, rather than returning it to
+     * the pool.
+     */
+    void discard(ZMQAddress address, ZMQ.Socket socket) {
+        Log.d(getTag(), "Discarding broken REQ socket to " + address.toAddressString());
+
+        broken.incrementAndGet();
+        socket.close();
+    }
+
+    /**
+     * Close idle sockets which have exceeded the idle timeout. This is done at
+     * most once per second.
+     */
+    private synchronized void sweep() {
+        long now = System.nanoTime();
+        if (now - lastSweep < TimeUnit.SECONDS.toNanos(1)) {
+            return;
+        }
+        lastSweep = now;
+
+        long timeout = TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT_MILLIS);
+        Iterator<Deque<Idle>> iterator = idle.values().iterator();
+        while (iterator.hasNext()) {
+            Deque<Idle> sockets = iterator.next();
+
+            // The least recently returned sockets are at the end of the deque.
+            while (!sockets.isEmpty() && now - sockets.peekLast().since >= timeout) {
+                sockets.pollLast().socket.close();
+                idleCount--;
+                evictions.incrementAndGet();
+            }
+
+            if (sockets.isEmpty()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Close all idle sockets, and prevent further sockets being pooled. Sockets
+     * currently borrowed are closed when returned.
+     */
+    synchronized void close() {
+        if (closed) {
+            return;
+        }
+
+        for (Deque<Idle> sockets : idle.values()) {
+            for (Idle entry : sockets) {
+                entry.socket.close();
+            }
+        }
+        idle.clear();
+        idleCount = 0;
+
+        closed = true;
+    }
+
+    /**
+     * @return the time (in milliseconds) to wait for the reply to a request by default.
+     */
+    public long getReplyTimeoutMillis() {
+        return replyTimeoutMillis;
+    }
+
+    /**
+     * @return the number of idle sockets currently held.
+     */
+    public synchronized int getIdleCount() {
+        return idleCount;
+    }
+
+    /**
+     * @return the number of requests served by a pooled socket.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of sockets opened.
+     */
+    public long getCreationCount() {
+        return creations.get();
+    }
+
+    /**
+     * @return the number of sockets discarded after failing to complete a request.
+     */
+    public long getBrokenCount() {
+        return broken.get();
+    }
+
+    /**
+     * @return the number of idle sockets closed by eviction.
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return "idle=" + getIdleCount() +
+                " hits=" + getHitCount() +
+                " created=" + getCreationCount() +
+                " broken=" + getBrokenCount() +
+                " evicted=" + getEvictionCount();
+    }
+
+    private static String getTag() {
+        return "REQ_POOL";
+    }
+}
@@ -6,8 +6,19 @@ import org.zeromq.ZMQ;
 import org.zeromq.ZMQException;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import uk.ac.cam.seh208.middleware.core.ElasticExecutor;
+import uk.ac.cam.seh208.middleware.core.LatencyHistogram;
 import uk.ac.cam.seh208.middleware.core.comms.Responder;
 
 
@@ -17,26 +28,114 @@ import uk.ac.cam.seh208.middleware.core.comms.Responder;
 public class ZMQRequestServer implements Runnable {
 
     /**
-     * The size of the thread pool created for responding to incoming requests.
+     * Statistics of the requests of a single type.
      */
-    private static final int RESPONDER_THREADS = 8;
+    public static final class TypeMetrics {
 
+        /**
+         * Number of requests of the type waiting for a worker.
+         */
+        private final AtomicInteger queued = new AtomicInteger();
+
+        /**
+         * Greatest number of requests of the type seen waiting at once.
+         */
+        private final AtomicInteger peakQueued = new AtomicInteger();
+
+        /**
+         * Time taken by the handler to respond to requests of the type.
+         */
+        private final LatencyHistogram handlerTime = new LatencyHistogram();
+
+
+        private void enqueue() {
+            int depth = queued.incrementAndGet();
+
+            int peak;
+            while (depth > (peak = peakQueued.get())) {
+                if (peakQueued.compareAndSet(peak, depth)) {
+                    break;
+                }
+            }
+        }
+
+        private void dequeue() {
+            queued.decrementAndGet();
+        }
+
+        /**
+         * @return the number of requests of the type waiting for a worker.
+         */
+        public int getQueueDepth() {
+            return queued.get();
+        }
+
+        /**
+         * @return the greatest number of requests of the type seen waiting at once.
+         */
+        public int getPeakQueueDepth() {
+            return peakQueued.get();
+        }
+
+        /**
+         * @return the histogram of the time taken to handle requests of the type.
+         */
+        public LatencyHistogram getHandlerTime() {
+            return handlerTime;
+        }
+
+        @Override
+        public String toString() {
+            return "queued=" + getQueueDepth() +
+                    " peak=" + getPeakQueueDepth() +
+                    " handler=[" + handlerTime + "]";
+        }
+    }
 
     /**
-     * Instantiate a new ZMQRequestServer object with the given parameters, and return
-     * a new Thread using its behaviour.
-     *
-     * @param context Context in which to open the ROUTER socket.
-     * @param responder Responder used to handle incoming requests.
-     * @param port Port on which the ROUTER socket should bind.
-     *
-     * @return a newly instantiated Thread object.
+     * A reply computed by a worker, waiting to be sent by the server thread.
      */
-    static Thread makeThread(ZMQ.Context context, Responder responder, int port) {
-        return new Thread(new ZMQRequestServer(context, responder, port));
+    private static final class Reply {
+
+        /**
+         * The envelope of the request: the identity of the peer, any frames added
+         * by the peer (such as a correlation identifier), and the empty delimiter.
+         */
+        private final List<byte[]> envelope;
+
+        private final String body;
+
+
+        private Reply(List<byte[]> envelope, String body) {
+            this.envelope = envelope;
+            this.body = body;
+        }
     }
 
 
+    /**
+     * The minimum number of threads handling long-running requests.
+     */
+    private static final int MIN_LONG_RUNNING_THREADS = 1;
+
+    /**
+     * The maximum number of requests waiting for a thread in each pool. Requests
+     * arriving beyond this are answered immediately with an empty (error) reply.
+     */
+    public static final int MAX_QUEUED_REQUESTS = 1024;
+
+    /**
+     * The maximum number of request types accounted for separately. Requests of
+     * further types are accounted for under the empty (unknown) type.
+     */
+    public static final int MAX_REQUEST_TYPES = 64;
+
+    /**
+     * Message sent over the inproc socket pair to wake the server thread.
+     */
+    private static final byte[] WAKE_MESSAGE = new byte[0];
+
+
     /**
      * ZeroMQ context in which to open the ROUTER socket.
      */
@@ -52,77 +151,127 @@ public class ZMQRequestServer implements Runnable {
      */
     private int port;
 
+    /**
+     * Replies computed by the workers and not yet sent.
+     */
+    private final ConcurrentLinkedQueue<Reply> replies;
+
+    /**
+     * Indicates that a wake-up message is outstanding.
+     */
+    private final AtomicBoolean signalled;
+
+    /**
+     * Socket used by the workers to wake the server thread. Access must be
+     * synchronised; null once the server has stopped.
+     */
+    private ZMQ.Socket wakeSender;
+
+    /**
+     * Pool of threads handling requests.
+     */
+    private final ElasticExecutor workers;
+
+    /**
+     * Pool of threads handling long-running requests, kept separate so that they
+     * cannot hold up the others.
+     */
+    private final ElasticExecutor longRunningWorkers;
+
+    /**
+     * Statistics of the requests received, indexed by request type.
+     */
+    private final Map<String, TypeMetrics> metrics;
+
 
     /**
      * Store the passed parameters in preparation for operation.
      *
      * @param context Context in which to open the ROUTER socket.
      * @param responder Responder used to handle incoming requests.
-     * @param port Port on which the ROUTER socket should bind.
+     * @param configuration Configuration providing the port on which the ROUTER
+     *                      socket should bind, and the bounds of the worker pools.
      */
-    private ZMQRequestServer(ZMQ.Context context, Responder responder, int port) {
+    ZMQRequestServer(ZMQ.Context context, Responder responder,
+                     ZMQSchemeConfiguration configuration) {
         this.context = context;
         this.responder = responder;
-        this.port = port;
+        port = configuration.getPort();
+        replies = new ConcurrentLinkedQueue<>();
+        signalled = new AtomicBoolean();
+        workers = new ElasticExecutor(configuration.getMinResponders(),
+                                      configuration.getMaxResponders(),
+                                      MAX_QUEUED_REQUESTS);
+        longRunningWorkers = new ElasticExecutor(MIN_LONG_RUNNING_THREADS,
+                                                 configuration.getMaxResponders(),
+                                                 MAX_QUEUED_REQUESTS);
+        metrics = new ConcurrentHashMap<>();
     }
 
     /**
      * Implementation of the request server.
      *
-     * A ROUTER socket is created for receiving requests from remote hosts,
-     * and a DEALER is connected to it via a ZeroMQ proxy in order to
-     * deal incoming requests between a number of worker threads.
+     * A ROUTER socket is created for receiving requests from remote hosts. Each
+     * request is handed to a pool of worker threads, and the reply queued for the
+     * server thread to send as soon as it is ready, so requests are answered in
+     * the order in which they complete rather than the order in which they arrive.
+     * Requests which the handler reports as long-running are handed to a separate
+     * pool. Both pools grow and shrink with the backlog of requests; should the
+     * backlog of a pool exceed its bound, further requests are refused with an
+     * empty reply, which peers take as an error.
+     *
+     * Replies are routed using the envelope of their request, so both REQ peers
+     * and DEALER peers tagging requests with a correlation identifier are served.
      */
     @Override
     public void run() {
-        ArrayList<Thread> workers = new ArrayList<>();
+        ZMQ.Poller poller = context.poller(2);
 
-        // Open the two ZeroMQ sockets.
+        // Open the ZeroMQ sockets.
         try (ZMQ.Socket router = context.socket(ZMQ.ROUTER);
-             ZMQ.Socket dealer = context.socket(ZMQ.DEALER)) {
+             ZMQ.Socket wakeReceiver = context.socket(ZMQ.PAIR)) {
             // Set up the outward facing ROUTER socket.
             router.setRouterMandatory(true);
             router.bind("tcp://*:" + port);
 
-            // Set up the inward facing DEALER socket.
+            // Set up the inward facing wake-up socket pair.
             Random random = new Random(System.nanoTime());
-            int internalId = random.nextInt();
-            dealer.bind("inproc://req_" + internalId);
-
-            // Spin up a number of worker threads to respond to dealt requests.
-            for (int i = 0; i < RESPONDER_THREADS; i++) {
-                Thread worker = new Thread(() -> {
-                    // Open a new reply socket for receiving requests from the dealer.
-                    try (ZMQ.Socket socket = context.socket(ZMQ.REP)) {
-                        socket.connect("inproc://req_" + internalId);
-
-                        // Loop, handling requests.
-                        while (!Thread.currentThread().isInterrupted()) {
-                            String request = socket.recvStr();
-                            Log.d(getTag() + ".T" + Thread.currentThread().getId(),
-                                    "Got request \"" + request + "\"");
-
-                            String response = responder.respond(request);
-                            if (response != null) {
-                                socket.send(response);
-                            } else {
-                                socket.send("");
-                            }
-                        }
-                    } catch (ZMQException ignored) {
-                        // Either we were interrupted, or some network error occurred.
-                    }
-                });
-                workers.add(worker);
-                worker.start();
+            String wakeEndpoint = "inproc://req_" + random.nextInt();
+            wakeReceiver.bind(wakeEndpoint);
+            synchronized (this) {
+                wakeSender = context.socket(ZMQ.PAIR);
+                wakeSender.connect(wakeEndpoint);
             }
 
-            // Connect responder threads to the router via a queue.
-            ZMQ.proxy(router, dealer, null);
+            int routerIndex = poller.register(router, ZMQ.Poller.POLLIN);
+            int wakeIndex = poller.register(wakeReceiver, ZMQ.Poller.POLLIN);
+
+            while (!Thread.currentThread().isInterrupted()) {
+                // Block until a request arrives, or a reply is ready.
+                poller.poll(-1);
+
+                if (poller.pollin(wakeIndex)) {
+                    // Consume the wake-up messages, and allow the next worker
+                    // to wake us again.
+                    while (wakeReceiver.recv(ZMQ.DONTWAIT) != null) {
+                        // Do nothing.
+                    }
+                    signalled.set(false);
+                }
+
+                // Send the replies which are ready.
+                Reply reply;
+                while ((reply = replies.poll()) != null) {
+                    send(router, reply);
+                }
+
+                if (poller.pollin(routerIndex)) {
+                    receive(router);
+                }
+            }
         } catch (ZMQException e) {
             if (e.getErrorCode() == ZMQ.Error.ETERM.getCode()) {
                 Log.i(getTag(), "Context was terminated.");
-                Log.i(getTag(), "Terminating request server...");
                 return;
             }
 
@@ -130,13 +279,20 @@ public class ZMQRequestServer implements Runnable {
             Log.e(getTag(), "ZeroMQ error: " + e);
         } finally {
             Log.i(getTag(), "Terminating request server...");
-            try {
-                // Interrupt and join all worker threads.
-                for (Thread worker : workers) {
-                    if (worker != null) {
-                        worker.join();
-                    }
+            poller.close();
+            synchronized (this) {
+                if (wakeSender != null) {
+                    wakeSender.close();
+                    wakeSender = null;
                 }
+            }
+
+            // Stop the worker threads; any replies they compute are discarded.
+            workers.shutdownNow();
+            longRunningWorkers.shutdownNow();
+            try {
+                workers.awaitTermination(1, TimeUnit.SECONDS);
+                longRunningWorkers.awaitTermination(1, TimeUnit.SECONDS);
             } catch (InterruptedException ignored) {
                 // Give up on joining threads.
                 Log.e(getTag(), "Could not join threads terminating request server.");
@@ -144,6 +300,147 @@ public class ZMQRequestServer implements Runnable {
         }
     }
 
+    /**
+     * Receive all waiting requests from the ROUTER socket, and hand each to the
+     * appropriate pool of workers for handling.
+     */
+    private void receive(ZMQ.Socket router) {
+        byte[] frame;
+        while ((frame = router.recv(ZMQ.DONTWAIT)) != null) {
+            // Read the envelope, up to and including the empty delimiter.
+            List<byte[]> envelope = new ArrayList<>();
+            envelope.add(frame);
+            while (router.hasReceiveMore() && frame.length > 0) {
+                frame = router.recv();
+                envelope.add(frame);
+            }
+
+            // The request body is the final frame.
+            String request = null;
+            while (router.hasReceiveMore()) {
+                request = router.recvStr();
+            }
+
+            if (request == null) {
+                Log.w(getTag(), "Discarding malformed request.");
+                continue;
+            }
+
+            // Classify the request before queueing it.
+            String type = responder.getType(request);
+            ElasticExecutor pool = responder.isLongRunning(type) ? longRunningWorkers : workers;
+            TypeMetrics typeMetrics = getMetrics(type);
+
+            String body = request;
+            typeMetrics.enqueue();
+            try {
+                pool.execute(() -> respond(envelope, body, typeMetrics));
+            } catch (RejectedExecutionException e) {
+                typeMetrics.dequeue();
+                if (pool.isShutdown()) {
+                    // The server is shutting down.
+                    return;
+                }
+
+                // The pool is saturated; refuse the request rather than queue it.
+                Log.w(getTag(), "Refusing request of type \"" + type + "\"; queue full.");
+                send(router, new Reply(envelope, ""));
+            }
+        }
+    }
+
+    /**
+     * Handle a single request on a worker thread, and queue the reply.
+     */
+    private void respond(List<byte[]> envelope, String request, TypeMetrics typeMetrics) {
+        typeMetrics.dequeue();
+        Log.d(getTag() + ".T" + Thread.currentThread().getId(),
+                "Got request \"" + request + "\"");
+
+        long start = System.nanoTime();
+        String response = responder.respond(request);
+        typeMetrics.handlerTime.record(
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        replies.add(new Reply(envelope, (response != null) ? response : ""));
+
+        // Wake the server thread to send the reply.
+        if (signalled.compareAndSet(false, true)) {
+            synchronized (this) {
+                if (wakeSender == null) {
+                    return;
+                }
+
+                try {
+                    wakeSender.send(WAKE_MESSAGE, ZMQ.DONTWAIT);
+                } catch (ZMQException e) {
+                    // The context is terminating; the server is already stopping.
+                }
+            }
+        }
+    }
+
+    /**
+     * Send a reply to its peer over the ROUTER socket.
+     */
+    private void send(ZMQ.Socket router, Reply reply) {
+        try {
+            for (byte[] frame : reply.envelope) {
+                router.sendMore(frame);
+            }
+            router.send(reply.body);
+        } catch (ZMQException e) {
+            if (e.getErrorCode() == ZMQ.Error.ETERM.getCode()) {
+                throw e;
+            }
+
+            // The peer is no longer connected; the reply cannot be delivered.
+            Log.w(getTag(), "Could not deliver reply: " + e);
+        }
+    }
+
+    /**
+     * Get the statistics of the given request type, creating them if necessary. Types
+     * are reported by the handler, and may derive from the request, so once the limit
+     * of types is reached any new type is accounted for under the empty type.
+     */
+    private TypeMetrics getMetrics(String type) {
+        TypeMetrics typeMetrics = metrics.get(type);
+        if (typeMetrics == null && metrics.size() >= MAX_REQUEST_TYPES) {
+            type = "";
+            typeMetrics = metrics.get(type);
+        }
+        if (typeMetrics == null) {
+            typeMetrics = new TypeMetrics();
+            TypeMetrics existing = metrics.putIfAbsent(type, typeMetrics);
+            if (existing != null) {
+                typeMetrics = existing;
+            }
+        }
+
+        return typeMetrics;
+    }
+
+    /**
+     * @return the statistics of the requests received, indexed by request type.
+     */
+    public Map<String, TypeMetrics> getMetrics() {
+        return Collections.unmodifiableMap(metrics);
+    }
+
+    /**
+     * @return the pool of threads handling requests.
+     */
+    public ElasticExecutor getWorkers() {
+        return workers;
+    }
+
+    /**
+     * @return the pool of threads handling long-running requests.
+     */
+    public ElasticExecutor getLongRunningWorkers() {
+        return longRunningWorkers;
+    }
+
     private String getTag() {
         return "REQ_SERVER[" + port + "]";
     }
@@ -3,23 +3,30 @@ package uk.ac.cam.seh208.middleware.core.comms.impl;
 import org.zeromq.ZMQ;
 import org.zeromq.ZMQException;
 
+import java8.util.concurrent.CompletableFuture;
 import uk.ac.cam.seh208.middleware.core.comms.RequestStream;
+import uk.ac.cam.seh208.middleware.core.exception.RequestFailedException;
 
 
 /**
  * ZeroMQ implementor of the request stream interface.
+ *
+ * The stream does not own a socket; for each synchronous request, it borrows a
+ * REQ socket connected to the peer from the pool of its context, returning it
+ * once the reply is received. Asynchronous requests are pipelined over the DEALER
+ * socket to the peer shared through the dispatcher of the context.
  */
 public class ZMQRequestStream extends RequestStream {
 
     /**
-     * REQ socket over which to send new requests.
+     * Pool from which to borrow REQ sockets for new requests.
      */
-    private ZMQ.Socket socket;
+    private ZMQRequestPool pool;
 
     /**
-     * ZeroMQ context in which to open the REQ socket.
+     * Dispatcher through which to send asynchronous requests.
      */
-    private ZMQ.Context context;
+    private ZMQRequestDispatcher dispatcher;
 
     /**
      * The ZeroMQ address with which this stream communicates.
@@ -27,109 +34,92 @@ public class ZMQRequestStream extends RequestStream {
     private ZMQAddress remoteAddress;
 
 
-    ZMQRequestStream(ZMQ.Context context, ZMQAddress remoteAddress) {
-        this.context = context;
+    ZMQRequestStream(ZMQRequestPool pool, ZMQRequestDispatcher dispatcher,
+                     ZMQAddress remoteAddress) {
+        this.pool = pool;
+        this.dispatcher = dispatcher;
         this.remoteAddress = remoteAddress;
     }
 
+    /**
+     * Send a request message to the remote host over a pooled request socket. Should
+     * the stream be closed, the remote host respond with an error, or no reply be
+     * received within the reply timeout of the pool, null is returned.
+     *
+     * @param request String request to send to the remote middleware instance.
+     *
+     * @return the response string, or null in the case of an error.
+     */
     @Override
-    public synchronized void close() {
-        // We are already closed.
-        if (isClosed()) {
-            return;
-        }
-
-        // Disconnect from the peer (if connected).
-        disconnect();
-
-        super.close();
+    public String request(String request) {
+        return request(request, pool.getReplyTimeoutMillis());
     }
 
     /**
-     * Send a request message to the remote host over the request socket, opening
-     * the socket if it does not yet exist. Should the stream be remotely closed,
-     * or the remote host respond with an error, null is returned immediately.
+     * Send a request message to the remote host over a pooled request socket. Should
+     * the stream be closed, the remote host respond with an error, or no reply be
+     * received within the given timeout, null is returned.
      *
      * @param request String request to send to the remote middleware instance.
+     * @param timeoutMillis Time (in milliseconds) to wait for the response.
      *
      * @return the response string, or null in the case of an error.
      */
     @Override
-    public synchronized String request(String request) {
+    public synchronized String request(String request, long timeoutMillis) {
         // We cannot send from a closed stream.
         if (isClosed()) {
             return null;
         }
 
-        // If the REQ socket has not been opened, do so now.
+        // Borrow a socket connected to the peer.
+        ZMQ.Socket socket = pool.acquire(remoteAddress);
         if (socket == null) {
-            if (!connect()) {
-                return null;
-            }
-
-            // The new socket has been created and connected successfully.
-        }
-
-        // Send the string request over the socket.
-        socket.send(request);
-
-        try {
-            // Wait for a response from the peer.
-            return socket.recvStr();
-        } catch (ZMQException e) {
-            // Indicate failure by returning null.
             return null;
         }
-    }
-
-    /**
-     * Open the REQ socket to the peer if this has not already been done.
-     *
-     * @return whether the REQ socket exists and is connected to the peer. If not,
-     *         the socket field will remain null.
-     */
-    private synchronized boolean connect() {
-        // We cannot re-establish a socket after the stream has been closed.
-        if (isClosed()) {
-            return false;
-        }
-
-        // If the socket has already been opened, do not open another.
-        if (socket != null) {
-            return true;
-        }
 
+        String response;
         try {
-            // Open a new REQ socket.
-            socket = context.socket(ZMQ.REQ);
+            // Pooled sockets may have been left with the timeout of an earlier request.
+            socket.setReceiveTimeOut((int) timeoutMillis);
+            socket.setSendTimeOut((int) timeoutMillis);
 
-            // Attempt to connect the socket to the peer.
-            socket.connect("tcp://" + remoteAddress.toAddressString());
+            // Send the string request over the socket, and wait for a response
+            // from the peer.
+            response = socket.send(request) ? socket.recvStr() : null;
         } catch (ZMQException e) {
-            // Close and release the new socket.
-            if (socket != null) {
-                socket.close();
-                socket = null;
-            }
+            response = null;
+        }
 
-            return false;
+        if (response == null) {
+            // The REQ socket is left awaiting a reply, and cannot be used again.
+            pool.discard(remoteAddress, socket);
+            return null;
         }
 
-        return true;
+        // The socket is ready for the next request; return it to the pool.
+        pool.release(remoteAddress, socket);
+        return response;
     }
 
     /**
-     * Close the REQ socket to the peer if it is currently open, breaking
-     * the connection to the peer.
+     * Send a request message to the remote host through the dispatcher, without
+     * waiting for the response.
+     *
+     * @param request String request to send to the remote middleware instance.
+     * @param timeoutMillis Time (in milliseconds) to wait for the response.
+     *
+     * @return a future completed with the response string.
      */
-    private synchronized void disconnect() {
-        // If the DEALER does not exist, there's nothing to close.
-        if (socket == null) {
-            return;
+    @Override
+    public CompletableFuture<String> requestAsync(String request, long timeoutMillis) {
+        // We cannot send from a closed stream.
+        if (isClosed()) {
+            CompletableFuture<String> future = new CompletableFuture<>();
+            future.completeExceptionally(new RequestFailedException("Stream closed."));
+            return future;
         }
 
-        // Close and release the socket.
-        socket.close();
-        socket = null;
+        return dispatcher.submit(remoteAddress, request, timeoutMillis);
     }
 }
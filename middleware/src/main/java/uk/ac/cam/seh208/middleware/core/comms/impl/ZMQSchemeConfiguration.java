@@ -1,29 +1,232 @@
 package uk.ac.cam.seh208.middleware.core.comms.impl;
 
 import uk.ac.cam.seh208.middleware.core.comms.Address;
+import uk.ac.cam.seh208.middleware.core.comms.OverflowPolicy;
 import uk.ac.cam.seh208.middleware.core.comms.SchemeConfiguration;
 
 
 public class ZMQSchemeConfiguration implements SchemeConfiguration {
 
+    /**
+     * Builder for configurations, starting from the defaults of each parameter.
+     */
+    public static class Builder {
+
+        private int port;
+
+        private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+        private OverflowPolicy overflowPolicy = DEFAULT_OVERFLOW_POLICY;
+
+        private int dispatchShards = DEFAULT_DISPATCH_SHARDS;
+
+        private OverflowPolicy dispatchOverflowPolicy = DEFAULT_DISPATCH_OVERFLOW_POLICY;
+
+        private int minResponders = DEFAULT_MIN_RESPONDERS;
+
+        private int maxResponders = DEFAULT_MAX_RESPONDERS;
+
+        private long heartbeatIntervalMillis = DEFAULT_HEARTBEAT_INTERVAL_MILLIS;
+
+        private long heartbeatTimeoutMillis = DEFAULT_HEARTBEAT_TIMEOUT_MILLIS;
+
+        private long replyTimeoutMillis = DEFAULT_REPLY_TIMEOUT_MILLIS;
+
+
+        public Builder setPort(int port) {
+            this.port = port;
+            return this;
+        }
+
+        public Builder setQueueCapacity(int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+            return this;
+        }
+
+        public Builder setOverflowPolicy(OverflowPolicy overflowPolicy) {
+            this.overflowPolicy = overflowPolicy;
+            return this;
+        }
+
+        public Builder setDispatchShards(int dispatchShards) {
+            this.dispatchShards = dispatchShards;
+            return this;
+        }
+
+        public Builder setDispatchOverflowPolicy(OverflowPolicy dispatchOverflowPolicy) {
+            this.dispatchOverflowPolicy = dispatchOverflowPolicy;
+            return this;
+        }
+
+        public Builder setMinResponders(int minResponders) {
+            this.minResponders = minResponders;
+            return this;
+        }
+
+        public Builder setMaxResponders(int maxResponders) {
+            this.maxResponders = maxResponders;
+            return this;
+        }
+
+        public Builder setHeartbeatIntervalMillis(long heartbeatIntervalMillis) {
+            this.heartbeatIntervalMillis = heartbeatIntervalMillis;
+            return this;
+        }
+
+        public Builder setHeartbeatTimeoutMillis(long heartbeatTimeoutMillis) {
+            this.heartbeatTimeoutMillis = heartbeatTimeoutMillis;
+            return this;
+        }
+
+        public Builder setReplyTimeoutMillis(long replyTimeoutMillis) {
+            this.replyTimeoutMillis = replyTimeoutMillis;
+            return this;
+        }
+
+        public ZMQSchemeConfiguration build() {
+            return new ZMQSchemeConfiguration(this);
+        }
+    }
+
     public static final int DEFAULT_MESSAGE_PORT = 4852;
 
     public static final int DEFAULT_REQUEST_PORT = 4853;
 
     public static final int DEFAULT_RDC_PORT = 4854;
 
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    public static final OverflowPolicy DEFAULT_OVERFLOW_POLICY = OverflowPolicy.BLOCK;
+
+    public static final int DEFAULT_DISPATCH_SHARDS =
+            Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    public static final OverflowPolicy DEFAULT_DISPATCH_OVERFLOW_POLICY =
+            OverflowPolicy.DROP_NEWEST;
+
+    public static final int DEFAULT_MIN_RESPONDERS = 2;
+
+    public static final int DEFAULT_MAX_RESPONDERS = 32;
+
+    public static final long DEFAULT_HEARTBEAT_INTERVAL_MILLIS = 1000;
+
+    public static final long DEFAULT_HEARTBEAT_TIMEOUT_MILLIS = 5000;
 
-    private int port;
+    public static final long DEFAULT_REPLY_TIMEOUT_MILLIS = 10000;
+
+
+    private final int port;
+
+    /**
+     * Capacity of the outbound queue of each message stream.
+     */
+    private final int queueCapacity;
+
+    /**
+     * Behaviour of senders when the outbound queue of a message stream is full.
+     */
+    private final OverflowPolicy overflowPolicy;
+
+    /**
+     * Number of threads across which incoming messages are dispatched. Messages
+     * from any one peer are always dispatched by the same thread.
+     */
+    private final int dispatchShards;
+
+    /**
+     * Behaviour of the server when incoming messages arrive for a full dispatch
+     * thread. Blocking stalls the receipt of messages from every peer, so by
+     * default the new message is discarded instead.
+     */
+    private final OverflowPolicy dispatchOverflowPolicy;
+
+    /**
+     * Minimum number of threads handling incoming requests.
+     */
+    private final int minResponders;
+
+    /**
+     * Maximum number of threads handling incoming requests. Long-running requests
+     * are handled by a separate pool with the same maximum.
+     */
+    private final int maxResponders;
+
+    /**
+     * Interval (in milliseconds) between heartbeats sent on each message stream,
+     * or zero to disable heartbeats.
+     */
+    private final long heartbeatIntervalMillis;
+
+    /**
+     * Time (in milliseconds) without hearing from the peer of a message stream
+     * after which the stream is closed.
+     */
+    private final long heartbeatTimeoutMillis;
+
+    /**
+     * Time (in milliseconds) to wait for the reply to a synchronous request, unless
+     * the caller gives its own timeout.
+     */
+    private final long replyTimeoutMillis;
 
 
     public ZMQSchemeConfiguration(int port) {
-        this.port = port;
+        this(new Builder().setPort(port));
+    }
+
+    private ZMQSchemeConfiguration(Builder builder) {
+        port = builder.port;
+        queueCapacity = builder.queueCapacity;
+        overflowPolicy = builder.overflowPolicy;
+        dispatchShards = builder.dispatchShards;
+        dispatchOverflowPolicy = builder.dispatchOverflowPolicy;
+        minResponders = builder.minResponders;
+        maxResponders = builder.maxResponders;
+        heartbeatIntervalMillis = builder.heartbeatIntervalMillis;
+        heartbeatTimeoutMillis = builder.heartbeatTimeoutMillis;
+        replyTimeoutMillis = builder.replyTimeoutMillis;
     }
 
     public int getPort() {
         return port;
     }
 
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public int getDispatchShards() {
+        return dispatchShards;
+    }
+
+    public OverflowPolicy getDispatchOverflowPolicy() {
+        return dispatchOverflowPolicy;
+    }
+
+    public int getMinResponders() {
+        return minResponders;
+    }
+
+    public int getMaxResponders() {
+        return maxResponders;
+    }
+
+    public long getHeartbeatIntervalMillis() {
+        return heartbeatIntervalMillis;
+    }
+
+    public long getHeartbeatTimeoutMillis() {
+        return heartbeatTimeoutMillis;
+    }
+
+    public long getReplyTimeoutMillis() {
+        return replyTimeoutMillis;
+    }
+
     @Override
     public String getScheme() {
         return Address.SCHEME_ZMQ;
@@ -7,6 +7,7 @@ import com.fasterxml.jackson.annotation.JsonTypeInfo;
 
 import java.io.IOException;
 
+import java8.util.concurrent.CompletableFuture;
 import uk.ac.cam.seh208.middleware.common.JSONSerializable;
 import uk.ac.cam.seh208.middleware.core.comms.RequestStream;
 
@@ -25,6 +26,9 @@ import uk.ac.cam.seh208.middleware.core.comms.RequestStream;
         @JsonSubTypes.Type(value = QueryControlMessage.class, name = "QUERY"),
         @JsonSubTypes.Type(value = UpdateControlMessage.class, name = "UPDATE"),
         @JsonSubTypes.Type(value = RemoveControlMessage.class, name = "REMOVE"),
+        @JsonSubTypes.Type(value = RenewControlMessage.class, name = "RENEW"),
+        @JsonSubTypes.Type(value = DeltaControlMessage.class, name = "DELTA"),
+        @JsonSubTypes.Type(value = InvalidateControlMessage.class, name = "INVALIDATE"),
         @JsonSubTypes.Type(value = MiddlewareCommandControlMessage.class, name = "MW_COMMAND"),
         @JsonSubTypes.Type(value = EndpointCommandControlMessage.class, name = "EP_COMMAND")
 })
@@ -50,6 +54,12 @@ public abstract class ControlMessage implements JSONSerializable {
                                name = "UPDATE.R"),
             @JsonSubTypes.Type(value = RemoveControlMessage.Response.class,
                                name = "REMOVE.R"),
+            @JsonSubTypes.Type(value = RenewControlMessage.Response.class,
+                               name = "RENEW.R"),
+            @JsonSubTypes.Type(value = DeltaControlMessage.Response.class,
+                               name = "DELTA.R"),
+            @JsonSubTypes.Type(value = InvalidateControlMessage.Response.class,
+                               name = "INVALIDATE.R"),
             @JsonSubTypes.Type(value = MiddlewareCommandControlMessage.Response.class,
                                name = "MW_COMMAND.R"),
             @JsonSubTypes.Type(value = EndpointCommandControlMessage.Response.class,
@@ -68,20 +78,68 @@ public abstract class ControlMessage implements JSONSerializable {
     public Response getResponse(RequestStream stream) {
         try {
             // Serialise this message over the stream and get the string response.
-            String response = stream.request(this.toJSON());
-
-            // If no response was received, return null.
-            if (response == null) {
-                return null;
-            }
+            return parseResponse(stream.request(this.toJSON()));
+        } catch (IOException e) {
+            // Return null to indicate a bad response was received.
+            return null;
+        }
+    }
 
-            return JSONSerializable.fromJSON(response, Response.class);
+    /**
+     * Send the control message over a given stream, waiting at most the given time
+     * for the response. Messages whose handling makes further requests of other hosts
+     * may need longer than the default reply timeout of the stream.
+     *
+     * @param stream A ready-for-sending request stream to the remote host.
+     * @param timeoutMillis Time (in milliseconds) to wait for the response.
+     *
+     * @return a Response object, or null in the case of an error.
+     */
+    public Response getResponse(RequestStream stream, long timeoutMillis) {
+        try {
+            // Serialise this message over the stream and get the string response.
+            return parseResponse(stream.request(this.toJSON(), timeoutMillis));
         } catch (IOException e) {
             // Return null to indicate a bad response was received.
             return null;
         }
     }
 
+    /**
+     * Deserialise a string response to this message.
+     */
+    private Response parseResponse(String response) throws IOException {
+        // If no response was received, return null.
+        if (response == null) {
+            return null;
+        }
+
+        return JSONSerializable.fromJSON(response, Response.class);
+    }
+
+    /**
+     * Send the control message over a given stream without waiting for the response.
+     * Many control messages may be outstanding over a single stream at once.
+     *
+     * @param stream A ready-for-sending request stream to the remote host.
+     * @param timeoutMillis Time (in milliseconds) to wait for the response.
+     *
+     * @return a future completed with a reference to the response object, or null if
+     *         a bad response was received. The future completes exceptionally if no
+     *         response is received within the timeout.
+     */
+    public CompletableFuture<Response> getResponseAsync(RequestStream stream,
+                                                       long timeoutMillis) {
+        return stream.requestAsync(this.toJSON(), timeoutMillis).thenApply(response -> {
+            try {
+                return JSONSerializable.fromJSON(response, Response.class);
+            } catch (IOException e) {
+                // Return null to indicate a bad response was received.
+                return null;
+            }
+        });
+    }
+
     /**
      * Handle the control message according to its definition.
      *
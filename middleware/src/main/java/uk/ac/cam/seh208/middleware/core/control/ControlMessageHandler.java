@@ -3,9 +3,16 @@ package uk.ac.cam.seh208.middleware.core.control;
 import android.app.Service;
 import android.util.Log;
 
+import com.fasterxml.jackson.annotation.JsonSubTypes;
+
 import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 
+import uk.ac.cam.seh208.middleware.common.JSONCodec;
 import uk.ac.cam.seh208.middleware.common.JSONSerializable;
+import uk.ac.cam.seh208.middleware.core.comms.Address;
 import uk.ac.cam.seh208.middleware.core.comms.RequestHandler;
 
 
@@ -15,6 +22,33 @@ import uk.ac.cam.seh208.middleware.core.comms.RequestHandler;
  */
 public class ControlMessageHandler implements RequestHandler {
 
+    /**
+     * The prefix of the type property, as written by the control message serialiser.
+     */
+    private static final String TAG_PREFIX = "\"tag\":\"";
+
+    /**
+     * The tags of all known control messages. Requests are classified only by these,
+     * so that peers cannot introduce arbitrarily many request types.
+     */
+    private static final Set<String> TYPES;
+
+
+    static {
+        // Resolve the polymorphic control message and address (de)serialisers
+        // ahead of the first request.
+        JSONCodec.register(ControlMessage.class, ControlMessage.Response.class, Address.class);
+
+        // Collect the tags of the control message subtypes.
+        Set<String> types = new HashSet<>();
+        for (JsonSubTypes.Type type :
+                ControlMessage.class.getAnnotation(JsonSubTypes.class).value()) {
+            types.add(type.name());
+        }
+        TYPES = Collections.unmodifiableSet(types);
+    }
+
+
     /**
      * Reference to the owning service.
      */
@@ -53,6 +87,39 @@ public class ControlMessageHandler implements RequestHandler {
         }
     }
 
+    /**
+     * Extract the tag of a control message by scanning for its type property,
+     * rather than parsing the message in full.
+     *
+     * @return the tag of the control message, or the empty string if none is found
+     *         or the tag is not that of a known control message.
+     */
+    @Override
+    public String getType(String request) {
+        int start = request.indexOf(TAG_PREFIX);
+        if (start < 0) {
+            return "";
+        }
+        start += TAG_PREFIX.length();
+
+        int end = request.indexOf('"', start);
+        if (end < 0) {
+            return "";
+        }
+
+        String type = request.substring(start, end);
+        return TYPES.contains(type) ? type : "";
+    }
+
+    /**
+     * Commands are long-running, as forced commands may make further blocking
+     * requests (for example, mapping an endpoint) before responding.
+     */
+    @Override
+    public boolean isLongRunning(String type) {
+        return "MW_COMMAND".equals(type) || "EP_COMMAND".equals(type);
+    }
+
     private static String getTag() {
         return "HANDLER";
     }
@@ -0,0 +1,138 @@
+package uk.ac.cam.seh208.middleware.core.control;
+
+import android.app.Service;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import uk.ac.cam.seh208.middleware.common.EndpointDetails;
+import uk.ac.cam.seh208.middleware.core.RDCService;
+import uk.ac.cam.seh208.middleware.core.comms.RequestStream;
+
+
+/**
+ * Control message sent to an RDC to update the list of endpoints exposed by the local
+ * middleware incrementally, relative to a version of the entry previously sent.
+ *
+ * The delta is applied only if the version held by the RDC matches the base version
+ * of the delta; otherwise, the middleware must resynchronise with a full UPDATE.
+ */
+public class DeltaControlMessage extends ControlMessage {
+
+    /**
+     * The response indicates the duration in milliseconds of the lease granted on the
+     * entry, or zero if the delta was not applied because the versions diverged.
+     */
+    public static class Response extends ControlMessage.Response {
+
+        private long lease;
+
+
+        public Response(@JsonProperty("lease") long lease) {
+            this.lease = lease;
+        }
+
+        public long getLease() {
+            return lease;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            Response other = (Response) obj;
+
+            return lease == other.lease;
+        }
+    }
+
+
+    /**
+     * Location of the middleware instance.
+     */
+    private Middleware middleware;
+
+    /**
+     * Version of the entry against which the delta was computed.
+     */
+    private long baseVersion;
+
+    /**
+     * Version of the entry after the delta is applied.
+     */
+    private long version;
+
+    /**
+     * Details of the endpoints added or changed since the base version.
+     */
+    private List<EndpointDetails> upserts;
+
+    /**
+     * Identifiers of the endpoints removed since the base version.
+     */
+    private List<Long> removals;
+
+
+    /**
+     * Instantiate a new immutable DELTA control message for the given middleware.
+     */
+    public DeltaControlMessage(@JsonProperty("middleware") Middleware middleware,
+                               @JsonProperty("baseVersion") long baseVersion,
+                               @JsonProperty("version") long version,
+                               @JsonProperty("upserts") List<EndpointDetails> upserts,
+                               @JsonProperty("removals") List<Long> removals) {
+        this.middleware = middleware;
+        this.baseVersion = baseVersion;
+        this.version = version;
+        this.upserts = new ArrayList<>(upserts);
+        this.removals = new ArrayList<>(removals);
+    }
+
+    /**
+     * Apply the delta to the entry in the RDC state, and respond with the lease
+     * granted on it.
+     *
+     * @param service A reference to the RDC service receiving the message.
+     *
+     * @return a response containing the lease duration.
+     */
+    @Override
+    public Response handle(Service service) {
+        if (!(service instanceof RDCService)) {
+            // DELTA can only be handled by an RDC instance.
+            return null;
+        }
+
+        RDCService rdc = (RDCService) service;
+        return new Response(rdc.applyDelta(middleware, baseVersion, version, upserts, removals));
+    }
+
+    @Override
+    public Response getResponse(RequestStream stream) {
+        return (Response) super.getResponse(stream);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        DeltaControlMessage other = (DeltaControlMessage) obj;
+
+        return (Objects.equals(middleware, other.middleware)
+                && baseVersion == other.baseVersion
+                && version == other.version
+                && Objects.equals(upserts, other.upserts)
+                && Objects.equals(removals, other.removals));
+    }
+}
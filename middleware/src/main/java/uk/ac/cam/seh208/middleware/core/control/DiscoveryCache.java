@@ -0,0 +1,376 @@
+package uk.ac.cam.seh208.middleware.core.control;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uk.ac.cam.seh208.middleware.common.Query;
+
+
+/**
+ * Bounded cache of the results of discovery queries sent to an RDC.
+ *
+ * Results are held for a fixed time to live; empty results are held for a separate
+ * (typically shorter) time, so that repeated queries for absent resources do not each
+ * reach the RDC, while their appearance is still noticed promptly.
+ *
+ * The RDC numbers the states of its database with a generation, reported in the
+ * responses to queries and lease renewals, and optionally pushed to middlewares on
+ * change. Where the RDC also reports the tags of the endpoints changed since the
+ * generation last observed, only the results of queries which may depend on those
+ * endpoints are invalidated: a changed endpoint can only affect the result of a query
+ * if it has every tag the query includes, so results of queries including none of the
+ * changed tags are kept. All cached results are invalidated whenever a different
+ * generation is observed without such a report.
+ *
+ * Times are supplied by the caller in milliseconds from an arbitrary monotonic origin.
+ */
+public class DiscoveryCache {
+
+    /**
+     * A cached result, and the time after which it is stale.
+     */
+    private static final class Entry {
+
+        private final List<Middleware> middlewares;
+
+        private final long created;
+
+        private final long expiry;
+
+
+        private Entry(List<Middleware> middlewares, long created, long expiry) {
+            this.middlewares = middlewares;
+            this.created = created;
+            this.expiry = expiry;
+        }
+    }
+
+
+    /**
+     * Default time to live of non-empty results, in milliseconds.
+     */
+    public static final long DEFAULT_TTL_MILLIS = 10000;
+
+    /**
+     * Default time to live of empty results, in milliseconds.
+     */
+    public static final long DEFAULT_NEGATIVE_TTL_MILLIS = 2000;
+
+    /**
+     * Default maximum number of cached results.
+     */
+    public static final int DEFAULT_CAPACITY = 64;
+
+
+    /**
+     * Cached results, indexed by query, in least-recently-used order.
+     */
+    private final LinkedHashMap<Query, Entry> entries;
+
+    /**
+     * Time to live of non-empty results, in milliseconds.
+     */
+    private long ttl;
+
+    /**
+     * Time to live of empty results, in milliseconds.
+     */
+    private long negativeTtl;
+
+    /**
+     * The most recent RDC generation observed, to which all cached results belong.
+     */
+    private long generation;
+
+    /**
+     * Number of lookups served from the cache.
+     */
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * Number of lookups served from the cache with an empty result.
+     */
+    private final AtomicLong negativeHits = new AtomicLong();
+
+    /**
+     * Number of lookups not served from the cache, including those finding a stale result.
+     */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Number of lookups finding a stale result.
+     */
+    private final AtomicLong staleMisses = new AtomicLong();
+
+    /**
+     * Number of times the cache was invalidated.
+     */
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * Total age of the results served from the cache, in milliseconds.
+     */
+    private final AtomicLong servedAgeMillis = new AtomicLong();
+
+
+    /**
+     * Construct a new, empty cache with the default parameters.
+     */
+    public DiscoveryCache() {
+        this(DEFAULT_CAPACITY, DEFAULT_TTL_MILLIS, DEFAULT_NEGATIVE_TTL_MILLIS);
+    }
+
+    /**
+     * Construct a new, empty cache.
+     *
+     * @param capacity Maximum number of cached results.
+     * @param ttl Time to live of non-empty results, in milliseconds.
+     * @param negativeTtl Time to live of empty results, in milliseconds.
+     */
+    public DiscoveryCache(final int capacity, long ttl, long negativeTtl) {
+        entries = new LinkedHashMap<Query, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Query, Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+    }
+
+    /**
+     * The RDC disregards the matches limit of queries, so results are cached
+     * against the query with its limit removed.
+     */
+    private static Query keyOf(Query query) {
+        if (query.matches == Query.MATCH_INDEFINITELY) {
+            return query;
+        }
+
+        return new Query.Builder()
+                .copy(query)
+                .setMatches(Query.MATCH_INDEFINITELY)
+                .build();
+    }
+
+    /**
+     * Look up the cached result of a query.
+     *
+     * @param query The query to look up.
+     * @param now The current time in milliseconds.
+     *
+     * @return an unmodifiable list of the middlewares matching the query, or null
+     *         if no fresh result is cached.
+     */
+    public synchronized List<Middleware> get(Query query, long now) {
+        Query key = keyOf(query);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        if (now >= entry.expiry) {
+            // The result is stale; drop it and go to the RDC.
+            entries.remove(key);
+            staleMisses.incrementAndGet();
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        if (entry.middlewares.isEmpty()) {
+            negativeHits.incrementAndGet();
+        }
+        servedAgeMillis.addAndGet(now - entry.created);
+        return entry.middlewares;
+    }
+
+    /**
+     * Cache the result of a query, as returned by the RDC.
+     *
+     * @param query The query sent to the RDC.
+     * @param middlewares The middlewares matching the query.
+     * @param generation The RDC generation reported with the result.
+     * @param now The current time in milliseconds.
+     */
+    public synchronized void put(Query query, List<Middleware> middlewares,
+                                 long generation, long now) {
+        // Results of a different generation invalidate those already cached.
+        observeGeneration(generation);
+        store(query, middlewares, now);
+    }
+
+    /**
+     * Cache the result of a query, as returned by the RDC along with the tags of the
+     * endpoints changed since the generation given in the query.
+     *
+     * @param query The query sent to the RDC.
+     * @param middlewares The middlewares matching the query.
+     * @param since The generation observed when the query was sent.
+     * @param generation The RDC generation reported with the result.
+     * @param changedTags The tags of the endpoints changed since the generation given
+     *                    in the query, or null if unknown.
+     * @param now The current time in milliseconds.
+     */
+    public synchronized void put(Query query, List<Middleware> middlewares, long since,
+                                 long generation, Collection<String> changedTags, long now) {
+        observeChanges(since, generation, changedTags);
+        store(query, middlewares, now);
+    }
+
+    private void store(Query query, List<Middleware> middlewares, long now) {
+        long lifetime = middlewares.isEmpty() ? negativeTtl : ttl;
+        if (lifetime <= 0) {
+            return;
+        }
+
+        List<Middleware> copy = Collections.unmodifiableList(new ArrayList<>(middlewares));
+        entries.put(keyOf(query), new Entry(copy, now, now + lifetime));
+    }
+
+    /**
+     * Note the current generation of the RDC database, invalidating all cached
+     * results if it differs from that previously observed.
+     */
+    public synchronized void observeGeneration(long generation) {
+        if (generation == this.generation) {
+            return;
+        }
+
+        this.generation = generation;
+        clear();
+    }
+
+    /**
+     * Note the current generation of the RDC database, along with the tags of the
+     * endpoints changed since a previous generation, invalidating only the cached
+     * results which may depend on those endpoints.
+     *
+     * @param since The generation from which the changes were computed.
+     * @param generation The current generation of the RDC database.
+     * @param changedTags The tags of the endpoints changed since the given generation,
+     *                    or null if unknown.
+     */
+    public synchronized void observeChanges(long since, long generation,
+                                            Collection<String> changedTags) {
+        if (generation == this.generation) {
+            return;
+        }
+
+        if (changedTags == null || since != this.generation) {
+            // The changes do not describe the move from the generation we hold.
+            observeGeneration(generation);
+            return;
+        }
+
+        this.generation = generation;
+        boolean invalidated = false;
+        Iterator<Query> keys = entries.keySet().iterator();
+        while (keys.hasNext()) {
+            Query key = keys.next();
+            if (key.tagsToInclude.isEmpty() ||
+                    !Collections.disjoint(key.tagsToInclude, changedTags)) {
+                keys.remove();
+                invalidated = true;
+            }
+        }
+        if (invalidated) {
+            invalidations.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the most recent RDC generation observed.
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Drop all cached results, and forget the observed generation.
+     */
+    public synchronized void reset() {
+        generation = 0;
+        clear();
+    }
+
+    private void clear() {
+        if (!entries.isEmpty()) {
+            entries.clear();
+            invalidations.incrementAndGet();
+        }
+    }
+
+    /**
+     * Set the times to live of cached results. Results already cached keep their
+     * original expiry times.
+     *
+     * @param ttl Time to live of non-empty results, in milliseconds.
+     * @param negativeTtl Time to live of empty results, in milliseconds. A value of
+     *                    zero disables negative caching.
+     */
+    public synchronized void setTTL(long ttl, long negativeTtl) {
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+    }
+
+    /**
+     * @return the number of lookups served from the cache.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of lookups served from the cache with an empty result.
+     */
+    public long getNegativeHitCount() {
+        return negativeHits.get();
+    }
+
+    /**
+     * @return the number of lookups not served from the cache.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of lookups finding only a stale result.
+     */
+    public long getStaleCount() {
+        return staleMisses.get();
+    }
+
+    /**
+     * @return the number of times the cache was invalidated.
+     */
+    public long getInvalidationCount() {
+        return invalidations.get();
+    }
+
+    /**
+     * @return the mean age of the results served from the cache, in milliseconds.
+     */
+    public long getMeanServedAgeMillis() {
+        long count = hits.get();
+        return (count == 0) ? 0 : servedAgeMillis.get() / count;
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + getHitCount() +
+                " (negative=" + getNegativeHitCount() + ")" +
+                " misses=" + getMissCount() +
+                " (stale=" + getStaleCount() + ")" +
+                " invalidations=" + getInvalidationCount() +
+                " meanAge=" + getMeanServedAgeMillis() + "ms";
+    }
+}
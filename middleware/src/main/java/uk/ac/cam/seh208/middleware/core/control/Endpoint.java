@@ -2,25 +2,22 @@ package uk.ac.cam.seh208.middleware.core.control;
 
 import android.os.IBinder;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
-import android.util.LongSparseArray;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.github.fge.jackson.JsonLoader;
-import com.github.fge.jsonschema.core.exceptions.ProcessingException;
-import com.github.fge.jsonschema.core.report.ProcessingReport;
-import com.github.fge.jsonschema.main.JsonSchema;
-import com.github.fge.jsonschema.main.JsonSchemaFactory;
-
-import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 
 import java8.util.function.Predicate;
 import java8.util.stream.StreamSupport;
 import uk.ac.cam.seh208.middleware.common.CloseAllCommand;
+import uk.ac.cam.seh208.middleware.common.CompiledQuery;
+import uk.ac.cam.seh208.middleware.common.DeliveryPolicy;
 import uk.ac.cam.seh208.middleware.common.EndpointCommand;
 import uk.ac.cam.seh208.middleware.common.EndpointDetails;
 import uk.ac.cam.seh208.middleware.common.IMessageListener;
@@ -29,6 +26,7 @@ import uk.ac.cam.seh208.middleware.common.Persistence;
 import uk.ac.cam.seh208.middleware.common.Polarity;
 import uk.ac.cam.seh208.middleware.common.Query;
 import uk.ac.cam.seh208.middleware.common.UnmapAllCommand;
+import uk.ac.cam.seh208.middleware.common.ValidationPolicy;
 import uk.ac.cam.seh208.middleware.common.exception.BadHostException;
 import uk.ac.cam.seh208.middleware.common.exception.BadQueryException;
 import uk.ac.cam.seh208.middleware.common.exception.BadSchemaException;
@@ -36,7 +34,10 @@ import uk.ac.cam.seh208.middleware.common.exception.MappingNotFoundException;
 import uk.ac.cam.seh208.middleware.common.exception.ProtocolException;
 import uk.ac.cam.seh208.middleware.common.exception.SchemaMismatchException;
 import uk.ac.cam.seh208.middleware.common.exception.WrongPolarityException;
+import uk.ac.cam.seh208.middleware.core.LatencyHistogram;
+import uk.ac.cam.seh208.middleware.core.LongConcurrentMap;
 import uk.ac.cam.seh208.middleware.core.MiddlewareService;
+import uk.ac.cam.seh208.middleware.core.comms.OverflowPolicy;
 import uk.ac.cam.seh208.middleware.core.exception.UnexpectedClosureException;
 import uk.ac.cam.seh208.middleware.core.comms.RequestStream;
 
@@ -46,6 +47,72 @@ import uk.ac.cam.seh208.middleware.core.comms.RequestStream;
  */
 public class Endpoint {
 
+    /**
+     * Count of the links accepted while establishing a mapping, shared between
+     * the tasks contacting each remote host.
+     */
+    private static class LinkQuota {
+
+        /**
+         * The maximum number of links to accept, or Query.MATCH_INDEFINITELY.
+         */
+        private final int limit;
+
+        /**
+         * The number of links accepted so far.
+         */
+        private int accepted;
+
+        /**
+         * Indicates that no further links will be accepted, regardless of the limit.
+         */
+        private boolean abandoned;
+
+
+        private LinkQuota(int limit) {
+            this.limit = limit;
+        }
+
+        /**
+         * Accept up to the given number of links, as far as the quota allows.
+         *
+         * @return the number of links accepted.
+         */
+        private synchronized int claim(int count) {
+            if (abandoned) {
+                return 0;
+            }
+            if (limit != Query.MATCH_INDEFINITELY) {
+                count = Math.min(count, limit - accepted);
+            }
+
+            accepted += count;
+            return count;
+        }
+
+        /**
+         * @return the number of links remaining to be accepted.
+         */
+        private synchronized int remaining() {
+            return limit - accepted;
+        }
+
+        private synchronized boolean isMet() {
+            return abandoned || (limit != Query.MATCH_INDEFINITELY && accepted >= limit);
+        }
+
+        /**
+         * Stop accepting links, regardless of the limit.
+         *
+         * @return the final number of links accepted.
+         */
+        private synchronized int abandon() {
+            abandoned = true;
+            return accepted;
+        }
+    }
+
+
     /**
      * Reference to the containing instance of the middleware service.
      */
@@ -75,32 +142,38 @@ public class Endpoint {
     private boolean forceable;
 
     /**
-     * Compiled schema validator for checking that outgoing/incoming messages
-     * match the schema.
+     * Validator for checking that outgoing/incoming messages match the schema,
+     * according to the validation policy of the endpoint.
      */
-    private final JsonSchema validator;
+    private final MessageValidator validator;
 
     /**
-     * Collection of application listeners used to respond to messages.
+     * Dispatcher delivering messages to the application listeners.
      */
-    private final Set<IMessageListener> listeners;
+    private final ListenerDispatcher dispatcher;
+
+    /**
+     * Policy determining the queue capacity and overflow behaviour for application
+     * listeners registered with the endpoint.
+     */
+    private volatile DeliveryPolicy deliveryPolicy;
 
     /**
      * Map of links owned by the endpoint; i.e. having the
      * endpoint at their near end, addressed by their unique identifier.
      */
-    private final LongSparseArray<Link> links;
+    private final LongConcurrentMap<Link> links;
 
     /**
      * Map of mappings established from this endpoint, indexed by their unique identifier.
      */
-    private final LongSparseArray<Mapping> mappings;
+    private final LongConcurrentMap<Mapping> mappings;
 
     /**
      * Map of multiplexers carrying links from this endpoint, indexed by the UUID
      * of their remote location.
      */
-    private final LongSparseArray<Multiplexer> multiplexers;
+    private final LongConcurrentMap<Multiplexer> multiplexers;
 
 
     /**
@@ -114,18 +187,18 @@ public class Endpoint {
         this.exposed = exposed;
         this.forceable = forceable;
 
-        try {
-            // Construct the schema validator object.
-            JsonNode schema = JsonLoader.fromString(details.getSchema());
-            validator = JsonSchemaFactory.byDefault().getJsonSchema(schema);
-        } catch (IOException | ProcessingException e) {
-            throw new BadSchemaException(details.getSchema());
-        }
-
-        listeners = new HashSet<>();
-        links = new LongSparseArray<>();
-        mappings = new LongSparseArray<>();
-        multiplexers = new LongSparseArray<>();
+        // Construct the schema validator object, sharing any compiled schema.
+        validator = new MessageValidator(
+                SchemaCache.getSchema(details.getSchema()),
+                details.getSchema());
+
+        // Deliver losslessly until a different policy is set.
+        deliveryPolicy = DeliveryPolicy.DEFAULT;
+        dispatcher = new ListenerDispatcher(getTag(), deliveryPolicy.getCapacity(),
+                                            toOverflowPolicy(deliveryPolicy));
+        links = new LongConcurrentMap<>();
+        mappings = new LongConcurrentMap<>();
+        multiplexers = new LongConcurrentMap<>();
     }
 
     /**
@@ -139,7 +212,8 @@ public class Endpoint {
     /**
      * Send a string message over the multiplexer (provided the endpoint polarity permits
      * this). The message must be JSON formatted and conform to the endpoint message
-     * schema; if not, an exception will be thrown.
+     * schema; if not, an exception will be thrown. Under a sampled validation policy,
+     * only some messages are checked.
      *
      * @param message JSON string representation of the message to send.
      *
@@ -151,14 +225,57 @@ public class Endpoint {
             throw new WrongPolarityException(getPolarity());
         }
 
-        if (!validate(message)) {
+        // Wrap the message, so the tree parsed during validation is retained.
+        Message wrapped = Message.fromString(message);
+
+        if (!validator.checkOutgoing(wrapped)) {
             throw new SchemaMismatchException(message, details.getSchema());
         }
 
         synchronized (this) {
             // Dispatch the message to all multiplexers carrying links for this endpoint.
-            for (int i = 0; i < multiplexers.size(); i++) {
-                multiplexers.valueAt(i).send(this, message);
+            for (Multiplexer multiplexer : multiplexers.values()) {
+                multiplexer.send(this, wrapped);
+            }
+        }
+    }
+
+    /**
+     * Send a batch of string messages over the multiplexer (provided the endpoint polarity
+     * permits this). Every message is validated before any is sent, so if one message does
+     * not conform to the endpoint message schema, an exception is thrown and the whole
+     * batch is discarded. The batch is carried by each multiplexer as a single frame, and
+     * delivered to the listeners of peer endpoints as individual messages, in order.
+     *
+     * @param messages JSON string representations of the messages to send, in order.
+     *
+     * @throws WrongPolarityException when the bound endpoint polarity does not permit sending.
+     * @throws SchemaMismatchException when a message string does not match the endpoint schema.
+     */
+    public void sendBatch(List<String> messages)
+            throws WrongPolarityException, SchemaMismatchException {
+        if (!getPolarity().supportsSending) {
+            throw new WrongPolarityException(getPolarity());
+        }
+
+        // Wrap and validate the whole batch before any message is sent.
+        List<Message> batch = new ArrayList<>(messages.size());
+        for (String message : messages) {
+            Message wrapped = Message.fromString(message);
+            if (!validator.checkOutgoing(wrapped)) {
+                throw new SchemaMismatchException(message, details.getSchema());
+            }
+            batch.add(wrapped);
+        }
+
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        synchronized (this) {
+            // Dispatch the batch to all multiplexers carrying links for this endpoint.
+            for (Multiplexer multiplexer : multiplexers.values()) {
+                multiplexer.send(this, batch);
             }
         }
     }
@@ -168,8 +285,9 @@ public class Endpoint {
      * polarity permits this). The listener must implement the IMessageListener interface
      * specified in AIDL.
      *
-     * Whenever a new message is received over a JeroMQ mapping socket, it is dispatched
-     * to all of the registered listeners via a remote call to their onMessage methods.
+     * Whenever a new message is received over a JeroMQ mapping socket, it is queued
+     * for delivery to each of the registered listeners, via a remote call to their
+     * onMessage methods from a delivery thread.
      *
      * In the case that the process hosting the listener implementation terminates, the
      * listener will automatically be removed from the endpoint. Therefore, listening
@@ -179,15 +297,39 @@ public class Endpoint {
      *                 remoted by Android allowing the middleware to call its methods.
      */
     public void registerListener(IMessageListener listener) throws RemoteException {
+        registerListener(listener, false);
+    }
+
+    /**
+     * Add a new message listener accepting batches of messages to the listeners list
+     * (provided the endpoint polarity permits this). Messages received close together
+     * are coalesced, and delivered via a single remote call to the onMessages method
+     * of the listener, bounded by the batch size and window of the endpoint.
+     *
+     * @param listener Object implementing the IMessageListener interface, including
+     *                 its onMessages method.
+     */
+    public void registerBatchListener(IMessageListener listener) throws RemoteException {
+        registerListener(listener, true);
+    }
+
+    /**
+     * Add a new message listener to the listeners list, receiving messages either
+     * individually or in batches.
+     */
+    private void registerListener(IMessageListener listener, boolean batched)
+            throws RemoteException {
         if (!getPolarity().supportsListeners) {
             throw new WrongPolarityException(getPolarity());
         }
 
-        synchronized (listeners) {
-            // On death of its host process, remove the listener from the list.
-            IBinder.DeathRecipient recipient = () -> unregisterListener(listener);
-            listener.asBinder().linkToDeath(recipient, 0);
-            listeners.add(listener);
+        // On death of its host process, remove the listener from the list.
+        IBinder.DeathRecipient recipient = () -> unregisterListener(listener);
+        listener.asBinder().linkToDeath(recipient, 0);
+
+        if (dispatcher.register(listener, batched) == null) {
+            // The listener was already registered, and so already linked.
+            listener.asBinder().unlinkToDeath(recipient, 0);
         }
     }
 
@@ -198,18 +340,14 @@ public class Endpoint {
      * @param listener Object previously remoted and registered as a listener.
      */
     public void unregisterListener(IMessageListener listener)  {
-        synchronized (listeners) {
-            listeners.remove(listener);
-        }
+        dispatcher.unregister(listener);
     }
 
     /**
      * Remove all message listeners from the listeners list.
      */
     public void clearListeners() {
-        synchronized (listeners) {
-            listeners.clear();
-        }
+        dispatcher.clear();
     }
 
     /**
@@ -283,7 +421,8 @@ public class Endpoint {
      */
     public synchronized void unmap(long mappingId)
             throws MappingNotFoundException {
-        if (mappings.indexOfKey(mappingId) < 0) {
+        Mapping mapping = mappings.get(mappingId);
+        if (mapping == null) {
             throw new MappingNotFoundException(mappingId);
         }
 
@@ -291,18 +430,14 @@ public class Endpoint {
         service.getDatabase().deleteMapping(mappingId);
 
         // Close the mapping, automatically removing it from the mappings map.
-        mappings.get(mappingId).close();
+        mapping.close();
     }
 
     /**
      * Close all active mappings on this endpoint.
      */
     public synchronized void unmapAll() {
-        int size = mappings.size();
-        for (int i = 0; i < size; i++) {
-            // Get a reference to the next mapping.
-            Mapping mapping = mappings.valueAt(0);
-
+        for (Mapping mapping : mappings.values()) {
             // Remove the mapping from the database.
             service.getDatabase().deleteMapping(mapping.getMappingId());
 
@@ -321,12 +456,10 @@ public class Endpoint {
     public synchronized int closeLinks(Query query) {
         // Create a list of links to close.
         List<Link> toClose = new ArrayList<>();
-        Predicate<EndpointDetails> filter = query.getFilter();
+        Predicate<EndpointDetails> filter = CompiledQuery.of(query).getFilter();
 
         // Populate the list with links that match the query.
-        for (int i = 0; i < links.size(); i++) {
-            Link link = links.valueAt(i);
-
+        for (Link link : links.values()) {
             if (filter.test(link.getRemote())) {
                 toClose.add(link);
             }
@@ -345,13 +478,10 @@ public class Endpoint {
      * @return the number of links that were closed.
      */
     public synchronized int closeAllLinks() {
-        int size = links.size();
-
-        for (int i = 0; i < size; i++) {
-            links.valueAt(0).close();
-        }
+        List<Link> toClose = links.values();
+        StreamSupport.stream(toClose).forEach(Link::close);
 
-        return size;
+        return toClose.size();
     }
 
     /**
@@ -411,6 +541,16 @@ public class Endpoint {
      * Establish some number of links to a collection of remote instances of the
      * middleware by sending a OPEN-LINKS control message, containing the given query.
      *
+     * Messages are sent to several remote instances at once, up to a fixed number in
+     * flight. Each asks for the number of links remaining to meet the matches limit of
+     * the query at the time it is sent, so concurrent replies may together grant more
+     * links than required; the excess links are closed again with CLOSE-LINK.
+     *
+     * Once the quota is met, only the replies which have already claimed links from
+     * it are awaited. Replies arriving later claim nothing, and close the links they
+     * are granted in the background, so a slow host does not hold up the mapping.
+     * Every accepted link is opened locally on the calling thread.
+     *
      * The established links are opened using the openLink method, meaning
      * they are automatically added to the links map. However, they are not
      * automatically associated with a mapping.
@@ -419,70 +559,154 @@ public class Endpoint {
      * @param query Query used to filter the remote endpoints.
      */
     List<Link> establishLinks(List<Middleware> remotes, Query query) {
+        long start = SystemClock.elapsedRealtime();
         List<Link> establishedLinks = new ArrayList<>();
+        LinkQuota quota = new LinkQuota(query.matches);
+
+        CompletionService<List<RemoteEndpointDetails>> completion =
+                new ExecutorCompletionService<>(service.getLinkExecutor());
+        Iterator<Middleware> pending = remotes.iterator();
+        int inFlight = 0;
+        boolean interrupted = false;
+
+        // Number of links collected from replies, and the final number claimed from
+        // the quota once it has been closed (or -1 while it is open).
+        int collected = 0;
+        int claimed = -1;
+
+        while (true) {
+            // Contact further remote hosts while there is room in the window, and
+            // links remain to be established.
+            while (inFlight < MiddlewareService.OPEN_LINKS_FANOUT
+                    && pending.hasNext() && !quota.isMet()) {
+                Middleware remote = pending.next();
+
+                // Modify the sent query to only accept the remaining number of links.
+                Query modifiedQuery = query;
+                if (query.matches != Query.MATCH_INDEFINITELY) {
+                    modifiedQuery = new Query.Builder()
+                            .copy(query)
+                            .setMatches(quota.remaining())
+                            .build();
+                }
 
-        // Establish links with each host in turn.
-        for (Middleware remote : remotes) {
-            // If we have accepted the maximum number of links, we need not
-            // contact the remaining remote hosts.
-            if (establishedLinks.size() == query.matches) {
-                break;
+                Query sentQuery = modifiedQuery;
+                completion.submit(() -> requestLinks(remote, sentQuery, quota));
+                inFlight++;
+            }
+
+            if (claimed < 0 && quota.isMet()) {
+                // No further links are needed; close the quota, so that the replies
+                // still in flight close the links they are granted in the background.
+                claimed = quota.abandon();
             }
 
-            // Modify the sent query to only accept the remaining number of links.
-            Query modifiedQuery = new Query.Builder()
-                    .copy(query)
-                    .setMatches(query.matches - establishedLinks.size())
-                    .build();
+            // Stop once every reply is in, or every link claimed has been collected.
+            if (inFlight == 0 || collected == claimed) {
+                break;
+            }
 
-            // Establish links to endpoints on the remote host, and add them to our list.
+            // Wait for the next reply, and open local counterparts to the accepted links.
+            // The links a reply has claimed from the quota are open at the remote, and
+            // must be opened here.
+            List<RemoteEndpointDetails> accepted;
             try {
-                establishedLinks.addAll(establishLinks(remote, modifiedQuery));
-            } catch (BadHostException e) {
-                Log.w(getTag(), "Unable to establish links to host (" +
-                        remote.toJSON() + ").");
+                accepted = completion.take().get();
+            } catch (InterruptedException e) {
+                // Stop contacting further hosts, but collect the replies which have
+                // claimed links before now, so that those links are still opened.
+                interrupted = true;
+                quota.abandon();
+                continue;
+            } catch (ExecutionException e) {
+                Log.e(getTag(), "Error establishing links", e.getCause());
+                accepted = Collections.emptyList();
+            }
+            inFlight--;
+            collected += accepted.size();
+
+            for (RemoteEndpointDetails endpoint : accepted) {
+                try {
+                    establishedLinks.add(openLink(endpoint));
+                } catch (BadHostException | UnexpectedClosureException e) {
+                    // Do nothing; whilst the remote currently believes this link to be
+                    // open, any attempt to communicate over it will either lead to a
+                    // ConnectionFailedException or a CLOSE-LINK control response.
+                    Log.w(getTag(), "Couldn't establish link to remote endpoint (" +
+                            endpoint.getEndpointId() + ")", e);
+                }
             }
         }
 
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Record the time taken to establish the links.
+        LatencyHistogram latency = service.getMappingLatency();
+        latency.record(SystemClock.elapsedRealtime() - start);
+        Log.d(getTag(), "Established " + establishedLinks.size() + " links with " +
+                remotes.size() + " hosts (" + latency + ")");
+
         return establishedLinks;
     }
 
     /**
-     * Establish some number of links to a remote instance of the middleware by
-     * sending a OPEN-LINKS control message, containing the given query.
+     * Send an OPEN-LINKS control message, containing the given query, to a remote
+     * instance of the middleware. Links granted by the remote beyond the quota, or
+     * after it has been closed, are closed again by sending CLOSE-LINK control messages.
      *
-     * The established links are opened using the openLink method, meaning
-     * they are automatically added to the links map. However, they are not
-     * automatically associated with a mapping.
+     * This is run on the link executor, so must not touch the local endpoint state.
      *
      * @param remote Remote instance of the middleware to open links with.
      * @param query Query used to filter the remote endpoints.
+     * @param quota Quota of links shared by all remotes contacted for the mapping.
+     *
+     * @return a list of the remote endpoints with which links were granted and accepted.
      */
-    private List<Link> establishLinks(Middleware remote, Query query)
-            throws BadHostException {
-        // Send an OPEN-LINKS control message to the remote host.
-        OpenLinksControlMessage message =
-                new OpenLinksControlMessage(getRemoteDetails(), query);
-        RequestStream stream = service.getRequestStream(remote.getRequestLocation());
-        OpenLinksControlMessage.Response response = message.getResponse(stream);
-
-        // The response to the OPEN-LINKS message contains a list of remote
-        // endpoint-details from which links were opened. Open local
-        // counterparts to these links and track them in the returned list.
-        List<Link> establishedLinks = new ArrayList<>();
-        for (RemoteEndpointDetails endpoint : response.getDetails()) {
-            try {
-                establishedLinks.add(openLink(endpoint));
-            } catch (UnexpectedClosureException e) {
-                // Do nothing; whilst the remote currently believes this link to be
-                // open, any attempt to communicate over it will either lead to a
-                // ConnectionFailedException or a CLOSE-LINK control response.
-                Log.w(getTag(), "Couldn't establish link to remote endpoint due to " +
-                        "unexpected closure (" + endpoint.getEndpointId() + ")");
+    private List<RemoteEndpointDetails> requestLinks(Middleware remote, Query query,
+                                                     LinkQuota quota) {
+        try {
+            // Send an OPEN-LINKS control message to the remote host.
+            RemoteEndpointDetails initiator = getRemoteDetails();
+            RequestStream stream = service.getRequestStream(remote.getRequestLocation());
+            OpenLinksControlMessage.Response response =
+                    new OpenLinksControlMessage(initiator, query).getResponse(stream);
+
+            if (response == null && initiator.isSenderValidated()) {
+                // The remote host may predate sender validation, and so reject the
+                // details sent; retry with the details in their original form.
+                Log.i(getTag(), "Retrying OPEN-LINKS without sender validation.");
+                response = new OpenLinksControlMessage(getRemoteDetails(true), query)
+                        .getResponse(stream);
             }
-        }
 
-        return establishedLinks;
+            if (response == null) {
+                Log.w(getTag(), "No response to OPEN-LINKS from host (" +
+                        remote.toJSON() + ").");
+                return Collections.emptyList();
+            }
+
+            // The response to the OPEN-LINKS message contains a list of remote
+            // endpoint-details from which links were opened. Accept as many as
+            // the quota allows.
+            List<RemoteEndpointDetails> granted = response.getDetails();
+            int count = quota.claim(granted.size());
+
+            // Close the links in excess of the quota.
+            for (RemoteEndpointDetails endpoint : granted.subList(count, granted.size())) {
+                long linkId = Link.generateId(details, endpoint);
+                Log.i(getTag(), "Closing excess link (" + linkId + ") to endpoint " +
+                        endpoint.toLogString());
+                new CloseLinkControlMessage(linkId).getResponse(stream);
+            }
+
+            return new ArrayList<>(granted.subList(0, count));
+        } catch (BadHostException e) {
+            Log.w(getTag(), "Unable to establish links to host (" +
+                    remote.toJSON() + ").");
+            return Collections.emptyList();
+        }
     }
 
     /**
@@ -542,10 +766,12 @@ public class Endpoint {
      * de-multiplexed by link identifier.
      *
      * @param linkId The identifier of the link on which the message was received.
-     * @param message The newly received message string.
+     * @param message The newly received message. This may be shared with other
+     *                endpoints, so that it is only parsed once.
      */
-    void onMessage(long linkId, String message) {
-        if (links.indexOfKey(linkId) < 0) {
+    void onMessage(long linkId, Message message) {
+        Link link = links.get(linkId);
+        if (link == null) {
             // If the link identifier is not in the link set, this
             // message shouldn't have ended up here.
             Log.e(getTag(), "Received message from unknown link ID (" +
@@ -553,32 +779,18 @@ public class Endpoint {
             return;
         }
 
-        if (!validate(message)) {
+        if (!validator.checkIncoming(message, link)) {
             // The message does not match the schema; the remote endpoint has broken
             // protocol, and the link must be closed.
             Log.e(getTag(), "Incoming message schema mismatch on link (" +
                     linkId + ")");
 
-            links.get(linkId).close();
+            link.close();
             return;
         }
 
-        // Dispatch the message to each of the listeners' onMessage methods
-        // in turn, logging the case where a remote error occurs.
-        int failures = 0;
-        synchronized (listeners) {
-            for (IMessageListener listener : listeners) {
-                try {
-                    listener.onMessage(message);
-                } catch (RemoteException e) {
-                    failures++;
-                }
-            }
-        }
-        if (failures > 0) {
-            Log.e(getTag(), "Error occurred dispatching message to " +
-                    failures + " listener(s).");
-        }
+        // Queue the message for delivery to each of the listeners.
+        dispatcher.dispatch(message.getString());
     }
 
     /**
@@ -662,7 +874,20 @@ public class Endpoint {
      * @return a newly constructed RemoteEndpointDetails object referencing
      */
     public RemoteEndpointDetails getRemoteDetails() {
-        return new RemoteEndpointDetails(details, service.getMiddleware());
+        return getRemoteDetails(false);
+    }
+
+    /**
+     * @param legacy Whether the details are to be sent to a peer which may predate
+     *               sender validation, in which case the flag is left unset so that
+     *               the peer can read them.
+     *
+     * @return a newly constructed RemoteEndpointDetails object referencing this
+     *         endpoint.
+     */
+    public RemoteEndpointDetails getRemoteDetails(boolean legacy) {
+        return new RemoteEndpointDetails(details, service.getMiddleware(),
+                !legacy && validator.getPolicy().validatesAllOutgoing());
     }
 
     public boolean isExposed() {
@@ -681,26 +906,66 @@ public class Endpoint {
         service.getDatabase().setEndpointForceable(getName(), forceable);
     }
 
-    MiddlewareService getService() {
-        return service;
+    public ListenerDispatcher getListenerDispatcher() {
+        return dispatcher;
     }
 
     /**
-     * Validate a string message against the endpoint schema.
-     *
-     * @param message Message to test against the schema.
-     *
-     * @return whether the message matches the endpoint schema.
+     * Set the maximum size of a batch, and the time (in milliseconds) for which
+     * messages may be held to coalesce a batch, for batch listeners registered
+     * from now on.
      */
-    private boolean validate(String message) {
-        try {
-            // Parse the message as JSON and attempt to validate it against the schema.
-            JsonNode parsedMessage = JsonLoader.fromString(message);
-            ProcessingReport report = validator.validate(parsedMessage);
-            return report.isSuccess();
-        } catch (IOException | ProcessingException e) {
-            return false;
-        }
+    public void setListenerBatching(int maxBatch, long windowMillis) {
+        dispatcher.configureBatching(maxBatch, windowMillis);
+    }
+
+    public ValidationPolicy getValidationPolicy() {
+        return validator.getPolicy();
+    }
+
+    public void setValidationPolicy(ValidationPolicy policy) {
+        applyValidationPolicy(policy);
+
+        service.getDatabase().setEndpointValidationPolicy(getName(), policy);
+    }
+
+    /**
+     * Set the validation policy without persisting it; used when restoring
+     * the endpoint from the database.
+     */
+    void applyValidationPolicy(ValidationPolicy policy) {
+        validator.setPolicy(policy);
+    }
+
+    public DeliveryPolicy getDeliveryPolicy() {
+        return deliveryPolicy;
+    }
+
+    public void setDeliveryPolicy(DeliveryPolicy policy) {
+        applyDeliveryPolicy(policy);
+
+        service.getDatabase().setEndpointDeliveryPolicy(getName(), policy);
+    }
+
+    /**
+     * Set the delivery policy without persisting it; used when restoring
+     * the endpoint from the database. The policy applies to listeners
+     * registered from now on.
+     */
+    void applyDeliveryPolicy(DeliveryPolicy policy) {
+        deliveryPolicy = (policy != null) ? policy : DeliveryPolicy.DEFAULT;
+        dispatcher.configure(deliveryPolicy.getCapacity(), toOverflowPolicy(deliveryPolicy));
+    }
+
+    /**
+     * Map the overflow behaviour of a delivery policy onto that of the queues.
+     */
+    private static OverflowPolicy toOverflowPolicy(DeliveryPolicy policy) {
+        return OverflowPolicy.valueOf(policy.getOverflow().name());
+    }
+
+    MiddlewareService getService() {
+        return service;
     }
 
     /**
@@ -96,6 +96,11 @@ public class EndpointCommandControlMessage extends ControlMessage {
         return (Response) super.getResponse(stream);
     }
 
+    @Override
+    public Response getResponse(RequestStream stream, long timeoutMillis) {
+        return (Response) super.getResponse(stream, timeoutMillis);
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (this == obj) {
@@ -7,17 +7,16 @@ import android.arch.persistence.room.TypeConverter;
 import android.arch.persistence.room.TypeConverters;
 import android.support.annotation.NonNull;
 
-import com.fasterxml.jackson.core.JsonFactory;
-import com.fasterxml.jackson.core.JsonGenerator;
-import com.fasterxml.jackson.databind.ObjectMapper;
-
 import java.io.IOException;
-import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.List;
 
+import uk.ac.cam.seh208.middleware.common.DeliveryPolicy;
 import uk.ac.cam.seh208.middleware.common.EndpointDetails;
+import uk.ac.cam.seh208.middleware.common.JSONCodec;
+import uk.ac.cam.seh208.middleware.common.JSONSerializable;
 import uk.ac.cam.seh208.middleware.common.Polarity;
+import uk.ac.cam.seh208.middleware.common.ValidationPolicy;
 
 
 /**
@@ -52,21 +51,9 @@ class EndpointData {
 
         @TypeConverter
         public static String toString(List<String> list) {
-            // Create a string writer and JSON factory for serialising the list.
-            StringWriter writer = new StringWriter();
-            JsonFactory factory = new JsonFactory();
-
             try {
-                // Create a JSON list generator and serialise the list.
-                JsonGenerator generator = factory.createGenerator(writer);
-
-                generator.writeStartArray();
-                for (String string : list) {
-                    generator.writeString(string);
-                }
-                generator.writeEndArray();
-
-                return writer.toString();
+                // Serialise the list using the shared writer.
+                return JSONCodec.writerFor(List.class).writeValueAsString(list);
             } catch (IOException e) {
                 return null;
             }
@@ -74,16 +61,61 @@ class EndpointData {
 
         @TypeConverter
         public static List<String> toList(String json) {
-            ObjectMapper mapper = new ObjectMapper();
             try {
-                //noinspection unchecked
-                return (List<String>) mapper.readValue(json, List.class);
+                // Parse the list using the shared reader.
+                return JSONCodec.readerFor(List.class).readValue(json);
             } catch (IOException e) {
                 return null;
             }
         }
     }
 
+    @SuppressWarnings("unused")
+    static class ValidationPolicyConverter {
+
+        @TypeConverter
+        public static String toString(ValidationPolicy policy) {
+            return (policy != null) ? policy.toJSON() : null;
+        }
+
+        @TypeConverter
+        public static ValidationPolicy toValidationPolicy(String json) {
+            if (json == null) {
+                // Endpoints stored before policies were introduced validate everything.
+                return ValidationPolicy.ALWAYS;
+            }
+
+            try {
+                return JSONSerializable.fromJSON(json, ValidationPolicy.class);
+            } catch (IOException e) {
+                return ValidationPolicy.ALWAYS;
+            }
+        }
+    }
+
+    @SuppressWarnings("unused")
+    static class DeliveryPolicyConverter {
+
+        @TypeConverter
+        public static String toString(DeliveryPolicy policy) {
+            return (policy != null) ? policy.toJSON() : null;
+        }
+
+        @TypeConverter
+        public static DeliveryPolicy toDeliveryPolicy(String json) {
+            if (json == null) {
+                // Endpoints stored before policies were introduced deliver losslessly.
+                return DeliveryPolicy.DEFAULT;
+            }
+
+            try {
+                return JSONSerializable.fromJSON(json, DeliveryPolicy.class);
+            } catch (IOException e) {
+                return DeliveryPolicy.DEFAULT;
+            }
+        }
+    }
+
 
     @PrimaryKey
     @ColumnInfo(name = "name")
@@ -110,6 +142,14 @@ class EndpointData {
     @ColumnInfo(name = "forceable")
     private boolean forceable;
 
+    @ColumnInfo(name = "validationPolicy")
+    @TypeConverters(ValidationPolicyConverter.class)
+    private ValidationPolicy validationPolicy;
+
+    @ColumnInfo(name = "deliveryPolicy")
+    @TypeConverters(DeliveryPolicyConverter.class)
+    private DeliveryPolicy deliveryPolicy;
+
 
     /**
      * Instantiate a new endpoint data object from an endpoint details object and
@@ -123,10 +163,13 @@ class EndpointData {
         tags = new ArrayList<>(details.getTags());
         this.exposed = exposed;
         this.forceable = forceable;
+        validationPolicy = ValidationPolicy.ALWAYS;
+        deliveryPolicy = DeliveryPolicy.DEFAULT;
     }
 
     public EndpointData(@NonNull String name, String desc, Polarity polarity, String schema,
-                        List<String> tags, boolean exposed, boolean forceable) {
+                        List<String> tags, boolean exposed, boolean forceable,
+                        ValidationPolicy validationPolicy, DeliveryPolicy deliveryPolicy) {
         this.name = name;
         this.desc = desc;
         this.polarity = polarity;
@@ -134,6 +177,8 @@ class EndpointData {
         this.tags = tags;
         this.exposed = exposed;
         this.forceable = forceable;
+        this.validationPolicy = validationPolicy;
+        this.deliveryPolicy = deliveryPolicy;
     }
 
     @NonNull
@@ -172,4 +217,20 @@ class EndpointData {
     public void setForceable(boolean forceable) {
         this.forceable = forceable;
     }
+
+    public ValidationPolicy getValidationPolicy() {
+        return validationPolicy;
+    }
+
+    public void setValidationPolicy(ValidationPolicy validationPolicy) {
+        this.validationPolicy = validationPolicy;
+    }
+
+    public DeliveryPolicy getDeliveryPolicy() {
+        return deliveryPolicy;
+    }
+
+    public void setDeliveryPolicy(DeliveryPolicy deliveryPolicy) {
+        this.deliveryPolicy = deliveryPolicy;
+    }
 }
@@ -0,0 +1,183 @@
+package uk.ac.cam.seh208.middleware.core.control;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import uk.ac.cam.seh208.middleware.common.EndpointDetails;
+import uk.ac.cam.seh208.middleware.common.Polarity;
+import uk.ac.cam.seh208.middleware.common.Query;
+
+
+/**
+ * Inverted index over a collection of endpoints, keeping a posting set of the
+ * endpoints having each tag, polarity and schema.
+ *
+ * Candidates for a query are found by intersecting the posting sets of the tags,
+ * polarity and schema it requires, starting from the smallest set, so that the full
+ * query filter (including its regular expressions) need only be run over the
+ * endpoints that could possibly match.
+ *
+ * The index is not thread-safe; its owner must serialise access.
+ */
+public class EndpointIndex {
+
+    /**
+     * All indexed endpoints.
+     */
+    private final Set<EndpointDetails> endpoints;
+
+    /**
+     * Posting sets of endpoints, indexed by each tag they have.
+     */
+    private final Map<String, Set<EndpointDetails>> byTag;
+
+    /**
+     * Posting sets of endpoints, indexed by their polarity.
+     */
+    private final Map<Polarity, Set<EndpointDetails>> byPolarity;
+
+    /**
+     * Posting sets of endpoints, indexed by their message schema.
+     */
+    private final Map<String, Set<EndpointDetails>> bySchema;
+
+
+    public EndpointIndex() {
+        endpoints = new HashSet<>();
+        byTag = new HashMap<>();
+        byPolarity = new EnumMap<>(Polarity.class);
+        bySchema = new HashMap<>();
+    }
+
+    /**
+     * Add an endpoint to the index, if not already present.
+     */
+    public void add(EndpointDetails endpoint) {
+        if (!endpoints.add(endpoint)) {
+            return;
+        }
+
+        for (String tag : endpoint.getTags()) {
+            post(byTag, tag, endpoint);
+        }
+        if (endpoint.getPolarity() != null) {
+            post(byPolarity, endpoint.getPolarity(), endpoint);
+        }
+        post(bySchema, endpoint.getSchema(), endpoint);
+    }
+
+    /**
+     * Remove an endpoint from the index, if present.
+     */
+    public void remove(EndpointDetails endpoint) {
+        if (!endpoints.remove(endpoint)) {
+            return;
+        }
+
+        for (String tag : endpoint.getTags()) {
+            unpost(byTag, tag, endpoint);
+        }
+        if (endpoint.getPolarity() != null) {
+            unpost(byPolarity, endpoint.getPolarity(), endpoint);
+        }
+        unpost(bySchema, endpoint.getSchema(), endpoint);
+    }
+
+    /**
+     * @return the number of indexed endpoints.
+     */
+    public int size() {
+        return endpoints.size();
+    }
+
+    /**
+     * Find the indexed endpoints that have every tag, and the polarity and schema,
+     * required by the query. Other criteria of the query are not tested, so the
+     * query filter must still be run over the returned candidates.
+     *
+     * @param query The query to find candidates for.
+     *
+     * @return a newly constructed list of candidate endpoints, in no particular order.
+     */
+    public List<EndpointDetails> candidates(Query query) {
+        // Collect the posting sets of every indexed criterion of the query.
+        List<Set<EndpointDetails>> postings = new ArrayList<>();
+        for (String tag : query.tagsToInclude) {
+            postings.add(postingOf(byTag, tag));
+        }
+        if (query.polarity != null) {
+            postings.add(postingOf(byPolarity, query.polarity));
+        }
+        if (query.schema != null) {
+            postings.add(postingOf(bySchema, query.schema));
+        }
+
+        if (postings.isEmpty()) {
+            // The query has no indexed criteria; every endpoint is a candidate.
+            return new ArrayList<>(endpoints);
+        }
+
+        // Iterate over the smallest posting set, probing the others for each endpoint.
+        Set<EndpointDetails> smallest = postings.get(0);
+        for (Set<EndpointDetails> posting : postings) {
+            if (posting.size() < smallest.size()) {
+                smallest = posting;
+            }
+        }
+
+        List<EndpointDetails> candidates = new ArrayList<>();
+        for (EndpointDetails endpoint : smallest) {
+            if (containedInAll(postings, endpoint)) {
+                candidates.add(endpoint);
+            }
+        }
+        return candidates;
+    }
+
+    private static boolean containedInAll(Collection<Set<EndpointDetails>> postings,
+                                          EndpointDetails endpoint) {
+        for (Set<EndpointDetails> posting : postings) {
+            if (!posting.contains(endpoint)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static <K> Set<EndpointDetails> postingOf(Map<K, Set<EndpointDetails>> index,
+                                                      K key) {
+        Set<EndpointDetails> posting = index.get(key);
+        return (posting == null) ? Collections.emptySet() : posting;
+    }
+
+    private static <K> void post(Map<K, Set<EndpointDetails>> index, K key,
+                                 EndpointDetails endpoint) {
+        Set<EndpointDetails> posting = index.get(key);
+        if (posting == null) {
+            posting = new HashSet<>();
+            index.put(key, posting);
+        }
+        posting.add(endpoint);
+    }
+
+    private static <K> void unpost(Map<K, Set<EndpointDetails>> index, K key,
+                                   EndpointDetails endpoint) {
+        Set<EndpointDetails> posting = index.get(key);
+        if (posting == null) {
+            return;
+        }
+
+        posting.remove(endpoint);
+        if (posting.isEmpty()) {
+            // Drop empty posting sets, so that the index does not grow without bound.
+            index.remove(key);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package uk.ac.cam.seh208.middleware.core.control;
+
+import android.app.Service;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import uk.ac.cam.seh208.middleware.core.MiddlewareService;
+import uk.ac.cam.seh208.middleware.core.comms.RequestStream;
+
+
+/**
+ * Control message pushed by an RDC to a registered middleware to indicate that
+ * the RDC database has changed, so cached discovery results are invalid.
+ */
+public class InvalidateControlMessage extends ControlMessage {
+
+    /**
+     * The response is simply an acknowledgement.
+     */
+    public static class Response extends ControlMessage.Response {
+
+        private static Response instance;
+
+
+        public static Response getInstance() {
+            if (instance == null) {
+                instance = new Response();
+            }
+            return instance;
+        }
+
+
+        private Response() { }
+
+        @Override
+        public boolean equals(Object obj) {
+            return this == obj || obj != null && getClass() == obj.getClass();
+        }
+    }
+
+
+    /**
+     * The new generation of the RDC database.
+     */
+    private long generation;
+
+    /**
+     * The generation previously pushed by the RDC, from which the changed tags
+     * are reported.
+     */
+    private long since;
+
+    /**
+     * The tags of the endpoints changed since the previously pushed generation,
+     * or null if these are not known.
+     */
+    private List<String> changedTags;
+
+
+    /**
+     * Instantiate a new immutable INVALIDATE control message for the given generation,
+     * reporting the tags changed since a previous generation.
+     */
+    public InvalidateControlMessage(@JsonProperty("since") long since,
+                                    @JsonProperty("generation") long generation,
+                                    @JsonProperty("changedTags") List<String> changedTags) {
+        this.since = since;
+        this.generation = generation;
+        this.changedTags = (changedTags == null) ? null : new ArrayList<>(changedTags);
+    }
+
+    /**
+     * Instantiate a new immutable INVALIDATE control message for the given generation,
+     * without reporting the changes.
+     */
+    public InvalidateControlMessage(long generation) {
+        this(0, generation, null);
+    }
+
+    /**
+     * Note the new generation in the discovery cache of the middleware, and respond
+     * with acknowledgement.
+     *
+     * @param service A reference to the middleware service receiving the message.
+     *
+     * @return an acknowledgement response.
+     */
+    @Override
+    public Response handle(Service service) {
+        if (!(service instanceof MiddlewareService)) {
+            // INVALIDATE can only be handled by a middleware.
+            return null;
+        }
+
+        MiddlewareService middleware = (MiddlewareService) service;
+        middleware.getDiscoveryCache().observeChanges(since, generation, changedTags);
+
+        return Response.getInstance();
+    }
+
+    @Override
+    public Response getResponse(RequestStream stream) {
+        return (Response) super.getResponse(stream);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        InvalidateControlMessage other = (InvalidateControlMessage) obj;
+
+        return generation == other.generation;
+    }
+}
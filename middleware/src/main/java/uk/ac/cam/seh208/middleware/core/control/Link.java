@@ -41,7 +41,7 @@ public class Link extends CloseableSubject<Link> {
      * identifier must be the same at both ends, so the details are sorted by identifier
      * before a hash is taken.
      */
-    private static long generateId(EndpointDetails first, EndpointDetails second) {
+    static long generateId(EndpointDetails first, EndpointDetails second) {
         long multiplier = 769L;
         long constant = 12289L;
         if (first.getEndpointId() < second.getEndpointId()) {
@@ -67,6 +67,12 @@ public class Link extends CloseableSubject<Link> {
      */
     private RemoteEndpointDetails remote;
 
+    /**
+     * Canonical hash of the schema advertised by the remote endpoint when the link
+     * was established, used to decide whether its messages can be trusted.
+     */
+    private String remoteSchemaHash;
+
 
     /**
      * Create a new link representing the flow of data between local and remote endpoints.
@@ -78,6 +84,7 @@ public class Link extends CloseableSubject<Link> {
         linkId = generateId(local.getDetails(), remote);
         this.local = local;
         this.remote = remote;
+        remoteSchemaHash = SchemaCache.hash(remote.getSchema());
     }
 
     public long getLinkId() {
@@ -92,6 +99,10 @@ public class Link extends CloseableSubject<Link> {
         return remote;
     }
 
+    String getRemoteSchemaHash() {
+        return remoteSchemaHash;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (this == obj) {
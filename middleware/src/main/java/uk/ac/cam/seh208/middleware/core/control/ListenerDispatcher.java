@@ -0,0 +1,439 @@
+package uk.ac.cam.seh208.middleware.core.control;
+
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uk.ac.cam.seh208.middleware.common.IMessageListener;
+import uk.ac.cam.seh208.middleware.core.comms.OutboundQueue;
+import uk.ac.cam.seh208.middleware.core.comms.OverflowPolicy;
+
+
+/**
+ * Delivers the messages received by an endpoint to its application listeners,
+ * off the network thread.
+ *
+ * Each listener has its own bounded delivery queue, drained in order by at most
+ * one thread at a time from a shared pool, so that a slow or failing listener
+ * only delays its own messages. When a queue is full, the overflow policy of the
+ * dispatcher applies: BLOCK stalls the receiving thread (and with it every other
+ * stream sharing its dispatch shard), DROP_OLDEST discards the oldest pending
+ * message, and DROP_NEWEST or FAIL_FAST discards the new message. The capacity
+ * and policy of a listener are fixed when it is registered.
+ *
+ * Listeners registered for batches receive the messages which arrive within a
+ * short window of one another in a single call, bounded in size, reducing the
+ * number of binder transactions.
+ *
+ * The set of listeners is copy-on-write, so dispatch never blocks registration.
+ */
+public class ListenerDispatcher {
+
+    /**
+     * Delivery state of a single registered listener.
+     */
+    public static class Channel {
+
+        /**
+         * The application listener receiving messages.
+         */
+        private final IMessageListener listener;
+
+        /**
+         * Messages awaiting delivery to the listener.
+         */
+        private final OutboundQueue<String> queue;
+
+        /**
+         * Indicates that a drain of the queue has been submitted to the pool.
+         */
+        private final AtomicBoolean scheduled;
+
+        /**
+         * Indicates that a scheduled drain is waiting on the batch window.
+         */
+        private final AtomicBoolean windowPending;
+
+        /**
+         * Whether messages are delivered to the listener in batches.
+         */
+        private final boolean batched;
+
+        /**
+         * Maximum number of messages delivered in a single batch.
+         */
+        private final int maxBatch;
+
+        /**
+         * Time (in milliseconds) for which messages may be held to coalesce a batch.
+         */
+        private final long windowMillis;
+
+        /**
+         * Indicates that the listener has been unregistered.
+         */
+        private volatile boolean removed;
+
+        /**
+         * Number of messages successfully delivered to the listener.
+         */
+        private final AtomicLong delivered;
+
+        /**
+         * Number of messages whose delivery raised an error.
+         */
+        private final AtomicLong failed;
+
+
+        private Channel(IMessageListener listener, int capacity, OverflowPolicy policy,
+                        boolean batched, int maxBatch, long windowMillis) {
+            this.listener = listener;
+            queue = new OutboundQueue<>(capacity, policy);
+            scheduled = new AtomicBoolean();
+            windowPending = new AtomicBoolean();
+            this.batched = batched;
+            this.maxBatch = batched ? Math.max(1, maxBatch) : 1;
+            this.windowMillis = batched ? windowMillis : 0;
+            delivered = new AtomicLong();
+            failed = new AtomicLong();
+        }
+
+        public IMessageListener getListener() {
+            return listener;
+        }
+
+        public boolean isBatched() {
+            return batched;
+        }
+
+        /**
+         * @return the number of messages currently awaiting delivery.
+         */
+        public int getPendingCount() {
+            return queue.getDepth();
+        }
+
+        public long getDeliveredCount() {
+            return delivered.get();
+        }
+
+        /**
+         * @return the number of messages discarded due to a full queue.
+         */
+        public long getDroppedCount() {
+            return queue.getDroppedCount() + queue.getRejectedCount();
+        }
+
+        public long getFailedCount() {
+            return failed.get();
+        }
+    }
+
+
+    /**
+     * Default maximum number of messages delivered to a batch listener in one call.
+     */
+    public static final int DEFAULT_MAX_BATCH = 64;
+
+    /**
+     * Default time (in milliseconds) for which messages may be held to coalesce
+     * a batch.
+     */
+    public static final long DEFAULT_BATCH_WINDOW_MILLIS = 5;
+
+    /**
+     * Maximum number of messages delivered to a listener by one drain, before
+     * the thread is yielded to other listeners.
+     */
+    private static final int MAX_DRAIN = 64;
+
+    /**
+     * Pool of threads delivering messages for all endpoints.
+     */
+    private static final ExecutorService deliveryExecutor = Executors.newCachedThreadPool(
+            runnable -> {
+                Thread thread = new Thread(runnable, "ListenerDelivery");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * Timer releasing drains of batch listeners at the end of their batch window.
+     */
+    private static final ScheduledExecutorService batchTimer =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "ListenerBatchTimer");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+
+    /**
+     * Android logcat tag of the owning endpoint.
+     */
+    private final String tag;
+
+    /**
+     * Currently registered listener channels.
+     */
+    private final List<Channel> channels;
+
+    /**
+     * Capacity of the delivery queue of each listener.
+     */
+    private volatile int capacity;
+
+    /**
+     * Behaviour when the delivery queue of a listener is full.
+     */
+    private volatile OverflowPolicy policy;
+
+    /**
+     * Maximum number of messages delivered to a batch listener in one call.
+     */
+    private volatile int maxBatch;
+
+    /**
+     * Time (in milliseconds) for which messages may be held to coalesce a batch.
+     */
+    private volatile long windowMillis;
+
+
+    /**
+     * Construct a new dispatcher with no listeners.
+     *
+     * @param tag Android logcat tag of the owning endpoint.
+     * @param capacity Capacity of the delivery queue of each listener.
+     * @param policy Behaviour when the delivery queue of a listener is full.
+     */
+    public ListenerDispatcher(String tag, int capacity, OverflowPolicy policy) {
+        this.tag = tag;
+        channels = new CopyOnWriteArrayList<>();
+        this.capacity = capacity;
+        this.policy = policy;
+        maxBatch = DEFAULT_MAX_BATCH;
+        windowMillis = DEFAULT_BATCH_WINDOW_MILLIS;
+    }
+
+    /**
+     * Register a listener, unless it is already registered.
+     *
+     * @param listener The listener to register.
+     * @param batched Whether the listener accepts batches of messages via its
+     *                onMessages method.
+     *
+     * @return the channel of the newly registered listener, or null if the
+     *         listener was already registered.
+     */
+    public synchronized Channel register(IMessageListener listener, boolean batched) {
+        if (find(listener) != null) {
+            return null;
+        }
+
+        Channel channel = new Channel(listener, capacity, policy,
+                                      batched, maxBatch, windowMillis);
+        channels.add(channel);
+        return channel;
+    }
+
+    /**
+     * Unregister a listener, discarding any messages awaiting delivery to it.
+     *
+     * @return whether the listener was registered.
+     */
+    public synchronized boolean unregister(IMessageListener listener) {
+        Channel channel = find(listener);
+        if (channel == null) {
+            return false;
+        }
+
+        remove(channel);
+        channels.remove(channel);
+        return true;
+    }
+
+    /**
+     * Unregister all listeners.
+     */
+    public synchronized void clear() {
+        for (Channel channel : channels) {
+            remove(channel);
+        }
+        channels.clear();
+    }
+
+    /**
+     * Queue a message for delivery to every registered listener.
+     *
+     * @param message The message to deliver.
+     */
+    public void dispatch(String message) {
+        for (Channel channel : channels) {
+            if (channel.queue.offer(message)) {
+                // Deliver immediately unless the message can wait to join a batch.
+                schedule(channel, !channel.batched
+                        || channel.queue.getDepth() >= channel.maxBatch);
+            }
+        }
+    }
+
+    /**
+     * Set the queue capacity and overflow policy applied to listeners
+     * registered from now on. Listeners already registered keep their queues.
+     */
+    public void configure(int capacity, OverflowPolicy policy) {
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    /**
+     * Set the maximum batch size and batch window applied to batch listeners
+     * registered from now on.
+     */
+    public void configureBatching(int maxBatch, long windowMillis) {
+        this.maxBatch = maxBatch;
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * @return an unmodifiable snapshot of the registered listener channels.
+     */
+    public List<Channel> getChannels() {
+        return Collections.unmodifiableList(new ArrayList<>(channels));
+    }
+
+    /**
+     * Find the channel of a registered listener. Remote listeners are identified
+     * by their binder, as each remote call yields a new proxy object.
+     */
+    private Channel find(IMessageListener listener) {
+        IBinder binder = listener.asBinder();
+        for (Channel channel : channels) {
+            if (channel.listener == listener
+                    || (binder != null && channel.listener.asBinder() == binder)) {
+                return channel;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stop delivery to a channel, releasing any blocked dispatchers.
+     */
+    private static void remove(Channel channel) {
+        channel.removed = true;
+        channel.queue.close();
+    }
+
+    /**
+     * Submit a drain of the channel queue to the pool, unless one is pending. For
+     * batch listeners, the drain is delayed by the batch window so that further
+     * messages may be coalesced, unless delivery is to be immediate.
+     *
+     * @param channel The channel to drain.
+     * @param immediate Whether to deliver without waiting for the batch window,
+     *                  expediting any drain already waiting on it.
+     */
+    private void schedule(Channel channel, boolean immediate) {
+        if (channel.scheduled.compareAndSet(false, true)) {
+            if (immediate || channel.windowMillis <= 0) {
+                deliveryExecutor.execute(() -> drain(channel));
+                return;
+            }
+
+            channel.windowPending.set(true);
+            batchTimer.schedule(() -> release(channel),
+                                channel.windowMillis, TimeUnit.MILLISECONDS);
+        } else if (immediate) {
+            release(channel);
+        }
+    }
+
+    /**
+     * Submit a drain waiting on the batch window to the pool, if not already done.
+     */
+    private void release(Channel channel) {
+        if (channel.windowPending.compareAndSet(true, false)) {
+            deliveryExecutor.execute(() -> drain(channel));
+        }
+    }
+
+    /**
+     * Deliver pending messages to the listener of a channel, in order.
+     */
+    private void drain(Channel channel) {
+        int remaining = MAX_DRAIN;
+        while (remaining > 0 && !channel.removed) {
+            if (channel.batched) {
+                // Coalesce as many pending messages as permitted into one batch.
+                List<String> batch = new ArrayList<>();
+                String message;
+                while (batch.size() < Math.min(channel.maxBatch, remaining)
+                        && (message = channel.queue.poll()) != null) {
+                    batch.add(message);
+                }
+                channel.queue.signalSpace();
+                if (batch.isEmpty()) {
+                    break;
+                }
+
+                remaining -= batch.size();
+                deliver(channel, batch);
+            } else {
+                String message = channel.queue.poll();
+                channel.queue.signalSpace();
+                if (message == null) {
+                    break;
+                }
+
+                remaining--;
+                deliver(channel, message);
+            }
+        }
+
+        // Allow the next dispatch to schedule a drain, then check for messages
+        // that arrived after the last poll, which would otherwise be missed.
+        channel.scheduled.set(false);
+        if (!channel.removed && channel.queue.getDepth() > 0) {
+            schedule(channel, true);
+        }
+    }
+
+    /**
+     * Deliver a single message to a listener, isolating any failure.
+     */
+    private void deliver(Channel channel, String message) {
+        try {
+            channel.listener.onMessage(message);
+            channel.delivered.incrementAndGet();
+        } catch (RemoteException | RuntimeException e) {
+            channel.failed.incrementAndGet();
+            Log.w(tag, "Error occurred dispatching message to listener.", e);
+        }
+    }
+
+    /**
+     * Deliver a batch of messages to a listener in a single call, isolating any failure.
+     */
+    private void deliver(Channel channel, List<String> batch) {
+        try {
+            channel.listener.onMessages(batch);
+            channel.delivered.addAndGet(batch.size());
+        } catch (RemoteException | RuntimeException e) {
+            channel.failed.addAndGet(batch.size());
+            Log.w(tag, "Error occurred dispatching " + batch.size() +
+                    " messages to listener.", e);
+        }
+    }
+}
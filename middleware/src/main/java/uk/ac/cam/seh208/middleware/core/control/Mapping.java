@@ -1,7 +1,5 @@
 package uk.ac.cam.seh208.middleware.core.control;
 
-import android.util.LongSparseArray;
-
 import java.util.List;
 import java.util.Random;
 
@@ -10,6 +8,7 @@ import uk.ac.cam.seh208.middleware.common.Persistence;
 import uk.ac.cam.seh208.middleware.common.Query;
 import uk.ac.cam.seh208.middleware.common.exception.BadHostException;
 import uk.ac.cam.seh208.middleware.core.CloseableSubject;
+import uk.ac.cam.seh208.middleware.core.LongConcurrentMap;
 
 
 /**
@@ -54,7 +53,7 @@ public class Mapping extends CloseableSubject<Mapping> {
      * Map of links constituent to the mapping. This is used to determine how many
      * new links should be established to restore the mapping.
      */
-    private LongSparseArray<Link> links;
+    private LongConcurrentMap<Link> links;
 
     /**
      * Original number of links constituent to the mapping.
@@ -75,7 +74,7 @@ public class Mapping extends CloseableSubject<Mapping> {
         this.local = local;
         this.query = query;
         this.persistence = persistence;
-        this.links = new LongSparseArray<>();
+        this.links = new LongConcurrentMap<>();
 
         // Add each link as an open constituent of the mapping.
         if (links == null) {
@@ -114,9 +113,8 @@ public class Mapping extends CloseableSubject<Mapping> {
         local = null;
 
         // Close all remaining links.
-        int size = links.size();
-        for (int i = 0; i < size; i++) {
-            links.valueAt(0).close();
+        for (Link link : links.values()) {
+            link.close();
         }
 
         super.close();
@@ -0,0 +1,149 @@
+package uk.ac.cam.seh208.middleware.core.control;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.github.fge.jackson.JsonLoader;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Immutable message passing through the middleware, carrying its raw representation
+ * along with a lazily built, cached, parsed form.
+ *
+ * A single message object is handed from the multiplexer to every receiving endpoint,
+ * and on to the listeners of those endpoints, so that the message text is decoded and
+ * parsed at most once, however many links it is addressed to.
+ */
+public final class Message {
+
+    /**
+     * Number of times any message has been parsed within this process.
+     */
+    private static final AtomicLong parses = new AtomicLong();
+
+    /**
+     * Number of times a parsed form has been served from a message's cache.
+     */
+    private static final AtomicLong cacheHits = new AtomicLong();
+
+
+    /**
+     * UTF-8 encoded representation of the message, or null if not yet encoded.
+     */
+    private volatile byte[] bytes;
+
+    /**
+     * String representation of the message, or null if not yet decoded.
+     */
+    private volatile String string;
+
+    /**
+     * Parsed JSON tree of the message, or null if not yet parsed.
+     */
+    private JsonNode tree;
+
+    /**
+     * Indicates that parsing has been attempted and failed.
+     */
+    private boolean malformed;
+
+
+    private Message(byte[] bytes, String string) {
+        this.bytes = bytes;
+        this.string = string;
+    }
+
+    /**
+     * @return a new message wrapping the given string.
+     */
+    public static Message fromString(String string) {
+        return new Message(null, string);
+    }
+
+    /**
+     * @return a new message wrapping the given UTF-8 encoded bytes.
+     */
+    public static Message fromBytes(byte[] bytes) {
+        return new Message(bytes, null);
+    }
+
+    /**
+     * NOTE: the returned array must not be modified.
+     *
+     * @return the UTF-8 encoded representation of the message.
+     */
+    public byte[] getBytes() {
+        byte[] bytes = this.bytes;
+        if (bytes == null) {
+            // Races are benign here; the encoding is deterministic.
+            bytes = string.getBytes(StandardCharsets.UTF_8);
+            this.bytes = bytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the string representation of the message.
+     */
+    public String getString() {
+        String string = this.string;
+        if (string == null) {
+            // Races are benign here; the decoding is deterministic.
+            string = new String(bytes, StandardCharsets.UTF_8);
+            this.string = string;
+        }
+        return string;
+    }
+
+    /**
+     * Return the parsed JSON tree of the message, parsing the message on first call.
+     *
+     * NOTE: the returned tree is shared, and must not be modified.
+     *
+     * @return the root node of the parsed message.
+     *
+     * @throws IOException if the message is not well-formed JSON.
+     */
+    public synchronized JsonNode getTree() throws IOException {
+        if (tree != null) {
+            cacheHits.incrementAndGet();
+            return tree;
+        }
+
+        if (malformed) {
+            // Don't re-attempt parsing of a message known to be malformed.
+            cacheHits.incrementAndGet();
+            throw new IOException("Malformed message.");
+        }
+
+        parses.incrementAndGet();
+        try {
+            tree = JsonLoader.fromString(getString());
+            return tree;
+        } catch (IOException e) {
+            malformed = true;
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of message parses performed within this process.
+     */
+    public static long getParseCount() {
+        return parses.get();
+    }
+
+    /**
+     * @return the number of parses avoided by serving a cached parsed form.
+     */
+    public static long getCacheHitCount() {
+        return cacheHits.get();
+    }
+
+    @Override
+    public String toString() {
+        return getString();
+    }
+}
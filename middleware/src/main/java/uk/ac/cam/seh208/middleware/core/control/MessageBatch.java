@@ -0,0 +1,84 @@
+package uk.ac.cam.seh208.middleware.core.control;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Packing of an ordered batch of messages into a single payload frame, sent under
+ * a multiplexer header carrying the batch flag.
+ *
+ * The batch payload is packed as follows:
+ *
+ *     [length : 4 bytes][message : length bytes]*
+ *
+ * with each length in network (big-endian) byte order, and each message UTF-8 encoded.
+ */
+public final class MessageBatch {
+
+    /**
+     * Length of the prefix preceding each packed message.
+     */
+    private static final int LENGTH_LENGTH = 4;
+
+
+    private MessageBatch() { }
+
+    /**
+     * Pack the given messages into a single batch payload.
+     *
+     * @param messages The messages to pack, in order of delivery.
+     *
+     * @return the batch payload frame.
+     */
+    public static byte[] pack(List<Message> messages) {
+        // Size the frame exactly before copying the messages into it.
+        int length = 0;
+        for (Message message : messages) {
+            length += LENGTH_LENGTH + message.getBytes().length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (Message message : messages) {
+            byte[] bytes = message.getBytes();
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Unpack the messages of a batch payload.
+     *
+     * @param payload The batch payload frame.
+     *
+     * @return the list of messages in order of delivery, or null if the payload
+     *         is malformed.
+     */
+    public static List<Message> unpack(byte[] payload) {
+        if (payload == null) {
+            return null;
+        }
+
+        List<Message> messages = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        try {
+            while (buffer.hasRemaining()) {
+                int length = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) {
+                    return null;
+                }
+
+                byte[] bytes = new byte[length];
+                buffer.get(bytes);
+                messages.add(Message.fromBytes(bytes));
+            }
+        } catch (BufferUnderflowException e) {
+            return null;
+        }
+
+        return messages;
+    }
+}
@@ -0,0 +1,195 @@
+package uk.ac.cam.seh208.middleware.core.control;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.github.fge.jsonschema.core.exceptions.ProcessingException;
+import com.github.fge.jsonschema.main.JsonSchema;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import uk.ac.cam.seh208.middleware.common.ValidationPolicy;
+
+
+/**
+ * Validates the messages sent and received by an endpoint against its schema,
+ * according to the endpoint's validation policy.
+ *
+ * Counts of validated and skipped messages are kept for each policy mode across
+ * the whole process, so the saving made by relaxed policies can be measured.
+ */
+public class MessageValidator {
+
+    /**
+     * Number of messages validated, indexed by policy mode ordinal.
+     */
+    private static final AtomicLongArray validated =
+            new AtomicLongArray(ValidationPolicy.Mode.values().length);
+
+    /**
+     * Number of messages passed without validation, indexed by policy mode ordinal.
+     */
+    private static final AtomicLongArray skipped =
+            new AtomicLongArray(ValidationPolicy.Mode.values().length);
+
+
+    /**
+     * Compiled schema against which messages are validated.
+     */
+    private final JsonSchema schema;
+
+    /**
+     * Canonical hash of the schema, compared against the hash of the remote schema
+     * when links are established.
+     */
+    private final String schemaHash;
+
+    /**
+     * Policy determining which messages are validated.
+     */
+    private volatile ValidationPolicy policy;
+
+    /**
+     * Sequence number of the next outgoing message, used for sampling.
+     */
+    private final AtomicLong outgoing;
+
+    /**
+     * Sequence number of the next incoming message, used for sampling.
+     */
+    private final AtomicLong incoming;
+
+
+    /**
+     * Construct a new validator for messages of the given schema.
+     *
+     * @param schema Compiled schema against which messages are validated.
+     * @param schemaText Text of the schema, from which its hash is computed.
+     */
+    public MessageValidator(JsonSchema schema, String schemaText) {
+        this.schema = schema;
+        this.schemaHash = SchemaCache.hash(schemaText);
+        policy = ValidationPolicy.ALWAYS;
+        outgoing = new AtomicLong();
+        incoming = new AtomicLong();
+    }
+
+    /**
+     * Check an outgoing message against the schema, if required by the policy.
+     *
+     * @param message Message about to be sent.
+     *
+     * @return whether the message may be sent.
+     */
+    public boolean checkOutgoing(Message message) {
+        ValidationPolicy policy = this.policy;
+
+        if (policy.getMode() == ValidationPolicy.Mode.SAMPLED &&
+                !sample(outgoing, policy.getInterval())) {
+            skipped.incrementAndGet(policy.getMode().ordinal());
+            return true;
+        }
+
+        return validate(message, policy);
+    }
+
+    /**
+     * Check an incoming message against the schema, if required by the policy.
+     *
+     * @param message Message received from the remote endpoint.
+     * @param link Link on which the message was received.
+     *
+     * @return whether the message may be delivered.
+     */
+    boolean checkIncoming(Message message, Link link) {
+        ValidationPolicy policy = this.policy;
+
+        // Receive-side validation may only be relaxed for senders validating
+        // every message they send; a sampling sender may pass invalid messages.
+        boolean required;
+        switch (policy.getMode()) {
+            case SENDER_ONLY:
+                required = !isSenderValidated(link);
+                break;
+
+            case SAMPLED:
+                required = sample(incoming, policy.getInterval());
+                break;
+
+            case TRUSTED_PEER:
+                required = !(sharesSchema(link) && isSenderValidated(link));
+                break;
+
+            default:
+                required = true;
+        }
+
+        if (!required) {
+            skipped.incrementAndGet(policy.getMode().ordinal());
+            return true;
+        }
+
+        return validate(message, policy);
+    }
+
+    /**
+     * @return whether the remote endpoint of the given link was shown to share the
+     *         schema of this validator during link establishment.
+     */
+    boolean sharesSchema(Link link) {
+        return schemaHash != null && schemaHash.equals(link.getRemoteSchemaHash());
+    }
+
+    /**
+     * @return whether the remote endpoint of the given link advertised during link
+     *         establishment that it validates every message it sends.
+     */
+    static boolean isSenderValidated(Link link) {
+        return link != null && link.getRemote() != null && link.getRemote().isSenderValidated();
+    }
+
+    /**
+     * @return whether the message with the next sequence number should be validated.
+     */
+    private static boolean sample(AtomicLong sequence, int interval) {
+        return sequence.getAndIncrement() % interval == 0;
+    }
+
+    /**
+     * Validate a message against the schema, counting it against the given policy.
+     */
+    private boolean validate(Message message, ValidationPolicy policy) {
+        validated.incrementAndGet(policy.getMode().ordinal());
+
+        try {
+            // Get the (possibly cached) parsed message, and attempt to validate
+            // it against the schema.
+            JsonNode parsedMessage = message.getTree();
+            return schema.validate(parsedMessage).isSuccess();
+        } catch (IOException | ProcessingException e) {
+            return false;
+        }
+    }
+
+    ValidationPolicy getPolicy() {
+        return policy;
+    }
+
+    public void setPolicy(ValidationPolicy policy) {
+        this.policy = (policy != null) ? policy : ValidationPolicy.ALWAYS;
+    }
+
+    /**
+     * @return the number of messages validated under policies of the given mode.
+     */
+    public static long getValidatedCount(ValidationPolicy.Mode mode) {
+        return validated.get(mode.ordinal());
+    }
+
+    /**
+     * @return the number of messages skipped under policies of the given mode.
+     */
+    public static long getSkippedCount(ValidationPolicy.Mode mode) {
+        return skipped.get(mode.ordinal());
+    }
+}
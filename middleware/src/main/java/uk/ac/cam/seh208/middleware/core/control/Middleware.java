@@ -68,7 +68,7 @@ public class Middleware implements Parcelable, JSONSerializable {
         requestLocation = in.readParcelable(getClass().getClassLoader());
     }
 
-    long getUUID() {
+    public long getUUID() {
         return uuid;
     }
 
@@ -76,7 +76,7 @@ public class Middleware implements Parcelable, JSONSerializable {
         return messageLocation;
     }
 
-    Location getRequestLocation() {
+    public Location getRequestLocation() {
         return requestLocation;
     }
 
@@ -84,6 +84,11 @@ public class MiddlewareCommandControlMessage extends ControlMessage {
         return (Response) super.getResponse(stream);
     }
 
+    @Override
+    public Response getResponse(RequestStream stream, long timeoutMillis) {
+        return (Response) super.getResponse(stream, timeoutMillis);
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (this == obj) {
@@ -1,5 +1,6 @@
 package uk.ac.cam.seh208.middleware.core.control;
 
+import android.arch.persistence.db.SupportSQLiteDatabase;
 import android.arch.persistence.room.Dao;
 import android.arch.persistence.room.Database;
 import android.arch.persistence.room.Insert;
@@ -7,13 +8,18 @@ import android.arch.persistence.room.Query;
 import android.arch.persistence.room.Room;
 import android.arch.persistence.room.RoomDatabase;
 import android.arch.persistence.room.Update;
+import android.arch.persistence.room.migration.Migration;
 import android.content.Context;
 import android.util.Log;
 
 import java.util.List;
 
+import java8.util.stream.Collectors;
+import java8.util.stream.StreamSupport;
+import uk.ac.cam.seh208.middleware.common.DeliveryPolicy;
 import uk.ac.cam.seh208.middleware.common.EndpointDetails;
 import uk.ac.cam.seh208.middleware.common.Persistence;
+import uk.ac.cam.seh208.middleware.common.ValidationPolicy;
 import uk.ac.cam.seh208.middleware.common.exception.BadHostException;
 import uk.ac.cam.seh208.middleware.common.exception.BadQueryException;
 import uk.ac.cam.seh208.middleware.common.exception.BadSchemaException;
@@ -22,7 +28,7 @@ import uk.ac.cam.seh208.middleware.common.exception.ProtocolException;
 import uk.ac.cam.seh208.middleware.core.MiddlewareService;
 
 
-@Database(version = 1, entities = { EndpointData.class, MappingData.class })
+@Database(version = 3, entities = { EndpointData.class, MappingData.class })
 public abstract class MiddlewareDatabase extends RoomDatabase {
 
     @Dao
@@ -53,6 +59,29 @@ public abstract class MiddlewareDatabase extends RoomDatabase {
     }
 
 
+    /**
+     * Migration adding the per-endpoint validation policy. Existing rows are
+     * left null, which is read as the original validate-everything behaviour.
+     */
+    private static final Migration MIGRATION_1_2 = new Migration(1, 2) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("ALTER TABLE endpoints ADD COLUMN validationPolicy TEXT");
+        }
+    };
+
+    /**
+     * Migration adding the per-endpoint delivery policy. Existing rows are
+     * left null, which is read as the default lossless policy.
+     */
+    private static final Migration MIGRATION_2_3 = new Migration(2, 3) {
+        @Override
+        public void migrate(SupportSQLiteDatabase database) {
+            database.execSQL("ALTER TABLE endpoints ADD COLUMN deliveryPolicy TEXT");
+        }
+    };
+
+
     private static MiddlewareDatabase INSTANCE;
 
     public static MiddlewareDatabase getInstance(Context context) {
@@ -61,6 +90,7 @@ public abstract class MiddlewareDatabase extends RoomDatabase {
                                             MiddlewareDatabase.class,
                                             "middleware-database")
                     .allowMainThreadQueries()
+                    .addMigrations(MIGRATION_1_2, MIGRATION_2_3)
                     .build();
         }
 
@@ -73,8 +103,14 @@ public abstract class MiddlewareDatabase extends RoomDatabase {
 
     public void restore(MiddlewareService service) {
         EndpointDAO dao = endpointDAO();
+        List<EndpointData> endpoints = dao.getEndpoints();
 
-        for (EndpointData endpointData : dao.getEndpoints()) {
+        // Compile the stored schemas in the background, whilst endpoints are restored.
+        SchemaCache.prewarm(StreamSupport.stream(endpoints)
+                .map(EndpointData::getSchema)
+                .collect(Collectors.toList()));
+
+        for (EndpointData endpointData : endpoints) {
             try {
                 // Recreate the stored endpoint in the new middleware instance.
                 service.createEndpoint(
@@ -92,6 +128,10 @@ public abstract class MiddlewareDatabase extends RoomDatabase {
                         .getEndpointSet()
                         .getEndpointByName(endpointData.getName());
 
+                // Restore the validation and delivery policies, which are already persisted.
+                endpoint.applyValidationPolicy(endpointData.getValidationPolicy());
+                endpoint.applyDeliveryPolicy(endpointData.getDeliveryPolicy());
+
                 for (MappingData mappingData : dao.getMappings(endpoint.getName())) {
                     // Map from the endpoint, using the original query and persistence policy.
                     endpoint.map(mappingData.getQuery(), mappingData.getPersistence());
@@ -144,6 +184,32 @@ public abstract class MiddlewareDatabase extends RoomDatabase {
         dao.updateEndpoint(endpoint);
     }
 
+    public void setEndpointValidationPolicy(String name, ValidationPolicy policy) {
+        EndpointDAO dao = endpointDAO();
+
+        // Get the endpoint data object.
+        EndpointData endpoint = dao.getEndpoint(name);
+
+        // Update the endpoint data object.
+        endpoint.setValidationPolicy(policy);
+
+        // Commit the data object back to the database.
+        dao.updateEndpoint(endpoint);
+    }
+
+    public void setEndpointDeliveryPolicy(String name, DeliveryPolicy policy) {
+        EndpointDAO dao = endpointDAO();
+
+        // Get the endpoint data object.
+        EndpointData endpoint = dao.getEndpoint(name);
+
+        // Update the endpoint data object.
+        endpoint.setDeliveryPolicy(policy);
+
+        // Commit the data object back to the database.
+        dao.updateEndpoint(endpoint);
+    }
+
     public void deleteEndpoint(String name) {
         endpointDAO().deleteEndpoint(name);
     }
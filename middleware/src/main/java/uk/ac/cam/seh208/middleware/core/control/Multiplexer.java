@@ -1,21 +1,23 @@
 package uk.ac.cam.seh208.middleware.core.control;
 
 import android.util.Log;
-import android.util.LongSparseArray;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Objects;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.Set;
 
 import uk.ac.cam.seh208.middleware.common.EndpointDetails;
-import uk.ac.cam.seh208.middleware.common.Polarity;
 import uk.ac.cam.seh208.middleware.common.exception.BadHostException;
 import uk.ac.cam.seh208.middleware.core.BuildConfig;
 import uk.ac.cam.seh208.middleware.core.CloseableSubject;
+import uk.ac.cam.seh208.middleware.core.LongConcurrentMap;
 import uk.ac.cam.seh208.middleware.core.MiddlewareService;
 import uk.ac.cam.seh208.middleware.core.exception.ConnectionFailedException;
+import uk.ac.cam.seh208.middleware.core.exception.QueueFullException;
+import uk.ac.cam.seh208.middleware.core.comms.LoopbackMessageStream;
 import uk.ac.cam.seh208.middleware.core.comms.MessageListener;
 import uk.ac.cam.seh208.middleware.core.comms.MessageStream;
 
@@ -31,6 +33,77 @@ import uk.ac.cam.seh208.middleware.core.comms.MessageStream;
  */
 public class Multiplexer extends CloseableSubject<Multiplexer> {
 
+    /**
+     * Links carried for a single local endpoint, along with the precomputed headers
+     * addressing all of them.
+     */
+    private static final class Route {
+
+        /**
+         * Carried links sharing the local endpoint.
+         */
+        private final List<Link> links;
+
+        /**
+         * Binary header addressing every link of the route.
+         */
+        private final byte[] header;
+
+        /**
+         * Binary header addressing every link of the route, flagged as a batch.
+         */
+        private final byte[] batchHeader;
+
+        /**
+         * Legacy string prefix addressing every link of the route.
+         */
+        private final String legacyPrefix;
+
+
+        private Route(List<Link> links) {
+            this.links = Collections.unmodifiableList(links);
+
+            long[] linkIds = new long[links.size()];
+            for (int i = 0; i < linkIds.length; i++) {
+                linkIds[i] = links.get(i).getLinkId();
+            }
+
+            MultiplexerHeader plain = new MultiplexerHeader(linkIds, MultiplexerHeader.FLAG_NONE);
+            header = plain.toBytes();
+            batchHeader = new MultiplexerHeader(linkIds, MultiplexerHeader.FLAG_BATCH).toBytes();
+            legacyPrefix = plain.toLegacyPrefix();
+        }
+    }
+
+    /**
+     * Immutable snapshot of the links carried by the multiplexer.
+     *
+     * NOTE: the maps of a published snapshot must not be modified.
+     */
+    private static final class LinkState {
+
+        /**
+         * Map of carried links, indexed by their identifier. This is used to determine
+         * whether a timeout closure of the multiplexer should be scheduled on link closure,
+         * and to de-multiplex incoming messages between endpoints.
+         */
+        private final LongConcurrentMap<Link> links;
+
+        /**
+         * Map of routes, indexed by the identifier of their local endpoint. This is used to
+         * determine which link identifiers should be prepended to each message for
+         * multiplexing purposes.
+         */
+        private final LongConcurrentMap<Route> routes;
+
+
+        private LinkState(LongConcurrentMap<Link> links, LongConcurrentMap<Route> routes) {
+            this.links = links;
+            this.routes = routes;
+        }
+    }
+
+
     /**
      * MessageStream implementor providing the underlying communications to the remote middleware.
      */
@@ -53,18 +126,10 @@ public class Multiplexer extends CloseableSubject<Multiplexer> {
     private final Middleware remote;
 
     /**
-     * Map of currently open links carried by the multiplexer, indexed by their identifier.
-     * This is used to determine whether a timeout closure of the multiplexer should be
-     * scheduled on link closure, and to de-multiplex incoming messages between endpoints.
-     */
-    private final LongSparseArray<Link> links;
-
-    /**
-     * Map of currently open links carried by the multiplexer, grouped by the identifier
-     * of their local endpoint. This is used to determine which link identifiers should be
-     * prepended to each message for multiplexing purposes.
+     * Current snapshot of the carried links. Handlers of sending and receiving read
+     * this without locking; updates replace it with a newly built snapshot.
      */
-    private final LongSparseArray<List<Link>> linksByLocalEndpoint;
+    private volatile LinkState linkState;
 
     /**
      * Lambda reference to the onMessage method for registering with the message stream.
@@ -72,25 +137,40 @@ public class Multiplexer extends CloseableSubject<Multiplexer> {
     private final MessageListener listener;
 
     /**
-     * Lock used to prevent handlers of sending and receiving from seeing partially
-     * updated multiplexer state.
+     * Lock used to serialise updates to the link state.
      */
-    private final ReadWriteLock stateLock;
+    private final Object stateLock;
 
 
     Multiplexer(MiddlewareService service, Middleware remote) throws BadHostException {
         this.service = service;
-        this.messageStream = service.getMessageStream(remote.getMessageLocation());
         this.remote = remote;
-        links = new LongSparseArray<>();
-        linksByLocalEndpoint = new LongSparseArray<>();
-        stateLock = new ReentrantReadWriteLock(true);
+        linkState = new LinkState(new LongConcurrentMap<>(), new LongConcurrentMap<>());
+        stateLock = new Object();
 
         // If the local and remote middlewares are equal, this is a loopback multiplexer.
         loopback = service.getMiddleware().equals(remote);
 
-        // Register the onMessage method as a message listener for the message stream.
-        listener = this::onMessage;
+        // Loopback multiplexers deliver messages in-process, rather than through
+        // a socket connected to our own message server.
+        if (loopback) {
+            messageStream = new LoopbackMessageStream();
+        } else {
+            messageStream = service.getMessageStream(remote.getMessageLocation());
+        }
+
+        // Register the onMessage methods as a message listener for the message stream.
+        listener = new MessageListener() {
+            @Override
+            public void onMessage(String message) {
+                Multiplexer.this.onMessage(message);
+            }
+
+            @Override
+            public void onMessage(byte[] header, byte[] payload) {
+                Multiplexer.this.onMessage(header, payload);
+            }
+        };
         messageStream.registerListener(listener);
 
         // Attempt to subscribe to message stream closure, closing the
@@ -118,36 +198,40 @@ public class Multiplexer extends CloseableSubject<Multiplexer> {
             return false;
         }
 
-        // Acquire the state write lock.
-        stateLock.writeLock().lock();
-
-        // Add the link to the links map.
-        links.put(link.getLinkId(), link);
-
-        // Find the link list associated with the link's local endpoint,
-        // if one such list already exists, in order to add the link to it.
-        long localId = link.getLocal().getEndpointId();
-        if (linksByLocalEndpoint.indexOfKey(localId) < 0) {
-            // The list does not exist; create a new list and append the link.
-            List<Link> linksList = new ArrayList<>();
-            linksList.add(link);
-            linksByLocalEndpoint.put(localId, linksList);
-        } else {
-            // The list exists; add the link to it.
-            linksByLocalEndpoint.get(localId).add(link);
-        }
+        synchronized (stateLock) {
+            LinkState current = linkState;
+            LongConcurrentMap<Link> links = current.links.copy();
+            LongConcurrentMap<Route> routes = current.routes.copy();
+
+            // Add the link to the links map. In the special case that both endpoints
+            // reside on the same middleware, both links of the pair are carried under the
+            // same identifier; only the link whose local endpoint receives messages is
+            // mapped, as this is where messages addressed to the identifier must be delivered.
+            if (!loopback || !links.containsKey(link.getLinkId())
+                    || link.getLocal().getPolarity().supportsListeners) {
+                links.put(link.getLinkId(), link);
+            }
 
-        // Attempt to subscribe to link closure, dropping the link
-        // when this occurs.
-        if (!link.subscribeIfOpen(this::dropLink)) {
-            // If the link is already closed, drop it immediately.
-            dropLink(link);
-            return false;
+            // Rebuild the route of the link's local endpoint, including the link.
+            long localId = link.getLocal().getEndpointId();
+            Route route = routes.get(localId);
+            List<Link> routeLinks = (route == null)
+                    ? new ArrayList<>() : new ArrayList<>(route.links);
+            routeLinks.add(link);
+            routes.put(localId, new Route(routeLinks));
+
+            // Publish the new state.
+            linkState = new LinkState(links, routes);
+
+            // Attempt to subscribe to link closure, dropping the link
+            // when this occurs.
+            if (!link.subscribeIfOpen(this::dropLink)) {
+                // If the link is already closed, drop it immediately.
+                dropLink(link);
+                return false;
+            }
         }
 
-        // Release the state lock.
-        stateLock.writeLock().unlock();
-
         return true;
     }
 
@@ -162,113 +246,165 @@ public class Multiplexer extends CloseableSubject<Multiplexer> {
             return false;
         }
 
-        // Acquire the state write lock.
-        stateLock.writeLock().lock();
-
-        if (links.indexOfKey(link.getLinkId()) < 0) {
-            // Release the state lock.
-            stateLock.writeLock().unlock();
+        synchronized (stateLock) {
+            LinkState current = linkState;
+            if (!current.links.containsKey(link.getLinkId())) {
+                // Both links of a loopback pair are dropped together, when the
+                // first of them closes.
+                if (!loopback) {
+                    Log.e(getTag(), "Attempted to remove link not carried.");
+                }
+                return false;
+            }
 
-            Log.e(getTag(), "Attempted to remove link not carried.");
+            // Remove the link from the links map.
+            LongConcurrentMap<Link> links = current.links.copy();
+            links.remove(link.getLinkId());
 
-            return false;
-        }
+            // Remove the link from the route associated with its local endpoint identifier.
+            LongConcurrentMap<Route> routes = current.routes.copy();
+            removeLinkByEndpoint(routes, link, link.getLocal().getDetails());
 
-        // Remove the link from the links map.
-        links.remove(link.getLinkId());
+            if (loopback) {
+                // In the special case that both endpoints reside on the same middleware,
+                // we must also remove the link from the route associated with its remote
+                // endpoint identifier.
+                removeLinkByEndpoint(routes, link, link.getRemote());
+            }
 
-        // Remove the link from the linksByLocalEndpoint list associated with
-        // its local endpoint identifier.
-        removeLinkByEndpoint(link, link.getLocal().getDetails());
+            // Publish the new state.
+            linkState = new LinkState(links, routes);
 
-        if (loopback) {
-            // In the special case that both endpoints reside on the same middleware,
-            // we must also remove the link from the linksByLocalEndpoint list
-            // associated with its remote endpoint identifier.
-            removeLinkByEndpoint(link, link.getRemote());
-        }
-
-        if (links.size() == 0) {
-            if (BuildConfig.DEBUG && linksByLocalEndpoint.size() > 0) {
-                // Release the state lock.
-                stateLock.writeLock().unlock();
+            if (links.size() == 0) {
+                if (BuildConfig.DEBUG && routes.size() > 0) {
+                    throw new AssertionError("Inconsistent link state in multiplexer.");
+                }
 
-                throw new AssertionError("Inconsistent link state in multiplexer.");
+                // If all carried links are closed, set a timeout for the closure
+                // of the multiplexer.
+                // TODO: timeoutClose();
             }
-
-            // If all carried links are closed, set a timeout for the closure
-            // of the multiplexer.
-            // TODO: timeoutClose();
         }
 
-        // Release the state lock.
-        stateLock.writeLock().unlock();
-
         return true;
     }
 
     /**
-     * Convenience procedure for removing a link from the linksByLocalEndpoint collection.
-     * The given link will (obviously) only be removed from the list pertaining to the given
-     * endpoint if the endpoint actually resides in that list.
+     * Convenience procedure for removing a link from a map of routes under construction.
+     * The given link will (obviously) only be removed from the route pertaining to the given
+     * endpoint if the endpoint actually resides in that route.
      *
+     * @param routes The routes map being built.
      * @param link The link to remove.
      * @param details Details of the endpoint the link is associated with.
      */
-    private void removeLinkByEndpoint(Link link, EndpointDetails details) {
+    private static void removeLinkByEndpoint(LongConcurrentMap<Route> routes, Link link,
+                                             EndpointDetails details) {
         long endpointId = details.getEndpointId();
-        List<Link> linkList = linksByLocalEndpoint.get(endpointId);
-        linkList.remove(link);
-        if (linkList.isEmpty()) {
-            // If the list is now empty, remove it from the map.
-            linksByLocalEndpoint.remove(endpointId);
+        Route route = routes.get(endpointId);
+        if (route == null) {
+            return;
+        }
+
+        List<Link> routeLinks = new ArrayList<>(route.links);
+        routeLinks.remove(link);
+        if (routeLinks.isEmpty()) {
+            // If the route is now empty, remove it from the map.
+            routes.remove(endpointId);
+        } else {
+            routes.put(endpointId, new Route(routeLinks));
         }
     }
 
     /**
-     * Send the message along the associated message stream, prepending the ids of all
-     * carried links associated with the originator endpoint.
+     * Send the message along the associated message stream, prefixed by the ids of all
+     * carried links associated with the originator endpoint. If the remote end of the
+     * stream supports framed messages, the link ids are sent in a separate binary
+     * header frame; otherwise, they are prepended to the message as a string.
      */
-    public void send(Endpoint local, String data) {
+    public void send(Endpoint local, Message data) {
         if (isClosed()) {
             return;
         }
 
-        // Acquire the state read lock.
-        stateLock.readLock().lock();
-
-        if (linksByLocalEndpoint.indexOfKey(local.getEndpointId()) < 0) {
-            Log.e(getTag(), "Attempted to send a message from a local endpoint with no " +
-                    "carried links.");
+        Route route = getRoute(local);
+        if (route == null) {
             return;
         }
 
         try {
-            // Build a message efficiently using a StringBuilder object.
-            StringBuilder message = new StringBuilder();
-            for (Link link : linksByLocalEndpoint.get(local.getEndpointId())) {
-                // For each link sharing the given local endpoint, prepend the
-                // link identifier to the message.
-                message.append(link.getLinkId());
-                message.append("|");
+            // Send the message over the associated message stream, using the
+            // framing supported by the remote end.
+            if (messageStream.isFramingSupported()) {
+                messageStream.send(route.header, data.getBytes());
+            } else {
+                messageStream.send(route.legacyPrefix + data.getString());
             }
+        } catch (QueueFullException e) {
+            // The stream is healthy but congested; drop this message only.
+            Log.w(getTag(), "Dropped message as the outbound queue is full.");
+        } catch (ConnectionFailedException e) {
+            close();
+        }
+    }
 
-            if (BuildConfig.DEBUG && message.toString().isEmpty()) {
-                throw new AssertionError("Bad state in linksByLocalEndpoint");
-            }
+    /**
+     * Send a batch of messages along the associated message stream, addressed to all
+     * carried links associated with the originator endpoint. If the remote end of the
+     * stream supports framed messages, the batch is sent as a single framed message,
+     * under one header; otherwise, each message is sent with the same legacy prefix.
+     *
+     * A framed batch is queued whole or not at all. Messages sent individually are
+     * queued in turn until the outbound queue rejects one; that message and those
+     * after it are not sent, so the peer still receives the batch in order.
+     *
+     * @return the number of messages at the start of the batch which were queued;
+     *         the remaining messages were not sent.
+     */
+    public int send(Endpoint local, List<Message> batch) {
+        if (isClosed() || batch.isEmpty()) {
+            return 0;
+        }
 
-            // Delimit the prefix from the message data using a second newline.
-            message.append("|");
-            message.append(data);
+        Route route = getRoute(local);
+        if (route == null) {
+            return 0;
+        }
 
-            // Send the newly built message over the associated message stream.
-            messageStream.send(message.toString());
+        int sent = 0;
+        try {
+            if (messageStream.isFramingSupported()) {
+                messageStream.send(route.batchHeader, MessageBatch.pack(batch));
+                sent = batch.size();
+            } else {
+                // Legacy peers cannot unpack batches, so send each message in turn.
+                for (Message data : batch) {
+                    messageStream.send(route.legacyPrefix + data.getString());
+                    sent++;
+                }
+            }
+        } catch (QueueFullException e) {
+            // The stream is healthy but congested; drop the remainder of the batch.
+            Log.w(getTag(), "Dropped messages " + sent + " to " + (batch.size() - 1) +
+                    " of batch of " + batch.size() + " as the outbound queue is full.");
         } catch (ConnectionFailedException e) {
             close();
         }
 
-        // Release the state lock.
-        stateLock.readLock().unlock();
+        return sent;
+    }
+
+    /**
+     * @return the route of carried links sharing the given local endpoint in the
+     *         current state, or null if there are none.
+     */
+    private Route getRoute(Endpoint local) {
+        Route route = linkState.routes.get(local.getEndpointId());
+        if (route == null) {
+            Log.e(getTag(), "Attempted to send a message from a local endpoint with no " +
+                    "carried links.");
+        }
+        return route;
     }
 
     @Override
@@ -277,25 +413,31 @@ public class Multiplexer extends CloseableSubject<Multiplexer> {
             return;
         }
 
-        // Acquire the state write lock.
-        stateLock.writeLock().lock();
+        synchronized (stateLock) {
+            // Close (and thus drop) all remaining links, including both links of any
+            // loopback pair. Links being migrated to another multiplexer should be
+            // dropped manually before closing this multiplexer, otherwise
+            // they will be closed automatically here.
+            LinkState current = linkState;
+            Set<Link> remaining = Collections.newSetFromMap(new IdentityHashMap<>());
+            remaining.addAll(current.links.values());
+            for (Route route : current.routes.values()) {
+                remaining.addAll(route.links);
+            }
+            for (Link link : remaining) {
+                link.close();
+            }
 
-        // Close (and thus drop) all remaining links.
-        // Links being migrated to another multiplexer should be
-        // dropped manually before closing this multiplexer, otherwise
-        // they will be closed automatically here.
-        int size = links.size();
-        for (int i = 0; i < size; i++) {
-            links.valueAt(0).close();
+            // Remove the message listener from the message stream.
+            messageStream.unregisterListener(listener);
         }
 
-        // Remove the message listener from the message stream.
-        messageStream.unregisterListener(listener);
-
-        // Release the state lock.
-        stateLock.writeLock().unlock();
-
         super.close();
+
+        if (loopback) {
+            // The loopback stream is owned by this multiplexer alone.
+            messageStream.close();
+        }
     }
 
     public Middleware getRemote() {
@@ -303,7 +445,7 @@ public class Multiplexer extends CloseableSubject<Multiplexer> {
     }
 
     /**
-     * On received raw message, split into prefix and data, and dispatch the data to
+     * On received legacy message, split into prefix and data, and dispatch the data to
      * all local endpoints referenced by the link identifiers in the prefix.
      */
     private void onMessage(String message) {
@@ -311,19 +453,60 @@ public class Multiplexer extends CloseableSubject<Multiplexer> {
             return;
         }
 
-        int divider = message.indexOf("||");
-        String[] parts = message.substring(0, divider).split("\\|");
-        String data = message.substring(divider + 2);
+        MultiplexerHeader header = MultiplexerHeader.fromLegacyMessage(message);
+        if (header == null) {
+            Log.w(getTag(), "Received message with malformed prefix.");
+            return;
+        }
+
+        dispatch(header, Collections.singletonList(
+                Message.fromString(MultiplexerHeader.legacyPayload(message))));
+    }
 
-        // Acquire the state read lock.
-        stateLock.readLock().lock();
+    /**
+     * On received framed message, decode the header frame, and dispatch the payload to
+     * all local endpoints referenced by the link identifiers in the header. Batch payloads
+     * are unpacked, and their messages dispatched individually in order.
+     */
+    private void onMessage(byte[] headerFrame, byte[] payload) {
+        if (isClosed()) {
+            return;
+        }
+
+        MultiplexerHeader header = MultiplexerHeader.fromBytes(headerFrame);
+        if (header == null) {
+            Log.w(getTag(), "Received message with malformed header frame.");
+            return;
+        }
+
+        if (!header.isBatch()) {
+            dispatch(header, Collections.singletonList(Message.fromBytes(payload)));
+            return;
+        }
+
+        List<Message> batch = MessageBatch.unpack(payload);
+        if (batch == null) {
+            Log.w(getTag(), "Received message with malformed batch payload.");
+            return;
+        }
+
+        dispatch(header, batch);
+    }
+
+    /**
+     * Dispatch messages to the local endpoints of all links addressed by the header, in
+     * order. The same message object is passed to every endpoint, so it is parsed at
+     * most once.
+     */
+    private void dispatch(MultiplexerHeader header, List<Message> messages) {
+        LongConcurrentMap<Link> links = linkState.links;
 
         // Dispatch the message type and separated link identifier to the local
         // endpoint of each of the addressed links.
-        for (String part : parts) {
-            long linkId = Long.valueOf(part);
+        for (long linkId : header.getLinkIds()) {
+            Link link = links.get(linkId);
 
-            if (links.indexOfKey(linkId) < 0) {
+            if (link == null) {
                 // If the links map does not contain the link id, we
                 // probably shouldn't have received it.
                 // TODO: respond telling remote to close the erroneous link.
@@ -331,24 +514,12 @@ public class Multiplexer extends CloseableSubject<Multiplexer> {
                 continue;
             }
 
-            // Find the local sink endpoint associated with this link.
-            Endpoint sink = links.get(linkId).getLocal();
-            if (loopback) {
-                // If this is a loopback multiplexer, choose the endpoint having the sink
-                // polarity. This is a bit of a hack, and the state space of the multiplexer
-                // would have to be changed in the future to support more exotic polarities.
-                if (sink.getPolarity() != Polarity.SINK) {
-                    EndpointDetails details = links.get(linkId).getRemote();
-                    sink = service.getEndpointSet().getEndpointByName(details.getName());
-                }
-            }
-
             // Delegate to the message handler of the link's local endpoint.
-            sink.onMessage(linkId, data);
+            Endpoint sink = link.getLocal();
+            for (Message data : messages) {
+                sink.onMessage(linkId, data);
+            }
         }
-
-        // Release the state lock.
-        stateLock.readLock().unlock();
     }
 
     private String getTag() {
@@ -0,0 +1,193 @@
+package uk.ac.cam.seh208.middleware.core.control;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Immutable multiplexing header, listing the identifiers of the links a message is
+ * addressed to along with a set of flags.
+ *
+ * The header has two wire representations. The binary representation is carried
+ * in its own frame ahead of the message payload, and is packed as follows:
+ *
+ *     [version : 1 byte][flags : 1 byte][link id : 8 bytes]*
+ *
+ * with all link identifiers in network (big-endian) byte order. The legacy
+ * representation is a string prefix of decimal link identifiers, each followed by
+ * a '|' character, with a further '|' separating the prefix from the payload; this
+ * is used with peers that have not negotiated framed messages.
+ */
+public final class MultiplexerHeader {
+
+    /**
+     * Version of the binary header format written by this implementation.
+     */
+    public static final byte VERSION = 1;
+
+    /**
+     * Value of the flags field indicating no special treatment of the payload.
+     */
+    public static final int FLAG_NONE = 0;
+
+    /**
+     * Flag indicating that the payload is a packed batch of messages.
+     *
+     * @see MessageBatch
+     */
+    public static final int FLAG_BATCH = 1;
+
+    /**
+     * Length of the fixed portion of the binary header.
+     */
+    private static final int FIXED_LENGTH = 2;
+
+    /**
+     * Length of each packed link identifier.
+     */
+    private static final int ID_LENGTH = 8;
+
+
+    /**
+     * Identifiers of the links the message is addressed to.
+     */
+    private final long[] linkIds;
+
+    /**
+     * Bit-field of flags describing the payload.
+     */
+    private final int flags;
+
+
+    /**
+     * Construct a new header addressing the given links.
+     *
+     * NOTE: the given array is not copied, and must not be modified after construction.
+     *
+     * @param linkIds Identifiers of the links the message is addressed to.
+     * @param flags Bit-field of flags describing the payload.
+     */
+    public MultiplexerHeader(long[] linkIds, int flags) {
+        this.linkIds = linkIds;
+        this.flags = flags;
+    }
+
+    /**
+     * Decode a header from its binary representation.
+     *
+     * @param bytes The header frame.
+     *
+     * @return a newly constructed header, or null if the frame is malformed or
+     *         of an unsupported version.
+     */
+    public static MultiplexerHeader fromBytes(byte[] bytes) {
+        if (bytes == null || bytes.length < FIXED_LENGTH) {
+            return null;
+        }
+
+        if ((bytes.length - FIXED_LENGTH) % ID_LENGTH != 0) {
+            return null;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (buffer.get() != VERSION) {
+            return null;
+        }
+        int flags = buffer.get() & 0xFF;
+
+        // Unpack the link identifiers directly from the frame.
+        long[] linkIds = new long[(bytes.length - FIXED_LENGTH) / ID_LENGTH];
+        buffer.asLongBuffer().get(linkIds);
+
+        return new MultiplexerHeader(linkIds, flags);
+    }
+
+    /**
+     * Decode the header from the prefix of a legacy (string-framed) message.
+     *
+     * @param message The complete legacy message, including the payload.
+     *
+     * @return a newly constructed header, or null if the message has no valid prefix.
+     */
+    public static MultiplexerHeader fromLegacyMessage(String message) {
+        int divider = message.indexOf("||");
+        if (divider < 0) {
+            return null;
+        }
+
+        try {
+            String[] parts = message.substring(0, divider).split("\\|");
+            long[] linkIds = new long[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                linkIds[i] = Long.valueOf(parts[i]);
+            }
+
+            return new MultiplexerHeader(linkIds, FLAG_NONE);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Strip the multiplexing prefix from a legacy (string-framed) message.
+     *
+     * @param message The complete legacy message, including the prefix.
+     *
+     * @return the message payload, or null if the message has no valid prefix.
+     */
+    public static String legacyPayload(String message) {
+        int divider = message.indexOf("||");
+        if (divider < 0) {
+            return null;
+        }
+
+        return message.substring(divider + 2);
+    }
+
+    /**
+     * @return the binary representation of the header.
+     */
+    public byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(FIXED_LENGTH + linkIds.length * ID_LENGTH);
+        buffer.put(VERSION);
+        buffer.put((byte) flags);
+        buffer.asLongBuffer().put(linkIds);
+        return buffer.array();
+    }
+
+    /**
+     * @return the legacy string prefix representation of the header, to which the
+     *         payload should be directly appended.
+     */
+    public String toLegacyPrefix() {
+        // Build the prefix efficiently using a StringBuilder object.
+        StringBuilder prefix = new StringBuilder();
+        for (long linkId : linkIds) {
+            prefix.append(linkId);
+            prefix.append("|");
+        }
+
+        // Delimit the prefix from the message data using a second separator.
+        prefix.append("|");
+        return prefix.toString();
+    }
+
+    /**
+     * NOTE: the returned array must not be modified.
+     *
+     * @return the identifiers of the links the message is addressed to.
+     */
+    public long[] getLinkIds() {
+        return linkIds;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    /**
+     * @return whether the payload is a packed batch of messages.
+     */
+    public boolean isBatch() {
+        return (flags & FLAG_BATCH) != 0;
+    }
+}
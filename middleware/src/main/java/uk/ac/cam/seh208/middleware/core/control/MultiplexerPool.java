@@ -1,8 +1,7 @@
 package uk.ac.cam.seh208.middleware.core.control;
 
-import android.util.LongSparseArray;
-
 import uk.ac.cam.seh208.middleware.common.exception.BadHostException;
+import uk.ac.cam.seh208.middleware.core.LongConcurrentMap;
 import uk.ac.cam.seh208.middleware.core.MiddlewareService;
 
 
@@ -19,13 +18,13 @@ public class MultiplexerPool {
     /**
      * Map of multiplexers indexed by the unique identifier of their remote location.
      */
-    private LongSparseArray<Multiplexer> multiplexers;
+    private LongConcurrentMap<Multiplexer> multiplexers;
 
 
     public MultiplexerPool(MiddlewareService service) {
         this.service = service;
 
-        multiplexers = new LongSparseArray<>();
+        multiplexers = new LongConcurrentMap<>();
     }
 
     /**
@@ -38,10 +37,11 @@ public class MultiplexerPool {
      * @return a reference to a Multiplexer object.
      */
     public synchronized Multiplexer getMultiplexer(Middleware remote) throws BadHostException {
-        if (multiplexers.indexOfKey(remote.getUUID()) >= 0) {
+        Multiplexer existing = multiplexers.get(remote.getUUID());
+        if (existing != null) {
             // If a multiplexer already exists in the map for this remote location,
             // return this instead of constructing a new one.
-            return multiplexers.get(remote.getUUID());
+            return existing;
         }
 
         // Construct a new multiplexer to the remote host, and put it in the map.
@@ -2,6 +2,8 @@ package uk.ac.cam.seh208.middleware.core.control;
 
 import android.app.Service;
 
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import java.util.ArrayList;
@@ -23,23 +25,61 @@ public class QueryControlMessage extends ControlMessage {
 
     /**
      * The response contains the list of remote endpoints which matched the
-     * query, and with which links were established.
+     * query, and with which links were established, along with the generation
+     * of the RDC database against which the query was run, and the tags of the
+     * endpoints changed since the generation given in the query (or null if these
+     * are not known). Both are omitted when unknown, so that the response can be
+     * read by middlewares predating generations.
      */
     public static class Response extends ControlMessage.Response {
 
         private List<Middleware> middlewares;
 
+        @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+        private long generation;
 
-        public Response(@JsonProperty("middlewares") List<Middleware> middlewares) {
-            // Copy the passed details list so the internal state of this
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        private List<String> changedTags;
+
+
+        /**
+         * Used by Jackson to find the default values of omitted properties.
+         */
+        private Response() {
+            this(new ArrayList<>());
+        }
+
+        @JsonCreator
+        public Response(@JsonProperty("middlewares") List<Middleware> middlewares,
+                        @JsonProperty("generation") long generation,
+                        @JsonProperty("changedTags") List<String> changedTags) {
+            // Copy the passed lists so the internal state of this
             // immutable object cannot be modified.
             this.middlewares = new ArrayList<>(middlewares);
+            this.generation = generation;
+            this.changedTags = (changedTags == null) ? null : new ArrayList<>(changedTags);
+        }
+
+        public Response(List<Middleware> middlewares, long generation) {
+            this(middlewares, generation, null);
+        }
+
+        public Response(List<Middleware> middlewares) {
+            this(middlewares, 0);
         }
 
         public List<Middleware> getMiddlewares() {
             return Collections.unmodifiableList(middlewares);
         }
 
+        public long getGeneration() {
+            return generation;
+        }
+
+        public List<String> getChangedTags() {
+            return (changedTags == null) ? null : Collections.unmodifiableList(changedTags);
+        }
+
         @Override
         public boolean equals(Object obj) {
             if (this == obj) {
@@ -50,9 +90,11 @@ public class QueryControlMessage extends ControlMessage {
             }
             QueryControlMessage.Response other = (QueryControlMessage.Response) obj;
 
-            return Objects.equals(
+            return (Objects.equals(
                     new HashSet<>(middlewares),
-                    new HashSet<>(other.middlewares));
+                    new HashSet<>(other.middlewares))
+                    && generation == other.generation
+                    && Objects.equals(changedTags, other.changedTags));
         }
     }
 
@@ -62,12 +104,30 @@ public class QueryControlMessage extends ControlMessage {
      */
     private Query query;
 
+    /**
+     * The RDC generation most recently observed by the sender, from which the
+     * changed tags are reported. This is null in queries from middlewares predating
+     * generations, which are answered without a generation.
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Long since;
+
 
     /**
      * Instantiate a new immutable QUERY control message with the given query.
      */
-    public QueryControlMessage(@JsonProperty("query") Query query) {
+    public QueryControlMessage(@JsonProperty("query") Query query,
+                               @JsonProperty("since") Long since) {
         this.query = query;
+        this.since = since;
+    }
+
+    /**
+     * Instantiate a new immutable QUERY control message with the given query, in
+     * the form read by RDCs predating generations.
+     */
+    public QueryControlMessage(Query query) {
+        this(query, null);
     }
 
     /**
@@ -87,8 +147,16 @@ public class QueryControlMessage extends ControlMessage {
         // Interpret the given service as an RDCService.
         RDCService rdc = (RDCService) service;
 
+        if (since == null) {
+            // The sender predates generations, and would not accept one.
+            return new Response(rdc.discover(query));
+        }
+
         // Discover resources and return them wrapped in a response message.
-        return new Response(rdc.discover(query));
+        // Read the generation first, so that it is never newer than the result.
+        long generation = rdc.getGeneration();
+        return new Response(rdc.discover(query), generation,
+                            rdc.getChangedTags(since, generation));
     }
 
     @Override
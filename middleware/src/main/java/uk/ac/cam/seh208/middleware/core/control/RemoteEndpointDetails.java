@@ -5,8 +5,11 @@ import android.os.Bundle;
 import android.os.Parcel;
 import android.support.annotation.NonNull;
 
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 
@@ -14,6 +17,7 @@ import uk.ac.cam.seh208.middleware.common.EndpointDetails;
 import uk.ac.cam.seh208.middleware.common.Polarity;
 
 import static uk.ac.cam.seh208.middleware.common.Keys.EndpointDetails.MIDDLEWARE;
+import static uk.ac.cam.seh208.middleware.common.Keys.EndpointDetails.SENDER_VALIDATED;
 
 
 /**
@@ -46,10 +50,35 @@ public class RemoteEndpointDetails extends EndpointDetails {
      */
     private Middleware middleware;
 
+    /**
+     * Whether the endpoint validates every message it sends against its schema.
+     * Details from middlewares predating this flag are taken not to, and the flag is
+     * omitted when unset so that such middlewares can read the details.
+     */
+    @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+    private boolean senderValidated;
+
+
+    /**
+     * Used by Jackson to find the default values of omitted properties.
+     */
+    private RemoteEndpointDetails() {
+        this(0, "", null, null, null, new ArrayList<>(), null, false);
+    }
+
+    /**
+     * Construct a new immutable remote endpoint details object with the given parameters.
+     */
+    public RemoteEndpointDetails(long endpointId, @NonNull String name, String desc,
+                                 Polarity polarity, String schema, List<String> tags,
+                                 Middleware middleware) {
+        this(endpointId, name, desc, polarity, schema, tags, middleware, false);
+    }
 
     /**
      * Construct a new immutable remote endpoint details object with the given parameters.
      */
+    @JsonCreator
     public RemoteEndpointDetails(
             @JsonProperty("endpointId") long endpointId,
             @JsonProperty("name") @NonNull String name,
@@ -57,24 +86,28 @@ public class RemoteEndpointDetails extends EndpointDetails {
             @JsonProperty("polarity") Polarity polarity,
             @JsonProperty("schema") String schema,
             @JsonProperty("tags") List<String> tags,
-            @JsonProperty("middleware") Middleware middleware) {
+            @JsonProperty("middleware") Middleware middleware,
+            @JsonProperty("senderValidated") boolean senderValidated) {
         super(endpointId, name, desc, polarity, schema, tags);
 
         this.middleware = middleware;
+        this.senderValidated = senderValidated;
     }
 
     /**
      * Construct a new immutable remote endpoint details object taking parameters from
      * the given endpoint details object.
      */
-    RemoteEndpointDetails(EndpointDetails details, Middleware middleware) {
+    RemoteEndpointDetails(EndpointDetails details, Middleware middleware,
+                          boolean senderValidated) {
         this(details.getEndpointId(),
              details.getName(),
              details.getDesc(),
              details.getPolarity(),
              details.getSchema(),
              details.getTags(),
-             middleware);
+             middleware,
+             senderValidated);
     }
 
     private RemoteEndpointDetails(Parcel in) {
@@ -87,6 +120,7 @@ public class RemoteEndpointDetails extends EndpointDetails {
 
         // Extract the fields from the bundle.
         middleware = bundle.getParcelable(MIDDLEWARE);
+        senderValidated = bundle.getBoolean(SENDER_VALIDATED);
     }
 
     /**
@@ -96,6 +130,14 @@ public class RemoteEndpointDetails extends EndpointDetails {
         return middleware;
     }
 
+    /**
+     * @return whether the endpoint validates every message it sends, so that its
+     *         messages may be trusted by receivers relaxing validation.
+     */
+    public boolean isSenderValidated() {
+        return senderValidated;
+    }
+
     @Override
     public void writeToParcel(Parcel dest, int flags) {
         // Pack the base endpoint details into the parcel.
@@ -104,6 +146,7 @@ public class RemoteEndpointDetails extends EndpointDetails {
         // Pack the additional details.
         Bundle bundle = new Bundle();
         bundle.putParcelable(MIDDLEWARE, middleware);
+        bundle.putBoolean(SENDER_VALIDATED, senderValidated);
 
         // Serialise the bundle into the parcel.
         dest.writeBundle(bundle);
@@ -0,0 +1,144 @@
+package uk.ac.cam.seh208.middleware.core.control;
+
+import android.app.Service;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import uk.ac.cam.seh208.middleware.core.RDCService;
+import uk.ac.cam.seh208.middleware.core.comms.RequestStream;
+
+
+/**
+ * Control message sent to an RDC to renew the lease on the entry of the local
+ * middleware, without resending the list of endpoints it exposes.
+ */
+public class RenewControlMessage extends ControlMessage {
+
+    /**
+     * The response indicates the new lease duration in milliseconds, or zero if the
+     * RDC holds no entry for the middleware (in which case a full UPDATE is required),
+     * along with the current generation of the RDC database, and the tags of the
+     * endpoints changed since the generation given in the request (or null if these
+     * are not known).
+     */
+    public static class Response extends ControlMessage.Response {
+
+        private long lease;
+
+        private long generation;
+
+        private List<String> changedTags;
+
+
+        public Response(@JsonProperty("lease") long lease,
+                        @JsonProperty("generation") long generation,
+                        @JsonProperty("changedTags") List<String> changedTags) {
+            this.lease = lease;
+            this.generation = generation;
+            this.changedTags = (changedTags == null) ? null : new ArrayList<>(changedTags);
+        }
+
+        public Response(long lease, long generation) {
+            this(lease, generation, null);
+        }
+
+        public long getLease() {
+            return lease;
+        }
+
+        public long getGeneration() {
+            return generation;
+        }
+
+        public List<String> getChangedTags() {
+            return (changedTags == null) ? null : Collections.unmodifiableList(changedTags);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            Response other = (Response) obj;
+
+            return lease == other.lease && generation == other.generation
+                    && Objects.equals(changedTags, other.changedTags);
+        }
+    }
+
+
+    /**
+     * The universally unique identifier of the middleware instance.
+     */
+    private long uuid;
+
+    /**
+     * The RDC generation most recently observed by the middleware, from which the
+     * changed tags are reported.
+     */
+    private long since;
+
+
+    /**
+     * Instantiate a new immutable RENEW control message for the given middleware.
+     */
+    public RenewControlMessage(@JsonProperty("uuid") long uuid,
+                               @JsonProperty("since") long since) {
+        this.uuid = uuid;
+        this.since = since;
+    }
+
+    /**
+     * Instantiate a new immutable RENEW control message for the given middleware,
+     * having observed no RDC generation.
+     */
+    public RenewControlMessage(long uuid) {
+        this(uuid, 0);
+    }
+
+    /**
+     * Renew the lease in the RDC state, and respond with the new lease duration.
+     *
+     * @param service A reference to the RDC service receiving the message.
+     *
+     * @return a response containing the lease duration.
+     */
+    @Override
+    public Response handle(Service service) {
+        if (!(service instanceof RDCService)) {
+            // RENEW can only be handled by an RDC instance.
+            return null;
+        }
+
+        RDCService rdc = (RDCService) service;
+        long generation = rdc.getGeneration();
+        return new Response(rdc.renew(uuid), generation,
+                            rdc.getChangedTags(since, generation));
+    }
+
+    @Override
+    public Response getResponse(RequestStream stream) {
+        return (Response) super.getResponse(stream);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        RenewControlMessage other = (RenewControlMessage) obj;
+
+        return uuid == other.uuid;
+    }
+}
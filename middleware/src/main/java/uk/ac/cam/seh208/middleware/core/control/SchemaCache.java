@@ -0,0 +1,313 @@
+package uk.ac.cam.seh208.middleware.core.control;
+
+import android.util.Log;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+import com.github.fge.jackson.JsonLoader;
+import com.github.fge.jsonschema.core.exceptions.ProcessingException;
+import com.github.fge.jsonschema.main.JsonSchema;
+import com.github.fge.jsonschema.main.JsonSchemaFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uk.ac.cam.seh208.middleware.common.exception.BadSchemaException;
+
+
+/**
+ * Process-wide cache of compiled message schemas.
+ *
+ * Constructing a schema factory builds its whole processor chain, and compiling a
+ * schema is costly, so a single factory is shared and compiled schemas are cached,
+ * keyed by a hash of the canonical form of the schema. Endpoints with schemas that
+ * differ only in formatting or key order therefore share a compiled schema.
+ *
+ * Compilations are represented as tasks, so that a schema being compiled in the
+ * background (see prewarm) is waited for rather than compiled twice.
+ */
+public final class SchemaCache {
+
+    /**
+     * Maximum number of compiled schemas to retain.
+     */
+    private static final int MAX_SIZE = 128;
+
+    /**
+     * The shared factory from which all schemas are compiled.
+     */
+    private static final JsonSchemaFactory factory = JsonSchemaFactory.byDefault();
+
+    /**
+     * Compilation tasks, indexed by canonical schema hash, in least-recently used order.
+     */
+    private static final LinkedHashMap<String, FutureTask<JsonSchema>> schemas =
+            new LinkedHashMap<String, FutureTask<JsonSchema>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<String, FutureTask<JsonSchema>> eldest) {
+                    return size() > MAX_SIZE;
+                }
+            };
+
+    /**
+     * Executor used to compile schemas in the background.
+     */
+    private static final ExecutorService prewarmExecutor = Executors.newFixedThreadPool(
+            Math.max(Runtime.getRuntime().availableProcessors() - 1, 1),
+            runnable -> {
+                Thread thread = new Thread(runnable, "SchemaPrewarm");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * Number of requests served by an existing (possibly in progress) compilation.
+     */
+    private static final AtomicLong hits = new AtomicLong();
+
+    /**
+     * Number of requests requiring a new compilation.
+     */
+    private static final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Total time spent compiling schemas, in nanoseconds.
+     */
+    private static final AtomicLong compileNanos = new AtomicLong();
+
+
+    private SchemaCache() { }
+
+    /**
+     * Return the compiled form of a schema, compiling it if it is not cached.
+     *
+     * @param schema JSON string representation of the schema.
+     *
+     * @return the compiled schema.
+     *
+     * @throws BadSchemaException if the schema is malformed.
+     */
+    public static JsonSchema getSchema(String schema) throws BadSchemaException {
+        JsonNode tree = parse(schema);
+        if (tree == null) {
+            throw new BadSchemaException(schema);
+        }
+
+        FutureTask<JsonSchema> task = getTask(tree, true);
+        if (task == null) {
+            throw new BadSchemaException(schema);
+        }
+
+        try {
+            // Run the task if it is new; otherwise, this has no effect.
+            task.run();
+            JsonSchema compiled = task.get();
+            if (compiled == null) {
+                throw new BadSchemaException(schema);
+            }
+            return compiled;
+        } catch (InterruptedException | ExecutionException e) {
+            throw new BadSchemaException(schema);
+        }
+    }
+
+    /**
+     * Compile the given schemas in the background, so that they are cached by the
+     * time they are needed. Malformed schemas are ignored.
+     *
+     * @param schemas JSON string representations of the schemas.
+     */
+    public static void prewarm(Collection<String> schemas) {
+        List<FutureTask<JsonSchema>> tasks = new ArrayList<>();
+        for (String schema : schemas) {
+            JsonNode tree = parse(schema);
+            if (tree == null) {
+                continue;
+            }
+
+            FutureTask<JsonSchema> task = getTask(tree, false);
+            if (task != null) {
+                tasks.add(task);
+            }
+        }
+
+        for (FutureTask<JsonSchema> task : tasks) {
+            prewarmExecutor.execute(task);
+        }
+    }
+
+    /**
+     * Compute the hash of the canonical form of a schema. Schemas with equal hashes
+     * describe identical documents, disregarding formatting and key order.
+     *
+     * @param schema JSON string representation of the schema.
+     *
+     * @return the hexadecimal canonical hash, or null if the schema is malformed.
+     */
+    public static String hash(String schema) {
+        JsonNode tree = parse(schema);
+        return (tree != null) ? hash(tree) : null;
+    }
+
+    /**
+     * @return the number of schema requests served from the cache.
+     */
+    public static long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of schema requests requiring compilation.
+     */
+    public static long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return the total time spent compiling schemas, in nanoseconds.
+     */
+    public static long getCompileNanos() {
+        return compileNanos.get();
+    }
+
+    /**
+     * Get the compilation task for the given schema, creating (but not running) a new
+     * one if the schema is not cached.
+     *
+     * @param tree Parsed schema.
+     * @param count Whether to count the request if it is served from the cache.
+     *
+     * @return the compilation task, or null if the schema could not be hashed.
+     */
+    private static FutureTask<JsonSchema> getTask(JsonNode tree, boolean count) {
+        String key = hash(tree);
+        if (key == null) {
+            return null;
+        }
+
+        synchronized (schemas) {
+            FutureTask<JsonSchema> task = schemas.get(key);
+            if (task != null) {
+                if (count) {
+                    hits.incrementAndGet();
+                }
+                return task;
+            }
+
+            misses.incrementAndGet();
+            task = new FutureTask<>(() -> compile(tree));
+            schemas.put(key, task);
+            return task;
+        }
+    }
+
+    /**
+     * Compile a parsed schema, recording the time taken.
+     *
+     * @return the compiled schema, or null if it is invalid.
+     */
+    private static JsonSchema compile(JsonNode tree) {
+        long start = System.nanoTime();
+        try {
+            return factory.getJsonSchema(tree);
+        } catch (ProcessingException e) {
+            Log.w(getTag(), "Error compiling schema: " + e.getMessage());
+            return null;
+        } finally {
+            compileNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @return the parsed schema, or null if it is malformed.
+     */
+    private static JsonNode parse(String schema) {
+        if (schema == null) {
+            return null;
+        }
+
+        try {
+            return JsonLoader.fromString(schema);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the hexadecimal SHA-256 digest of the canonical form of the given tree.
+     */
+    private static String hash(JsonNode tree) {
+        StringBuilder builder = new StringBuilder();
+        canonicalise(tree, builder);
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] bytes = digest.digest(builder.toString().getBytes(StandardCharsets.UTF_8));
+
+            StringBuilder hex = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+                hex.append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Unreachable; every Java platform supports SHA-256.
+            return null;
+        }
+    }
+
+    /**
+     * Write the canonical form of a tree, being its compact serialisation with
+     * the fields of every object sorted by name.
+     */
+    private static void canonicalise(JsonNode node, StringBuilder builder) {
+        if (node.isObject()) {
+            List<String> names = new ArrayList<>();
+            Iterator<String> iterator = node.fieldNames();
+            while (iterator.hasNext()) {
+                names.add(iterator.next());
+            }
+            Collections.sort(names);
+
+            builder.append('{');
+            for (int i = 0; i < names.size(); i++) {
+                if (i > 0) {
+                    builder.append(',');
+                }
+                builder.append(new TextNode(names.get(i)).toString()).append(':');
+                canonicalise(node.get(names.get(i)), builder);
+            }
+            builder.append('}');
+        } else if (node.isArray()) {
+            builder.append('[');
+            for (int i = 0; i < node.size(); i++) {
+                if (i > 0) {
+                    builder.append(',');
+                }
+                canonicalise(node.get(i), builder);
+            }
+            builder.append(']');
+        } else {
+            builder.append(node.toString());
+        }
+    }
+
+    private static String getTag() {
+        return "SCHEMA_CACHE";
+    }
+}
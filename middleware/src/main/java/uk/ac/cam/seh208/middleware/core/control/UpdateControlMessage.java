@@ -2,6 +2,8 @@ package uk.ac.cam.seh208.middleware.core.control;
 
 import android.app.Service;
 
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import java.util.ArrayList;
@@ -20,26 +22,44 @@ import uk.ac.cam.seh208.middleware.core.comms.RequestStream;
 public class UpdateControlMessage extends ControlMessage {
 
     /**
-     * The response is simply an acknowledgement.
+     * The response indicates the duration in milliseconds of the lease granted on the
+     * entry, after which it expires unless renewed. A lease of zero indicates that the
+     * entry never expires. A lease of zero is omitted, so that the response can be
+     * read by middlewares predating leases.
      */
     public static class Response extends ControlMessage.Response {
 
-        private static Response instance;
+        @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+        private long lease;
 
 
-        public static Response getInstance() {
-            if (instance == null) {
-                instance = new Response();
-            }
-            return instance;
+        /**
+         * Used by Jackson to find the default values of omitted properties.
+         */
+        private Response() {
+            this(0);
         }
 
+        @JsonCreator
+        public Response(@JsonProperty("lease") long lease) {
+            this.lease = lease;
+        }
 
-        private Response() { }
+        public long getLease() {
+            return lease;
+        }
 
         @Override
         public boolean equals(Object obj) {
-            return this == obj || obj != null && getClass() == obj.getClass();
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            Response other = (Response) obj;
+
+            return lease == other.lease;
         }
     }
 
@@ -49,27 +69,73 @@ public class UpdateControlMessage extends ControlMessage {
      */
     private Middleware middleware;
 
+    /**
+     * Version of the entry described by the message, against which later deltas
+     * may be computed. Omitted when zero, as by middlewares predating versioning.
+     */
+    @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+    private long version;
+
     /**
      * List of endpoint details exposed by the middleware at that middleware.
      */
     private List<EndpointDetails> details;
 
+    /**
+     * Indicates that the middleware renews the lease granted on its entry. This is
+     * absent from the messages of middlewares predating leases, which are never
+     * granted a lease, as they would never renew it.
+     */
+    @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+    private boolean renewing;
+
+
+    /**
+     * Used by Jackson to find the default values of omitted properties.
+     */
+    private UpdateControlMessage() {
+        this(null, 0, new ArrayList<>(), false);
+    }
+
+    /**
+     * Instantiate a new immutable UPDATE control message for the given middleware,
+     * which renews the lease granted on its entry.
+     */
+    public UpdateControlMessage(Middleware middleware, long version,
+                                List<EndpointDetails> details) {
+        this(middleware, version, details, true);
+    }
 
     /**
      * Instantiate a new immutable UPDATE control message for the given middleware.
+     * An unversioned, non-renewing message is read correctly by RDCs predating
+     * versioning and leases.
      */
+    @JsonCreator
     public UpdateControlMessage(@JsonProperty("middleware") Middleware middleware,
-                                @JsonProperty("details") List<EndpointDetails> details) {
+                                @JsonProperty("version") long version,
+                                @JsonProperty("details") List<EndpointDetails> details,
+                                @JsonProperty("renewing") boolean renewing) {
         this.middleware = middleware;
+        this.version = version;
         this.details = new ArrayList<>(details);
+        this.renewing = renewing;
+    }
+
+    /**
+     * Instantiate a new immutable, unversioned UPDATE control message for the
+     * given middleware.
+     */
+    public UpdateControlMessage(Middleware middleware, List<EndpointDetails> details) {
+        this(middleware, 0, details);
     }
 
     /**
-     * Update the entry in the RDC state, and respond with acknowledgement.
+     * Update the entry in the RDC state, and respond with the lease granted on it.
      *
      * @param service A reference to the RDC service receiving the message.
      *
-     * @return an acknowledgement response.
+     * @return a response containing the lease duration.
      */
     @Override
     public Response handle(Service service) {
@@ -79,9 +145,11 @@ public class UpdateControlMessage extends ControlMessage {
         }
 
         RDCService rdc = (RDCService) service;
-        rdc.update(middleware, details);
+        return new Response(rdc.update(middleware, version, details, renewing));
+    }
 
-        return Response.getInstance();
+    public boolean isRenewing() {
+        return renewing;
     }
 
     @Override
@@ -6,4 +6,8 @@ public class ConnectionFailedException extends Exception {
     public ConnectionFailedException(Address address) {
         super("Multiplexer to remote host on address \"" + address + "\" failed.");
     }
+
+    protected ConnectionFailedException(String message) {
+        super(message);
+    }
 }
@@ -0,0 +1,14 @@
+package uk.ac.cam.seh208.middleware.core.exception;
+
+import uk.ac.cam.seh208.middleware.core.comms.Address;
+
+
+/**
+ * Thrown when a message is rejected because the outbound queue of a stream is
+ * full. Unlike its superclass, this does not indicate that the stream has failed.
+ */
+public class QueueFullException extends ConnectionFailedException {
+    public QueueFullException(Address address) {
+        super("Outbound queue to remote host on address \"" + address + "\" is full.");
+    }
+}
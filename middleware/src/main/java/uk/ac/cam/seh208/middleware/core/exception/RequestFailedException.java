@@ -0,0 +1,8 @@
+package uk.ac.cam.seh208.middleware.core.exception;
+
+
+public class RequestFailedException extends Exception {
+    public RequestFailedException(String message) {
+        super(message);
+    }
+}
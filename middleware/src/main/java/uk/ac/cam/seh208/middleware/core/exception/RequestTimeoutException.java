@@ -0,0 +1,8 @@
+package uk.ac.cam.seh208.middleware.core.exception;
+
+
+public class RequestTimeoutException extends RequestFailedException {
+    public RequestTimeoutException(long timeoutMillis) {
+        super("No response to request within " + timeoutMillis + "ms.");
+    }
+}
@@ -2,13 +2,20 @@ package uk.ac.cam.seh208.middleware.core;
 
 import junit.framework.Assert;
 
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.exc.UnrecognizedPropertyException;
+
 import org.junit.Test;
 
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
+import java.util.Set;
 
 import java8.util.Lists;
 import uk.ac.cam.seh208.middleware.common.EndpointCommand;
@@ -27,8 +34,11 @@ import uk.ac.cam.seh208.middleware.core.control.MiddlewareCommandControlMessage;
 import uk.ac.cam.seh208.middleware.core.control.QueryControlMessage;
 import uk.ac.cam.seh208.middleware.core.control.RemoteEndpointDetails;
 import uk.ac.cam.seh208.middleware.core.control.ControlMessage;
+import uk.ac.cam.seh208.middleware.core.control.DeltaControlMessage;
+import uk.ac.cam.seh208.middleware.core.control.InvalidateControlMessage;
 import uk.ac.cam.seh208.middleware.core.control.OpenLinksControlMessage;
 import uk.ac.cam.seh208.middleware.core.control.RemoveControlMessage;
+import uk.ac.cam.seh208.middleware.core.control.RenewControlMessage;
 import uk.ac.cam.seh208.middleware.core.control.UpdateControlMessage;
 import uk.ac.cam.seh208.middleware.core.exception.InvalidControlMessageException;
 import uk.ac.cam.seh208.middleware.core.comms.Location;
@@ -36,6 +46,56 @@ import uk.ac.cam.seh208.middleware.core.comms.Location;
 
 public class ControlMessageTest {
 
+    /**
+     * UPDATE control message as read by RDCs predating versioning and leases, which
+     * reject unknown properties.
+     */
+    private static class LegacyUpdateControlMessage {
+
+        private LegacyUpdateControlMessage(
+                @JsonProperty("tag") String tag,
+                @JsonProperty("middleware") Middleware middleware,
+                @JsonProperty("details") List<EndpointDetails> details) { }
+    }
+
+    /**
+     * Remote endpoint details as read by middlewares predating sender validation,
+     * which reject unknown properties.
+     */
+    private static class LegacyRemoteEndpointDetails {
+
+        private LegacyRemoteEndpointDetails(
+                @JsonProperty("endpointId") long endpointId,
+                @JsonProperty("name") String name,
+                @JsonProperty("desc") String desc,
+                @JsonProperty("polarity") Polarity polarity,
+                @JsonProperty("schema") String schema,
+                @JsonProperty("tags") List<String> tags,
+                @JsonProperty("middleware") Middleware middleware) { }
+    }
+
+    /**
+     * OPEN-LINKS control message as read by middlewares predating sender validation.
+     */
+    private static class LegacyOpenLinksControlMessage {
+
+        private LegacyOpenLinksControlMessage(
+                @JsonProperty("tag") String tag,
+                @JsonProperty("initiatorEndpoint") LegacyRemoteEndpointDetails initiator,
+                @JsonProperty("query") Query query) { }
+    }
+
+    /**
+     * OPEN-LINKS response as read by middlewares predating sender validation.
+     */
+    private static class LegacyOpenLinksResponse {
+
+        private LegacyOpenLinksResponse(
+                @JsonProperty("tag") String tag,
+                @JsonProperty("details") List<LegacyRemoteEndpointDetails> details) { }
+    }
+
+
     private static final Random random = new Random(System.nanoTime());
 
     private static final Middleware middleware = new Middleware(
@@ -115,6 +175,24 @@ public class ControlMessageTest {
         Assert.assertEquals(serializable, JSONSerializable.fromJSON(json, clazz));
     }
 
+    /**
+     * Assert that the given object is written with exactly the given properties, so
+     * that peers reading it with a strict mapper of their own will accept it.
+     */
+    private static void testLegacyProperties(JSONSerializable serializable,
+                                             String... properties) throws IOException {
+        String json = serializable.toJSON();
+        System.out.println(json);
+
+        Set<String> names = new HashSet<>();
+        Iterator<String> iterator = new ObjectMapper().readTree(json).fieldNames();
+        while (iterator.hasNext()) {
+            names.add(iterator.next());
+        }
+
+        Assert.assertEquals(new HashSet<>(Arrays.asList(properties)), names);
+    }
+
 
     @Test
     public void testSerialiseOpenLinks() throws InvalidControlMessageException, IOException {
@@ -131,6 +209,44 @@ public class ControlMessageTest {
         testSerialise(response, ControlMessage.Response.class);
     }
 
+    @Test
+    public void testSerialiseSenderValidated() throws IOException {
+        RemoteEndpointDetails validated = new RemoteEndpointDetails(
+                0, "test", "desc", Polarity.SOURCE, "{}", Collections.emptyList(),
+                middleware, true);
+
+        OpenLinksControlMessage message = (OpenLinksControlMessage) JSONSerializable.fromJSON(
+                new OpenLinksControlMessage(validated, query).toJSON(), ControlMessage.class);
+        Assert.assertEquals(new OpenLinksControlMessage(validated, query), message);
+        Assert.assertTrue(JSONSerializable.fromJSON(validated.toJSON(),
+                RemoteEndpointDetails.class).isSenderValidated());
+    }
+
+    @Test
+    public void testLegacyPeerReadsOpenLinks() throws IOException {
+        ObjectMapper legacy = new ObjectMapper();
+        RemoteEndpointDetails validated = new RemoteEndpointDetails(
+                0, "test", "desc", Polarity.SOURCE, "{}", Collections.emptyList(),
+                middleware, true);
+
+        // A middleware predating sender validation should reject details carrying
+        // the flag...
+        try {
+            legacy.readValue(new OpenLinksControlMessage(validated, query).toJSON(),
+                             LegacyOpenLinksControlMessage.class);
+            Assert.fail("Sender validation read by a legacy middleware.");
+        } catch (UnrecognizedPropertyException ignored) {
+            // Expected.
+        }
+
+        // ...but accept those without it, as sent on retrying, and as sent in
+        // responses to requests without it.
+        legacy.readValue(new OpenLinksControlMessage(endpoint, query).toJSON(),
+                         LegacyOpenLinksControlMessage.class);
+        legacy.readValue(new OpenLinksControlMessage.Response(remoteEndpoints).toJSON(),
+                         LegacyOpenLinksResponse.class);
+    }
+
     @Test
     public void testSerialiseCloselink() throws InvalidControlMessageException, IOException {
         ControlMessage message = new CloseLinkControlMessage(random.nextLong());
@@ -156,21 +272,123 @@ public class ControlMessageTest {
 
     @Test
     public void testSerialiseQueryResponse() throws InvalidControlMessageException, IOException {
+        ControlMessage.Response response = new QueryControlMessage.Response(middlewares, 3);
+
+        testSerialise(response, ControlMessage.Response.class);
+    }
+
+    @Test
+    public void testWriteLegacyQuery() throws IOException {
+        // A QUERY without a generation has only the properties known to RDCs
+        // predating generations.
+        testLegacyProperties(new QueryControlMessage(query), "tag", "query");
+
+        // The generation observed should be written even while it is zero.
+        testLegacyProperties(new QueryControlMessage(query, 0L), "tag", "query", "since");
+    }
+
+    @Test
+    public void testWriteLegacyQueryResponse() throws IOException {
+        // A response without a generation has only the properties known to
+        // middlewares predating generations.
         ControlMessage.Response response = new QueryControlMessage.Response(middlewares);
+        testLegacyProperties(response, "tag", "middlewares");
 
         testSerialise(response, ControlMessage.Response.class);
     }
 
     @Test
     public void testSerialiseUpdate() throws InvalidControlMessageException, IOException {
-        ControlMessage message = new UpdateControlMessage(middleware, endpoints);
+        ControlMessage message = new UpdateControlMessage(middleware, 1, endpoints);
+
+        testSerialise(message, ControlMessage.class);
+    }
+
+    @Test
+    public void testLegacyUpdate() throws IOException {
+        // An UPDATE from a middleware predating leases has no renewal flag.
+        String json = new UpdateControlMessage(middleware, 1, endpoints).toJSON()
+                .replace(",\"renewing\":true", "")
+                .replace("\"renewing\":true,", "");
+        Assert.assertFalse(json.contains("renewing"));
+
+        UpdateControlMessage message =
+                (UpdateControlMessage) JSONSerializable.fromJSON(json, ControlMessage.class);
+        Assert.assertFalse(message.isRenewing());
+        Assert.assertTrue(new UpdateControlMessage(middleware, 1, endpoints).isRenewing());
+    }
+
+    @Test
+    public void testWriteLegacyUpdate() throws IOException {
+        // An unversioned, non-renewing UPDATE has only the properties known to RDCs
+        // predating versioning and leases.
+        UpdateControlMessage message = new UpdateControlMessage(middleware, 0, endpoints, false);
+        testLegacyProperties(message, "tag", "middleware", "details");
+
+        // It should still be read as such.
+        message = (UpdateControlMessage) JSONSerializable.fromJSON(
+                message.toJSON(), ControlMessage.class);
+        Assert.assertFalse(message.isRenewing());
+    }
+
+    @Test
+    public void testLegacyRDCReadsFallbackUpdate() throws IOException {
+        ObjectMapper legacy = new ObjectMapper();
+
+        // An RDC predating versioning and leases should reject the current UPDATE...
+        try {
+            legacy.readValue(new UpdateControlMessage(middleware, 2, endpoints).toJSON(),
+                             LegacyUpdateControlMessage.class);
+            Assert.fail("Current UPDATE read by a legacy RDC.");
+        } catch (UnrecognizedPropertyException ignored) {
+            // Expected.
+        }
+
+        // ...but accept the UPDATE sent in its original form after the rejection.
+        legacy.readValue(new UpdateControlMessage(middleware, 0, endpoints, false).toJSON(),
+                         LegacyUpdateControlMessage.class);
+    }
+
+    @Test
+    public void testWriteLegacyUpdateResponse() throws IOException {
+        // Without a lease, the response has no properties unknown to middlewares
+        // predating leases.
+        UpdateControlMessage.Response response = new UpdateControlMessage.Response(0);
+        testLegacyProperties(response, "tag");
+
+        testSerialise(response, ControlMessage.Response.class);
+    }
+
+    @Test
+    public void testReadUnknownProperties() throws IOException {
+        // Properties added by newer peers should be ignored.
+        String json = new UpdateControlMessage.Response(30000).toJSON()
+                .replaceFirst("}$", ",\"future\":[1,2]}");
+        Assert.assertTrue(json.contains("future"));
+
+        UpdateControlMessage.Response response = (UpdateControlMessage.Response)
+                JSONSerializable.fromJSON(json, ControlMessage.Response.class);
+        Assert.assertEquals(30000, response.getLease());
+    }
+
+    @Test
+    public void testSerialiseDelta() throws InvalidControlMessageException, IOException {
+        ControlMessage message = new DeltaControlMessage(
+                middleware, 1, 2, endpoints, Arrays.asList(random.nextLong(), 0L));
 
         testSerialise(message, ControlMessage.class);
     }
 
+    @Test
+    public void testSerialiseDeltaResponse() throws InvalidControlMessageException, IOException {
+        ControlMessage.Response response = new DeltaControlMessage.Response(30000);
+
+        testSerialise(response, ControlMessage.Response.class);
+    }
+
     @Test
     public void testSerialiseUpdateResponse() throws InvalidControlMessageException, IOException {
-        ControlMessage.Response response = UpdateControlMessage.Response.getInstance();
+        ControlMessage.Response response = new UpdateControlMessage.Response(30000);
 
         testSerialise(response, ControlMessage.Response.class);
     }
@@ -189,6 +407,35 @@ public class ControlMessageTest {
         testSerialise(response, ControlMessage.Response.class);
     }
 
+    @Test
+    public void testSerialiseRenew() throws InvalidControlMessageException, IOException {
+        ControlMessage message = new RenewControlMessage(random.nextLong());
+
+        testSerialise(message, ControlMessage.class);
+    }
+
+    @Test
+    public void testSerialiseRenewResponse() throws InvalidControlMessageException, IOException {
+        ControlMessage.Response response = new RenewControlMessage.Response(30000, 3);
+
+        testSerialise(response, ControlMessage.Response.class);
+    }
+
+    @Test
+    public void testSerialiseInvalidate() throws InvalidControlMessageException, IOException {
+        ControlMessage message = new InvalidateControlMessage(random.nextLong());
+
+        testSerialise(message, ControlMessage.class);
+    }
+
+    @Test
+    public void testSerialiseInvalidateResponse()
+            throws InvalidControlMessageException, IOException {
+        ControlMessage.Response response = InvalidateControlMessage.Response.getInstance();
+
+        testSerialise(response, ControlMessage.Response.class);
+    }
+
     @Test
     public void testSerialiseMiddlewareCommand()
             throws InvalidControlMessageException, IOException {
@@ -0,0 +1,48 @@
+package uk.ac.cam.seh208.middleware.core;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import uk.ac.cam.seh208.middleware.common.DeliveryPolicy;
+import uk.ac.cam.seh208.middleware.common.JSONSerializable;
+
+
+/**
+ * Local test checking the default delivery policy, and its serialisation for
+ * persistence.
+ */
+public class DeliveryPolicyTest {
+
+    @Test
+    public void testDefaultIsLossless() {
+        // Endpoints should block rather than lose messages unless told otherwise.
+        Assert.assertEquals(DeliveryPolicy.Overflow.BLOCK,
+                DeliveryPolicy.DEFAULT.getOverflow());
+        Assert.assertEquals(DeliveryPolicy.DEFAULT_CAPACITY,
+                DeliveryPolicy.DEFAULT.getCapacity());
+    }
+
+    @Test
+    public void testRejectEmptyQueue() {
+        try {
+            DeliveryPolicy.of(0, DeliveryPolicy.Overflow.DROP_OLDEST);
+            Assert.fail("Policy was created without queue capacity.");
+        } catch (IllegalArgumentException ignored) {
+            // The capacity should be rejected.
+        }
+    }
+
+    @Test
+    public void testSerialisation() throws IOException {
+        DeliveryPolicy policy = DeliveryPolicy.of(64, DeliveryPolicy.Overflow.DROP_NEWEST);
+
+        Assert.assertEquals(policy,
+                JSONSerializable.fromJSON(policy.toJSON(), DeliveryPolicy.class));
+        Assert.assertEquals(DeliveryPolicy.DEFAULT,
+                JSONSerializable.fromJSON(DeliveryPolicy.DEFAULT.toJSON(),
+                                          DeliveryPolicy.class));
+    }
+}
@@ -0,0 +1,135 @@
+package uk.ac.cam.seh208.middleware.core;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import uk.ac.cam.seh208.middleware.common.Query;
+import uk.ac.cam.seh208.middleware.core.comms.Location;
+import uk.ac.cam.seh208.middleware.core.control.DiscoveryCache;
+import uk.ac.cam.seh208.middleware.core.control.Middleware;
+
+
+/**
+ * Local test checking the expiry, invalidation and accounting behaviour of the
+ * client-side discovery cache.
+ */
+public class DiscoveryCacheTest {
+
+    private static final List<Middleware> middlewares = Collections.singletonList(
+            new Middleware(1, new Location(), new Location()));
+
+    private static final List<Middleware> none = Collections.emptyList();
+
+
+    private static Query query(String tag) {
+        return new Query.Builder().includeTag(tag).build();
+    }
+
+    @Test
+    public void testExpiry() {
+        DiscoveryCache cache = new DiscoveryCache(8, 1000, 200);
+        cache.put(query("a"), middlewares, 1, 0);
+        cache.put(query("b"), none, 1, 0);
+
+        // Both results should be served while fresh.
+        Assert.assertEquals(middlewares, cache.get(query("a"), 100));
+        Assert.assertEquals(none, cache.get(query("b"), 100));
+
+        // The empty result should expire first.
+        Assert.assertNull(cache.get(query("b"), 200));
+        Assert.assertEquals(middlewares, cache.get(query("a"), 999));
+        Assert.assertNull(cache.get(query("a"), 1000));
+
+        Assert.assertEquals(3, cache.getHitCount());
+        Assert.assertEquals(1, cache.getNegativeHitCount());
+        Assert.assertEquals(2, cache.getMissCount());
+        Assert.assertEquals(2, cache.getStaleCount());
+    }
+
+    @Test
+    public void testNegativeCachingDisabled() {
+        DiscoveryCache cache = new DiscoveryCache(8, 1000, 0);
+        cache.put(query("a"), none, 1, 0);
+
+        Assert.assertNull(cache.get(query("a"), 0));
+        Assert.assertEquals(0, cache.getStaleCount());
+    }
+
+    @Test
+    public void testGeneration() {
+        DiscoveryCache cache = new DiscoveryCache(8, 1000, 1000);
+        cache.put(query("a"), middlewares, 1, 0);
+
+        // Observing the same generation should leave the cache intact.
+        cache.observeGeneration(1);
+        Assert.assertNotNull(cache.get(query("a"), 0));
+
+        // Results of a new generation should invalidate those of the old.
+        cache.put(query("b"), middlewares, 2, 0);
+        Assert.assertNull(cache.get(query("a"), 0));
+        Assert.assertNotNull(cache.get(query("b"), 0));
+
+        cache.observeGeneration(3);
+        Assert.assertNull(cache.get(query("b"), 0));
+        Assert.assertEquals(2, cache.getInvalidationCount());
+
+        // After a reset, nothing should be served.
+        cache.put(query("a"), middlewares, 3, 0);
+        cache.reset();
+        Assert.assertNull(cache.get(query("a"), 0));
+    }
+
+    @Test
+    public void testSelectiveInvalidation() {
+        DiscoveryCache cache = new DiscoveryCache(8, 1000, 1000);
+        Query untagged = new Query.Builder().setNameRegex("any").build();
+        cache.put(query("a"), middlewares, 1, 0);
+        cache.put(query("b"), middlewares, 1, 0);
+        cache.put(untagged, middlewares, 1, 0);
+
+        // Only results which may depend on endpoints tagged "a" should be dropped.
+        cache.observeChanges(1, 2, Collections.singletonList("a"));
+        Assert.assertNull(cache.get(query("a"), 0));
+        Assert.assertNotNull(cache.get(query("b"), 0));
+        Assert.assertNull(cache.get(untagged, 0));
+        Assert.assertEquals(2, cache.getGeneration());
+
+        // Changes from a generation other than that held should drop everything.
+        cache.put(query("a"), middlewares, 1, 3, Collections.singletonList("c"), 0);
+        Assert.assertNull(cache.get(query("b"), 0));
+        Assert.assertNotNull(cache.get(query("a"), 0));
+
+        // As should a new generation with unknown changes.
+        cache.observeChanges(3, 4, null);
+        Assert.assertNull(cache.get(query("a"), 0));
+    }
+
+    @Test
+    public void testCapacity() {
+        DiscoveryCache cache = new DiscoveryCache(2, 1000, 1000);
+        cache.put(query("a"), middlewares, 1, 0);
+        cache.put(query("b"), middlewares, 1, 0);
+
+        // Touch the first result, so the second is least recently used.
+        Assert.assertNotNull(cache.get(query("a"), 0));
+        cache.put(query("c"), middlewares, 1, 0);
+
+        Assert.assertNotNull(cache.get(query("a"), 0));
+        Assert.assertNull(cache.get(query("b"), 0));
+        Assert.assertNotNull(cache.get(query("c"), 0));
+    }
+
+    @Test
+    public void testMatchesIgnored() {
+        DiscoveryCache cache = new DiscoveryCache(8, 1000, 1000);
+        cache.put(query("a"), middlewares, 1, 0);
+
+        // The RDC disregards the matches limit, so the cached result should apply.
+        Query limited = new Query.Builder().copy(query("a")).setMatches(1).build();
+        Assert.assertEquals(middlewares, cache.get(limited, 0));
+    }
+}
@@ -0,0 +1,140 @@
+package uk.ac.cam.seh208.middleware.core;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Local test checking that the elastic executor grows within its bounds under a backlog,
+ * shrinks once idle, and refuses tasks once saturated.
+ */
+public class ElasticExecutorTest {
+
+    @Test
+    public void testInvalidBounds() {
+        try {
+            new ElasticExecutor(4, 2);
+            Assert.fail();
+        } catch (IllegalArgumentException ignored) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testIdle() throws InterruptedException {
+        ElasticExecutor executor = new ElasticExecutor(2, 8);
+        CountDownLatch done = new CountDownLatch(4);
+        for (int i = 0; i < 4; i++) {
+            executor.execute(done::countDown);
+            Thread.sleep(10);
+        }
+
+        // Cheap tasks submitted slowly should never cause the pool to grow.
+        Assert.assertTrue(done.await(1, TimeUnit.SECONDS));
+        Assert.assertEquals(2, executor.getThreadCount());
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testGrowth() throws InterruptedException {
+        ElasticExecutor executor = new ElasticExecutor(1, 4);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger completed = new AtomicInteger();
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+
+        // Queue a backlog of slow tasks.
+        for (int i = 0; i < 16; i++) {
+            executor.execute(() -> {
+                int now = running.incrementAndGet();
+                peak.accumulateAndGet(now, Math::max);
+                try {
+                    release.await();
+                    Thread.sleep(100);
+                } catch (InterruptedException ignored) {
+                    // Finish early.
+                }
+                running.decrementAndGet();
+                completed.incrementAndGet();
+            });
+        }
+        release.countDown();
+
+        while (completed.get() < 16) {
+            Thread.sleep(10);
+        }
+
+        // The pool should have grown to its maximum, and no further.
+        Assert.assertEquals(4, executor.getThreadCount());
+        Assert.assertEquals(4, peak.get());
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testShrink() throws InterruptedException {
+        ElasticExecutor executor = new ElasticExecutor(1, 4, Integer.MAX_VALUE, 100);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(16);
+
+        // Grow the pool with a backlog of slow tasks.
+        for (int i = 0; i < 16; i++) {
+            executor.execute(() -> {
+                try {
+                    release.await();
+                    Thread.sleep(50);
+                } catch (InterruptedException ignored) {
+                    // Finish early.
+                }
+                done.countDown();
+            });
+        }
+        release.countDown();
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(executor.getThreadCount() > 1);
+
+        // Once idle, with nothing submitted, the pool should shrink to its minimum.
+        for (int i = 0; i < 100 && executor.getThreadCount() > 1; i++) {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(1, executor.getThreadCount());
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testRejection() throws InterruptedException {
+        ElasticExecutor executor = new ElasticExecutor(1, 1, 1);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        // Occupy the only thread, and fill the queue.
+        executor.execute(() -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ignored) {
+                // Finish early.
+            }
+        });
+        Assert.assertTrue(started.await(1, TimeUnit.SECONDS));
+        executor.execute(() -> { });
+
+        // A saturated pool should refuse further tasks.
+        try {
+            executor.execute(() -> { });
+            Assert.fail();
+        } catch (RejectedExecutionException ignored) {
+            // Expected.
+        }
+        Assert.assertFalse(executor.isShutdown());
+
+        release.countDown();
+        executor.shutdownNow();
+        Assert.assertTrue(executor.isShutdown());
+    }
+}
@@ -0,0 +1,147 @@
+package uk.ac.cam.seh208.middleware.core;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import java8.util.stream.Collectors;
+import java8.util.stream.StreamSupport;
+import uk.ac.cam.seh208.middleware.common.EndpointDetails;
+import uk.ac.cam.seh208.middleware.common.Polarity;
+import uk.ac.cam.seh208.middleware.common.Query;
+import uk.ac.cam.seh208.middleware.core.comms.Location;
+import uk.ac.cam.seh208.middleware.core.control.EndpointIndex;
+import uk.ac.cam.seh208.middleware.core.control.Middleware;
+
+
+/**
+ * Local test checking that discovery over the RDC endpoint index matches a full scan.
+ */
+public class EndpointIndexTest {
+
+    private static final int TAGS = 200;
+
+    private static final int TAGS_PER_ENDPOINT = 3;
+
+    private static final int SCHEMAS = 50;
+
+    private static final Random random = new Random(System.nanoTime());
+
+
+    private static String schema(int i) {
+        return "{\"type\": \"array\", \"maxItems\": " + i + "}";
+    }
+
+    /**
+     * Register the given number of endpoints on each of the given number of middlewares.
+     */
+    static Map<EndpointDetails, Middleware> populate(int middlewares,
+                                                     int endpointsPerMiddleware) {
+        Map<EndpointDetails, Middleware> registrations = new HashMap<>();
+        long endpointId = 0;
+        for (int m = 0; m < middlewares; m++) {
+            Middleware middleware = new Middleware(m, new Location(), new Location());
+            for (int e = 0; e < endpointsPerMiddleware; e++) {
+                List<String> tags = new ArrayList<>();
+                for (int t = 0; t < TAGS_PER_ENDPOINT; t++) {
+                    tags.add("tag" + random.nextInt(TAGS));
+                }
+
+                EndpointDetails details = new EndpointDetails(
+                        endpointId++,
+                        "sensor-" + m + "-" + e,
+                        "Endpoint " + e + " of middleware " + m,
+                        random.nextBoolean() ? Polarity.SOURCE : Polarity.SINK,
+                        schema(random.nextInt(SCHEMAS)),
+                        tags);
+                registrations.put(details, middleware);
+            }
+        }
+        return registrations;
+    }
+
+    static List<Query> queries() {
+        return Arrays.asList(
+                new Query.Builder()
+                        .includeTag("tag1")
+                        .setPolarity(Polarity.SOURCE)
+                        .setNameRegex("^sensor-1.*$")
+                        .build(),
+                new Query.Builder()
+                        .includeTag("tag2")
+                        .includeTag("tag3")
+                        .excludeTag("tag4")
+                        .build(),
+                new Query.Builder()
+                        .setSchema(schema(7))
+                        .setPolarity(Polarity.SINK)
+                        .setDescRegex("^Endpoint 1.*$")
+                        .build(),
+                new Query.Builder()
+                        .includeTag("unknown")
+                        .build());
+    }
+
+    /**
+     * Discover over every registration, as the RDC did before indexing.
+     */
+    static Set<Middleware> scan(Map<EndpointDetails, Middleware> registrations,
+                                Query query) {
+        return new HashSet<>(StreamSupport.stream(registrations.keySet())
+                .filter(query.getFilter())
+                .map(registrations::get)
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Discover over the candidates from the index, as the RDC does.
+     */
+    static Set<Middleware> lookup(Map<EndpointDetails, Middleware> registrations,
+                                  EndpointIndex index, Query query) {
+        return new HashSet<>(StreamSupport.stream(index.candidates(query))
+                .filter(query.getFilter())
+                .map(registrations::get)
+                .collect(Collectors.toList()));
+    }
+
+    @Test
+    public void testMatchesScan() {
+        Map<EndpointDetails, Middleware> registrations = populate(100, 20);
+        EndpointIndex index = new EndpointIndex();
+        for (EndpointDetails details : registrations.keySet()) {
+            index.add(details);
+        }
+
+        for (Query query : queries()) {
+            Assert.assertEquals(scan(registrations, query),
+                                lookup(registrations, index, query));
+        }
+
+        // Remove half of the endpoints, and check the index is maintained.
+        List<EndpointDetails> removed = new ArrayList<>();
+        for (EndpointDetails details : registrations.keySet()) {
+            if (random.nextBoolean()) {
+                removed.add(details);
+            }
+        }
+        for (EndpointDetails details : removed) {
+            registrations.remove(details);
+            index.remove(details);
+        }
+        Assert.assertEquals(registrations.size(), index.size());
+
+        for (Query query : queries()) {
+            Assert.assertEquals(scan(registrations, query),
+                                lookup(registrations, index, query));
+        }
+    }
+}
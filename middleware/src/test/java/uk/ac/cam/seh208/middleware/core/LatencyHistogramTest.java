@@ -0,0 +1,85 @@
+package uk.ac.cam.seh208.middleware.core;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Local test checking the bucketing and percentile estimates of the latency histogram.
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void testEmpty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        Assert.assertEquals(0, histogram.getCount());
+        Assert.assertEquals(0, histogram.getMean());
+        Assert.assertEquals(0, histogram.getPercentile(50));
+    }
+
+    @Test
+    public void testBuckets() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(0);
+        histogram.record(1);
+        histogram.record(2);
+        histogram.record(3);
+        histogram.record(4);
+        histogram.record(5);
+
+        long[] counts = histogram.getBucketCounts();
+        Assert.assertEquals(2, counts[0]);
+        Assert.assertEquals(1, counts[1]);
+        Assert.assertEquals(2, counts[2]);
+        Assert.assertEquals(1, counts[3]);
+
+        // Latencies beyond the bounded buckets should land in the last.
+        histogram.record(Long.MAX_VALUE / 2);
+        counts = histogram.getBucketCounts();
+        Assert.assertEquals(1, counts[counts.length - 1]);
+        Assert.assertEquals(Long.MAX_VALUE / 2, histogram.getMax());
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 90; i++) {
+            histogram.record(10);
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(1000);
+        }
+
+        // Percentiles are reported as bucket upper bounds, capped at the maximum.
+        Assert.assertEquals(16, histogram.getPercentile(50));
+        Assert.assertEquals(16, histogram.getPercentile(90));
+        Assert.assertEquals(1000, histogram.getPercentile(99));
+        Assert.assertEquals(109, histogram.getMean());
+    }
+
+    @Test
+    public void testConcurrentRecording() throws InterruptedException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    histogram.record(i % 100);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Assert.assertEquals(40000, histogram.getCount());
+        Assert.assertEquals(99, histogram.getMax());
+    }
+}
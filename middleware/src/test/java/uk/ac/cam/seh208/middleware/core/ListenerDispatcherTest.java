@@ -0,0 +1,195 @@
+package uk.ac.cam.seh208.middleware.core;
+
+import android.os.IBinder;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import uk.ac.cam.seh208.middleware.common.IMessageListener;
+import uk.ac.cam.seh208.middleware.core.comms.OverflowPolicy;
+import uk.ac.cam.seh208.middleware.core.control.ListenerDispatcher;
+
+
+/**
+ * Local test checking the isolation and overflow behaviour of listener delivery.
+ */
+public class ListenerDispatcherTest {
+
+    /**
+     * Local listener recording the messages delivered to it.
+     */
+    private static class RecordingListener implements IMessageListener {
+        private final List<String> received = Collections.synchronizedList(new ArrayList<>());
+        private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void onMessage(String message) {
+            received.add(message);
+        }
+
+        @Override
+        public void onMessages(List<String> messages) {
+            batchSizes.add(messages.size());
+            received.addAll(messages);
+        }
+
+        @Override
+        public IBinder asBinder() {
+            return null;
+        }
+    }
+
+
+    private interface Condition {
+        boolean holds();
+    }
+
+
+    /**
+     * Block until the condition holds, or the timeout expires.
+     */
+    private static boolean await(Condition condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.holds()) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(5);
+        }
+        return true;
+    }
+
+    @Test
+    public void testFailureIsolation() throws InterruptedException {
+        ListenerDispatcher dispatcher =
+                new ListenerDispatcher("TEST", 64, OverflowPolicy.BLOCK);
+
+        RecordingListener healthy = new RecordingListener();
+        RecordingListener failing = new RecordingListener() {
+            @Override
+            public void onMessage(String message) {
+                throw new IllegalStateException("Listener failure");
+            }
+        };
+        ListenerDispatcher.Channel healthyChannel = dispatcher.register(healthy, false);
+        ListenerDispatcher.Channel failingChannel = dispatcher.register(failing, false);
+        Assert.assertNull(dispatcher.register(healthy, false));
+
+        int count = 1000;
+        for (int i = 0; i < count; i++) {
+            dispatcher.dispatch(Integer.toString(i));
+        }
+
+        // The healthy listener should receive every message, in order.
+        Assert.assertTrue(await(() -> healthyChannel.getDeliveredCount() == count));
+        for (int i = 0; i < count; i++) {
+            Assert.assertEquals(Integer.toString(i), healthy.received.get(i));
+        }
+
+        // The failures should be counted against the failing listener only.
+        Assert.assertTrue(await(() -> failingChannel.getFailedCount() == count));
+        Assert.assertEquals(0, healthyChannel.getFailedCount());
+        Assert.assertEquals(0, failingChannel.getDeliveredCount());
+    }
+
+    @Test
+    public void testOverflow() throws InterruptedException {
+        ListenerDispatcher dispatcher =
+                new ListenerDispatcher("TEST", 4, OverflowPolicy.DROP_NEWEST);
+
+        // Register a listener which stalls until released.
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingListener stalled = new RecordingListener() {
+            @Override
+            public void onMessage(String message) {
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {
+                    // Do nothing.
+                }
+                super.onMessage(message);
+            }
+        };
+        ListenerDispatcher.Channel channel = dispatcher.register(stalled, false);
+
+        int count = 10;
+        for (int i = 0; i < count; i++) {
+            dispatcher.dispatch(Integer.toString(i));
+        }
+
+        // At most one message can be in delivery, with four more queued.
+        Assert.assertTrue(channel.getDroppedCount() >= count - 5);
+
+        release.countDown();
+        Assert.assertTrue(await(() ->
+                channel.getDeliveredCount() + channel.getDroppedCount() == count));
+        Assert.assertEquals("0", stalled.received.get(0));
+    }
+
+    @Test
+    public void testBatching() throws InterruptedException {
+        ListenerDispatcher dispatcher =
+                new ListenerDispatcher("TEST", 1024, OverflowPolicy.BLOCK);
+        dispatcher.configureBatching(16, 50);
+
+        RecordingListener single = new RecordingListener();
+        RecordingListener batched = new RecordingListener();
+        ListenerDispatcher.Channel singleChannel = dispatcher.register(single, false);
+        ListenerDispatcher.Channel batchedChannel = dispatcher.register(batched, true);
+        Assert.assertTrue(batchedChannel.isBatched());
+
+        int count = 100;
+        for (int i = 0; i < count; i++) {
+            dispatcher.dispatch(Integer.toString(i));
+        }
+
+        // Both listeners should receive every message, in order.
+        Assert.assertTrue(await(() -> singleChannel.getDeliveredCount() == count));
+        Assert.assertTrue(await(() -> batchedChannel.getDeliveredCount() == count));
+        for (int i = 0; i < count; i++) {
+            Assert.assertEquals(Integer.toString(i), single.received.get(i));
+            Assert.assertEquals(Integer.toString(i), batched.received.get(i));
+        }
+
+        // The single-message listener should never receive batches, and the batch
+        // listener should receive batches bounded by the maximum size.
+        Assert.assertTrue(single.batchSizes.isEmpty());
+        Assert.assertTrue(batched.batchSizes.size() < count);
+        for (int size : batched.batchSizes) {
+            Assert.assertTrue(size <= 16);
+        }
+
+        // A lone message should be delivered once the batch window expires.
+        long start = System.nanoTime();
+        dispatcher.dispatch("lone");
+        Assert.assertTrue(await(() -> batchedChannel.getDeliveredCount() == count + 1));
+        Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Test
+    public void testUnregister() throws InterruptedException {
+        ListenerDispatcher dispatcher =
+                new ListenerDispatcher("TEST", 64, OverflowPolicy.DROP_OLDEST);
+
+        RecordingListener listener = new RecordingListener();
+        ListenerDispatcher.Channel channel = dispatcher.register(listener, false);
+
+        dispatcher.dispatch("before");
+        Assert.assertTrue(await(() -> channel.getDeliveredCount() == 1));
+
+        Assert.assertTrue(dispatcher.unregister(listener));
+        Assert.assertFalse(dispatcher.unregister(listener));
+        Assert.assertTrue(dispatcher.getChannels().isEmpty());
+
+        dispatcher.dispatch("after");
+        Thread.sleep(50);
+        Assert.assertEquals(Collections.singletonList("before"), listener.received);
+    }
+}
@@ -0,0 +1,135 @@
+package uk.ac.cam.seh208.middleware.core;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * Local test for the primitive long-keyed concurrent map.
+ */
+public class LongConcurrentMapTest {
+
+    private static final Random random = new Random(System.nanoTime());
+
+
+    static long[] randomKeys(int count) {
+        long[] keys = new long[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = random.nextLong();
+        }
+        return keys;
+    }
+
+    @Test
+    public void testBasicOperations() {
+        LongConcurrentMap<String> map = new LongConcurrentMap<>();
+        Assert.assertTrue(map.isEmpty());
+        Assert.assertNull(map.get(42));
+
+        Assert.assertNull(map.put(42, "a"));
+        Assert.assertEquals("a", map.put(42, "b"));
+        Assert.assertEquals("b", map.putIfAbsent(42, "c"));
+        Assert.assertEquals("b", map.get(42));
+        Assert.assertEquals(1, map.size());
+
+        Assert.assertEquals("b", map.remove(42));
+        Assert.assertNull(map.remove(42));
+        Assert.assertFalse(map.containsKey(42));
+
+        // A removed key should be revivable.
+        Assert.assertNull(map.putIfAbsent(42, "d"));
+        Assert.assertEquals("d", map.get(42));
+        Assert.assertEquals(1, map.size());
+
+        map.clear();
+        Assert.assertTrue(map.isEmpty());
+        Assert.assertNull(map.get(42));
+    }
+
+    @Test
+    public void testGrowthAndChurn() {
+        LongConcurrentMap<Long> map = new LongConcurrentMap<>(1);
+        long[] keys = randomKeys(10000);
+
+        for (long key : keys) {
+            map.put(key, key);
+        }
+        Assert.assertEquals(keys.length, map.size());
+
+        // Remove every other key, leaving tombstones.
+        for (int i = 0; i < keys.length; i += 2) {
+            Assert.assertEquals(Long.valueOf(keys[i]), map.remove(keys[i]));
+        }
+        Assert.assertEquals(keys.length / 2, map.size());
+
+        // Churn through fresh keys, forcing tables to be rebuilt.
+        for (long key : randomKeys(10000)) {
+            map.put(key, key);
+            map.remove(key);
+        }
+
+        for (int i = 0; i < keys.length; i++) {
+            if (i % 2 == 0) {
+                Assert.assertNull(map.get(keys[i]));
+            } else {
+                Assert.assertEquals(Long.valueOf(keys[i]), map.get(keys[i]));
+            }
+        }
+        Assert.assertEquals(keys.length / 2, map.values().size());
+
+        LongConcurrentMap<Long> copy = map.copy();
+        map.clear();
+        Assert.assertEquals(keys.length / 2, copy.size());
+        Assert.assertEquals(Long.valueOf(keys[1]), copy.get(keys[1]));
+    }
+
+    @Test
+    public void testConcurrentAccess() throws InterruptedException {
+        final LongConcurrentMap<Long> map = new LongConcurrentMap<>();
+        final long[] stable = randomKeys(1000);
+        for (long key : stable) {
+            map.put(key, key);
+        }
+
+        // Churn other keys from several writers, while readers check the stable keys.
+        final AtomicBoolean failed = new AtomicBoolean();
+        final AtomicBoolean running = new AtomicBoolean(true);
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final boolean writer = t % 2 == 0;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    Random local = new Random();
+                    while (running.get()) {
+                        if (writer) {
+                            long key = local.nextLong();
+                            map.put(key, key);
+                            map.remove(key);
+                        } else {
+                            long key = stable[local.nextInt(stable.length)];
+                            Long value = map.get(key);
+                            if (value == null || value != key) {
+                                failed.set(true);
+                            }
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+
+        Thread.sleep(500);
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Assert.assertFalse(failed.get());
+        Assert.assertEquals(stable.length, map.size());
+    }
+}
@@ -0,0 +1,75 @@
+package uk.ac.cam.seh208.middleware.core;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import uk.ac.cam.seh208.middleware.core.comms.LoopbackMessageStream;
+import uk.ac.cam.seh208.middleware.core.comms.MessageListener;
+
+
+/**
+ * Local test checking the ordering and closure behaviour of the loopback message stream.
+ */
+public class LoopbackMessageStreamTest {
+
+    /**
+     * Listener recording the payloads of the framed messages it receives.
+     */
+    private static class RecordingListener implements MessageListener {
+        private final List<byte[]> received = new ArrayList<>();
+
+        @Override
+        public void onMessage(String message) { }
+
+        @Override
+        public void onMessage(byte[] header, byte[] payload) {
+            received.add(payload);
+        }
+    }
+
+
+    @Test
+    public void testOrderedDelivery() {
+        LoopbackMessageStream stream = new LoopbackMessageStream();
+        RecordingListener listener = new RecordingListener();
+        stream.registerListener(listener);
+        Assert.assertTrue(stream.isFramingSupported());
+
+        byte[] header = new byte[] { 1, 0 };
+        List<byte[]> sent = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            byte[] payload = new byte[] { (byte) i };
+            sent.add(payload);
+            stream.send(header, payload);
+        }
+
+        // Every frame should be delivered in order, without being copied.
+        Assert.assertEquals(sent.size(), listener.received.size());
+        for (int i = 0; i < sent.size(); i++) {
+            Assert.assertTrue(sent.get(i) == listener.received.get(i));
+        }
+    }
+
+    @Test
+    public void testClosure() {
+        LoopbackMessageStream stream = new LoopbackMessageStream();
+        RecordingListener listener = new RecordingListener();
+        stream.registerListener(listener);
+
+        final int[] closures = { 0 };
+        Assert.assertTrue(stream.subscribeIfOpen(s -> closures[0]++));
+
+        stream.close();
+        Assert.assertTrue(stream.isClosed());
+        Assert.assertEquals(1, closures[0]);
+
+        // Messages sent after closure should be dropped.
+        stream.send(new byte[] { 1, 0 }, new byte[] { 0 });
+        Assert.assertTrue(listener.received.isEmpty());
+        Assert.assertFalse(stream.subscribeIfOpen(s -> closures[0]++));
+    }
+}
@@ -0,0 +1,63 @@
+package uk.ac.cam.seh208.middleware.core;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import uk.ac.cam.seh208.middleware.core.control.Message;
+
+
+/**
+ * Local test checking that messages are parsed at most once, however many
+ * times their parsed form is requested.
+ */
+public class MessageTest {
+
+    private static final String json = "{\"latitude\": 52.2109, \"longitude\": 0.0917}";
+
+
+    @Test
+    public void testParsedOnce() throws IOException {
+        Message message = Message.fromBytes(json.getBytes(StandardCharsets.UTF_8));
+
+        long parses = Message.getParseCount();
+        long hits = Message.getCacheHitCount();
+
+        // Request the parsed form as if the message was delivered over several links.
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals(52.2109, message.getTree().get("latitude").asDouble());
+        }
+
+        Assert.assertEquals(parses + 1, Message.getParseCount());
+        Assert.assertEquals(hits + 4, Message.getCacheHitCount());
+    }
+
+    @Test
+    public void testMalformedParsedOnce() {
+        Message message = Message.fromString("{\"latitude\": ");
+
+        long parses = Message.getParseCount();
+
+        for (int i = 0; i < 3; i++) {
+            try {
+                message.getTree();
+                Assert.fail("Malformed message was parsed.");
+            } catch (IOException ignored) {
+                // Expected.
+            }
+        }
+
+        Assert.assertEquals(parses + 1, Message.getParseCount());
+    }
+
+    @Test
+    public void testRepresentations() {
+        Message message = Message.fromString(json);
+
+        Assert.assertEquals(json, new String(message.getBytes(), StandardCharsets.UTF_8));
+        Assert.assertEquals(json, Message.fromBytes(message.getBytes()).getString());
+    }
+}
@@ -0,0 +1,104 @@
+package uk.ac.cam.seh208.middleware.core;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import uk.ac.cam.seh208.middleware.core.control.Message;
+import uk.ac.cam.seh208.middleware.core.control.MessageBatch;
+import uk.ac.cam.seh208.middleware.core.control.MultiplexerHeader;
+
+
+/**
+ * Local test for the encoding and decoding of multiplexer headers.
+ */
+public class MultiplexerHeaderTest {
+
+    private static final Random random = new Random(System.nanoTime());
+
+    static final String payload =
+            "{\"latitude\": 52.2109, \"longitude\": 0.0917, \"label\": \"William Gates Building\"}";
+
+
+    static long[] randomLinkIds(int count) {
+        long[] linkIds = new long[count];
+        for (int i = 0; i < count; i++) {
+            linkIds[i] = random.nextLong();
+        }
+        return linkIds;
+    }
+
+    @Test
+    public void testBinaryRoundTrip() {
+        long[] linkIds = randomLinkIds(8);
+        MultiplexerHeader header = new MultiplexerHeader(linkIds, 0x5A);
+
+        MultiplexerHeader decoded = MultiplexerHeader.fromBytes(header.toBytes());
+
+        Assert.assertNotNull(decoded);
+        Assert.assertTrue(Arrays.equals(linkIds, decoded.getLinkIds()));
+        Assert.assertEquals(0x5A, decoded.getFlags());
+    }
+
+    @Test
+    public void testLegacyRoundTrip() {
+        long[] linkIds = randomLinkIds(8);
+        MultiplexerHeader header =
+                new MultiplexerHeader(linkIds, MultiplexerHeader.FLAG_NONE);
+        String message = header.toLegacyPrefix() + payload;
+
+        MultiplexerHeader decoded = MultiplexerHeader.fromLegacyMessage(message);
+
+        Assert.assertNotNull(decoded);
+        Assert.assertTrue(Arrays.equals(linkIds, decoded.getLinkIds()));
+        Assert.assertEquals(payload, MultiplexerHeader.legacyPayload(message));
+    }
+
+    @Test
+    public void testMalformedHeaders() {
+        Assert.assertNull(MultiplexerHeader.fromBytes(null));
+        Assert.assertNull(MultiplexerHeader.fromBytes(new byte[] { 1 }));
+        Assert.assertNull(MultiplexerHeader.fromBytes(new byte[] { 1, 0, 0, 0, 0 }));
+        Assert.assertNull(MultiplexerHeader.fromBytes(new byte[] { 2, 0 }));
+        Assert.assertNull(MultiplexerHeader.fromLegacyMessage(payload));
+        Assert.assertNull(MultiplexerHeader.fromLegacyMessage("12|abc||" + payload));
+    }
+
+    @Test
+    public void testBatchRoundTrip() {
+        MultiplexerHeader header =
+                new MultiplexerHeader(randomLinkIds(4), MultiplexerHeader.FLAG_BATCH);
+        Assert.assertTrue(MultiplexerHeader.fromBytes(header.toBytes()).isBatch());
+
+        List<Message> batch = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            batch.add(Message.fromString("[" + i + ", \"\u00e9\"]"));
+        }
+        batch.add(Message.fromString(""));
+
+        List<Message> unpacked = MessageBatch.unpack(MessageBatch.pack(batch));
+
+        // The messages should be unpacked individually, in order.
+        Assert.assertNotNull(unpacked);
+        Assert.assertEquals(batch.size(), unpacked.size());
+        for (int i = 0; i < batch.size(); i++) {
+            Assert.assertEquals(batch.get(i).getString(), unpacked.get(i).getString());
+        }
+    }
+
+    @Test
+    public void testMalformedBatches() {
+        Assert.assertNull(MessageBatch.unpack(null));
+        Assert.assertTrue(MessageBatch.unpack(new byte[0]).isEmpty());
+        Assert.assertNull(MessageBatch.unpack(new byte[] { 0, 0 }));
+        Assert.assertNull(MessageBatch.unpack(new byte[] { 0, 0, 0, 4, 1, 2 }));
+        Assert.assertNull(MessageBatch.unpack(new byte[] { -1, -1, -1, -1 }));
+        Assert.assertFalse(
+                new MultiplexerHeader(randomLinkIds(1), MultiplexerHeader.FLAG_NONE).isBatch());
+    }
+}
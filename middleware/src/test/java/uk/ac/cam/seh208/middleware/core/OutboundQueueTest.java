@@ -0,0 +1,177 @@
+package uk.ac.cam.seh208.middleware.core;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import uk.ac.cam.seh208.middleware.core.comms.OutboundQueue;
+import uk.ac.cam.seh208.middleware.core.comms.OverflowPolicy;
+
+
+/**
+ * Local test checking the ordering and overflow behaviour of the outbound queue.
+ */
+public class OutboundQueueTest {
+
+    private static final int PRODUCERS = 4;
+
+    private static final int MESSAGES_PER_PRODUCER = 20000;
+
+
+    @Test
+    public void testMultipleProducers() throws InterruptedException {
+        final OutboundQueue<long[]> queue = new OutboundQueue<>(64, OverflowPolicy.BLOCK);
+
+        // Start the producers, each tagging its messages with a sequence number.
+        List<Thread> producers = new ArrayList<>();
+        for (int p = 0; p < PRODUCERS; p++) {
+            final int producer = p;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < MESSAGES_PER_PRODUCER; i++) {
+                        Assert.assertTrue(queue.offer(new long[] { producer, i }));
+                    }
+                }
+            };
+            producers.add(thread);
+            thread.start();
+        }
+
+        // Consume every message, checking per-producer ordering.
+        long[] expected = new long[PRODUCERS];
+        int received = 0;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (received < PRODUCERS * MESSAGES_PER_PRODUCER) {
+            long[] message = queue.poll();
+            queue.signalSpace();
+            if (message == null) {
+                Assert.assertTrue(System.nanoTime() < deadline);
+                Thread.yield();
+                continue;
+            }
+            Assert.assertEquals(expected[(int) message[0]]++, message[1]);
+            received++;
+        }
+
+        for (Thread thread : producers) {
+            thread.join();
+        }
+
+        Assert.assertNull(queue.poll());
+        Assert.assertEquals(PRODUCERS * MESSAGES_PER_PRODUCER, queue.getEnqueuedCount());
+        Assert.assertTrue(queue.getMaxDepth() <= queue.getCapacity());
+    }
+
+    @Test
+    public void testDropOldest() {
+        OutboundQueue<Integer> queue = new OutboundQueue<>(4, OverflowPolicy.DROP_OLDEST);
+
+        for (int i = 0; i < 6; i++) {
+            Assert.assertTrue(queue.offer(i));
+        }
+
+        // The two oldest messages should have been discarded.
+        Assert.assertEquals(2, queue.getDroppedCount());
+        Assert.assertEquals(4, queue.getDepth());
+        for (int i = 2; i < 6; i++) {
+            Assert.assertEquals(Integer.valueOf(i), queue.poll());
+        }
+        Assert.assertNull(queue.poll());
+    }
+
+    @Test
+    public void testDropNewest() {
+        OutboundQueue<Integer> queue = new OutboundQueue<>(4, OverflowPolicy.DROP_NEWEST);
+
+        for (int i = 0; i < 6; i++) {
+            Assert.assertEquals(i < 4, queue.offer(i));
+        }
+
+        // The two newest messages should have been discarded, without rejection.
+        Assert.assertEquals(2, queue.getDroppedCount());
+        Assert.assertEquals(0, queue.getRejectedCount());
+        for (int i = 0; i < 4; i++) {
+            Assert.assertEquals(Integer.valueOf(i), queue.poll());
+        }
+        Assert.assertNull(queue.poll());
+    }
+
+    @Test
+    public void testFailFast() {
+        OutboundQueue<Integer> queue = new OutboundQueue<>(4, OverflowPolicy.FAIL_FAST);
+
+        for (int i = 0; i < 4; i++) {
+            Assert.assertTrue(queue.offer(i));
+        }
+        Assert.assertFalse(queue.offer(4));
+        Assert.assertEquals(1, queue.getRejectedCount());
+
+        // Space should be available again after polling.
+        Assert.assertEquals(Integer.valueOf(0), queue.poll());
+        Assert.assertTrue(queue.offer(4));
+        Assert.assertEquals(4, queue.getMaxDepth());
+    }
+
+    @Test
+    public void testBlockReleasedOnSignal() throws InterruptedException {
+        final OutboundQueue<Integer> queue = new OutboundQueue<>(2, OverflowPolicy.BLOCK);
+        Assert.assertTrue(queue.offer(0));
+        Assert.assertTrue(queue.offer(1));
+
+        final boolean[] result = { false };
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                result[0] = queue.offer(2);
+            }
+        };
+        producer.start();
+
+        // The producer should wait until the consumer signals that it made space.
+        producer.join(100);
+        Assert.assertTrue(producer.isAlive());
+        Assert.assertEquals(Integer.valueOf(0), queue.poll());
+        queue.signalSpace();
+        producer.join(1000);
+        Assert.assertFalse(producer.isAlive());
+        Assert.assertTrue(result[0]);
+
+        Assert.assertEquals(Integer.valueOf(1), queue.poll());
+        Assert.assertEquals(Integer.valueOf(2), queue.poll());
+    }
+
+    @Test
+    public void testBlockReleasedOnClose() throws InterruptedException {
+        final OutboundQueue<Integer> queue = new OutboundQueue<>(2, OverflowPolicy.BLOCK);
+        Assert.assertTrue(queue.offer(0));
+        Assert.assertTrue(queue.offer(1));
+
+        final boolean[] result = { true };
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                result[0] = queue.offer(2);
+            }
+        };
+        producer.start();
+
+        // The producer should remain blocked until the queue is closed.
+        producer.join(100);
+        Assert.assertTrue(producer.isAlive());
+
+        queue.close();
+        producer.join(1000);
+        Assert.assertFalse(producer.isAlive());
+        Assert.assertFalse(result[0]);
+
+        // Messages queued before closure can still be drained.
+        Assert.assertEquals(Integer.valueOf(0), queue.poll());
+        Assert.assertEquals(Integer.valueOf(1), queue.poll());
+        Assert.assertFalse(queue.offer(3));
+    }
+}
@@ -0,0 +1,63 @@
+package uk.ac.cam.seh208.middleware.core;
+
+import com.github.fge.jsonschema.core.util.RegexHelper;
+import com.github.fge.jsonschema.core.util.RhinoHelper;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+
+/**
+ * Local test checking that translated ECMA 262 regexes match exactly as the
+ * Rhino-backed implementation does.
+ */
+public class RegexHelperTest {
+
+    /**
+     * Pairs of regexes and inputs, covering the differences between ECMA 262
+     * and java.util.regex, along with some typical schema patterns.
+     */
+    private static final String[][] cases = {
+            { "^[a-z]+$", "hello" }, { "^[a-z]+$", "hello\n" }, { "^[a-z]+$", "Hello" },
+            { "^\\d{3}-\\d{4}$", "555-1234" }, { "^\\d{3}-\\d{4}$", "555-12345" },
+            { "a.c", "a\nc" }, { "a.c", "a\u0085c" }, { "a.c", "a c" }, { "a.c", "abc" },
+            { "^\\s+$", " \u00a0\u3000" }, { "^\\s+$", "\u0085" }, { "^\\S+$", " " },
+            { "\\bfoo\\b", "a foo b" }, { "\\bfoo\\b", "\u00e9foo\u00e9" },
+            { "\\Bfoo", "\u00e9foo" }, { "\\Bfoo", "xfoo" },
+            { "\\p{L}", "p{L}" }, { "\\p{L}", "a" }, { "\\Qa\\E", "Qa" }, { "a\\z", "az" },
+            { "[[]", "[" }, { "[a&&b]", "&" }, { "[]", "a" }, { "[^]", "\n" },
+            { "a{", "a{" }, { "a{1,2}", "aa" }, { "a{,2}", "a{,2}" }, { "}", "}" },
+            { "[\\d-z]", "-" }, { "[\\d-z]", "m" }, { "[\\w-]", "-" },
+            { "\\v", "\u000b" }, { "\\0", "\u0000" }, { "\\cJ", "\n" }, { "\\x41", "A" },
+            { "\\x4", "x4" }, { "\\u0041", "A" }, { "\\u004", "u004" }, { "[\\b]", "\b" },
+            { "(?:ab)+c", "ababc" }, { "(?=a)a", "a" }, { "(?!a)b", "b" },
+            { "a$", "a\n" }, { "a$", "a" }, { "^$", "" }, { "[$]", "$" },
+            { "\\W", "\u00e9" }, { "\\w", "\u00e9" }, { "\\d", "\u0663" },
+            { "(a)\\1", "aa" }, { "^.$", "\ud83d\ude00" },
+            { "^[^@]+@[^@]+\\.[a-z]{2,}$", "user@example.com" },
+            { "^[^@]+@[^@]+\\.[a-z]{2,}$", "user@@example.com" },
+            { "^-?[0-9]+(\\.[0-9]+)?$", "-12.5" }, { "^x-", "x-1" }
+    };
+
+
+    @Test
+    public void testConformance() {
+        for (String[] pair : cases) {
+            Assert.assertEquals("/" + pair[0] + "/ on \"" + pair[1] + "\"",
+                    RhinoHelper.regMatch(pair[0], pair[1]),
+                    RegexHelper.regMatch(pair[0], pair[1]));
+        }
+    }
+
+    @Test
+    public void testFallback() {
+        // Backreferences are left to Rhino.
+        Assert.assertNull(RegexHelper.translate("(a)\\1"));
+        Assert.assertNull(RegexHelper.getPattern("(a)\\1"));
+
+        // Typical schema patterns should not be.
+        Assert.assertNotNull(RegexHelper.getPattern("^[a-zA-Z_][a-zA-Z0-9_]*$"));
+        Assert.assertNotNull(RegexHelper.getPattern("^\\d{4}-\\d{2}-\\d{2}$"));
+    }
+}
@@ -0,0 +1,61 @@
+package uk.ac.cam.seh208.middleware.core;
+
+import com.github.fge.jsonschema.main.JsonSchema;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import uk.ac.cam.seh208.middleware.common.exception.BadSchemaException;
+import uk.ac.cam.seh208.middleware.core.control.SchemaCache;
+
+
+/**
+ * Local test checking that equivalent schemas share a single compilation.
+ */
+public class SchemaCacheTest {
+
+    @Test
+    public void testCanonicalHash() {
+        String schema = "{\"type\": \"object\", \"required\": [\"a\", \"b\"]}";
+        String reordered = "{\n  \"required\" : [ \"a\", \"b\" ],\n  \"type\" : \"object\"\n}";
+        String different = "{\"type\": \"object\", \"required\": [\"b\", \"a\"]}";
+
+        Assert.assertEquals(SchemaCache.hash(schema), SchemaCache.hash(reordered));
+        Assert.assertFalse(SchemaCache.hash(schema).equals(SchemaCache.hash(different)));
+        Assert.assertNull(SchemaCache.hash("{\"type\": "));
+    }
+
+    @Test
+    public void testSharedCompilation() throws BadSchemaException {
+        String schema = "{\"type\": \"object\", \"properties\": {\"shared\": {}}}";
+        String reordered = "{\"properties\": {\"shared\": {}}, \"type\": \"object\"}";
+
+        long hits = SchemaCache.getHitCount();
+        long misses = SchemaCache.getMissCount();
+
+        JsonSchema first = SchemaCache.getSchema(schema);
+        JsonSchema second = SchemaCache.getSchema(reordered);
+
+        Assert.assertSame(first, second);
+        Assert.assertEquals(misses + 1, SchemaCache.getMissCount());
+        Assert.assertEquals(hits + 1, SchemaCache.getHitCount());
+    }
+
+    @Test
+    public void testPrewarm() throws BadSchemaException {
+        String schema = "{\"type\": \"object\", \"properties\": {\"prewarmed\": {}}}";
+
+        SchemaCache.prewarm(Arrays.asList(schema, "{\"type\": "));
+
+        long hits = SchemaCache.getHitCount();
+        long misses = SchemaCache.getMissCount();
+
+        // The prewarmed (possibly still compiling) schema should be served from the cache.
+        Assert.assertNotNull(SchemaCache.getSchema(schema));
+        Assert.assertEquals(hits + 1, SchemaCache.getHitCount());
+        Assert.assertEquals(misses, SchemaCache.getMissCount());
+    }
+}
@@ -0,0 +1,106 @@
+package uk.ac.cam.seh208.middleware.core;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+
+/**
+ * Local test checking the expiry behaviour of the hashed timing wheel, as used for
+ * RDC leases.
+ */
+public class TimingWheelTest {
+
+    private static final long TICK = 100;
+
+    private static final int SIZE = 16;
+
+
+    @Test
+    public void testExpiry() {
+        TimingWheel<String> wheel = new TimingWheel<>(TICK, SIZE, 0);
+        wheel.schedule("a", 250, 0);
+        wheel.schedule("b", 500, 0);
+
+        // Nothing should expire before its deadline.
+        Assert.assertTrue(wheel.advance(200).isEmpty());
+        Assert.assertEquals(Collections.singletonList("a"), wheel.advance(300));
+        Assert.assertFalse(wheel.contains("a"));
+        Assert.assertTrue(wheel.advance(400).isEmpty());
+        Assert.assertEquals(Collections.singletonList("b"), wheel.advance(500));
+        Assert.assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testRenewal() {
+        TimingWheel<String> wheel = new TimingWheel<>(TICK, SIZE, 0);
+        wheel.schedule("a", 300, 0);
+
+        // Extend the deadline repeatedly before it passes.
+        for (long now = 200; now <= 2000; now += 200) {
+            wheel.schedule("a", 300, now);
+            Assert.assertTrue(wheel.advance(now).isEmpty());
+        }
+
+        // Bring the deadline forward, and check it is honoured.
+        wheel.schedule("a", 5000, 2000);
+        wheel.schedule("a", 100, 2000);
+        Assert.assertEquals(Collections.singletonList("a"), wheel.advance(2100));
+
+        // A cancelled key should never expire.
+        wheel.schedule("b", 100, 2100);
+        Assert.assertTrue(wheel.cancel("b"));
+        Assert.assertTrue(wheel.advance(5000).isEmpty());
+    }
+
+    @Test
+    public void testLongDeadlines() {
+        TimingWheel<String> wheel = new TimingWheel<>(TICK, SIZE, 0);
+
+        // Schedule beyond several revolutions of the wheel.
+        long timeout = TICK * SIZE * 3 + 50;
+        wheel.schedule("a", timeout, 0);
+        for (long now = TICK; now < timeout; now += TICK) {
+            Assert.assertTrue(wheel.advance(now).isEmpty());
+        }
+        Assert.assertEquals(Collections.singletonList("a"), wheel.advance(timeout + TICK));
+
+        // Jump forward several revolutions at once.
+        wheel.schedule("b", 200, 10000);
+        wheel.schedule("c", TICK * SIZE * 4, 10000);
+        List<String> expired = wheel.advance(10000 + TICK * SIZE * 2);
+        Assert.assertEquals(Collections.singletonList("b"), expired);
+        Assert.assertTrue(wheel.contains("c"));
+        Assert.assertEquals(Collections.singletonList("c"),
+                            wheel.advance(10000 + TICK * SIZE * 4));
+    }
+
+    @Test
+    public void testRenewedLoad() {
+        int count = 10000;
+        TimingWheel<Integer> wheel = new TimingWheel<>(TICK, 64, 0);
+
+        // Spread leases over the wheel, as for staggered registrations.
+        for (int i = 0; i < count; i++) {
+            wheel.schedule(i, 3000 + (i % 3000), 0);
+        }
+
+        // Renew every lease once, then let them all expire tick by tick.
+        for (int i = 0; i < count; i++) {
+            wheel.schedule(i, 3000 + (i % 3000), 1000);
+        }
+
+        Set<Integer> expired = new HashSet<>();
+        for (long now = TICK; now <= 7000; now += TICK) {
+            expired.addAll(wheel.advance(now));
+        }
+
+        Assert.assertEquals(count, expired.size());
+        Assert.assertEquals(0, wheel.size());
+    }
+}
@@ -0,0 +1,91 @@
+package uk.ac.cam.seh208.middleware.core;
+
+import com.github.fge.jackson.JsonLoader;
+import com.github.fge.jsonschema.core.exceptions.ProcessingException;
+import com.github.fge.jsonschema.main.JsonSchemaFactory;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import uk.ac.cam.seh208.middleware.common.JSONSerializable;
+import uk.ac.cam.seh208.middleware.common.ValidationPolicy;
+import uk.ac.cam.seh208.middleware.core.control.Message;
+import uk.ac.cam.seh208.middleware.core.control.MessageValidator;
+
+
+/**
+ * Local test checking that outgoing messages are validated according to the
+ * validation policy, and that validated and skipped messages are counted.
+ */
+public class ValidationPolicyTest {
+
+    private static final String schema = "{\"type\": \"object\", \"required\": [\"value\"]}";
+
+    private static final String invalid = "{\"other\": 1}";
+
+
+    private static MessageValidator createValidator() throws IOException, ProcessingException {
+        return new MessageValidator(
+                JsonSchemaFactory.byDefault().getJsonSchema(JsonLoader.fromString(schema)),
+                schema);
+    }
+
+    @Test
+    public void testAlways() throws IOException, ProcessingException {
+        MessageValidator validator = createValidator();
+
+        long validated = MessageValidator.getValidatedCount(ValidationPolicy.Mode.ALWAYS);
+
+        Assert.assertTrue(validator.checkOutgoing(Message.fromString("{\"value\": 1}")));
+        Assert.assertFalse(validator.checkOutgoing(Message.fromString(invalid)));
+
+        Assert.assertEquals(validated + 2,
+                MessageValidator.getValidatedCount(ValidationPolicy.Mode.ALWAYS));
+    }
+
+    @Test
+    public void testSampled() throws IOException, ProcessingException {
+        MessageValidator validator = createValidator();
+        validator.setPolicy(ValidationPolicy.sampled(4));
+
+        long validated = MessageValidator.getValidatedCount(ValidationPolicy.Mode.SAMPLED);
+        long skipped = MessageValidator.getSkippedCount(ValidationPolicy.Mode.SAMPLED);
+
+        // Only one in every four invalid messages should be caught.
+        int rejected = 0;
+        for (int i = 0; i < 12; i++) {
+            if (!validator.checkOutgoing(Message.fromString(invalid))) {
+                rejected++;
+            }
+        }
+
+        Assert.assertEquals(3, rejected);
+        Assert.assertEquals(validated + 3,
+                MessageValidator.getValidatedCount(ValidationPolicy.Mode.SAMPLED));
+        Assert.assertEquals(skipped + 9,
+                MessageValidator.getSkippedCount(ValidationPolicy.Mode.SAMPLED));
+    }
+
+    @Test
+    public void testSenderTrust() {
+        // Receivers may only trust senders which validate every outgoing message.
+        Assert.assertTrue(ValidationPolicy.ALWAYS.validatesAllOutgoing());
+        Assert.assertTrue(ValidationPolicy.SENDER_ONLY.validatesAllOutgoing());
+        Assert.assertTrue(ValidationPolicy.TRUSTED_PEER.validatesAllOutgoing());
+        Assert.assertFalse(ValidationPolicy.sampled(10).validatesAllOutgoing());
+    }
+
+    @Test
+    public void testSerialisation() throws IOException {
+        ValidationPolicy policy = ValidationPolicy.sampled(10);
+
+        Assert.assertEquals(policy,
+                JSONSerializable.fromJSON(policy.toJSON(), ValidationPolicy.class));
+        Assert.assertEquals(ValidationPolicy.TRUSTED_PEER,
+                JSONSerializable.fromJSON(ValidationPolicy.TRUSTED_PEER.toJSON(),
+                                          ValidationPolicy.class));
+    }
+}
@@ -0,0 +1,122 @@
+package uk.ac.cam.seh208.middleware.core;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.zeromq.ZMQ;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import uk.ac.cam.seh208.middleware.core.exception.ConnectionFailedException;
+import uk.ac.cam.seh208.middleware.core.exception.MalformedAddressException;
+import uk.ac.cam.seh208.middleware.core.comms.Address;
+import uk.ac.cam.seh208.middleware.core.comms.Environment;
+import uk.ac.cam.seh208.middleware.core.comms.Location;
+import uk.ac.cam.seh208.middleware.core.comms.MessageContext;
+import uk.ac.cam.seh208.middleware.core.comms.MessageStream;
+import uk.ac.cam.seh208.middleware.core.comms.impl.ZMQAddress;
+import uk.ac.cam.seh208.middleware.core.comms.impl.ZMQMessageContext;
+import uk.ac.cam.seh208.middleware.core.comms.impl.ZMQSchemeConfiguration;
+
+
+/**
+ * Local test checking that the ZeroMQ message context does not start threads of its
+ * own for each open peer stream, and that every stream still delivers its messages.
+ */
+public class ZMQMessageScalingTest {
+
+    private static final int CONTEXT_PORT = 20000;
+
+    private static final int SINK_BASE_PORT = 21000;
+
+    /**
+     * Maximum number of threads that may be started by opening streams.
+     */
+    private static final int MAX_THREAD_GROWTH = 2;
+
+    private static final int RECEIVE_TIMEOUT_MILLIS = 10000;
+
+
+    private static Environment environmentWithPort(int port) {
+        return () -> {
+            Location location = new Location();
+            try {
+                location.addAddress(Address.make("zmq://127.0.0.1:" + port));
+            } catch (MalformedAddressException e) {
+                Assert.fail("Couldn't create environment.");
+            }
+            return location;
+        };
+    }
+
+    /**
+     * Open the given number of streams from a single context to a sink bound on
+     * as many ports, and check that a message sent over each is received.
+     */
+    private static void runWithStreams(int count) throws ConnectionFailedException {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        // Bind a single ROUTER socket on one port per peer, standing in for
+        // the Harmony servers of the remote middleware instances.
+        ZMQ.Context sinkContext = ZMQ.context(1);
+        ZMQ.Socket sink = sinkContext.socket(ZMQ.ROUTER);
+        sink.setReceiveTimeOut(RECEIVE_TIMEOUT_MILLIS);
+        for (int i = 0; i < count; i++) {
+            sink.bind("tcp://127.0.0.1:" + (SINK_BASE_PORT + i));
+        }
+
+        MessageContext context = new ZMQMessageContext(
+                environmentWithPort(CONTEXT_PORT), new ZMQSchemeConfiguration(CONTEXT_PORT));
+        int threadsBefore = threads.getThreadCount();
+
+        // Open a stream to each peer.
+        ZMQAddress.Builder addressBuilder = new ZMQAddress.Builder();
+        addressBuilder.setHost("127.0.0.1");
+        MessageStream[] streams = new MessageStream[count];
+        for (int i = 0; i < count; i++) {
+            streams[i] = context.getMessageStream(
+                    addressBuilder.setPort(SINK_BASE_PORT + i).build());
+        }
+        int threadGrowth = threads.getThreadCount() - threadsBefore;
+
+        // Send a distinct message over each stream.
+        for (int i = 0; i < count; i++) {
+            streams[i].send(Integer.toString(i));
+        }
+
+        // Receive the messages at the sink, skipping the initial messages.
+        boolean[] seen = new boolean[count];
+        int received = 0;
+        while (received < count) {
+            byte[] identity = sink.recv();
+            Assert.assertNotNull(identity);
+            String data = sink.recvStr();
+            if (sink.hasReceiveMore()) {
+                // This is an initial message; discard the version frame.
+                sink.recv();
+                continue;
+            }
+
+            int index = Integer.parseInt(data);
+            Assert.assertFalse(seen[index]);
+            seen[index] = true;
+            received++;
+        }
+
+        // Terminate the context, closing all streams.
+        context.term();
+        sink.close();
+        sinkContext.term();
+
+        // Streams must not start threads of their own.
+        Assert.assertTrue(threadGrowth <= MAX_THREAD_GROWTH);
+    }
+
+    @Test
+    public void testStreamScaling() throws ConnectionFailedException {
+        runWithStreams(10);
+        runWithStreams(100);
+        runWithStreams(1000);
+    }
+}
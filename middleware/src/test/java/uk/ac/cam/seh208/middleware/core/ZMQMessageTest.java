@@ -3,9 +3,12 @@ package uk.ac.cam.seh208.middleware.core;
 import junit.framework.Assert;
 
 import org.junit.Test;
+import org.zeromq.ZMQ;
 
 import java.net.UnknownHostException;
 import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import uk.ac.cam.seh208.middleware.core.exception.ConnectionFailedException;
 import uk.ac.cam.seh208.middleware.core.exception.MalformedAddressException;
@@ -245,4 +248,204 @@ public class ZMQMessageTest {
             context.term();
         }
     }
+
+    @Test
+    public void testOrderedShardedDispatch()
+            throws InterruptedException, ConnectionFailedException {
+        int basePort = 10000;
+        int peers = 3;
+        int messages = 500;
+
+        // Create a receiving context with several dispatch shards, and a number
+        // of sending contexts.
+        MessageContext receiver = new ZMQMessageContext(
+                environmentWithPort(basePort),
+                new ZMQSchemeConfiguration.Builder()
+                        .setPort(basePort)
+                        .setDispatchShards(4)
+                        .build());
+        MessageContext[] senders = new MessageContext[peers];
+        for (int i = 0; i < peers; i++) {
+            senders[i] = new ZMQMessageContext(
+                    environmentWithPort(basePort + 1 + i),
+                    new ZMQSchemeConfiguration(basePort + 1 + i));
+        }
+
+        ZMQAddress.Builder addressBuilder = new ZMQAddress.Builder();
+        addressBuilder.setHost("127.0.0.1");
+
+        // Listen for numbered messages from each sender, recording any
+        // received out of order.
+        int[] next = new int[peers];
+        boolean[] ordered = { true };
+        CountDownLatch latch = new CountDownLatch(peers * messages);
+        for (int i = 0; i < peers; i++) {
+            int peer = i;
+            MessageStream stream = receiver.getMessageStream(
+                    addressBuilder.setPort(basePort + 1 + i).build());
+            stream.registerListener(message -> {
+                if (Integer.parseInt(message) != next[peer]++) {
+                    ordered[0] = false;
+                }
+                latch.countDown();
+            });
+        }
+
+        // Send the messages from all senders concurrently.
+        for (int i = 0; i < peers; i++) {
+            MessageStream stream = senders[i].getMessageStream(
+                    addressBuilder.setPort(basePort).build());
+            for (int j = 0; j < messages; j++) {
+                stream.send(Integer.toString(j));
+            }
+        }
+
+        // Assert that every message was received, in order for each sender.
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(ordered[0]);
+
+        // Terminate the contexts.
+        for (MessageContext context : senders) {
+            context.term();
+        }
+        receiver.term();
+    }
+
+    @Test
+    public void testReconnectAcrossShards()
+            throws InterruptedException, UnknownHostException,
+                   ConnectionFailedException, MalformedAddressException {
+        // Compute the local addresses.
+        int port1 = 8000;
+        int port2 = 8001;
+        Address address1 = Address.make("zmq://127.0.0.1:" + port1);
+        Address address2 = Address.make("zmq://127.0.0.1:" + port2);
+
+        // Create two ZMQMessageContext objects, the receiver dispatching across
+        // several shards.
+        MessageContext context1 = new ZMQMessageContext(
+                environmentWithPort(port1), new ZMQSchemeConfiguration(port1));
+        MessageContext context2 = new ZMQMessageContext(
+                environmentWithPort(port2),
+                new ZMQSchemeConfiguration.Builder()
+                        .setPort(port2)
+                        .setDispatchShards(8)
+                        .build());
+
+        for (int i = 0; i < 10; i++) {
+            // Open a stream, and close it straight away; the FIN of the old
+            // connection races the initial message of the next.
+            MessageStream stream = context1.getMessageStream(address2);
+            stream.send("round " + i);
+            stream.close();
+        }
+
+        // The final connection should have a fresh, open stream at the receiver.
+        MessageStream stream1To2 = context1.getMessageStream(address2);
+        stream1To2.send("hello");
+        Thread.sleep(500);
+        MessageStream stream2To1 = context2.getMessageStream(address1);
+        Assert.assertFalse(stream2To1.isClosed());
+        MessageStreamClosure closure2 = streamSetup(stream2To1);
+        stream1To2.send("final");
+        assertRecv(closure2, "final", 2000);
+
+        // Close the message streams and terminate the contexts.
+        streamClearup(closure2);
+        stream1To2.close();
+        context1.term();
+        context2.term();
+    }
+
+    /**
+     * Create a configuration with heartbeats at the given interval and timeout.
+     */
+    private static ZMQSchemeConfiguration heartbeatConfiguration(int port, long interval,
+                                                                 long timeout) {
+        return new ZMQSchemeConfiguration.Builder()
+                .setPort(port)
+                .setHeartbeatIntervalMillis(interval)
+                .setHeartbeatTimeoutMillis(timeout)
+                .build();
+    }
+
+    @Test
+    public void testHeartbeatKeepsIdleStreamOpen()
+            throws InterruptedException, UnknownHostException,
+                   ConnectionFailedException, MalformedAddressException {
+        // Compute the local addresses.
+        int port1 = 8000;
+        int port2 = 8001;
+        Address address1 = Address.make("zmq://127.0.0.1:" + port1);
+        Address address2 = Address.make("zmq://127.0.0.1:" + port2);
+
+        // Create two ZMQMessageContext objects with a short heartbeat timeout.
+        MessageContext context1 = new ZMQMessageContext(
+                environmentWithPort(port1), heartbeatConfiguration(port1, 100, 500));
+        MessageContext context2 = new ZMQMessageContext(
+                environmentWithPort(port2), heartbeatConfiguration(port2, 100, 500));
+
+        // Exchange messages, so that each context learns the wire version of the other.
+        MessageStream stream1To2 = context1.getMessageStream(address2);
+        MessageStreamClosure closure1 = streamSetup(stream1To2);
+        MessageStream stream2To1 = context2.getMessageStream(address1);
+        MessageStreamClosure closure2 = streamSetup(stream2To1);
+        stream1To2.send("1 --> 2");
+        stream2To1.send("2 --> 1");
+        assertRecv(closure1, "2 --> 1", 2000);
+        assertRecv(closure2, "1 --> 2", 2000);
+
+        // Leave the streams idle for several timeouts; the heartbeats alone
+        // should keep them open.
+        Thread.sleep(2000);
+        Assert.assertFalse(stream1To2.isClosed());
+        Assert.assertFalse(stream2To1.isClosed());
+
+        // Close the message streams and terminate the contexts.
+        streamClearup(closure1);
+        streamClearup(closure2);
+        stream1To2.close();
+        context1.term();
+        context2.term();
+    }
+
+    @Test
+    public void testHeartbeatDetectsVanishedPeer()
+            throws InterruptedException, UnknownHostException {
+        int port = 8000;
+        int vanishedPort = 8001;
+
+        // Create a ZMQMessageContext with a short heartbeat timeout.
+        ZMQMessageContext context = new ZMQMessageContext(
+                environmentWithPort(port), heartbeatConfiguration(port, 100, 500));
+
+        // Impersonate a peer supporting heartbeats, which sends its initial
+        // message and then vanishes without sending FIN. Nothing listens on the
+        // address it advertises, so no PONG is ever received from it.
+        ZMQ.Context peerContext = ZMQ.context(1);
+        ZMQ.Socket peer = peerContext.socket(ZMQ.DEALER);
+        peer.setLinger(0);
+        peer.connect("tcp://127.0.0.1:" + port);
+        peer.sendMore("{\"location\":" +
+                environmentWithPort(vanishedPort).getLocation().toJSON() + "}");
+        peer.send(new byte[] { 2 });
+
+        // Wait for the context to resolve a stream for the peer.
+        Thread.sleep(200);
+        MessageStream stream = context.getMessageStream(
+                new ZMQAddress.Builder().setHost("127.0.0.1").setPort(vanishedPort).build());
+        Assert.assertFalse(stream.isClosed());
+
+        // The stream should be closed once the heartbeat timeout has passed.
+        long start = System.nanoTime();
+        while (!stream.isClosed() && System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5)) {
+            Thread.sleep(50);
+        }
+        Assert.assertTrue(stream.isClosed());
+
+        // Terminate the contexts.
+        peer.close();
+        peerContext.term();
+        context.term();
+    }
 }
@@ -5,15 +5,24 @@ import junit.framework.Assert;
 import org.junit.Test;
 
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Random;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ExecutionException;
 
+import java8.util.concurrent.CompletableFuture;
 import uk.ac.cam.seh208.middleware.core.exception.MalformedAddressException;
+import uk.ac.cam.seh208.middleware.core.exception.RequestTimeoutException;
 import uk.ac.cam.seh208.middleware.core.comms.Address;
 import uk.ac.cam.seh208.middleware.core.comms.RequestContext;
+import uk.ac.cam.seh208.middleware.core.comms.RequestHandler;
 import uk.ac.cam.seh208.middleware.core.comms.RequestStream;
 import uk.ac.cam.seh208.middleware.core.comms.impl.ZMQRequestContext;
+import uk.ac.cam.seh208.middleware.core.comms.impl.ZMQRequestPool;
+import uk.ac.cam.seh208.middleware.core.comms.impl.ZMQRequestServer;
 import uk.ac.cam.seh208.middleware.core.comms.impl.ZMQSchemeConfiguration;
 
 
@@ -100,4 +109,195 @@ public class ZMQRequestTest {
         context1.term();
         context2.term();
     }
+
+    @Test
+    public void testPooledStreams()
+            throws InterruptedException, UnknownHostException, MalformedAddressException {
+        // Create two ZMQRequestContext objects, with different bound ports.
+        int port1 = 8500;
+        int port2 = 8501;
+        ZMQRequestContext context1 = new ZMQRequestContext(new ZMQSchemeConfiguration(port1));
+        RequestContext context2 = new ZMQRequestContext(new ZMQSchemeConfiguration(port2));
+
+        // Compute the local address.
+        Address address = Address.make("zmq://127.0.0.1:" + port2);
+
+        // Set up the responder.
+        context2.getResponder().setHandler(request -> request + "!!!");
+
+        // Send each request over a new stream, as callers of the context do.
+        int requests = 100;
+        for (int i = 0; i < requests; i++) {
+            RequestStream stream = context1.getRequestStream(address);
+            Assert.assertEquals(i + "!!!", stream.request(String.valueOf(i)));
+        }
+
+        // All requests should have been sent over a single pooled socket.
+        ZMQRequestPool pool = context1.getRequestPool();
+        Assert.assertEquals(1, pool.getCreationCount());
+        Assert.assertEquals(requests - 1, pool.getHitCount());
+        Assert.assertEquals(1, pool.getIdleCount());
+
+        // Catch up on logging.
+        Thread.sleep(500);
+
+        // Terminate the context.
+        context1.term();
+        context2.term();
+    }
+
+    @Test
+    public void testPipelinedRequests()
+            throws InterruptedException, ExecutionException, UnknownHostException,
+                   MalformedAddressException {
+        // Create two ZMQRequestContext objects, with different bound ports.
+        int port1 = 8500;
+        int port2 = 8501;
+        RequestContext context1 = new ZMQRequestContext(new ZMQSchemeConfiguration(port1));
+        RequestContext context2 = new ZMQRequestContext(new ZMQSchemeConfiguration(port2));
+
+        // Compute the local address.
+        Address address = Address.make("zmq://127.0.0.1:" + port2);
+
+        // Set up the responder to answer later requests sooner.
+        int requests = 5;
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        context2.getResponder().setHandler(request -> {
+            try {
+                Thread.sleep(100 * (requests - Integer.parseInt(request)));
+            } catch (InterruptedException e) {
+                return null;
+            }
+            order.add(request);
+            return request + "!!!";
+        });
+
+        // Send all requests at once over a single stream.
+        RequestStream stream = context1.getRequestStream(address);
+        List<CompletableFuture<String>> futures = new ArrayList<>();
+        for (int i = 0; i < requests; i++) {
+            futures.add(stream.requestAsync(String.valueOf(i), 5000));
+        }
+
+        // Each response should be matched with its own request.
+        for (int i = 0; i < requests; i++) {
+            Assert.assertEquals(i + "!!!", futures.get(i).get());
+        }
+
+        // The requests should have been answered out of order.
+        Assert.assertEquals(String.valueOf(requests - 1), order.get(0));
+
+        // Close the request stream and terminate the contexts.
+        stream.close();
+        context1.term();
+        context2.term();
+    }
+
+    @Test
+    public void testRequestDeadline()
+            throws InterruptedException, UnknownHostException, MalformedAddressException {
+        // Create two ZMQRequestContext objects, with different bound ports.
+        int port1 = 8500;
+        int port2 = 8501;
+        RequestContext context1 = new ZMQRequestContext(new ZMQSchemeConfiguration(port1));
+        RequestContext context2 = new ZMQRequestContext(new ZMQSchemeConfiguration(port2));
+
+        // Compute the local address.
+        Address address = Address.make("zmq://127.0.0.1:" + port2);
+
+        // Set up the responder to answer only after the deadline.
+        context2.getResponder().setHandler(request -> {
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                return null;
+            }
+            return request + "!!!";
+        });
+
+        RequestStream stream = context1.getRequestStream(address);
+        CompletableFuture<String> future = stream.requestAsync("late", 200);
+        try {
+            future.get();
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof RequestTimeoutException);
+        }
+
+        // Close the request stream and terminate the contexts.
+        stream.close();
+        context1.term();
+        context2.term();
+    }
+
+    @Test
+    public void testLongRunningRequests()
+            throws InterruptedException, ExecutionException, UnknownHostException,
+                   MalformedAddressException {
+        // Create two ZMQRequestContext objects, with different bound ports.
+        int port1 = 8500;
+        int port2 = 8501;
+        RequestContext context1 = new ZMQRequestContext(new ZMQSchemeConfiguration(port1));
+        ZMQRequestContext context2 = new ZMQRequestContext(new ZMQSchemeConfiguration(port2));
+
+        // Compute the local address.
+        Address address = Address.make("zmq://127.0.0.1:" + port2);
+
+        // Set up the responder to answer slow requests only after a delay.
+        context2.getResponder().setHandler(new RequestHandler() {
+            @Override
+            public String respond(String request) {
+                if (request.startsWith("slow")) {
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException e) {
+                        return null;
+                    }
+                }
+                return request + "!!!";
+            }
+
+            @Override
+            public String getType(String request) {
+                return request.startsWith("slow") ? "SLOW" : "FAST";
+            }
+
+            @Override
+            public boolean isLongRunning(String type) {
+                return type.equals("SLOW");
+            }
+        });
+
+        // Occupy the server with a backlog of slow requests.
+        RequestStream stream = context1.getRequestStream(address);
+        List<CompletableFuture<String>> slow = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            slow.add(stream.requestAsync("slow" + i, 10000));
+        }
+
+        // A fast request should not queue behind the slow requests.
+        long start = System.nanoTime();
+        Assert.assertEquals("fast!!!", stream.request("fast"));
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        Assert.assertTrue(elapsed < 1000);
+
+        for (int i = 0; i < slow.size(); i++) {
+            Assert.assertEquals("slow" + i + "!!!", slow.get(i).get());
+        }
+
+        // Each type of request should have been accounted for separately.
+        ZMQRequestServer server = context2.getRequestServer();
+        ZMQRequestServer.TypeMetrics slowMetrics = server.getMetrics().get("SLOW");
+        ZMQRequestServer.TypeMetrics fastMetrics = server.getMetrics().get("FAST");
+        Assert.assertEquals(64, slowMetrics.getHandlerTime().getCount());
+        Assert.assertEquals(1, fastMetrics.getHandlerTime().getCount());
+        Assert.assertEquals(0, slowMetrics.getQueueDepth());
+        Assert.assertTrue(slowMetrics.getPeakQueueDepth() > 0);
+        Assert.assertTrue(server.getLongRunningWorkers().getThreadCount() > 1);
+
+        // Close the request stream and terminate the contexts.
+        stream.close();
+        context1.term();
+        context2.term();
+    }
 }
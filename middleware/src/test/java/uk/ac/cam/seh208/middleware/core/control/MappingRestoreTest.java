@@ -0,0 +1,147 @@
+package uk.ac.cam.seh208.middleware.core.control;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.zeromq.ZMQ;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import uk.ac.cam.seh208.middleware.common.EndpointDetails;
+import uk.ac.cam.seh208.middleware.common.Persistence;
+import uk.ac.cam.seh208.middleware.common.Polarity;
+import uk.ac.cam.seh208.middleware.common.Query;
+import uk.ac.cam.seh208.middleware.common.exception.BadHostException;
+import uk.ac.cam.seh208.middleware.core.MiddlewareService;
+import uk.ac.cam.seh208.middleware.core.comms.Address;
+import uk.ac.cam.seh208.middleware.core.comms.Environment;
+import uk.ac.cam.seh208.middleware.core.comms.Location;
+import uk.ac.cam.seh208.middleware.core.comms.MessageStream;
+import uk.ac.cam.seh208.middleware.core.comms.impl.ZMQAddress;
+import uk.ac.cam.seh208.middleware.core.comms.impl.ZMQMessageContext;
+import uk.ac.cam.seh208.middleware.core.comms.impl.ZMQSchemeConfiguration;
+import uk.ac.cam.seh208.middleware.core.exception.MalformedAddressException;
+
+
+/**
+ * Local test checking that restoring a mapping after its peer is found dead by the
+ * heartbeat does not hold up the heartbeats of other streams.
+ */
+public class MappingRestoreTest {
+
+    private static Environment environmentWithPort(int port) {
+        return () -> {
+            Location location = new Location();
+            try {
+                location.addAddress(Address.make("zmq://127.0.0.1:" + port));
+            } catch (MalformedAddressException e) {
+                Assert.fail("Couldn't create environment.");
+            }
+            return location;
+        };
+    }
+
+    /**
+     * Create a configuration with heartbeats at the given interval and timeout.
+     */
+    private static ZMQSchemeConfiguration heartbeatConfiguration(int port, long interval,
+                                                                 long timeout) {
+        return new ZMQSchemeConfiguration.Builder()
+                .setPort(port)
+                .setHeartbeatIntervalMillis(interval)
+                .setHeartbeatTimeoutMillis(timeout)
+                .build();
+    }
+
+    @Test
+    public void testRestoreDoesNotBlockHeartbeats() throws Exception {
+        int port1 = 8000;
+        int port2 = 8001;
+        int vanishedPort = 8002;
+        Address address1 = Address.make("zmq://127.0.0.1:" + port1);
+        Address address2 = Address.make("zmq://127.0.0.1:" + port2);
+
+        // Create two ZMQMessageContext objects with a short heartbeat timeout.
+        ZMQMessageContext context1 = new ZMQMessageContext(
+                environmentWithPort(port1), heartbeatConfiguration(port1, 100, 500));
+        ZMQMessageContext context2 = new ZMQMessageContext(
+                environmentWithPort(port2), heartbeatConfiguration(port2, 100, 500));
+
+        // Exchange messages, so that each context learns the wire version of the other.
+        MessageStream stream1To2 = context1.getMessageStream(address2);
+        MessageStream stream2To1 = context2.getMessageStream(address1);
+        CountDownLatch received = new CountDownLatch(2);
+        stream1To2.registerListener(message -> received.countDown());
+        stream2To1.registerListener(message -> received.countDown());
+        stream1To2.send("1 --> 2");
+        stream2To1.send("2 --> 1");
+        Assert.assertTrue(received.await(2, TimeUnit.SECONDS));
+
+        // Impersonate a peer of the first context supporting heartbeats, which sends
+        // its initial message and then vanishes without sending FIN.
+        ZMQ.Context peerContext = ZMQ.context(1);
+        ZMQ.Socket peer = peerContext.socket(ZMQ.DEALER);
+        peer.setLinger(0);
+        peer.connect("tcp://127.0.0.1:" + port1);
+        peer.sendMore("{\"location\":" +
+                environmentWithPort(vanishedPort).getLocation().toJSON() + "}");
+        peer.send(new byte[] { 2 });
+
+        // Wait for the context to resolve a stream for the peer.
+        Thread.sleep(200);
+        MessageStream vanished = context1.getMessageStream(
+                new ZMQAddress.Builder().setHost("127.0.0.1").setPort(vanishedPort).build());
+        Assert.assertFalse(vanished.isClosed());
+
+        // Set up a service whose discovery blocks, as a request to an unresponsive
+        // RDC would.
+        CountDownLatch restoring = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        MiddlewareService service = new MiddlewareService() {
+            @Override
+            public List<Middleware> discover(Query query) throws BadHostException {
+                restoring.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {
+                    // Give up early.
+                }
+                throw new BadHostException("rdc");
+            }
+        };
+
+        // Map an endpoint to one on the vanished peer, re-sending the query should
+        // every link fail. The link closes with the stream carrying it.
+        Endpoint endpoint = new Endpoint(service, new EndpointDetails(
+                "local", "", Polarity.SOURCE, "{}", Collections.emptyList()), false, false);
+        RemoteEndpointDetails remote = new RemoteEndpointDetails(
+                0, "remote", "", Polarity.SINK, "{}", Collections.emptyList(),
+                new Middleware(0, environmentWithPort(vanishedPort).getLocation(),
+                               new Location()));
+        Link link = new Link(endpoint, remote);
+        vanished.subscribe(s -> link.close());
+        Mapping mapping = new Mapping(endpoint, new Query.Builder().build(),
+                                      Persistence.RESEND_QUERY, Collections.singletonList(link));
+
+        // Once the heartbeat times out, the mapping should be restored.
+        Assert.assertTrue(restoring.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(vanished.isClosed());
+
+        // While the restoration is blocked, the healthy streams should be kept open
+        // by their heartbeats.
+        Thread.sleep(1500);
+        Assert.assertFalse(stream1To2.isClosed());
+        Assert.assertFalse(stream2To1.isClosed());
+
+        // Release the restoration, and terminate the contexts.
+        release.countDown();
+        mapping.close();
+        peer.close();
+        peerContext.term();
+        context1.term();
+        context2.term();
+    }
+}